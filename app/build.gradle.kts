@@ -47,7 +47,6 @@ dependencies {
     implementation("androidx.camera:camera-camera2:1.3.1")
     implementation("androidx.camera:camera-lifecycle:1.3.1")
     implementation("androidx.camera:camera-view:1.3.1")
-    implementation("com.github.prasad-psp:Android-Bluetooth-Library:1.0.4")
     implementation("com.google.code.gson:gson:2.10.1")
     implementation("com.squareup.okhttp3:okhttp:5.1.0")
     implementation("com.github.mik3y:usb-serial-for-android:3.9.0")
@@ -65,6 +64,8 @@ dependencies {
     implementation(libs.androidx.media3.common)
     implementation(libs.androidx.lifecycle.service)
     testImplementation(libs.junit)
+    // real org.json for JVM tests; android.jar only ships stubs
+    testImplementation("org.json:json:20240303")
     androidTestImplementation(libs.androidx.junit)
     androidTestImplementation(libs.androidx.espresso.core)
     androidTestImplementation(platform(libs.androidx.compose.bom))
@@ -14,6 +14,7 @@ import androidx.appcompat.app.AlertDialog;
 import androidx.core.app.ActivityCompat;
 
 import com.github.nikipo.ussoi.storage.SaveInputFields;
+import com.github.nikipo.ussoi.tunnel.bt.BluetoothHandler;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -104,6 +105,15 @@ public final class BluetoothController {
 
                             BluetoothDevice dev = devices.get(which);
                             if (isChecked) {
+                                if (!SaveInputFields.selectedBtDevices.contains(dev)
+                                        && SaveInputFields.selectedBtDevices.size() >= BluetoothHandler.MAX_TUNNELS) {
+                                    ((AlertDialog) d).getListView().setItemChecked(which, false);
+                                    checked[which] = false;
+                                    Toast.makeText(activity,
+                                            "At most " + BluetoothHandler.MAX_TUNNELS + " Bluetooth devices",
+                                            Toast.LENGTH_SHORT).show();
+                                    return;
+                                }
                                 if (!SaveInputFields.selectedBtDevices.contains(dev))
                                     SaveInputFields.selectedBtDevices.add(dev);
                             } else {
@@ -9,7 +9,8 @@ import android.hardware.usb.UsbManager;
 import android.os.Build;
 import android.widget.Toast;
 
-import com.github.nikipo.ussoi.tunnel.usb.UsbHandler;
+import com.github.nikipo.ussoi.storage.SaveInputFields;
+import com.github.nikipo.ussoi.tunnel.usb.UsbTunnelConfig;
 import com.hoho.android.usbserial.driver.UsbSerialDriver;
 import com.hoho.android.usbserial.driver.UsbSerialProber;
 import java.util.List;
@@ -20,15 +21,13 @@ public final class UsbDriverController {
 
     private final Activity activity;
     private final UsbManager usbManager;
-    private final UsbHandler usbHandler;
 
     public UsbDriverController(Activity activity) {
         this.activity = activity;
         this.usbManager =(UsbManager) activity.getSystemService(Context.USB_SERVICE);
-        this.usbHandler = UsbHandler.getInstance(activity);
 
-        // make sure previous connected device is cleared usbHandler is singleton
-        usbHandler.clearDriver();
+        // make sure previously selected ports are cleared, the list is static
+        SaveInputFields.selectedUsbTunnels.clear();
     }
     public interface OnComplete {
         void run();
@@ -42,10 +41,16 @@ public final class UsbDriverController {
             return;
         }
 
+        // every start is a fresh selection of ports
+        SaveInputFields.selectedUsbTunnels.clear();
+        showSetup(drivers, onComplete);
+    }
+
+    private void showSetup(List<UsbSerialDriver> drivers, OnComplete onComplete) {
         UsbSetupDialog.show(
                 ((androidx.fragment.app.FragmentActivity) activity).getSupportFragmentManager(),
                 drivers,
-                (driver, name, baudRate) -> {
+                (driver, portIndex, name, baudRate, addAnother) -> {
                     UsbDevice device = driver.getDevice();
 
                     if (!usbManager.hasPermission(device)) {
@@ -53,12 +58,26 @@ public final class UsbDriverController {
                         return;
                     }
 
-                    usbHandler.setDeviceConfig(driver, name, baudRate);
-                    onComplete.run();
+                    select(new UsbTunnelConfig(driver, portIndex, name, baudRate));
+                    if (addAnother) {
+                        showSetup(drivers, onComplete);
+                    } else {
+                        onComplete.run();
+                    }
                 }
         );
     }
 
+    /** Tunnels are addressed by name: a repeated name or port replaces the earlier entry. */
+    private void select(UsbTunnelConfig config) {
+        List<UsbTunnelConfig> selected = SaveInputFields.selectedUsbTunnels;
+        for (int i = selected.size() - 1; i >= 0; i--) {
+            UsbTunnelConfig c = selected.get(i);
+            if (c.name.equals(config.name) || c.samePort(config)) selected.remove(i);
+        }
+        selected.add(config);
+    }
+
     void requestPermission(UsbDevice device) {
         int flags = PendingIntent.FLAG_UPDATE_CURRENT;
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S)
@@ -14,6 +14,7 @@ import androidx.fragment.app.DialogFragment;
 
 import com.hoho.android.usbserial.driver.UsbSerialDriver;
 
+import java.util.ArrayList;
 import java.util.List;
 /**
  * *****************************************************************************
@@ -34,7 +35,8 @@ import java.util.List;
 public class UsbSetupDialog extends DialogFragment {
 
     public interface OnConfigured {
-        void onConfigured(UsbSerialDriver driver, String name, int baudRate);
+        /** @param addAnother the user wants to set up one more port after this one */
+        void onConfigured(UsbSerialDriver driver, int portIndex, String name, int baudRate, boolean addAnother);
     }
 
     private static final int[] BAUD = {
@@ -61,11 +63,13 @@ public class UsbSetupDialog extends DialogFragment {
         layout.setOrientation(LinearLayout.VERTICAL);
         layout.setPadding(40, 30, 40, 10);
 
-        // ── Device labels ─────────────────────────────
-        String[] deviceLabels = new String[drivers.size()];
+        // ── Device labels: one entry per port, multi-port adapters list each ──
+        List<UsbSerialDriver> portDrivers = new ArrayList<>();
+        List<Integer> portIndexes = new ArrayList<>();
+        List<String> deviceLabels = new ArrayList<>();
 
-        for (int i = 0; i < drivers.size(); i++) {
-            android.hardware.usb.UsbDevice dev = drivers.get(i).getDevice();
+        for (UsbSerialDriver driver : drivers) {
+            android.hardware.usb.UsbDevice dev = driver.getDevice();
 
             String vid = Integer.toHexString(dev.getVendorId()).toUpperCase();
             String pid = Integer.toHexString(dev.getProductId()).toUpperCase();
@@ -76,7 +80,13 @@ public class UsbSetupDialog extends DialogFragment {
             if (mfg == null) mfg = "Unknown";
             if (prod == null) prod = "Unknown";
 
-            deviceLabels[i] = mfg + " - " + prod + " (" + vid + ":" + pid + ")";
+            String label = mfg + " - " + prod + " (" + vid + ":" + pid + ")";
+            int ports = driver.getPorts().size();
+            for (int p = 0; p < ports; p++) {
+                portDrivers.add(driver);
+                portIndexes.add(p);
+                deviceLabels.add(ports > 1 ? label + " port " + p : label);
+            }
         }
 
         // ── Device spinner ────────────────────────────
@@ -123,19 +133,25 @@ public class UsbSetupDialog extends DialogFragment {
                 .setTitle("USB Setup")
                 .setView(layout)
                 .setNegativeButton("Cancel", (d, w) -> dismiss())
-                .setPositiveButton("Connect", (d, w) -> {
+                .setNeutralButton("Add another", (d, w) ->
+                        submit(name, deviceSpinner, baudSpinner, portDrivers, portIndexes, true))
+                .setPositiveButton("Connect", (d, w) ->
+                        submit(name, deviceSpinner, baudSpinner, portDrivers, portIndexes, false))
+                .create();
+    }
 
-                    String n = name.getText().toString().trim();
-                    if (TextUtils.isEmpty(n)) return;
+    private void submit(EditText name, Spinner deviceSpinner, Spinner baudSpinner,
+                        List<UsbSerialDriver> portDrivers, List<Integer> portIndexes,
+                        boolean addAnother) {
 
-                    UsbSerialDriver driver =
-                            drivers.get(deviceSpinner.getSelectedItemPosition());
+        String n = name.getText().toString().trim();
+        if (TextUtils.isEmpty(n)) return;
 
-                    int baud =
-                            BAUD[baudSpinner.getSelectedItemPosition()];
+        int selected = deviceSpinner.getSelectedItemPosition();
 
-                    callback.onConfigured(driver, n, baud);
-                })
-                .create();
+        int baud =
+                BAUD[baudSpinner.getSelectedItemPosition()];
+
+        callback.onConfigured(portDrivers.get(selected), portIndexes.get(selected), n, baud, addAnother);
     }
 }
@@ -0,0 +1,144 @@
+package com.github.nikipo.ussoi.media.enocders;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * *****************************************************************************
+ *
+ * @author nikipo
+ * *****************************************************************************
+ * @file FrameBufferPool
+ * @attention Copyright (c) 2026
+ * All rights reserved.
+ * <p>
+ * This software is licensed under the terms described in the LICENSE file
+ * located in the root directory of this project.
+ * If no LICENSE file is present, this software is provided "AS IS",
+ * without warranty of any kind, express or implied.
+ * <p>
+ * *****************************************************************************
+ */
+
+/**
+ * Fixed-size pool of reference-counted direct buffers for encoded frames.
+ *
+ * Every buffer keeps {@code headerRoom} bytes free in front of the payload so
+ * the packet header can be written in place and the whole packet sent from a
+ * single buffer without another copy.
+ *
+ * Buffers are created lazily up to {@code maxBuffers}; once all of them are in
+ * flight acquire() returns null and the caller is expected to drop the frame.
+ * Lock-free: acquire/release may happen on different threads.
+ */
+public final class FrameBufferPool {
+
+    public final class Slot {
+        private ByteBuffer buffer;
+        private final AtomicInteger refCount = new AtomicInteger();
+
+        private Slot(int capacity) {
+            buffer = ByteBuffer.allocateDirect(headerRoom + capacity);
+        }
+
+        /** Payload area (after header room), position 0 .. limit payload size. */
+        ByteBuffer payloadForWrite(int payloadSize) {
+            if (buffer.capacity() < headerRoom + payloadSize) {
+                // rare: frame larger than anything seen so far
+                buffer = ByteBuffer.allocateDirect((headerRoom + payloadSize) * 2);
+            }
+            buffer.clear();
+            buffer.position(headerRoom);
+            buffer.limit(headerRoom + payloadSize);
+            return buffer.slice();
+        }
+
+        /** View of [headerRoom - headerSize, headerRoom + payloadSize). */
+        ByteBuffer packetView(int headerSize, int payloadSize) {
+            if (headerSize > headerRoom) {
+                throw new IllegalArgumentException("Header " + headerSize + " exceeds reserved room " + headerRoom);
+            }
+            ByteBuffer view = buffer.duplicate();
+            view.limit(headerRoom + payloadSize);
+            view.position(headerRoom - headerSize);
+            return view.slice();
+        }
+
+        ByteBuffer payloadView(int payloadSize) {
+            ByteBuffer view = buffer.duplicate();
+            view.limit(headerRoom + payloadSize);
+            view.position(headerRoom);
+            return view.slice();
+        }
+
+        public void retain() {
+            if (refCount.getAndIncrement() <= 0) {
+                refCount.decrementAndGet();
+                throw new IllegalStateException("retain() on released frame buffer");
+            }
+        }
+
+        public void release() {
+            int left = refCount.decrementAndGet();
+            if (left == 0) {
+                if (!closed) {
+                    free.offer(this);
+                } else {
+                    allocated.decrementAndGet();
+                }
+            } else if (left < 0) {
+                refCount.incrementAndGet();
+                throw new IllegalStateException("release() on released frame buffer");
+            }
+        }
+    }
+
+    private final int headerRoom;
+    private final int initialCapacity;
+    private final int maxBuffers;
+    private final ConcurrentLinkedQueue<Slot> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger allocated = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    public FrameBufferPool(int maxBuffers, int initialCapacity, int headerRoom) {
+        this.maxBuffers = maxBuffers;
+        this.initialCapacity = initialCapacity;
+        this.headerRoom = headerRoom;
+    }
+
+    public int getHeaderRoom() {
+        return headerRoom;
+    }
+
+    /** Buffers currently held by frames (not in the free list). */
+    public int inFlight() {
+        return allocated.get() - free.size();
+    }
+
+    /** Returns a buffer with refCount 1, or null if the pool is exhausted. */
+    public Slot acquire() {
+        if (closed) return null;
+
+        Slot slot = free.poll();
+        if (slot == null) {
+            if (allocated.incrementAndGet() > maxBuffers) {
+                allocated.decrementAndGet();
+                return null;
+            }
+            slot = new Slot(initialCapacity);
+        }
+        slot.refCount.set(1);
+        return slot;
+    }
+
+    /** Drops pooled buffers; buffers still in flight are discarded on release. */
+    public void close() {
+        closed = true;
+        Slot slot;
+        while ((slot = free.poll()) != null) {
+            allocated.decrementAndGet();
+            slot.buffer = null;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.github.nikipo.ussoi.media.enocders;
+
+/**
+ * *****************************************************************************
+ *
+ * @author nikipo
+ * *****************************************************************************
+ * @file GopDropPolicy
+ * @attention Copyright (c) 2026
+ * All rights reserved.
+ * <p>
+ * This software is licensed under the terms described in the LICENSE file
+ * located in the root directory of this project.
+ * If no LICENSE file is present, this software is provided "AS IS",
+ * without warranty of any kind, express or implied.
+ * <p>
+ * *****************************************************************************
+ */
+
+/**
+ * Dependency-aware frame drop policy for an H264 stream.
+ *
+ * Once any frame is dropped every following P-frame references something the
+ * receiver never got, so the rest of the GOP is skipped until the next
+ * keyframe and a sync frame is requested from the encoder right away instead
+ * of waiting for the natural I-frame interval.
+ *
+ * admit() is called from the drain loop; counters may be read from any thread.
+ */
+public final class GopDropPolicy {
+
+    public interface SyncRequester {
+        void requestSyncFrame();
+    }
+
+    private static final long DEFAULT_SYNC_RETRY_MS = 500;
+
+    private final SyncRequester syncRequester;
+    private final long syncRetryMs;
+
+    private boolean skipping = false;
+    private long skipStartMs;
+    private long lastSyncRequestMs;
+
+    private volatile long droppedFrames;
+    private volatile long skippedGops;
+    private volatile long syncRequests;
+    private volatile long recoveries;
+    private volatile long lastRecoveryMs;
+    private volatile long maxRecoveryMs;
+    private volatile long totalRecoveryMs;
+
+    public GopDropPolicy(SyncRequester syncRequester) {
+        this(syncRequester, DEFAULT_SYNC_RETRY_MS);
+    }
+
+    public GopDropPolicy(SyncRequester syncRequester, long syncRetryMs) {
+        this.syncRequester = syncRequester;
+        this.syncRetryMs = syncRetryMs;
+    }
+
+    /**
+     * Decides whether a frame may be sent.
+     *
+     * @param keyFrame   frame is an IDR (decodable on its own)
+     * @param overBudget the link backlog is over budget right now
+     * @param nowMs      monotonic time in ms
+     * @return true to send the frame, false to drop it
+     */
+    public synchronized boolean admit(boolean keyFrame, boolean overBudget, long nowMs) {
+        if (!skipping) {
+            if (!overBudget) return true;
+
+            skipping = true;
+            skipStartMs = nowMs;
+            skippedGops++;
+            droppedFrames++;
+            requestSync(nowMs);
+            return false;
+        }
+
+        if (keyFrame && !overBudget) {
+            skipping = false;
+            long recovery = nowMs - skipStartMs;
+            lastRecoveryMs = recovery;
+            totalRecoveryMs += recovery;
+            if (recovery > maxRecoveryMs) maxRecoveryMs = recovery;
+            recoveries++;
+            return true;
+        }
+
+        droppedFrames++;
+        // The requested IDR may itself have been dropped while still over budget.
+        if (nowMs - lastSyncRequestMs >= syncRetryMs) {
+            requestSync(nowMs);
+        }
+        return false;
+    }
+
+    /**
+     * Starts skipping until the next keyframe without counting a drop,
+     * e.g. when the stream resumes after a mute gap.
+     */
+    public synchronized void resync(long nowMs) {
+        if (skipping) return;
+        skipping = true;
+        skipStartMs = nowMs;
+        requestSync(nowMs);
+    }
+
+    /** Forgets the current skip state, e.g. after the encoder was restarted. */
+    public synchronized void reset() {
+        skipping = false;
+    }
+
+    public synchronized boolean isSkipping() { return skipping; }
+    public long getDroppedFrames()    { return droppedFrames; }
+    public long getSkippedGops()      { return skippedGops; }
+    public long getSyncRequests()     { return syncRequests; }
+    public long getRecoveries()       { return recoveries; }
+    public long getLastRecoveryMs()   { return lastRecoveryMs; }
+    public long getMaxRecoveryMs()    { return maxRecoveryMs; }
+
+    /** Mean time from the first dropped frame to the resuming keyframe, in ms. */
+    public long getAvgRecoveryMs() {
+        long n = recoveries;
+        return n == 0 ? 0 : totalRecoveryMs / n;
+    }
+
+    private void requestSync(long nowMs) {
+        lastSyncRequestMs = nowMs;
+        syncRequests++;
+        if (syncRequester != null) {
+            syncRequester.requestSyncFrame();
+        }
+    }
+}
@@ -5,12 +5,48 @@ import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
 import android.view.Surface;
 
+import androidx.annotation.NonNull;
+
+import com.github.nikipo.ussoi.media.utility.CaptureClock;
+import com.github.nikipo.ussoi.system.metrics.Counter;
+import com.github.nikipo.ussoi.system.metrics.Histogram;
+import com.github.nikipo.ussoi.system.metrics.Metrics;
+
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 public final class StreamingEncoder {
+    private static final String TAG = "StreamingEncoder";
+
+    // Async (callback) mode: frames waiting for the drain thread
+    private static final int OUTPUT_QUEUE_CAPACITY = 8;
+    private static final long OUTPUT_POLL_TIMEOUT_MS = 100;
+
+    // Bytes kept free in front of every frame for the packet header (room for the frame trace)
+    public static final int FRAME_HEADER_ROOM = 32;
+    // queue capacity + frames held downstream (drain thread, sender)
+    private static final int FRAME_POOL_BUFFERS = OUTPUT_QUEUE_CAPACITY + 4;
+    private static final int FRAME_INITIAL_CAPACITY = 256 * 1024;
+
+    private static final Counter framesOut = Metrics.counter(
+            "ussoi_encoder_frames_total", "Encoded frames admitted to the output queue");
+    private static final Counter keyFramesOut = Metrics.counter(
+            "ussoi_encoder_keyframes_total", "Encoded keyframes admitted to the output queue");
+    private static final Counter bytesOut = Metrics.counter(
+            "ussoi_encoder_bytes_total", "Encoded bytes admitted, SPS/PPS included");
+    private static final Counter framesDropped = Metrics.counter(
+            "ussoi_encoder_frames_dropped_total", "Encoded frames dropped on queue or pool overflow");
+    private static final Histogram encodeLatency = Metrics.histogram(
+            "ussoi_encoder_latency_us", "Capture timestamp to encoder output, microseconds");
+
     private final Object lock = new Object();
     private MediaCodec encoder;
     private Surface inputSurface;
@@ -21,10 +57,28 @@ public final class StreamingEncoder {
     // Cache array for SPS/PPS metadata (pre-API 29)
     private byte[] cachedConfigData = null;
 
-    // Reusable output buffer to eliminate per-frame allocations
-    private ByteBuffer reusableDirectBuffer;
+    // Pooled, ref-counted output buffers so frames can outlive the next dequeue()
+    private FrameBufferPool framePool;
+
+    // Async mode: codec callbacks on a dedicated thread push into a bounded queue
+    private boolean asyncMode = false;
+    private HandlerThread callbackThread;
+    private ArrayBlockingQueue<EncodedFrame> outputQueue;
+    private volatile boolean outputMuted = false;
+    private final GopDropPolicy overflowPolicy = new GopDropPolicy(this::requestSyncFrame);
+
+    // time base of the pts (camera sensor timestamps for Surface input)
+    private volatile CaptureClock captureClock = CaptureClock.MONOTONIC;
 
     public Surface prepare(int width, int height, int fps, int bitrate) throws IOException {
+        return prepare(width, height, fps, bitrate, false);
+    }
+
+    /**
+     * @param async use MediaCodec callbacks instead of polling dequeueOutputBuffer().
+     *              Falls back to polling if the codec rejects callback mode.
+     */
+    public Surface prepare(int width, int height, int fps, int bitrate, boolean async) throws IOException {
         synchronized (lock) {
             MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, width, height);
 
@@ -38,14 +92,34 @@ public final class StreamingEncoder {
             }
 
             encoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_VIDEO_AVC);
-            encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+
+            asyncMode = false;
+            if (async) {
+                try {
+                    startCallbackThread();
+                    // must be set before configure()
+                    encoder.setCallback(codecCallback, new Handler(callbackThread.getLooper()));
+                    encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+                    asyncMode = true;
+                } catch (Exception e) {
+                    Log.w(TAG, "Callback mode unavailable, falling back to polling", e);
+                    stopCallbackThread();
+                    encoder.release();
+                    encoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_VIDEO_AVC);
+                }
+            }
+            if (!asyncMode) {
+                encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            }
 
             inputSurface = encoder.createInputSurface();
             bufferInfo = new MediaCodec.BufferInfo();
 
-            // Pre-allocate a generous buffer (e.g., 2MB) to prevent runtime allocations.
-            // Adjust size based on your max expected target resolution/bitrate.
-            reusableDirectBuffer = ByteBuffer.allocateDirect(2 * 1024 * 1024);
+            framePool = new FrameBufferPool(FRAME_POOL_BUFFERS, FRAME_INITIAL_CAPACITY, FRAME_HEADER_ROOM);
+            overflowPolicy.reset();
+            if (asyncMode) {
+                outputQueue = new ArrayBlockingQueue<>(OUTPUT_QUEUE_CAPACITY);
+            }
 
             return inputSurface;
         }
@@ -61,7 +135,40 @@ public final class StreamingEncoder {
         }
     }
 
+    public boolean isAsync() {
+        return asyncMode;
+    }
+
+    /**
+     * Async mode: frames are dropped at the codec callback while muted so the
+     * drain thread can stay parked on the queue.
+     */
+    public void setOutputMuted(boolean muted) {
+        outputMuted = muted;
+    }
+
+    /** Time base of the input surface's timestamps, see {@link CaptureClock#forCamera}. */
+    public void setCaptureClock(CaptureClock clock) {
+        captureClock = clock;
+    }
+
+    /** Frames dropped because the output queue or the frame pool was full. */
+    public GopDropPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
     public EncodedFrame dequeue() {
+        if (asyncMode) {
+            ArrayBlockingQueue<EncodedFrame> queue = outputQueue;
+            if (queue == null) return null;
+            try {
+                return queue.poll(OUTPUT_POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
         // 1. Grab a local reference to the encoder to drop the lock during the blocking call
         MediaCodec localEncoder;
         synchronized (lock) {
@@ -90,53 +197,141 @@ public final class StreamingEncoder {
             ByteBuffer buffer = localEncoder.getOutputBuffer(index);
 
             if (buffer != null && bufferInfo.size > 0) {
-                buffer.position(bufferInfo.offset);
-                buffer.limit(bufferInfo.offset + bufferInfo.size);
-
                 boolean isConfig = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
-                boolean isKeyFrame = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
-
                 if (isConfig) {
-                    // Lazy initialization or resize if config is unexpectedly larger
-                    if (cachedConfigData == null || cachedConfigData.length < bufferInfo.size) {
-                        cachedConfigData = new byte[bufferInfo.size];
-                    }
-                    buffer.get(cachedConfigData, 0, bufferInfo.size);
+                    copyOut(buffer, bufferInfo, null);
                 } else {
-                    int requiredSize = bufferInfo.size;
-                    boolean prependConfig = isKeyFrame && cachedConfigData != null;
+                    // Pool exhausted means the consumer still holds every buffer
+                    frame = admitAndCopy(buffer, bufferInfo, false);
+                }
+            }
 
-                    if (prependConfig) {
-                        requiredSize += cachedConfigData.length;
-                    }
+            localEncoder.releaseOutputBuffer(index, false);
+        }
 
-                    // Ensure our reusable buffer has enough capacity (fallback resize)
-                    if (reusableDirectBuffer.capacity() < requiredSize) {
-                        reusableDirectBuffer = ByteBuffer.allocateDirect(requiredSize * 2);
-                    }
+        return frame;
+    }
+
+    private final MediaCodec.Callback codecCallback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+            // Surface input, nothing to feed
+        }
+
+        @Override
+        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+            synchronized (lock) {
+                if (encoder != codec || !isStreaming) {
+                    try {
+                        codec.releaseOutputBuffer(index, false);
+                    } catch (Exception ignored) {}
+                    return;
+                }
+
+                ByteBuffer buffer = codec.getOutputBuffer(index);
 
-                    reusableDirectBuffer.clear();
+                if (buffer != null && info.size > 0) {
+                    boolean isConfig = (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
 
-                    if (prependConfig) {
-                        reusableDirectBuffer.put(cachedConfigData);
+                    if (isConfig) {
+                        copyOut(buffer, info, null);
+                    } else if (!outputMuted) {
+                        boolean full = outputQueue.remainingCapacity() == 0;
+                        EncodedFrame frame = admitAndCopy(buffer, info, full);
+                        if (frame != null && !outputQueue.offer(frame)) {
+                            frame.release();
+                            framesDropped.inc();
+                        }
                     }
-                    reusableDirectBuffer.put(buffer);
-                    reusableDirectBuffer.flip();
-
-                    // Note: EncodedFrame now wraps a slice of the reusable buffer.
-                    // The caller must consume this frame before the next call to dequeue().
-                    frame = new EncodedFrame(
-                            reusableDirectBuffer.duplicate(),
-                            bufferInfo.presentationTimeUs,
-                            isKeyFrame
-                    );
                 }
+
+                codec.releaseOutputBuffer(index, false);
             }
+        }
 
-            localEncoder.releaseOutputBuffer(index, false);
+        @Override
+        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+            Log.e(TAG, "Encoder error", e);
         }
 
-        return frame;
+        @Override
+        public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+            Log.d(TAG, "Output format changed: " + format);
+        }
+    };
+
+    /** Bytes needed to hold this output buffer including any prepended SPS/PPS. */
+    private int requiredSize(MediaCodec.BufferInfo info) {
+        boolean isKeyFrame = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        int size = info.size;
+        if (isKeyFrame && cachedConfigData != null) {
+            size += cachedConfigData.length;
+        }
+        return size;
+    }
+
+    /**
+     * Runs the overflow policy and copies an admitted frame into a pooled buffer.
+     * Must be called under lock. Returns null if the frame was dropped.
+     */
+    private EncodedFrame admitAndCopy(ByteBuffer buffer, MediaCodec.BufferInfo info, boolean queueFull) {
+        boolean isKeyFrame = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+
+        FrameBufferPool.Slot slot = queueFull ? null : framePool.acquire();
+        if (!overflowPolicy.admit(isKeyFrame, slot == null, SystemClock.elapsedRealtime())) {
+            if (slot != null) slot.release();
+            framesDropped.inc();
+            return null;
+        }
+        return copyOut(buffer, info, slot);
+    }
+
+    /**
+     * Caches codec config or copies a frame (with SPS/PPS prepended to keyframes)
+     * into the payload area of slot. Must be called under lock. Returns null for
+     * config buffers.
+     */
+    private EncodedFrame copyOut(ByteBuffer buffer, MediaCodec.BufferInfo info, FrameBufferPool.Slot slot) {
+        buffer.position(info.offset);
+        buffer.limit(info.offset + info.size);
+
+        boolean isConfig = (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+        boolean isKeyFrame = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+
+        if (isConfig) {
+            // Lazy initialization or resize if config is unexpectedly larger
+            if (cachedConfigData == null || cachedConfigData.length != info.size) {
+                cachedConfigData = new byte[info.size];
+            }
+            buffer.get(cachedConfigData, 0, info.size);
+            return null;
+        }
+
+        int size = requiredSize(info);
+        ByteBuffer target = slot.payloadForWrite(size);
+
+        if (isKeyFrame && cachedConfigData != null) {
+            target.put(cachedConfigData);
+        }
+        target.put(buffer);
+
+        framesOut.inc();
+        bytesOut.add(size);
+        if (isKeyFrame) keyFramesOut.inc();
+        CaptureClock clock = captureClock;
+        long outputUs = clock.nowUs();
+        long latencyUs = outputUs - info.presentationTimeUs;
+        if (latencyUs >= 0 && latencyUs < CaptureClock.MAX_PLAUSIBLE_AGE_US) {
+            encodeLatency.record(latencyUs);
+        }
+
+        return new EncodedFrame(
+                slot,
+                size,
+                info.presentationTimeUs,
+                outputUs,
+                isKeyFrame
+        );
     }
 
     public void pauseStreaming() {
@@ -157,6 +352,17 @@ public final class StreamingEncoder {
         }
     }
 
+    /** Asks the codec to emit an IDR as soon as possible (used after dropping frames). */
+    public void requestSyncFrame() {
+        synchronized (lock) {
+            if (encoder == null) return;
+
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+            encoder.setParameters(params);
+        }
+    }
+
     public void close() {
         synchronized (lock) {
             isStreaming = false;
@@ -173,21 +379,74 @@ public final class StreamingEncoder {
                 inputSurface.release();
                 inputSurface = null;
             }
+            stopCallbackThread();
+            if (outputQueue != null) {
+                EncodedFrame frame;
+                while ((frame = outputQueue.poll()) != null) {
+                    frame.release();
+                }
+            }
+            if (framePool != null) {
+                framePool.close();
+                framePool = null;
+            }
             bufferInfo = null;
             cachedConfigData = null;
-            reusableDirectBuffer = null;
         }
     }
 
+    private void startCallbackThread() {
+        callbackThread = new HandlerThread("H264-Encoder");
+        callbackThread.start();
+    }
+
+    private void stopCallbackThread() {
+        if (callbackThread != null) {
+            callbackThread.quitSafely();
+            callbackThread = null;
+        }
+    }
+
+    /**
+     * A frame in a pooled buffer. The consumer owns one reference and must call
+     * release() when done; retain() before handing it to another stage.
+     */
     public static final class EncodedFrame {
         public final ByteBuffer data;
         public final long ptsUs;
+        // when the codec handed the frame out, same time base as ptsUs
+        public final long outputUs;
         public final boolean keyFrame;
+        private final FrameBufferPool.Slot slot;
+        private final int size;
 
-        EncodedFrame(ByteBuffer data, long ptsUs, boolean keyFrame) {
-            this.data = data;
+        EncodedFrame(FrameBufferPool.Slot slot, int size, long ptsUs, long outputUs, boolean keyFrame) {
+            this.slot = slot;
+            this.size = size;
+            this.data = slot.payloadView(size);
             this.ptsUs = ptsUs;
+            this.outputUs = outputUs;
             this.keyFrame = keyFrame;
         }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Header room + payload as one buffer; the first headerSize bytes are
+         * free for the caller to fill in. headerSize must not exceed FRAME_HEADER_ROOM.
+         */
+        public ByteBuffer packet(int headerSize) {
+            return slot.packetView(headerSize, size);
+        }
+
+        public void retain() {
+            slot.retain();
+        }
+
+        public void release() {
+            slot.release();
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,280 @@
+package com.github.nikipo.ussoi.media.h264;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * *****************************************************************************
+ *
+ * @author nikipo
+ * *****************************************************************************
+ * @file AbrController
+ * @attention Copyright (c) 2026
+ * All rights reserved.
+ * <p>
+ * This software is licensed under the terms described in the LICENSE file
+ * located in the root directory of this project.
+ * If no LICENSE file is present, this software is provided "AS IS",
+ * without warranty of any kind, express or implied.
+ * <p>
+ * *****************************************************************************
+ */
+
+/**
+ * Closed-loop adaptive bitrate engine for the H264 WebSocket stream.
+ *
+ * Inputs (fed once per tick by the owner):
+ *   - OkHttp queue depth in bytes (WebSocketHandler.getPendingBytes())
+ *   - total bytes handed to the socket so far (drives the drain-rate estimate)
+ *   - app upload throughput in bytes/s (NetworkStatsProvider)
+ *
+ * Outputs: a target encoder bitrate and a rung on the resolution/fps ladder.
+ * Rung 0 is the highest quality; higher indices are cheaper.
+ *
+ * Pure Java and clock-agnostic (the caller passes nowMs), so it can be driven
+ * on the JVM by a simulated link model.
+ */
+public final class AbrController {
+
+    public static final class Rung {
+        public final int width;
+        public final int height;
+        public final int fps;
+        public final int minBitrate;
+        public final int maxBitrate;
+
+        public Rung(int width, int height, int fps, int minBitrate, int maxBitrate) {
+            if (minBitrate < 1 || maxBitrate < minBitrate) {
+                throw new IllegalArgumentException("Invalid rung bitrate range");
+            }
+            this.width = width;
+            this.height = height;
+            this.fps = fps;
+            this.minBitrate = minBitrate;
+            this.maxBitrate = maxBitrate;
+        }
+
+        public boolean sameVideo(Rung other) {
+            return other != null
+                    && width == other.width
+                    && height == other.height
+                    && fps == other.fps;
+        }
+    }
+
+    public static final class Config {
+        // queueing delay (queue bytes / drain rate) thresholds
+        public long highDelayMs = 800;
+        public long lowDelayMs = 150;
+
+        // multiplicative decrease / additive-ish increase
+        public float decreaseFactor = 0.85f;
+        public float increaseFactor = 1.08f;
+        public int minIncreaseStep = 8_000;
+
+        // hold times before acting again
+        public long increaseHoldMs = 2_000;
+        public long decreaseHoldMs = 500;
+        public long rungDownHoldMs = 3_000;
+        public long rungUpHoldMs = 10_000;
+
+        // EWMA weight for the drain-rate estimate
+        public float drainAlpha = 0.3f;
+    }
+
+    public static final class Decision {
+        public final int bitrate;
+        public final int rungIndex;
+        public final Rung rung;
+        public final boolean rungChanged;
+        public final String reason;
+        public final long queueBytes;
+        public final long drainBytesPerSec;
+        public final long uploadBytesPerSec;
+        public final long queueDelayMs;
+
+        Decision(int bitrate, int rungIndex, Rung rung, boolean rungChanged, String reason,
+                 long queueBytes, long drainBytesPerSec, long uploadBytesPerSec, long queueDelayMs) {
+            this.bitrate = bitrate;
+            this.rungIndex = rungIndex;
+            this.rung = rung;
+            this.rungChanged = rungChanged;
+            this.reason = reason;
+            this.queueBytes = queueBytes;
+            this.drainBytesPerSec = drainBytesPerSec;
+            this.uploadBytesPerSec = uploadBytesPerSec;
+            this.queueDelayMs = queueDelayMs;
+        }
+    }
+
+    public static final String REASON_CONGESTED = "congested";
+    public static final String REASON_PROBE = "probe";
+    public static final String REASON_RUNG_DOWN = "rung_down";
+    public static final String REASON_RUNG_UP = "rung_up";
+
+    private final Config config;
+    private final List<Rung> ladder;
+
+    private int rungIndex;
+    private int bitrate;
+
+    private long lastTickMs = -1;
+    private long lastQueueBytes;
+    private long lastSentBytes;
+    private double drainEwma;          // bytes/s, only updated while the link is backlogged
+
+    private long lastChangeMs;
+    private long stableSinceMs = -1;   // queue has stayed under lowDelayMs since
+    private long pinnedLowSinceMs = -1; // congested at rung minimum since
+
+    public AbrController(Config config, List<Rung> ladder, int initialBitrate) {
+        if (ladder == null || ladder.isEmpty()) {
+            throw new IllegalArgumentException("ABR ladder is empty");
+        }
+        this.config = config != null ? config : new Config();
+        this.ladder = new ArrayList<>(ladder);
+        this.rungIndex = 0;
+        this.bitrate = clamp(initialBitrate, this.ladder.get(0));
+    }
+
+    public synchronized int getBitrate()   { return bitrate; }
+    public synchronized int getRungIndex() { return rungIndex; }
+    public synchronized Rung getRung()     { return ladder.get(rungIndex); }
+    public synchronized List<Rung> getLadder() { return new ArrayList<>(ladder); }
+
+    /**
+     * Manual override (e.g. set_stream_res bitrate) — restarts the loop from this value.
+     *
+     * @return the bitrate actually used, clamped to the current rung
+     */
+    public synchronized int reset(int newBitrate, long nowMs) {
+        bitrate = clamp(newBitrate, ladder.get(rungIndex));
+        lastChangeMs = nowMs;
+        stableSinceMs = -1;
+        pinnedLowSinceMs = -1;
+        return bitrate;
+    }
+
+    /**
+     * Runs one control step.
+     *
+     * @param nowMs            monotonic time in ms
+     * @param queueBytes       bytes currently queued in the socket
+     * @param sentBytesTotal   running total of bytes handed to the socket
+     * @param uploadBytesPerSec measured upload throughput, 0 if unknown
+     * @return a decision if the bitrate or rung changed, otherwise null
+     */
+    public synchronized Decision update(long nowMs, long queueBytes, long sentBytesTotal, long uploadBytesPerSec) {
+        if (lastTickMs < 0) {
+            lastTickMs = nowMs;
+            lastQueueBytes = queueBytes;
+            lastSentBytes = sentBytesTotal;
+            lastChangeMs = nowMs;
+            return null;
+        }
+
+        long dt = nowMs - lastTickMs;
+        if (dt <= 0) return null;
+
+        long enqueued = Math.max(0, sentBytesTotal - lastSentBytes);
+        long drained = Math.max(0, enqueued - (queueBytes - lastQueueBytes));
+        boolean backlogged = queueBytes > 0 || lastQueueBytes > 0;
+
+        lastTickMs = nowMs;
+        lastQueueBytes = queueBytes;
+        lastSentBytes = sentBytesTotal;
+
+        // Drain rate only says something about capacity while the queue is non-empty;
+        // otherwise it just mirrors what the encoder produced.
+        double drainRate = drained * 1000.0 / dt;
+        if (backlogged) {
+            drainEwma = drainEwma <= 0
+                    ? drainRate
+                    : drainEwma + config.drainAlpha * (drainRate - drainEwma);
+        }
+
+        long capacity = (long) Math.max(drainEwma, uploadBytesPerSec);
+        long queueDelayMs = queueBytes == 0
+                ? 0
+                : queueBytes * 1000 / Math.max(1, capacity > 0 ? capacity : bitrate / 8);
+
+        Rung rung = ladder.get(rungIndex);
+
+        if (queueDelayMs >= config.highDelayMs) {
+            stableSinceMs = -1;
+
+            if (bitrate <= rung.minBitrate) {
+                if (pinnedLowSinceMs < 0) pinnedLowSinceMs = nowMs;
+                if (rungIndex < ladder.size() - 1
+                        && nowMs - pinnedLowSinceMs >= config.rungDownHoldMs) {
+                    rungIndex++;
+                    pinnedLowSinceMs = -1;
+                    Rung next = ladder.get(rungIndex);
+                    return changed(nowMs, clamp(bitrate, next), true, REASON_RUNG_DOWN,
+                            queueBytes, uploadBytesPerSec, queueDelayMs);
+                }
+                return null;
+            }
+
+            if (nowMs - lastChangeMs < config.decreaseHoldMs) return null;
+
+            long target = (long) (bitrate * config.decreaseFactor);
+            if (drainEwma > 0) {
+                target = Math.min(target, (long) (drainEwma * 8 * config.decreaseFactor));
+            }
+            return changed(nowMs, clamp(target, rung), false, REASON_CONGESTED,
+                    queueBytes, uploadBytesPerSec, queueDelayMs);
+        }
+
+        pinnedLowSinceMs = -1;
+
+        if (queueDelayMs > config.lowDelayMs) {
+            // Between thresholds: hold.
+            stableSinceMs = -1;
+            return null;
+        }
+
+        if (stableSinceMs < 0) stableSinceMs = nowMs;
+
+        if (bitrate >= rung.maxBitrate) {
+            if (rungIndex > 0 && nowMs - stableSinceMs >= config.rungUpHoldMs) {
+                rungIndex--;
+                stableSinceMs = nowMs;
+                Rung next = ladder.get(rungIndex);
+                return changed(nowMs, next.minBitrate, true, REASON_RUNG_UP,
+                        queueBytes, uploadBytesPerSec, queueDelayMs);
+            }
+            return null;
+        }
+
+        if (nowMs - lastChangeMs < config.increaseHoldMs
+                || nowMs - stableSinceMs < config.increaseHoldMs) {
+            return null;
+        }
+
+        // Only probe upward when the link is actually carrying what we ask for;
+        // a static scene undershoots the target and must not inflate it forever.
+        if (uploadBytesPerSec > 0 && uploadBytesPerSec * 8 < bitrate * 0.7) {
+            return null;
+        }
+
+        long target = Math.max((long) (bitrate * config.increaseFactor), bitrate + (long) config.minIncreaseStep);
+        return changed(nowMs, clamp(target, rung), false, REASON_PROBE,
+                queueBytes, uploadBytesPerSec, queueDelayMs);
+    }
+
+    private Decision changed(long nowMs, int newBitrate, boolean rungChanged, String reason,
+                             long queueBytes, long uploadBytesPerSec, long queueDelayMs) {
+        if (newBitrate == bitrate && !rungChanged) return null;
+        bitrate = newBitrate;
+        lastChangeMs = nowMs;
+        return new Decision(bitrate, rungIndex, ladder.get(rungIndex), rungChanged, reason,
+                queueBytes, (long) drainEwma, uploadBytesPerSec, queueDelayMs);
+    }
+
+    private static int clamp(long value, Rung rung) {
+        if (value < rung.minBitrate) return rung.minBitrate;
+        if (value > rung.maxBitrate) return rung.maxBitrate;
+        return (int) value;
+    }
+}
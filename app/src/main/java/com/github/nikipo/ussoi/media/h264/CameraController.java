@@ -35,6 +35,9 @@ public final class CameraController {
 
     private volatile boolean closed = true;
 
+    // per-frame capture results, e.g. for latency tracing (null = none)
+    private CameraCaptureSession.CaptureCallback captureCallback;
+
     public CameraController(
             Context context,
             SurfaceMode surfaceMode
@@ -51,6 +54,11 @@ public final class CameraController {
         lqSurface = surface;
     }
 
+    /** Receives the repeating request's results on the camera thread. Set before start(). */
+    public synchronized void setCaptureCallback(CameraCaptureSession.CaptureCallback callback) {
+        captureCallback = callback;
+    }
+
     public synchronized void start(
             String cameraId,
             Range<Integer> fpsRange
@@ -218,7 +226,7 @@ public final class CameraController {
 
                         session.setRepeatingRequest(
                                 builder.build(),
-                                null,
+                                captureCallback,
                                 cameraHandler
                         );
 
@@ -0,0 +1,213 @@
+package com.github.nikipo.ussoi.media.h264;
+
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.github.nikipo.ussoi.media.enocders.StreamingEncoder;
+import com.github.nikipo.ussoi.media.utility.CaptureClock;
+import com.github.nikipo.ussoi.network.Webscoket.SendScheduler;
+import com.github.nikipo.ussoi.system.metrics.Histogram;
+import com.github.nikipo.ussoi.system.metrics.Metrics;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+
+/**
+ * *****************************************************************************
+ *
+ * @author nikipo
+ * *****************************************************************************
+ * @file FrameTrace
+ * @attention Copyright (c) 2026
+ * All rights reserved.
+ * <p>
+ * This software is licensed under the terms described in the LICENSE file
+ * located in the root directory of this project.
+ * If no LICENSE file is present, this software is provided "AS IS",
+ * without warranty of any kind, express or implied.
+ * <p>
+ * *****************************************************************************
+ */
+
+/**
+ * Per-frame latency trace from sensor exposure to socket write.
+ *
+ * Stages, all in the camera's time base ({@link CaptureClock}):
+ * <pre>
+ *   capture   sensor timestamp (= MediaCodec pts)
+ *   input     capture result delivered — the buffer is in the encoder's surface
+ *   output    encoder handed the frame out
+ *   enqueue   drain loop queued the packet on the stream socket
+ *   write     SendScheduler handed it to OkHttp
+ * </pre>
+ * The trace block written after the 9-byte packet header holds four u32
+ * big-endian offsets from capture, µs (0 = not measured):
+ * [input][output][enqueue][write]. write is filled in on the pump thread
+ * through {@link SendScheduler.WriteStamp}.
+ *
+ * "input" is approximated by onCaptureCompleted: camera2 exposes no callback
+ * for the moment the buffer is queued to the encoder surface, but the result
+ * metadata arrives right around it.
+ */
+final class FrameTrace implements SendScheduler.WriteStamp {
+    private static final String TAG = "FrameTrace";
+
+    static final int TRACE_BYTES = 16;
+
+    private static final int OFF_INPUT = 0;
+    private static final int OFF_OUTPUT = 4;
+    private static final int OFF_ENQUEUE = 8;
+    private static final int OFF_WRITE = 12;
+
+    // capture-completed ring; a frame is looked up a few frames after its result
+    private static final int RING_SIZE = 32;
+
+    private static final String[] STAGES = {"sensor", "encode", "drain", "queue", "total"};
+    private static final Histogram[] stageHistograms = new Histogram[STAGES.length];
+    private static final int SENSOR = 0, ENCODE = 1, DRAIN = 2, QUEUE = 3, TOTAL = 4;
+
+    static {
+        for (int i = 0; i < STAGES.length; i++) {
+            stageHistograms[i] = Metrics.histogram("ussoi_frame_latency_us", "stage=\"" + STAGES[i] + "\"",
+                    "Per-stage video frame latency (capture -> socket write), microseconds");
+        }
+    }
+
+    private final CaptureClock clock;
+    private final int traceOffset;
+
+    private final long[] ringSensorUs = new long[RING_SIZE];
+    private final long[] ringDeliveredUs = new long[RING_SIZE];
+    private int ringNext = 0;
+
+    /**
+     * @param traceOffset where the trace block starts inside the packet
+     */
+    FrameTrace(CaptureClock clock, int traceOffset) {
+        this.clock = clock;
+        this.traceOffset = traceOffset;
+    }
+
+    /** Pass to the repeating request so "input" times can be matched to frames. */
+    final CameraCaptureSession.CaptureCallback captureCallback = new CameraCaptureSession.CaptureCallback() {
+        @Override
+        public void onCaptureCompleted(@NonNull CameraCaptureSession session,
+                                       @NonNull CaptureRequest request,
+                                       @NonNull TotalCaptureResult result) {
+            Long sensorNs = result.get(CaptureResult.SENSOR_TIMESTAMP);
+            if (sensorNs != null) {
+                remember(sensorNs / 1000, clock.nowUs());
+            }
+        }
+    };
+
+    private synchronized void remember(long sensorUs, long deliveredUs) {
+        ringSensorUs[ringNext] = sensorUs;
+        ringDeliveredUs[ringNext] = deliveredUs;
+        ringNext = (ringNext + 1) % RING_SIZE;
+    }
+
+    /** Delivery time of the frame captured at ptsUs, 0 if it already left the ring. */
+    private synchronized long deliveredUs(long ptsUs) {
+        for (int i = 0; i < RING_SIZE; i++) {
+            if (ringSensorUs[i] == ptsUs) return ringDeliveredUs[i];
+        }
+        return 0;
+    }
+
+    /** Records the stages up to the enqueue for a frame sent without a trace. */
+    void record(StreamingEncoder.EncodedFrame frame) {
+        measure(frame, null);
+    }
+
+    /**
+     * Fills [input][output][enqueue] into packet (write is stamped later) and
+     * records the stages known so far. Call right before the packet is queued.
+     */
+    void write(ByteBuffer packet, StreamingEncoder.EncodedFrame frame) {
+        measure(frame, packet);
+    }
+
+    private void measure(StreamingEncoder.EncodedFrame frame, ByteBuffer packet) {
+        long captureUs = frame.ptsUs;
+        long enqueueUs = clock.nowUs();
+        if (clock.ageUs(captureUs) < 0) {
+            // pts is not in the camera clock: nothing meaningful to report
+            if (packet != null) {
+                for (int i = 0; i < TRACE_BYTES; i += 4) packet.putInt(traceOffset + i, 0);
+            }
+            return;
+        }
+        long inputUs = deliveredUs(captureUs);
+        // a result can arrive after the encoder already produced the frame
+        if (inputUs > frame.outputUs) inputUs = 0;
+
+        if (packet != null) {
+            packet.putInt(traceOffset + OFF_INPUT, offset(inputUs, captureUs));
+            packet.putInt(traceOffset + OFF_OUTPUT, offset(frame.outputUs, captureUs));
+            packet.putInt(traceOffset + OFF_ENQUEUE, offset(enqueueUs, captureUs));
+            packet.putInt(traceOffset + OFF_WRITE, 0);
+        }
+
+        if (inputUs != 0) {
+            stageHistograms[SENSOR].record(inputUs - captureUs);
+            stageHistograms[ENCODE].record(frame.outputUs - inputUs);
+        }
+        stageHistograms[DRAIN].record(enqueueUs - frame.outputUs);
+    }
+
+    /** Pump thread: write = enqueue + time spent in the send queue. */
+    @Override
+    public void onWrite(byte[] message, int offset, long queuedNs) {
+        int base = offset + traceOffset;
+        if (base + TRACE_BYTES > message.length) return;
+        long enqueueOff = readU32(message, base + OFF_ENQUEUE);
+        if (enqueueOff == 0) return;
+
+        long queuedUs = queuedNs / 1000;
+        long writeOff = Math.min(enqueueOff + queuedUs, 0xFFFFFFFFL);
+        writeU32(message, base + OFF_WRITE, writeOff);
+
+        stageHistograms[QUEUE].record(queuedUs);
+        stageHistograms[TOTAL].record(writeOff);
+    }
+
+    /** {stage: [count, p50, p99, max]} in µs, for get_stream_stats. */
+    static JSONObject snapshot() {
+        JSONObject stages = new JSONObject();
+        try {
+            for (int i = 0; i < STAGES.length; i++) {
+                Histogram h = stageHistograms[i];
+                long[] q = h.quantiles(new double[]{0.5, 0.99});
+                stages.put(STAGES[i], new JSONArray().put(h.getCount()).put(q[0]).put(q[1]).put(h.getMax()));
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "snapshot failed", e);
+        }
+        return stages;
+    }
+
+    private static int offset(long stageUs, long captureUs) {
+        if (stageUs == 0 || stageUs < captureUs) return 0;
+        return (int) Math.min(stageUs - captureUs, 0xFFFFFFFFL);
+    }
+
+    private static long readU32(byte[] b, int i) {
+        return ((b[i] & 0xFFL) << 24) | ((b[i + 1] & 0xFFL) << 16) | ((b[i + 2] & 0xFFL) << 8) | (b[i + 3] & 0xFFL);
+    }
+
+    private static void writeU32(byte[] b, int i, long v) {
+        b[i] = (byte) (v >>> 24);
+        b[i + 1] = (byte) (v >>> 16);
+        b[i + 2] = (byte) (v >>> 8);
+        b[i + 3] = (byte) v;
+    }
+}
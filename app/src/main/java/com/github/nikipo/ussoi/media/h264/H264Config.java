@@ -2,6 +2,9 @@ package com.github.nikipo.ussoi.media.h264;
 
 import com.github.nikipo.ussoi.media.utility.Resolution;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * *****************************************************************************
  *
@@ -25,4 +28,18 @@ public final class H264Config {
             new Resolution();
     public Resolution recordingConfig =
             new Resolution();
+
+    // MediaCodec callback mode, polling dequeueOutputBuffer() is the fallback
+    public boolean asyncEncoder = true;
+
+    // Adaptive bitrate, opt-in through set_stream_res {abr:{enabled:true}}.
+    // Ladder ordered best quality first (empty = single rung at stream res, capped at the configured bitrate)
+    public boolean abrEnabled = false;
+    public AbrController.Config abrConfig =
+            new AbrController.Config();
+    public List<AbrController.Rung> abrLadder =
+            new ArrayList<>();
+
+    // Append the per-stage latency trace to every stream packet (header flag bit 1)
+    public volatile boolean frameTrace = false;
 }
@@ -4,27 +4,55 @@ import static com.github.nikipo.ussoi.media.utility.CameraHelper.checkForExactSu
 import static com.github.nikipo.ussoi.media.utility.CameraHelper.getOptimalFpsRange;
 import static com.github.nikipo.ussoi.storage.SaveInputFields.KEY_Session_KEY;
 import static com.github.nikipo.ussoi.storage.SaveInputFields.KEY_stream_api_path;
+import static com.github.nikipo.ussoi.ui.UssoiStrings.ABR;
+import static com.github.nikipo.ussoi.ui.UssoiStrings.BITRATE;
+import static com.github.nikipo.ussoi.ui.UssoiStrings.CMD;
+import static com.github.nikipo.ussoi.ui.UssoiStrings.CMD_ID;
+import static com.github.nikipo.ussoi.ui.UssoiStrings.DATA;
 import static com.github.nikipo.ussoi.ui.UssoiStrings.ERROR;
+import static com.github.nikipo.ussoi.ui.UssoiStrings.FPS;
+import static com.github.nikipo.ussoi.ui.UssoiStrings.HEIGHT;
+import static com.github.nikipo.ussoi.ui.UssoiStrings.RESPONSE;
 import static com.github.nikipo.ussoi.ui.UssoiStrings.STREAM_H264;
+import static com.github.nikipo.ussoi.ui.UssoiStrings.TYPE;
+import static com.github.nikipo.ussoi.ui.UssoiStrings.WIDTH;
 
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.Range;
 import android.util.Size;
 import android.view.Surface;
 
 import com.github.nikipo.ussoi.media.Media;
+import com.github.nikipo.ussoi.media.enocders.GopDropPolicy;
 import com.github.nikipo.ussoi.media.enocders.LocalRecorder;
 import com.github.nikipo.ussoi.media.enocders.StreamingEncoder;
 import com.github.nikipo.ussoi.media.utility.CameraHelper;
+import com.github.nikipo.ussoi.media.utility.CaptureClock;
 import com.github.nikipo.ussoi.media.utility.SurfaceMode;
+import com.github.nikipo.ussoi.network.Webscoket.SendScheduler;
 import com.github.nikipo.ussoi.network.Webscoket.WebSocketHandler;
+import com.github.nikipo.ussoi.service.control.ConnectionManager;
 import com.github.nikipo.ussoi.storage.SaveInputFields;
+import com.github.nikipo.ussoi.system.metrics.Counter;
+import com.github.nikipo.ussoi.system.metrics.Histogram;
+import com.github.nikipo.ussoi.system.metrics.Metrics;
+import com.github.nikipo.ussoi.system.telemetry.SysTelemetry;
+
+import org.json.JSONObject;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * *****************************************************************************
@@ -44,6 +72,23 @@ import java.nio.ByteBuffer;
  */
 public class H264Media implements Media {
     private static final String TAG = "H264Media";
+    private static final long ABR_TICK_MS = 500;
+    // flags + capture time, written in place into the frame header room
+    private static final int PACKET_HEADER_BYTES = 9;
+    private static final int FLAG_KEY_FRAME = 1;
+    private static final int FLAG_TRACE = 1 << 1;
+
+    private static final Counter framesSent = Metrics.counter(
+            "ussoi_stream_frames_sent_total", "stream=\"h264\"", "Frames handed to the stream socket");
+    private static final Counter bytesSent = Metrics.counter(
+            "ussoi_stream_bytes_sent_total", "stream=\"h264\"", "Packet bytes handed to the stream socket");
+    private static final Counter framesDropped = Metrics.counter(
+            "ussoi_stream_frames_dropped_total", "stream=\"h264\"", "Frames dropped by the upload budget policy");
+    private static final Histogram frameAge = Metrics.histogram(
+            "ussoi_stream_frame_age_us", "stream=\"h264\"", "Capture timestamp to socket hand-off, microseconds");
+    private static final Histogram sendCall = Metrics.histogram(
+            "ussoi_stream_send_call_us", "stream=\"h264\"", "Time spent in sendBytes() per frame, microseconds");
+    private final ConnectionManager connectionManager;
     private CameraController camera;
     private StreamingEncoder streamEncoder;
     private LocalRecorder recorder;
@@ -56,10 +101,34 @@ public class H264Media implements Media {
     private SurfaceMode surfaceMode;
     private String[] cameraIds ;
     private Thread streamThread;
+    private Thread sendThread;
     private volatile boolean streamLoop;
+    // drain -> send hand-off; frames keep their pooled buffer until the send thread releases them
+    private static final int SEND_QUEUE_CAPACITY = 2;
+    private final ArrayBlockingQueue<OutgoingFrame> sendQueue = new ArrayBlockingQueue<>(SEND_QUEUE_CAPACITY);
     private volatile boolean streamMuted;
     private volatile long maxUploadByteRate;
 
+    // Adaptive bitrate. streamConfig.bitrate stays what the user configured (the ladder ceiling);
+    // the ABR output only goes to the encoder and the upload budget.
+    private volatile int encoderBitrate;
+    private ScheduledExecutorService abrExecutor;
+    private volatile AbrController abrController;
+    private volatile long sentBytes; // written only by the send thread
+
+    // Capture time base and stage latencies of the running stream
+    private volatile CaptureClock captureClock = CaptureClock.MONOTONIC;
+    private volatile FrameTrace frameTrace;
+
+    // Frame dropping that never leaves the receiver with a broken GOP
+    private final GopDropPolicy dropPolicy = new GopDropPolicy(() -> {
+        StreamingEncoder encoder = streamEncoder;
+        if (encoder != null) encoder.requestSyncFrame();
+    });
+
+    public H264Media(ConnectionManager connectionManager) {
+        this.connectionManager = connectionManager;
+    }
 
     @Override
     public synchronized void init(Context ctx) throws CameraAccessException {
@@ -78,6 +147,7 @@ public class H264Media implements Media {
 
         websocket = new WebSocketHandler(
                 context,
+                "stream_h264",
                 new WebSocketHandler.MessageCallback() {
 
                     @Override
@@ -107,15 +177,24 @@ public class H264Media implements Media {
                 }
         );
 
+        websocket.setDispatchMode(WebSocketHandler.DispatchMode.READER_THREAD);
+        websocket.setBinarySendClass(SendScheduler.SendClass.VIDEO);
+        // A frame discarded in the send queue breaks the GOP: skip to the next keyframe
+        websocket.setDropListener((sendClass, bytes) -> dropPolicy.resync(SystemClock.elapsedRealtime()));
+
         SharedPreferences preferences = SaveInputFields.getInstance(context).get_shared_pref();
 
         websocket.setupConnection(KEY_stream_api_path,preferences.getString(KEY_Session_KEY,ERROR));
 
+        abrExecutor = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "H264-Abr"));
+        abrExecutor.scheduleWithFixedDelay(this::abrTick, ABR_TICK_MS, ABR_TICK_MS, TimeUnit.MILLISECONDS);
+
         initialized = true;
     }
 
     @Override
     public void close() {
+        stopAbr();
         stopRecorder();
         stopStream();
         stopWebSocket();
@@ -155,6 +234,9 @@ public class H264Media implements Media {
             stopEncoder();
             throw e;
         }
+        if (h264Config.abrEnabled && abrController == null) {
+            abrController = new AbrController(h264Config.abrConfig, buildAbrLadder(), h264Config.streamConfig.bitrate);
+        }
     }
 
     @Override
@@ -185,6 +267,8 @@ public class H264Media implements Media {
         }
         h264Config.streamConfig.res =new Size(width, height);
         h264Config.streamConfig.fpsRange = fpsRange;
+        // default ladder is derived from the stream resolution, rebuild on next start
+        abrController = null;
 
 
         boolean wasStreaming = IsStreaming();
@@ -200,11 +284,51 @@ public class H264Media implements Media {
     }
 
     @Override
-    public void SetStreamBitrate(int bitrate) {
+    public synchronized void SetStreamBitrate(int bitrate) {
         h264Config.streamConfig.bitrate = bitrate;
+        AbrController abr = abrController;
+        if (abr != null) {
+            if (h264Config.abrLadder == null || h264Config.abrLadder.isEmpty()) {
+                // the default ladder is capped at the configured bitrate: rebuild it around the new one
+                abrController = new AbrController(h264Config.abrConfig, buildAbrLadder(), bitrate);
+            } else {
+                // the controller keeps the bitrate inside the current rung, the encoder must agree
+                bitrate = abr.reset(bitrate, SystemClock.elapsedRealtime());
+            }
+        }
+        applyStreamBitrate(bitrate);
+    }
+
+    private void applyStreamBitrate(int bitrate) {
+        encoderBitrate = bitrate;
         maxUploadByteRate = (bitrate/8)*3;
         if(streamEncoder != null) {
-            streamEncoder.setBitrate(h264Config.streamConfig.bitrate);
+            streamEncoder.setBitrate(bitrate);
+        }
+    }
+
+    /**
+     * Enables/disables the adaptive bitrate loop.
+     * An empty ladder falls back to a single rung at the current stream resolution.
+     * Ladder rungs are ordered best quality first.
+     */
+    public synchronized void SetAbr(boolean enabled, List<AbrController.Rung> ladder) {
+        if (ladder != null) {
+            for (AbrController.Rung rung : ladder) {
+                Range<Integer> fpsRange = getOptimalFpsRange(context, h264Config.cameraId, rung.fps);
+                if (!checkForExactSupportedResolution(context, h264Config.cameraId, rung.width, rung.height, fpsRange)) {
+                    throw new IllegalStateException("Ladder resolution not supported by camera: " + rung.width + "x" + rung.height + "@" + rung.fps);
+                }
+            }
+            h264Config.abrLadder = new ArrayList<>(ladder);
+        }
+        h264Config.abrEnabled = enabled;
+        abrController = (enabled && IsStreaming())
+                ? new AbrController(h264Config.abrConfig, buildAbrLadder(), h264Config.streamConfig.bitrate)
+                : null;
+        if (!enabled && IsStreaming() && encoderBitrate != h264Config.streamConfig.bitrate) {
+            // back to the configured rate after ABR backed off
+            applyStreamBitrate(h264Config.streamConfig.bitrate);
         }
     }
 
@@ -221,7 +345,45 @@ public class H264Media implements Media {
         if (!IsStreaming()) {
             throw new IllegalStateException("Not Streaming");
         }
+        boolean resume = streamMuted && !mute;
         streamMuted = mute;
+        StreamingEncoder encoder = streamEncoder;
+        if (encoder != null) {
+            encoder.setOutputMuted(mute);
+        }
+        if (resume) {
+            // frames skipped while muted are references for what comes next
+            dropPolicy.resync(SystemClock.elapsedRealtime());
+        }
+    }
+
+    /** Frame drop policy counters (dropped frames, skipped GOPs, recovery time). */
+    public GopDropPolicy getDropPolicy() {
+        return dropPolicy;
+    }
+
+    /** Current stream encoder, null while not streaming. */
+    public StreamingEncoder getStreamEncoder() {
+        return streamEncoder;
+    }
+
+    /**
+     * Appends the per-stage latency trace to every stream packet. Stage
+     * histograms up to the enqueue are kept either way; the send-queue and
+     * total stages need the trace in the packet.
+     */
+    public void SetFrameTrace(boolean enabled) {
+        h264Config.frameTrace = enabled;
+    }
+
+    /** {stage: [count, p50, p99, max]} µs, see {@link FrameTrace}. */
+    public JSONObject getFrameLatency() {
+        return FrameTrace.snapshot();
+    }
+
+    /** Per-class send queue metrics of the stream socket. */
+    public JSONObject getSendStats() {
+        return websocket != null ? websocket.getSendStats() : new JSONObject();
     }
     @Override
     public void StartRecording() {
@@ -348,16 +510,22 @@ public class H264Media implements Media {
     }
 
     private void startEncoder(){
+        captureClock = CaptureClock.forCamera(context, h264Config.cameraId);
+        frameTrace = new FrameTrace(captureClock, PACKET_HEADER_BYTES);
         streamEncoder = new StreamingEncoder();
+        streamEncoder.setCaptureClock(captureClock);
         try {
             LQSurface = streamEncoder.prepare(
                     h264Config.streamConfig.res.getWidth(),
                     h264Config.streamConfig.res.getHeight(),
                     h264Config.streamConfig.fpsRange.getUpper(),
-                    h264Config.streamConfig.bitrate
+                    h264Config.streamConfig.bitrate,
+                    h264Config.asyncEncoder
             );
 
+            streamEncoder.setOutputMuted(streamMuted);
             streamEncoder.start();
+            dropPolicy.reset();
             startStreamLoop();
         } catch (IOException e) {
             throw new IllegalStateException("StreamEncoder IOException");
@@ -385,6 +553,7 @@ public class H264Media implements Media {
             if (LQSurface == null || !LQSurface.isValid()) throw new IllegalStateException("Invalid LQSurface");
             camera = new CameraController(context,surfaceMode);
             camera.setLQSurface(LQSurface);
+            camera.setCaptureCallback(captureCallback());
             camera.start(h264Config.cameraId,h264Config.streamConfig.fpsRange);
         }
         else{
@@ -392,6 +561,7 @@ public class H264Media implements Media {
             camera = new CameraController(context,surfaceMode);
             camera.setLQSurface(LQSurface);
             camera.setHQSurface(HQSurface);
+            camera.setCaptureCallback(captureCallback());
             Range<Integer> required =
                     h264Config.streamConfig.fpsRange.getUpper() >=
                             h264Config.recordingConfig.fpsRange.getUpper()
@@ -405,6 +575,11 @@ public class H264Media implements Media {
         }
 
     }
+    private CameraCaptureSession.CaptureCallback captureCallback() {
+        FrameTrace trace = frameTrace;
+        return trace != null ? trace.captureCallback : null;
+    }
+
     private void stopCamera(){
         try {
             if (camera != null) {
@@ -439,9 +614,28 @@ public class H264Media implements Media {
         recorder = null;
     }
 
+    /** A framed packet waiting for the send thread; owns one reference on the frame. */
+    private static final class OutgoingFrame {
+        final StreamingEncoder.EncodedFrame frame;
+        final ByteBuffer packet;
+        final FrameTrace trace;
+
+        OutgoingFrame(StreamingEncoder.EncodedFrame frame, ByteBuffer packet, FrameTrace trace) {
+            this.frame = frame;
+            this.packet = packet;
+            this.trace = trace;
+        }
+    }
+
+    /**
+     * Two stages: H264-Drain dequeues, applies the drop policy and frames the
+     * packet; H264-Send hands it to the socket. A full hand-off queue counts
+     * as over budget, so a stalled send never backs up into the encoder.
+     */
     private void startStreamLoop() {
 
         streamLoop = true;
+        sendQueue.clear();
 
         streamThread = new Thread(() -> {
 
@@ -449,45 +643,208 @@ public class H264Media implements Media {
 
                 StreamingEncoder.EncodedFrame frame = streamEncoder.dequeue();
 
-                if (frame == null || streamMuted) {
+                if (frame == null) {
                     continue;
                 }
-                byte[] packet = buildPacket(frame);
-                if(websocket != null && websocket.getPendingBytes() < maxUploadByteRate) {
-                    websocket.sendBytes(packet);
+                boolean handedOff = false;
+                try {
+                    if (streamMuted) {
+                        continue;
+                    }
+                    WebSocketHandler ws = websocket;
+                    boolean overBudget = ws == null
+                            || sendQueue.remainingCapacity() == 0
+                            || ws.getPendingBytes() >= maxUploadByteRate;
+                    if (!dropPolicy.admit(frame.keyFrame, overBudget, SystemClock.elapsedRealtime())) {
+                        framesDropped.inc();
+                        continue;
+                    }
+                    FrameTrace trace = h264Config.frameTrace ? frameTrace : null;
+                    if (trace == null && frameTrace != null) frameTrace.record(frame);
+                    ByteBuffer packet = buildPacket(frame, trace);
+                    // single producer: the capacity checked above can only have grown
+                    handedOff = sendQueue.offer(new OutgoingFrame(frame, packet, trace));
+                    if (!handedOff) {
+                        framesDropped.inc();
+                        dropPolicy.resync(SystemClock.elapsedRealtime());
+                    }
+                } finally {
+                    if (!handedOff) frame.release();
                 }
             }
 
         }, "H264-Drain");
 
+        sendThread = new Thread(() -> {
+
+            while (streamLoop) {
+
+                OutgoingFrame out;
+                try {
+                    out = sendQueue.poll(100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (out == null) {
+                    continue;
+                }
+                try {
+                    WebSocketHandler ws = websocket;
+                    if (ws == null) {
+                        framesDropped.inc();
+                        dropPolicy.resync(SystemClock.elapsedRealtime());
+                        continue;
+                    }
+                    int packetSize = out.packet.remaining();
+                    long ageUs = captureClock.ageUs(out.frame.ptsUs);
+                    long startNs = System.nanoTime();
+                    if (out.trace != null) {
+                        ws.sendBytes(out.packet, out.trace);
+                    } else {
+                        ws.sendBytes(out.packet);
+                    }
+                    sendCall.recordSinceNs(startNs);
+                    sentBytes += packetSize;
+                    framesSent.inc();
+                    bytesSent.add(packetSize);
+                    if (ageUs >= 0) frameAge.record(ageUs);
+                } finally {
+                    out.frame.release();
+                }
+            }
+
+        }, "H264-Send");
+
+        sendThread.start();
         streamThread.start();
     }
 
-    private byte[] buildPacket(StreamingEncoder.EncodedFrame frame) {
+    /**
+     * Writes the 9-byte header into the frame's reserved header room:
+     * [0] flags (bit 0 key frame, bit 1 trace present), [1..8] capture time
+     * epoch ms (big-endian), with a trace the 16-byte {@link FrameTrace}
+     * block, then the payload.
+     * Returns a view over the frame's pooled buffer — valid until release().
+     */
+    private ByteBuffer buildPacket(StreamingEncoder.EncodedFrame frame, FrameTrace trace) {
+
+        int headerBytes = PACKET_HEADER_BYTES + (trace != null ? FrameTrace.TRACE_BYTES : 0);
+        ByteBuffer packet = frame.packet(headerBytes);
+
+        // sensor timestamp mapped to wall clock, not the time of sending
+        long captureMs = captureClock.toServerMs(frame.ptsUs);
+
+        int flags = (frame.keyFrame ? FLAG_KEY_FRAME : 0) | (trace != null ? FLAG_TRACE : 0);
+        packet.put(0, (byte) flags);
+        packet.putLong(1, captureMs);
+        if (trace != null) {
+            trace.write(packet, frame);
+        }
 
-        ByteBuffer src = frame.data.duplicate();
-        int payloadSize = src.remaining();
+        return packet;
+    }
 
-        byte[] packet = new byte[9 + payloadSize];
 
-        long captureMs = System.currentTimeMillis();
+    private List<AbrController.Rung> buildAbrLadder() {
+        if (h264Config.abrLadder != null && !h264Config.abrLadder.isEmpty()) {
+            return h264Config.abrLadder;
+        }
+        int bitrate = h264Config.streamConfig.bitrate;
+        List<AbrController.Rung> ladder = new ArrayList<>();
+        ladder.add(new AbrController.Rung(
+                h264Config.streamConfig.res.getWidth(),
+                h264Config.streamConfig.res.getHeight(),
+                h264Config.streamConfig.fpsRange.getUpper(),
+                Math.min(bitrate, Math.max(16_000, bitrate / 4)),
+                // never above what the user configured, ABR only backs off from it
+                bitrate
+        ));
+        return ladder;
+    }
 
-        packet[0] = (byte) (frame.keyFrame ? 1 : 0);
+    private void abrTick() {
+        try {
+            AbrController abr = abrController;
+            WebSocketHandler ws = websocket;
+            if (abr == null || ws == null || !ws.isConnected() || !IsStreaming() || streamMuted) return;
+
+            long uploadBytesPerSec = (long) (SysTelemetry.getInstance(context).getUploadKbps() * 1024);
+            AbrController.Decision decision = abr.update(
+                    SystemClock.elapsedRealtime(),
+                    ws.getPendingBytes(),
+                    sentBytes,
+                    uploadBytesPerSec
+            );
+            if (decision != null) {
+                applyAbrDecision(abr, decision);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "ABR tick failed", e);
+        }
+    }
 
-        packet[1] = (byte) (captureMs >>> 56);
-        packet[2] = (byte) (captureMs >>> 48);
-        packet[3] = (byte) (captureMs >>> 40);
-        packet[4] = (byte) (captureMs >>> 32);
-        packet[5] = (byte) (captureMs >>> 24);
-        packet[6] = (byte) (captureMs >>> 16);
-        packet[7] = (byte) (captureMs >>> 8);
-        packet[8] = (byte) captureMs;
+    private synchronized void applyAbrDecision(AbrController abr, AbrController.Decision decision) {
+        if (abr != abrController || !IsStreaming()) return;
 
-        src.get(packet, 9, payloadSize);
+        AbrController.Rung rung = decision.rung;
+        boolean resize = decision.rungChanged
+                && !IsRecording()
+                && (rung.width != h264Config.streamConfig.res.getWidth()
+                    || rung.height != h264Config.streamConfig.res.getHeight()
+                    || rung.fps != h264Config.streamConfig.fpsRange.getUpper());
 
-        return packet;
+        if (resize) {
+            // Restart the pipeline directly; SetStreamResolution would discard the ABR state.
+            h264Config.streamConfig.res = new Size(rung.width, rung.height);
+            h264Config.streamConfig.fpsRange = getOptimalFpsRange(context, h264Config.cameraId, rung.fps);
+            stopCamera();
+            stopEncoder();
+            startEncoder();
+            startCamera();
+        }
+        applyStreamBitrate(decision.bitrate);
+
+        Log.d(TAG, "ABR " + decision.reason + " -> " + decision.bitrate + "bps rung " + decision.rungIndex);
+        sendAbrReport(decision);
+    }
+
+    private void sendAbrReport(AbrController.Decision decision) {
+        if (connectionManager == null) return;
+        try {
+            JSONObject root = new JSONObject();
+            JSONObject data = new JSONObject();
+
+            data.put("reason", decision.reason);
+            data.put(BITRATE, decision.bitrate);
+            data.put("rung", decision.rungIndex);
+            data.put(WIDTH, h264Config.streamConfig.res.getWidth());
+            data.put(HEIGHT, h264Config.streamConfig.res.getHeight());
+            data.put(FPS, h264Config.streamConfig.fpsRange.getUpper());
+            data.put("queueBytes", decision.queueBytes);
+            data.put("queueDelayMs", decision.queueDelayMs);
+            data.put("drainBps", decision.drainBytesPerSec);
+            data.put("uploadBps", decision.uploadBytesPerSec);
+            data.put("droppedFrames", dropPolicy.getDroppedFrames());
+            data.put("skippedGops", dropPolicy.getSkippedGops());
+
+            root.put(TYPE, RESPONSE);
+            root.put(CMD, ABR);
+            root.put(CMD_ID, 0);
+            root.put(DATA, data);
+
+            connectionManager.send(root);
+        } catch (Exception e) {
+            Log.e(TAG, "sendAbrReport failed", e);
+        }
     }
 
+    private void stopAbr() {
+        abrController = null;
+        if (abrExecutor != null) {
+            abrExecutor.shutdownNow();
+            abrExecutor = null;
+        }
+    }
 
     private void stopStreamLoop() {
 
@@ -501,5 +858,19 @@ public class H264Media implements Media {
             }
             streamThread = null;
         }
+        if (sendThread != null) {
+            try {
+                sendThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            sendThread = null;
+        }
+
+        // frames handed off but never sent still hold pooled buffers
+        OutgoingFrame out;
+        while ((out = sendQueue.poll()) != null) {
+            out.frame.release();
+        }
     }
 }
\ No newline at end of file
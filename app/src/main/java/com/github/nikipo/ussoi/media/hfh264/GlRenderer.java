@@ -8,6 +8,9 @@ import android.util.Log;
 import android.view.Surface;
 
 import com.github.nikipo.ussoi.media.utility.SurfaceMode;
+import com.github.nikipo.ussoi.system.metrics.Counter;
+import com.github.nikipo.ussoi.system.metrics.Histogram;
+import com.github.nikipo.ussoi.system.metrics.Metrics;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -17,6 +20,21 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class GlRenderer implements SurfaceTexture.OnFrameAvailableListener {
     private static final String TAG = "GlRenderer";
 
+    private static final Counter framesAvailable = Metrics.counter(
+            "ussoi_gl_frames_available_total", "Camera frames signalled by the SurfaceTexture");
+    private static final Counter framesCoalesced = Metrics.counter(
+            "ussoi_gl_frames_coalesced_total", "Camera frames not scheduled because two renders were pending");
+    private static final Counter framesRendered = Metrics.counter(
+            "ussoi_gl_frames_rendered_total", "Render passes run on the GL thread");
+    private static final Histogram loopTime = Metrics.histogram(
+            "ussoi_gl_render_us", "Whole render pass, microseconds");
+    private static final Histogram texUpdateTime = Metrics.histogram(
+            "ussoi_gl_tex_update_us", "updateTexImage(), microseconds");
+    private static final Histogram hqDrawTime = Metrics.histogram(
+            "ussoi_gl_draw_us", "surface=\"hq\"", "Draw and swap per output surface, microseconds");
+    private static final Histogram lqDrawTime = Metrics.histogram(
+            "ussoi_gl_draw_us", "surface=\"lq\"", "Draw and swap per output surface, microseconds");
+
     private EGLDisplay eglDisplay = EGL14.EGL_NO_DISPLAY;
     private EGLContext eglContext = EGL14.EGL_NO_CONTEXT;
     private EGLSurface eglHqSurface = EGL14.EGL_NO_SURFACE;
@@ -37,15 +55,6 @@ public class GlRenderer implements SurfaceTexture.OnFrameAvailableListener {
     private static final int EGL_RECORDABLE_ANDROID_FALLBACK = 0x3142;
     private volatile long recordingStartTimeNs = -1;
 
-    // --- PROFILING VARIABLES PLACE HERE AT CLASS LEVEL ---
-    private int renderCount = 0;
-    private long renderStart = 0;
-    private long totalLoopTime = 0;
-    private long totalTexUpdateTime = 0;
-    private long totalHqDrawTime = 0;
-    private long totalLqDrawTime = 0;
-    private int profileFrameCount = 0;
-
     private static final String VERTEX_SHADER =
             "attribute vec4 aPosition;\n" +
                     "attribute vec4 aTextureCoord;\n" +
@@ -101,7 +110,6 @@ public class GlRenderer implements SurfaceTexture.OnFrameAvailableListener {
             Surface targetHq = (surfaceMode == SurfaceMode.LQ_ONLY) ? null : hqSurface;
             initEGLSurfaces(config, targetHq, lqSurface);
             initGLSetup();
-            renderStart = System.currentTimeMillis(); // Init timer start
         });
     }
 
@@ -188,76 +196,37 @@ public class GlRenderer implements SurfaceTexture.OnFrameAvailableListener {
         this.renderLqEnabled = enabled;
     }
 
-    private int callbackCount;
-    private long callbackStart;
-
     @Override
     public void onFrameAvailable(
             SurfaceTexture surfaceTexture) {
 
-        callbackCount++;
-
-        long now = System.currentTimeMillis();
-
-        if (now - callbackStart >= 1000) {
-            Log.d(TAG,
-                    "FrameAvailable FPS = "
-                            + callbackCount);
-
-            callbackCount = 0;
-            callbackStart = now;
-        }
+        framesAvailable.inc();
 
         if (pendingFrames.get() < 2) {
             pendingFrames.incrementAndGet();
             glHandler.post(this::renderFrame);
+        } else {
+            framesCoalesced.inc();
         }
     }
 
     private void renderFrame() {
         long loopStart = System.nanoTime();
-        renderCount++;
-
-        long now = System.currentTimeMillis();
-        if (now - renderStart >= 1000) {
-            if (profileFrameCount > 0) {
-                double avgLoop = (totalLoopTime / (double) profileFrameCount) / 1000000.0;
-                double avgTex = (totalTexUpdateTime / (double) profileFrameCount) / 1000000.0;
-                double avgHq = (totalHqDrawTime / (double) profileFrameCount) / 1000000.0;
-                double avgLq = (totalLqDrawTime / (double) profileFrameCount) / 1000000.0;
-
-                Log.d(TAG, String.format(
-                        "Render FPS = %d | Avg Times (ms) -> Loop: %.2f | TexUpdate: %.2f | HQ Draw: %.2f | LQ Draw: %.2f",
-                        renderCount, avgLoop, avgTex, avgHq, avgLq
-                ));
-            } else {
-                Log.d(TAG, "Render FPS = " + renderCount);
-            }
-
-            renderCount = 0;
-            renderStart = now;
-            totalLoopTime = 0;
-            totalTexUpdateTime = 0;
-            totalHqDrawTime = 0;
-            totalLqDrawTime = 0;
-            profileFrameCount = 0;
-        }
+        framesRendered.inc();
 
         if (eglDisplay == EGL14.EGL_NO_DISPLAY || cameraTexture == null) {
-            totalLoopTime += (System.nanoTime() - loopStart);
-            profileFrameCount++;
+            loopTime.recordSinceNs(loopStart);
             return;
         }
 
         try {
             long texStart = System.nanoTime();
             cameraTexture.updateTexImage();
-            totalTexUpdateTime += (System.nanoTime() - texStart);
+            texUpdateTime.recordSinceNs(texStart);
         } catch (Exception e) {
             Log.e(TAG, "updateTexImage failed", e);
             pendingFrames.decrementAndGet();
-            totalLoopTime += (System.nanoTime() - loopStart);
-            profileFrameCount++;
+            loopTime.recordSinceNs(loopStart);
             return;
         }
         pendingFrames.decrementAndGet();
@@ -265,7 +234,7 @@ public class GlRenderer implements SurfaceTexture.OnFrameAvailableListener {
         if (eglHqSurface != EGL14.EGL_NO_SURFACE) {
             long hqStart = System.nanoTime();
             drawToSurface(eglHqSurface);
-            totalHqDrawTime += (System.nanoTime() - hqStart);
+            hqDrawTime.recordSinceNs(hqStart);
         }
 
         if (renderLqEnabled && eglLqSurface != EGL14.EGL_NO_SURFACE) {
@@ -279,11 +248,10 @@ public class GlRenderer implements SurfaceTexture.OnFrameAvailableListener {
                     lqSkipCounter = 0;
                 }
             }
-            totalLqDrawTime += (System.nanoTime() - lqStart);
+            lqDrawTime.recordSinceNs(lqStart);
         }
 
-        totalLoopTime += (System.nanoTime() - loopStart);
-        profileFrameCount++;
+        loopTime.recordSinceNs(loopStart);
     }
 
     private void drawToSurface(EGLSurface surface) {
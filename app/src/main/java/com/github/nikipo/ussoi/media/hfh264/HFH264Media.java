@@ -18,6 +18,7 @@ import android.view.Surface;
 import android.view.TextureView;
 import com.github.nikipo.ussoi.media.Media;
 import com.github.nikipo.ussoi.media.enocders.LocalRecorder;
+import com.github.nikipo.ussoi.network.Webscoket.SendScheduler;
 import com.github.nikipo.ussoi.network.Webscoket.WebSocketHandler;
 import com.github.nikipo.ussoi.storage.SaveInputFields;
 
@@ -64,6 +65,7 @@ public class HFH264Media implements Media {
 
         websocket = new WebSocketHandler(
                 context,
+                "stream_hfh264",
                 new WebSocketHandler.MessageCallback() {
                     @Override public void onOpen() {}
                     @Override public void onPayloadReceivedText(String payload) {}
@@ -73,6 +75,9 @@ public class HFH264Media implements Media {
                 }
         );
 
+        websocket.setDispatchMode(WebSocketHandler.DispatchMode.READER_THREAD);
+        websocket.setBinarySendClass(SendScheduler.SendClass.VIDEO);
+
         SharedPreferences preferences = SaveInputFields.getInstance(context).get_shared_pref();
         websocket.setupConnection(KEY_stream_api_path, preferences.getString(KEY_Session_KEY, ERROR));
 
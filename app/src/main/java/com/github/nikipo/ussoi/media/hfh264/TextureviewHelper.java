@@ -8,7 +8,15 @@ import android.os.Looper;
 import android.os.SystemClock;
 import android.view.Surface;
 import android.view.TextureView;
+
+import com.github.nikipo.ussoi.system.clock.ClockSync;
+
 import java.io.ByteArrayOutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -28,8 +36,18 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * <p>
  * *****************************************************************************
  */
+
+/**
+ * Grabs JPEG snapshots of the camera preview TextureView.
+ *
+ * start() and stop() are called from the Router / camera threads, but a
+ * TextureView may only be touched on the UI thread, so everything that
+ * reads the view or the bitmap it draws into runs on the main looper.
+ */
 public class TextureviewHelper {
 
+    private static final long MAIN_THREAD_TIMEOUT_MS = 2000;
+
     public interface SnapshotCallback {
         void onSnapshotAvailable(byte[] jpegData, long timestamp);
     }
@@ -65,16 +83,18 @@ public class TextureviewHelper {
     }
 
     public Surface start() {
-        if (!previewTextureView.isAvailable()) {
-            throw new IllegalStateException("Preview TextureView surface not yet available");
-        }
+        streamSurface = runOnMain(() -> {
+            if (!previewTextureView.isAvailable()) {
+                throw new IllegalStateException("Preview TextureView surface not yet available");
+            }
 
-        SurfaceTexture surfaceTexture = previewTextureView.getSurfaceTexture();
-        if (surfaceTexture == null) {
-            throw new IllegalStateException("SurfaceTexture is null");
-        }
-        surfaceTexture.setDefaultBufferSize(width, height);
-        streamSurface = new Surface(surfaceTexture);
+            SurfaceTexture surfaceTexture = previewTextureView.getSurfaceTexture();
+            if (surfaceTexture == null) {
+                throw new IllegalStateException("SurfaceTexture is null");
+            }
+            surfaceTexture.setDefaultBufferSize(width, height);
+            return new Surface(surfaceTexture);
+        });
 
         // need cause camera orientation is portrait
         snapshotBitmap = Bitmap.createBitmap(height, width, Bitmap.Config.ARGB_8888);
@@ -116,7 +136,8 @@ public class TextureviewHelper {
         }
 
         mainHandler.post(() -> {
-            if (!snapshotLoopRunning || !previewTextureView.isAvailable()) {
+            if (!snapshotLoopRunning || !previewTextureView.isAvailable()
+                    || snapshotBitmap == null || snapshotBitmap.isRecycled()) {
                 return;
             }
 
@@ -148,7 +169,7 @@ public class TextureviewHelper {
     private void captureAndSendSnapshot() {
         if (!snapshotLoopRunning) return;
         try {
-            long now = System.currentTimeMillis();
+            long now = ClockSync.nowMs();
             ByteArrayOutputStream out = new ByteArrayOutputStream();
 
             synchronized (this) {
@@ -177,6 +198,12 @@ public class TextureviewHelper {
     public void stop() {
         snapshotLoopRunning = false;
         mainHandler.removeCallbacksAndMessages(null);
+        // a capture already running on the main thread finishes before the bitmaps go
+        try {
+            runOnMain(() -> null);
+        } catch (IllegalStateException e) {
+            // main thread stuck; the capture checks snapshotLoopRunning and isRecycled()
+        }
 
         if (snapshotHandler != null) {
             snapshotHandler.removeCallbacksAndMessages(null);
@@ -207,4 +234,33 @@ public class TextureviewHelper {
             }
         }
     }
+
+    /** Runs task on the main looper and waits for it; runs inline when already there. */
+    private <T> T runOnMain(Callable<T> task) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            try {
+                return task.call();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        FutureTask<T> future = new FutureTask<>(task);
+        mainHandler.post(future);
+        try {
+            return future.get(MAIN_THREAD_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IllegalStateException(cause);
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            throw new IllegalStateException("Main thread did not respond");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(false);
+            throw new IllegalStateException("Interrupted waiting for the main thread");
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,90 @@
+package com.github.nikipo.ussoi.media.utility;
+
+import android.content.Context;
+import android.hardware.camera2.CameraCharacteristics;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.github.nikipo.ussoi.system.clock.ClockSync;
+
+/**
+ * *****************************************************************************
+ *
+ * @author nikipo
+ * *****************************************************************************
+ * @file CaptureClock
+ * @attention Copyright (c) 2026
+ * All rights reserved.
+ * <p>
+ * This software is licensed under the terms described in the LICENSE file
+ * located in the root directory of this project.
+ * If no LICENSE file is present, this software is provided "AS IS",
+ * without warranty of any kind, express or implied.
+ * <p>
+ * *****************************************************************************
+ */
+
+/**
+ * Time base of camera sensor timestamps, and with it of MediaCodec pts for
+ * Surface input (the codec takes the BufferQueue timestamp, i.e. the sensor
+ * timestamp, divided by 1000).
+ *
+ * SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME cameras stamp with elapsedRealtimeNanos
+ * (keeps counting in deep sleep); UNKNOWN ones in practice use CLOCK_MONOTONIC
+ * (System.nanoTime). Mixing them up is off by the total time spent asleep,
+ * so ages are checked against {@link #MAX_PLAUSIBLE_AGE_US} before use.
+ */
+public final class CaptureClock {
+    private static final String TAG = "CaptureClock";
+
+    public static final CaptureClock MONOTONIC = new CaptureClock(false);
+    public static final CaptureClock REALTIME = new CaptureClock(true);
+
+    // older than this means the pts is not in our time base
+    public static final long MAX_PLAUSIBLE_AGE_US = 5_000_000;
+
+    private final boolean realtime;
+
+    private CaptureClock(boolean realtime) {
+        this.realtime = realtime;
+    }
+
+    /** Clock the given camera stamps its frames with; MONOTONIC if it cannot be queried. */
+    public static CaptureClock forCamera(Context context, String cameraId) {
+        try {
+            Integer source = CameraHelper.getCameraCharacteristics(context, cameraId)
+                    .get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+            if (source != null && source == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME) {
+                return REALTIME;
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Timestamp source unknown for camera " + cameraId, e);
+        }
+        return MONOTONIC;
+    }
+
+    public boolean isRealtime() {
+        return realtime;
+    }
+
+    /** Now, in the camera's time base, µs. */
+    public long nowUs() {
+        return (realtime ? SystemClock.elapsedRealtimeNanos() : System.nanoTime()) / 1000;
+    }
+
+    /** Age of a capture timestamp (µs, camera time base), or -1 if it does not fit this clock. */
+    public long ageUs(long ptsUs) {
+        long age = nowUs() - ptsUs;
+        return age >= 0 && age < MAX_PLAUSIBLE_AGE_US ? age : -1;
+    }
+
+    /**
+     * Server time ({@link ClockSync#nowMs()}, epoch ms) of a capture timestamp;
+     * current time if the pts does not fit this clock.
+     */
+    public long toServerMs(long ptsUs) {
+        long age = ageUs(ptsUs);
+        long now = ClockSync.nowMs();
+        return age < 0 ? now : now - age / 1000;
+    }
+}
@@ -5,6 +5,8 @@ import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
 
+import com.github.nikipo.ussoi.system.metrics.Metrics;
+
 import org.json.JSONObject;
 import org.webrtc.AudioSource;
 import org.webrtc.AudioTrack;
@@ -33,6 +35,7 @@ import org.webrtc.VideoTrack;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 /**
  * *****************************************************************************
@@ -56,6 +59,14 @@ public final class WebRtcPeerConnection {
     private static final String TAG           = "WebRtcPeerConn";
     private static final String VIDEO_TRACK_ID = "ARDAMSv0";
     private static final String STREAM_ID      = "ARDAMS";
+    private static final long   STATS_INTERVAL_MS = 5000;
+
+    // outbound-rtp members exported as ussoi_webrtc_<name>{kind="audio|video"}
+    private static final String[] OUTBOUND_RTP_MEMBERS = {
+            "bytesSent", "packetsSent", "retransmittedBytesSent", "nackCount",
+            "pliCount", "firCount", "framesEncoded", "keyFramesEncoded",
+            "framesPerSecond", "frameWidth", "frameHeight", "targetBitrate"
+    };
 
     // -------------------------------------------------------------------------
     // Callback
@@ -162,17 +173,37 @@ public final class WebRtcPeerConnection {
                             if (!"outbound-rtp".equals(s.getType()))
                                 continue;
 
-                            Log.d("WEBRTC-STATS", s.getMembers().toString());
+                            exportOutboundRtp(s.getMembers());
                         }
                     });
                 }
 
-                statsHandler.postDelayed(this, 5000);
+                statsHandler.postDelayed(this, STATS_INTERVAL_MS);
             }
         };
         statsHandler.post(statsTask);
     }
 
+    /** Copies the numeric outbound-rtp members into gauges; totalEncodeTime is exported in ms. */
+    private static void exportOutboundRtp(Map<String, Object> members) {
+        Object kind = members.get("kind");
+        if (!"video".equals(kind) && !"audio".equals(kind)) return;
+        String labels = "kind=\"" + kind + "\"";
+
+        for (String member : OUTBOUND_RTP_MEMBERS) {
+            Object value = members.get(member);
+            if (value instanceof Number) {
+                Metrics.gauge("ussoi_webrtc_" + member, labels, "WebRTC outbound-rtp " + member)
+                        .set(Math.round(((Number) value).doubleValue()));
+            }
+        }
+        Object encodeTime = members.get("totalEncodeTime");
+        if (encodeTime instanceof Number) {
+            Metrics.gauge("ussoi_webrtc_totalEncodeTimeMs", labels, "WebRTC outbound-rtp totalEncodeTime, ms")
+                    .set(Math.round(((Number) encodeTime).doubleValue() * 1000));
+        }
+    }
+
     // -------------------------------------------------------------------------
     // Lifecycle
     // -------------------------------------------------------------------------
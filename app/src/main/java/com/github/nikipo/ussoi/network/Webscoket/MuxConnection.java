@@ -0,0 +1,660 @@
+package com.github.nikipo.ussoi.network.Webscoket;
+
+import static com.github.nikipo.ussoi.storage.SaveInputFields.KEY_mux_api_path;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okio.Buffer;
+import okio.ByteString;
+
+/**
+ * *****************************************************************************
+ *
+ * @author nikipo
+ * *****************************************************************************
+ * @file MuxConnection
+ * @attention Copyright (c) 2026
+ * All rights reserved.
+ * <p>
+ * This software is licensed under the terms described in the LICENSE file
+ * located in the root directory of this project.
+ * If no LICENSE file is present, this software is provided "AS IS",
+ * without warranty of any kind, express or implied.
+ * <p>
+ * *****************************************************************************
+ */
+
+/**
+ * Carries every logical WebSocket channel (control, stream, tunnels) over one
+ * physical socket: one TLS handshake, one reconnect loop, one radio wakeup.
+ *
+ * Every physical message is binary: [u8 channel][u8 kind][payload]
+ *
+ *   OPEN          dev → srv  [u32 device receive window][u32 last seq received][utf8 path]
+ *   OPEN_ACK      srv → dev  [u32 server receive window][u32 last seq received]
+ *   CLOSE         both       (empty)
+ *   TEXT          both       [u32 seq] utf8 payload
+ *   BINARY        both       [u32 seq] raw payload
+ *   WINDOW_UPDATE both       [u32 bytes of credit returned]
+ *   ACK           both       [u32 highest seq received]
+ *
+ * Flow control is per channel and counts TEXT/BINARY bytes after the 2-byte
+ * header. A sender may start a frame while it has any credit left; the credit
+ * may go negative for one oversized frame. Frames without credit wait in a
+ * bounded per-channel backlog so a stalled tunnel cannot starve the video channel.
+ *
+ * Session resume: every non-video message gets a per-channel sequence number
+ * (seq 0 = unsequenced, used for video) and stays in a bounded replay buffer
+ * until the peer ACKs it. Messages sent while the link is down go straight to
+ * the replay buffer. On reconnect OPEN/OPEN_ACK exchange the last sequence each
+ * side received; the device retransmits everything after it, and both sides
+ * drop duplicates (seq <= last received). If the replay buffer overflowed the
+ * oldest messages are lost and the peer sees a gap. Nothing else may drop a
+ * sequenced message: a full channel backlog rejects it before it gets a seq,
+ * and the link's scheduler never evicts it.
+ *
+ * All u32 fields are big-endian. Channels are re-opened after every reconnect.
+ */
+public final class MuxConnection {
+    private static final String TAG = "MuxConnection";
+
+    static final byte KIND_OPEN = 0x01;
+    static final byte KIND_OPEN_ACK = 0x02;
+    static final byte KIND_CLOSE = 0x03;
+    static final byte KIND_TEXT = 0x04;
+    static final byte KIND_BINARY = 0x05;
+    static final byte KIND_WINDOW_UPDATE = 0x06;
+    static final byte KIND_ACK = 0x07;
+
+    static final int HEADER_BYTES = 2;
+    // header + u32 seq
+    static final int DATA_HEADER_BYTES = HEADER_BYTES + 4;
+
+    private static final int RECEIVE_WINDOW = 1024 * 1024;
+    private static final long MAX_CHANNEL_BACKLOG = 4L * 1024 * 1024;
+    private static final int MAX_CHANNELS = 255;
+    private static final long MAX_REPLAY_BYTES = 256 * 1024;
+    // ACK after this many sequenced messages received
+    private static final int ACK_EVERY = 8;
+
+    private static volatile MuxConnection instance;
+
+    private final Context context;
+    private final Object lock = new Object();
+    private final Map<Integer, Channel> channels = new HashMap<>(); // guarded by lock
+    private volatile WebSocketHandler link;                         // written under lock
+    private volatile boolean linkOpen = false;
+    private int nextChannelId = 1;
+
+    private MuxConnection(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    public static MuxConnection getInstance(Context context) {
+        if (instance == null) {
+            synchronized (MuxConnection.class) {
+                if (instance == null) {
+                    instance = new MuxConnection(context);
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Registers a logical channel. The physical socket is opened on the first
+     * channel and closed again when the last one goes away.
+     */
+    public Channel openChannel(String urlPath, String sessionKey,
+                               WebSocketHandler.MessageCallback callback, Executor dispatcher) {
+        synchronized (lock) {
+            int id = allocateId();
+            Channel channel = new Channel(id, urlPath.trim(), callback, dispatcher);
+            channels.put(id, channel);
+
+            if (link == null) {
+                LinkCallback linkCallback = new LinkCallback();
+                link = new WebSocketHandler(context, "mux", linkCallback, false);
+                linkCallback.owner = link;
+                // demux on the reader thread; each channel dispatches on its own
+                link.setDispatchMode(WebSocketHandler.DispatchMode.READER_THREAD);
+                link.setupConnection(KEY_mux_api_path, sessionKey);
+            } else if (linkOpen) {
+                channel.sendOpen();
+            }
+            return channel;
+        }
+    }
+
+    public boolean isLinkOpen() {
+        return linkOpen;
+    }
+
+    private int allocateId() {
+        if (channels.size() >= MAX_CHANNELS) {
+            throw new IllegalStateException("No free mux channel ids");
+        }
+        while (channels.containsKey(nextChannelId)) {
+            nextChannelId = nextChannelId % MAX_CHANNELS + 1;
+        }
+        int id = nextChannelId;
+        nextChannelId = nextChannelId % MAX_CHANNELS + 1;
+        return id;
+    }
+
+    private void removeChannel(Channel channel) {
+        WebSocketHandler toClose = null;
+        synchronized (lock) {
+            if (channels.remove(channel.id) == null) return;
+            if (linkOpen) {
+                sendControl(frame(channel.id, KIND_CLOSE));
+            }
+            if (channels.isEmpty()) {
+                toClose = link;
+                link = null;
+                linkOpen = false;
+            }
+        }
+        if (toClose != null) {
+            toClose.close();
+        }
+    }
+
+    private List<Channel> snapshotChannels() {
+        synchronized (lock) {
+            return new ArrayList<>(channels.values());
+        }
+    }
+
+    private Channel channel(int id) {
+        synchronized (lock) {
+            return channels.get(id);
+        }
+    }
+
+    private void sendRaw(ByteString frame, SendScheduler.SendClass sendClass, SendScheduler.DropListener listener,
+                         SendScheduler.WriteStamp stamp, boolean sequenced) {
+        WebSocketHandler current = link;
+        if (current != null) {
+            // a stamp sees the caller's payload, not the mux framing
+            current.sendRaw(frame, sendClass, listener, stamp, DATA_HEADER_BYTES, sequenced);
+        }
+    }
+
+    /** Mux control frames (OPEN, CLOSE, WINDOW_UPDATE) always go out as CONTROL. */
+    private void sendControl(ByteString frame) {
+        sendRaw(frame, SendScheduler.SendClass.CONTROL, null, null, false);
+    }
+
+    private long linkPendingBytes() {
+        WebSocketHandler current = link;
+        return current == null ? 0 : current.getPendingBytes();
+    }
+
+    // ── Physical link callbacks (socket reader thread) ──
+
+    /** Ignores events from a link that was already replaced or closed. */
+    private final class LinkCallback implements WebSocketHandler.MessageCallback {
+        WebSocketHandler owner;
+
+        private boolean stale() {
+            return owner == null || owner != link;
+        }
+
+        @Override
+        public void onOpen() {
+            if (stale()) return;
+            linkOpen = true;
+            for (Channel channel : snapshotChannels()) {
+                channel.sendOpen();
+            }
+        }
+
+        @Override
+        public void onPayloadReceivedText(String payload) {
+            Log.w(TAG, "Ignoring text frame on mux link");
+        }
+
+        @Override
+        public void onPayloadReceivedByte(byte[] payload) {
+            if (stale() || payload.length < HEADER_BYTES) return;
+
+            int id = payload[0] & 0xFF;
+            byte kind = payload[1];
+            Channel channel = channel(id);
+            if (channel == null) {
+                Log.w(TAG, "Frame for unknown channel " + id);
+                return;
+            }
+
+            switch (kind) {
+                case KIND_OPEN_ACK:
+                    channel.onOpenAck(readU32(payload, HEADER_BYTES), readU32(payload, HEADER_BYTES + 4));
+                    break;
+                case KIND_ACK:
+                    channel.onAck(readU32(payload, HEADER_BYTES));
+                    break;
+                case KIND_CLOSE:
+                    channel.onRemoteClose();
+                    break;
+                case KIND_TEXT: {
+                    if (payload.length < DATA_HEADER_BYTES) break;
+                    int size = payload.length - HEADER_BYTES;
+                    if (channel.accept(readU32(payload, HEADER_BYTES), size)) {
+                        channel.onText(new String(payload, DATA_HEADER_BYTES,
+                                payload.length - DATA_HEADER_BYTES, StandardCharsets.UTF_8), size);
+                    }
+                    break;
+                }
+                case KIND_BINARY: {
+                    if (payload.length < DATA_HEADER_BYTES) break;
+                    int size = payload.length - HEADER_BYTES;
+                    if (channel.accept(readU32(payload, HEADER_BYTES), size)) {
+                        byte[] data = new byte[payload.length - DATA_HEADER_BYTES];
+                        System.arraycopy(payload, DATA_HEADER_BYTES, data, 0, data.length);
+                        channel.onBinary(data, size);
+                    }
+                    break;
+                }
+                case KIND_WINDOW_UPDATE:
+                    channel.addCredit(readU32(payload, HEADER_BYTES));
+                    break;
+                default:
+                    Log.w(TAG, "Unknown frame kind " + kind + " on channel " + id);
+                    break;
+            }
+        }
+
+        @Override
+        public void onClosed() {
+            if (stale()) return;
+            linkOpen = false;
+            for (Channel channel : snapshotChannels()) {
+                channel.onLinkDown(null);
+            }
+        }
+
+        @Override
+        public void onError(String error) {
+            if (stale()) return;
+            linkOpen = false;
+            for (Channel channel : snapshotChannels()) {
+                channel.onLinkDown(error);
+            }
+        }
+    }
+
+    private static final class Pending {
+        final ByteString frame;
+        final boolean sequenced;
+        final SendScheduler.SendClass sendClass;
+        final SendScheduler.DropListener listener;
+        final SendScheduler.WriteStamp stamp;
+
+        Pending(ByteString frame, long seq, SendScheduler.SendClass sendClass, SendScheduler.DropListener listener) {
+            this(frame, seq, sendClass, listener, null);
+        }
+
+        Pending(ByteString frame, long seq, SendScheduler.SendClass sendClass, SendScheduler.DropListener listener,
+                SendScheduler.WriteStamp stamp) {
+            this.frame = frame;
+            this.sequenced = seq != 0;
+            this.sendClass = sendClass;
+            this.listener = listener;
+            this.stamp = stamp;
+        }
+    }
+
+    private static final class Replay {
+        final long seq;
+        final Pending pending;
+
+        Replay(long seq, Pending pending) {
+            this.seq = seq;
+            this.pending = pending;
+        }
+    }
+
+    /**
+     * One logical socket. Behaves like a direct WebSocketHandler connection:
+     * callbacks arrive via the owner's dispatcher, sends are safe from any thread.
+     */
+    public final class Channel {
+        final int id;
+        private final String path;
+        private final WebSocketHandler.MessageCallback callback;
+        private final Executor dispatcher;
+
+        private volatile boolean open = false;
+        private volatile boolean closed = false;
+        // opened at least once: sends while the link is down go to the replay buffer
+        private volatile boolean established = false;
+
+        // guarded by this
+        private long sendCredit;
+        private final ArrayDeque<Pending> backlog = new ArrayDeque<>();
+        private long backlogBytes;
+        private long nextSendSeq = 1;
+        private final ArrayDeque<Replay> replay = new ArrayDeque<>();
+        private long replayBytes;
+        private long retransmitted;
+        private long replayEvicted;
+
+        // counted when the consumer has taken the message
+        private final AtomicLong receivedSinceUpdate = new AtomicLong();
+
+        // reader thread only
+        private volatile long lastReceivedSeq = 0;
+        private int receivedSinceAck = 0;
+
+        private Channel(int id, String path, WebSocketHandler.MessageCallback callback, Executor dispatcher) {
+            this.id = id;
+            this.path = path;
+            this.callback = callback;
+            this.dispatcher = dispatcher;
+        }
+
+        public boolean isOpen() {
+            return open;
+        }
+
+        /** Bytes waiting for credit on this channel plus the shared socket queue. */
+        public long getPendingBytes() {
+            synchronized (this) {
+                return backlogBytes + linkPendingBytes();
+            }
+        }
+
+        /** Send queue metrics of the shared physical socket. */
+        public JSONObject getSendStats() {
+            WebSocketHandler current = link;
+            return current == null ? new JSONObject() : current.getSendStats();
+        }
+
+        /** Messages resent after a reconnect / dropped from a full replay buffer. */
+        public synchronized long getRetransmitted() { return retransmitted; }
+        public synchronized long getReplayEvicted() { return replayEvicted; }
+
+        public void sendText(String text, SendScheduler.SendClass sendClass) {
+            synchronized (this) {
+                if (!canSend(sendClass)) return;
+                if (!hasRoom(sendClass, DATA_HEADER_BYTES + SendScheduler.utf8Length(text), null)) return;
+                long seq = nextSeq(sendClass);
+                Buffer buffer = header(id, KIND_TEXT);
+                buffer.writeInt((int) seq);
+                buffer.writeUtf8(text);
+                submit(seq, new Pending(buffer.snapshot(), seq, sendClass, null));
+            }
+        }
+
+        public void sendBytes(byte[] data, SendScheduler.SendClass sendClass, SendScheduler.DropListener listener) {
+            synchronized (this) {
+                if (!canSend(sendClass)) return;
+                if (!hasRoom(sendClass, DATA_HEADER_BYTES + data.length, listener)) return;
+                long seq = nextSeq(sendClass);
+                Buffer buffer = header(id, KIND_BINARY);
+                buffer.writeInt((int) seq);
+                buffer.write(data);
+                submit(seq, new Pending(buffer.snapshot(), seq, sendClass, listener));
+            }
+        }
+
+        public void sendBytes(ByteBuffer data, SendScheduler.SendClass sendClass, SendScheduler.DropListener listener) {
+            sendBytes(data, sendClass, listener, null);
+        }
+
+        public void sendBytes(ByteBuffer data, SendScheduler.SendClass sendClass, SendScheduler.DropListener listener,
+                              SendScheduler.WriteStamp stamp) {
+            synchronized (this) {
+                if (!canSend(sendClass)) return;
+                if (!hasRoom(sendClass, DATA_HEADER_BYTES + data.remaining(), listener)) return;
+                long seq = nextSeq(sendClass);
+                Buffer buffer = header(id, KIND_BINARY);
+                buffer.writeInt((int) seq);
+                try {
+                    buffer.write(data.duplicate());
+                } catch (Exception e) {
+                    Log.e(TAG, "Failed to frame BYTES: " + e.getMessage());
+                    return;
+                }
+                submit(seq, new Pending(buffer.snapshot(), seq, sendClass, listener, stamp));
+            }
+        }
+
+        public void close() {
+            closed = true;
+            open = false;
+            established = false;
+            synchronized (this) {
+                backlog.clear();
+                backlogBytes = 0;
+                replay.clear();
+                replayBytes = 0;
+            }
+            removeChannel(this);
+        }
+
+        /** Must hold this. */
+        private boolean canSend(SendScheduler.SendClass sendClass) {
+            if (open) return true;
+            if (established && !closed && sendClass.replayable()) return true;
+            Log.w(TAG, "Cannot send on mux channel " + path + ": not open.");
+            return false;
+        }
+
+        /**
+         * A sequenced frame must not be dropped once it has a seq, so a full
+         * backlog rejects it here instead of in transmit(). Must hold this.
+         */
+        private boolean hasRoom(SendScheduler.SendClass sendClass, long frameSize,
+                                SendScheduler.DropListener listener) {
+            if (!open || !sendClass.replayable()) return true;
+            if (backlog.isEmpty() && sendCredit > 0) return true;
+            if (backlogBytes + frameSize <= MAX_CHANNEL_BACKLOG) return true;
+            long payload = frameSize - HEADER_BYTES;
+            Log.w(TAG, "Mux channel " + path + " backlog full, rejecting " + payload + " bytes");
+            if (listener != null) {
+                listener.onDropped(sendClass, (int) payload);
+            }
+            return false;
+        }
+
+        /** Must hold this. */
+        private long nextSeq(SendScheduler.SendClass sendClass) {
+            if (!sendClass.replayable()) return 0;
+            long seq = nextSendSeq;
+            nextSendSeq = nextSendSeq == 0xFFFFFFFFL ? 1 : nextSendSeq + 1;
+            return seq;
+        }
+
+        /** Keeps sequenced frames for replay, transmits if the channel is open. Must hold this. */
+        private void submit(long seq, Pending pending) {
+            if (seq != 0) {
+                replay.add(new Replay(seq, pending));
+                replayBytes += pending.frame.size();
+                while (replayBytes > MAX_REPLAY_BYTES && replay.size() > 1) {
+                    Replay old = replay.poll();
+                    replayBytes -= old.pending.frame.size();
+                    replayEvicted++;
+                }
+            }
+            if (open) {
+                transmit(pending);
+            }
+        }
+
+        /** Drops replay entries the peer has received. */
+        private synchronized void trimReplay(long ackedSeq) {
+            while (!replay.isEmpty() && seqAtOrBefore(replay.peek().seq, ackedSeq)) {
+                replayBytes -= replay.poll().pending.frame.size();
+            }
+        }
+
+        /** Must hold this. */
+        private void transmit(Pending pending) {
+            ByteString frame = pending.frame;
+            long payload = frame.size() - HEADER_BYTES;
+            if (backlog.isEmpty() && sendCredit > 0) {
+                sendCredit -= payload;
+                sendRaw(frame, pending.sendClass, pending.listener, pending.stamp, pending.sequenced);
+            } else if (backlogBytes + frame.size() <= MAX_CHANNEL_BACKLOG) {
+                backlog.add(pending);
+                backlogBytes += frame.size();
+            } else {
+                Log.w(TAG, "Mux channel " + path + " backlog full, dropping " + payload + " bytes");
+                if (pending.listener != null) {
+                    pending.listener.onDropped(pending.sendClass, (int) payload);
+                }
+            }
+        }
+
+        private void sendOpen() {
+            synchronized (this) {
+                open = false;
+                sendCredit = 0;
+                // sequenced frames in the backlog are still in the replay buffer
+                backlog.clear();
+                backlogBytes = 0;
+            }
+            receivedSinceUpdate.set(0);
+            receivedSinceAck = 0;
+
+            Buffer buffer = header(id, KIND_OPEN);
+            buffer.writeInt(RECEIVE_WINDOW);
+            buffer.writeInt((int) lastReceivedSeq);
+            buffer.writeUtf8(path);
+            sendControl(buffer.snapshot());
+        }
+
+        private void onOpenAck(long window, long peerLastSeq) {
+            if (closed) return;
+            synchronized (this) {
+                sendCredit = window;
+                trimReplay(peerLastSeq);
+                open = true;
+                established = true;
+                // resume: resend what the peer missed, before anything new
+                for (Replay r : replay) {
+                    transmit(r.pending);
+                    retransmitted++;
+                }
+            }
+            dispatcher.execute(callback::onOpen);
+        }
+
+        private void onAck(long seq) {
+            trimReplay(seq);
+        }
+
+        /**
+         * Reader thread: dedups sequenced messages and ACKs periodically.
+         * Returns false for a duplicate (its credit is still returned).
+         */
+        private boolean accept(long seq, int size) {
+            if (seq == 0) return true;
+            if (lastReceivedSeq != 0 && seqAtOrBefore(seq, lastReceivedSeq)) {
+                consumed(size);
+                return false;
+            }
+            lastReceivedSeq = seq;
+            if (++receivedSinceAck >= ACK_EVERY && linkOpen) {
+                receivedSinceAck = 0;
+                Buffer buffer = header(id, KIND_ACK);
+                buffer.writeInt((int) seq);
+                sendControl(buffer.snapshot());
+            }
+            return true;
+        }
+
+        private void addCredit(long credit) {
+            synchronized (this) {
+                sendCredit += credit;
+                while (!backlog.isEmpty() && sendCredit > 0) {
+                    Pending pending = backlog.poll();
+                    backlogBytes -= pending.frame.size();
+                    sendCredit -= pending.frame.size() - HEADER_BYTES;
+                    sendRaw(pending.frame, pending.sendClass, pending.listener, pending.stamp, pending.sequenced);
+                }
+            }
+        }
+
+        private void onText(String text, int size) {
+            dispatcher.execute(() -> {
+                callback.onPayloadReceivedText(text);
+                consumed(size);
+            });
+        }
+
+        private void onBinary(byte[] data, int size) {
+            dispatcher.execute(() -> {
+                callback.onPayloadReceivedByte(data);
+                consumed(size);
+            });
+        }
+
+        private void consumed(int size) {
+            long total = receivedSinceUpdate.addAndGet(size);
+            if (total >= RECEIVE_WINDOW / 2 && linkOpen
+                    && receivedSinceUpdate.compareAndSet(total, 0)) {
+                Buffer buffer = header(id, KIND_WINDOW_UPDATE);
+                buffer.writeInt((int) total);
+                sendControl(buffer.snapshot());
+            }
+        }
+
+        private void onRemoteClose() {
+            boolean wasOpen = open;
+            open = false;
+            if (wasOpen) {
+                dispatcher.execute(callback::onClosed);
+            }
+        }
+
+        private void onLinkDown(String error) {
+            boolean wasOpen = open;
+            open = false;
+            if (error != null) {
+                dispatcher.execute(() -> callback.onError(error));
+            } else if (wasOpen) {
+                dispatcher.execute(callback::onClosed);
+            }
+        }
+    }
+
+    private static Buffer header(int channel, byte kind) {
+        Buffer buffer = new Buffer();
+        buffer.writeByte(channel);
+        buffer.writeByte(kind);
+        return buffer;
+    }
+
+    private static ByteString frame(int channel, byte kind) {
+        return header(channel, kind).snapshot();
+    }
+
+    /** a <= b in 32-bit serial number arithmetic (sequences wrap). */
+    private static boolean seqAtOrBefore(long a, long b) {
+        return (int) (a - b) <= 0;
+    }
+
+    private static long readU32(byte[] data, int offset) {
+        if (data.length < offset + 4) return 0;
+        return ((long) (data[offset] & 0xFF) << 24)
+                | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8)
+                | (data[offset + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,114 @@
+package com.github.nikipo.ussoi.network.Webscoket;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * *****************************************************************************
+ *
+ * @author nikipo
+ * *****************************************************************************
+ * @file NetworkWatcher
+ * @attention Copyright (c) 2026
+ * All rights reserved.
+ * <p>
+ * This software is licensed under the terms described in the LICENSE file
+ * located in the root directory of this project.
+ * If no LICENSE file is present, this software is provided "AS IS",
+ * without warranty of any kind, express or implied.
+ * <p>
+ * *****************************************************************************
+ */
+
+/**
+ * Tracks the system default network and tells live WebSocket handlers when it
+ * changes, so they reconnect right away instead of waiting out their backoff.
+ *
+ * The default-network callback is registered while at least one listener exists.
+ */
+final class NetworkWatcher {
+    private static final String TAG = "NetworkWatcher";
+
+    interface Listener {
+        /**
+         * @param switched true if traffic moved from one network to another
+         *                 (existing sockets are likely dead), false if a network
+         *                 became available after none was
+         */
+        void onDefaultNetworkChanged(boolean switched);
+    }
+
+    private static volatile NetworkWatcher instance;
+
+    private final ConnectivityManager connectivityManager;
+    private final CopyOnWriteArraySet<Listener> listeners = new CopyOnWriteArraySet<>();
+    private volatile Network current;
+    private boolean registered = false;
+
+    private final ConnectivityManager.NetworkCallback callback = new ConnectivityManager.NetworkCallback() {
+        @Override
+        public void onAvailable(@NonNull Network network) {
+            Network previous = current;
+            current = network;
+            if (network.equals(previous)) return;
+
+            boolean switched = previous != null;
+            Log.d(TAG, "Default network " + (switched ? "switched" : "available") + ": " + network);
+            for (Listener l : listeners) {
+                l.onDefaultNetworkChanged(switched);
+            }
+        }
+
+        @Override
+        public void onLost(@NonNull Network network) {
+            if (network.equals(current)) {
+                current = null;
+            }
+        }
+    };
+
+    private NetworkWatcher(Context context) {
+        connectivityManager = (ConnectivityManager) context.getApplicationContext()
+                .getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    static NetworkWatcher getInstance(Context context) {
+        if (instance == null) {
+            synchronized (NetworkWatcher.class) {
+                if (instance == null) {
+                    instance = new NetworkWatcher(context);
+                }
+            }
+        }
+        return instance;
+    }
+
+    synchronized void addListener(Listener listener) {
+        listeners.add(listener);
+        if (!registered && connectivityManager != null) {
+            try {
+                connectivityManager.registerDefaultNetworkCallback(callback);
+                registered = true;
+            } catch (Exception e) {
+                Log.w(TAG, "Default network callback unavailable", e);
+            }
+        }
+    }
+
+    synchronized void removeListener(Listener listener) {
+        listeners.remove(listener);
+        if (registered && listeners.isEmpty()) {
+            try {
+                connectivityManager.unregisterNetworkCallback(callback);
+            } catch (Exception ignored) {}
+            registered = false;
+            current = null;
+        }
+    }
+}
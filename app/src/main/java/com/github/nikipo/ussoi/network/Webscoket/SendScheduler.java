@@ -0,0 +1,509 @@
+package com.github.nikipo.ussoi.network.Webscoket;
+
+import android.util.Log;
+
+import com.github.nikipo.ussoi.system.metrics.Counter;
+import com.github.nikipo.ussoi.system.metrics.Histogram;
+import com.github.nikipo.ussoi.system.metrics.Metrics;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import okio.ByteString;
+
+/**
+ * *****************************************************************************
+ *
+ * @author nikipo
+ * *****************************************************************************
+ * @file SendScheduler
+ * @attention Copyright (c) 2026
+ * All rights reserved.
+ * <p>
+ * This software is licensed under the terms described in the LICENSE file
+ * located in the root directory of this project.
+ * If no LICENSE file is present, this software is provided "AS IS",
+ * without warranty of any kind, express or implied.
+ * <p>
+ * *****************************************************************************
+ */
+
+/**
+ * Outbound priority scheduler in front of OkHttp's FIFO send queue.
+ *
+ * Messages are queued per {@link SendClass} and fed to the socket by a pump
+ * thread using deficit round robin (weight × quantum bytes per round). The
+ * pump only hands over the next message while the socket queue is below
+ * {@link #SINK_WATERMARK}, so a keyframe can delay a control ack by at most
+ * the one message already inside OkHttp. OkHttp has no drain callback, so
+ * above the watermark the pump sleeps for the time the excess should take at
+ * the drain rate it last observed (5–50 ms), and backs off to the maximum
+ * while the socket makes no progress.
+ *
+ * Each class has a byte budget. Droppable classes evict their oldest entries
+ * when over budget and drop entries older than maxAgeMs at dequeue time;
+ * CONTROL is never dropped — it is rejected only when its own budget is full.
+ * Reliable messages (sequenced mux frames: a drop after the sequence number
+ * was assigned is a gap the peer never recovers) are never evicted either;
+ * the mux receive window bounds them.
+ * Sizes are the bytes on the wire (UTF-8 for text), as OkHttp counts them.
+ *
+ * Priority holds within one socket. Direct-mode sockets each have their own
+ * scheduler and TCP connection, so across them the kernel decides; mux mode
+ * puts every channel on one scheduler when that ordering matters.
+ */
+public final class SendScheduler {
+    private static final String TAG = "SendScheduler";
+
+    public enum SendClass {
+        //          weight  budget bytes        max age ms (0 = never stale)
+        CONTROL   (8,     1024 * 1024,        0),
+        TUNNEL    (4,     512 * 1024,         2_000),
+        TELEMETRY (2,     64 * 1024,          1_000),
+        VIDEO     (1,     4 * 1024 * 1024,    1_500);
+
+        final int weight;
+        final long budgetBytes;
+        final long maxAgeMs;
+
+        SendClass(int weight, long budgetBytes, long maxAgeMs) {
+            this.weight = weight;
+            this.budgetBytes = budgetBytes;
+            this.maxAgeMs = maxAgeMs;
+        }
+
+        boolean droppable() {
+            return maxAgeMs > 0;
+        }
+
+        /** Worth resending after a reconnect (video is stale by then). */
+        public boolean replayable() {
+            return this != VIDEO;
+        }
+    }
+
+    /** Called from the pump or the enqueuing thread when a queued message is discarded. */
+    public interface DropListener {
+        void onDropped(SendClass sendClass, int bytes);
+    }
+
+    /**
+     * Patches a binary message on the pump thread right before it goes to the
+     * socket (e.g. to record the hand-off time inside a frame). Stamped
+     * messages cost two extra copies, so only opt-in traffic should use it.
+     */
+    public interface WriteStamp {
+        /**
+         * @param message  the whole message, writable
+         * @param offset   where the caller's payload starts (after any mux framing)
+         * @param queuedNs time spent in the scheduler
+         */
+        void onWrite(byte[] message, int offset, long queuedNs);
+    }
+
+    interface Sink {
+        boolean sendText(String text);
+        boolean sendBytes(ByteString bytes);
+        long queueSize();
+    }
+
+    // Bytes OkHttp may hold before the pump waits
+    static final long SINK_WATERMARK = 32 * 1024;
+    private static final int QUANTUM_BYTES = 16 * 1024;
+    private static final long SINK_MIN_WAIT_MS = 5;
+    private static final long SINK_MAX_WAIT_MS = 50;
+    private static final float WAIT_EWMA_ALPHA = 0.1f;
+
+    private static final class Item {
+        final String text;
+        final ByteString bytes;
+        final int size;
+        final long enqueuedNs;
+        final DropListener dropListener;
+        final WriteStamp stamp;
+        final int stampOffset;
+        final boolean reliable;
+
+        Item(String text, ByteString bytes, int size, long enqueuedNs, DropListener dropListener,
+             WriteStamp stamp, int stampOffset, boolean reliable) {
+            this.text = text;
+            this.bytes = bytes;
+            this.size = size;
+            this.enqueuedNs = enqueuedNs;
+            this.dropListener = dropListener;
+            this.stamp = stamp;
+            this.stampOffset = stampOffset;
+            this.reliable = reliable;
+        }
+    }
+
+    private static final class ClassQueue {
+        final ArrayDeque<Item> items = new ArrayDeque<>();
+        long bytes;
+        long deficit;
+
+        long enqueued;
+        long sent;
+        long droppedStale;
+        long droppedBudget;
+        long droppedDisconnect;
+        double avgWaitMs;
+        long maxWaitMs;
+
+        // process-wide series, shared by every scheduler with the same socket name
+        final Counter sentTotal;
+        final Counter sentBytesTotal;
+        final Counter droppedStaleTotal;
+        final Counter droppedBudgetTotal;
+        final Counter droppedDisconnectTotal;
+        final Histogram queueWait;
+
+        ClassQueue(String socket, SendClass sendClass) {
+            String labels = "socket=\"" + socket + "\",class=\"" + sendClass.name().toLowerCase() + "\"";
+            sentTotal = Metrics.counter("ussoi_ws_sent_total", labels, "Messages handed to the WebSocket");
+            sentBytesTotal = Metrics.counter("ussoi_ws_sent_bytes_total", labels, "Bytes handed to the WebSocket");
+            droppedStaleTotal = Metrics.counter("ussoi_ws_dropped_stale_total", labels,
+                    "Queued messages dropped for age");
+            droppedBudgetTotal = Metrics.counter("ussoi_ws_dropped_budget_total", labels,
+                    "Queued messages evicted or rejected over the class byte budget");
+            droppedDisconnectTotal = Metrics.counter("ussoi_ws_dropped_disconnect_total", labels,
+                    "Queued messages discarded when the connection went down");
+            queueWait = Metrics.histogram("ussoi_ws_queue_wait_us", labels,
+                    "Time from enqueue to socket hand-off, microseconds");
+        }
+    }
+
+    private final Sink sink;
+    private final String name;
+    private final ClassQueue[] queues = new ClassQueue[SendClass.values().length];
+    private final Object lock = new Object();
+    private int rrIndex = 0;
+    private long queuedBytes = 0;
+    // last socket queue sample above the watermark, 0 ns while below; guarded by lock
+    private long sinkSampleBytes = 0;
+    private long sinkSampleNs = 0;
+    private long sinkWaitMs = SINK_MIN_WAIT_MS;
+
+    // guarded by lock; a pump thread exits as soon as it is no longer this one
+    private Thread pump;
+    private volatile boolean running = false;
+
+    SendScheduler(Sink sink, String name) {
+        this.sink = sink;
+        this.name = name;
+        SendClass[] classes = SendClass.values();
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new ClassQueue(name, classes[i]);
+        }
+    }
+
+    void start() {
+        synchronized (lock) {
+            if (running) return;
+            running = true;
+            pump = new Thread(this::pumpLoop, "WS-Send-" + name);
+            pump.start();
+        }
+    }
+
+    void stop() {
+        Thread t;
+        synchronized (lock) {
+            running = false;
+            t = pump;
+            pump = null;
+            lock.notifyAll();
+        }
+        if (t != null) {
+            t.interrupt();
+        }
+        clear();
+    }
+
+    boolean enqueueText(String text, SendClass sendClass) {
+        return enqueue(new Item(text, null, utf8Length(text), System.nanoTime(), null, null, 0, false), sendClass);
+    }
+
+    boolean enqueueBytes(ByteString bytes, SendClass sendClass, DropListener dropListener) {
+        return enqueueBytes(bytes, sendClass, dropListener, null, 0);
+    }
+
+    boolean enqueueBytes(ByteString bytes, SendClass sendClass, DropListener dropListener,
+                         WriteStamp stamp, int stampOffset) {
+        return enqueueBytes(bytes, sendClass, dropListener, stamp, stampOffset, false);
+    }
+
+    /** @param reliable never evicted for age or budget, only discarded by {@link #clear()} */
+    boolean enqueueBytes(ByteString bytes, SendClass sendClass, DropListener dropListener,
+                         WriteStamp stamp, int stampOffset, boolean reliable) {
+        return enqueue(new Item(null, bytes, bytes.size(), System.nanoTime(), dropListener, stamp, stampOffset,
+                reliable), sendClass);
+    }
+
+    /** Bytes waiting in the scheduler (not yet handed to the socket). */
+    long getQueuedBytes() {
+        synchronized (lock) {
+            return queuedBytes;
+        }
+    }
+
+    /** Drops everything queued, e.g. when the connection went down. */
+    void clear() {
+        synchronized (lock) {
+            for (SendClass c : SendClass.values()) {
+                ClassQueue q = queues[c.ordinal()];
+                Item item;
+                while ((item = q.items.poll()) != null) {
+                    q.droppedDisconnect++;
+                    q.droppedDisconnectTotal.inc();
+                    notifyDrop(c, item);
+                }
+                q.bytes = 0;
+                q.deficit = 0;
+            }
+            queuedBytes = 0;
+        }
+    }
+
+    /**
+     * Per-class metrics: depth (items, bytes), counters and queueing delay.
+     * {"control":{"depth":0,"bytes":0,"enqueued":..,"sent":..,"dropped_stale":..,
+     *  "dropped_budget":..,"dropped_disconnect":..,"avg_wait_ms":..,"max_wait_ms":..}, ...}
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        synchronized (lock) {
+            try {
+                for (SendClass c : SendClass.values()) {
+                    ClassQueue q = queues[c.ordinal()];
+                    JSONObject o = new JSONObject();
+                    o.put("depth", q.items.size());
+                    o.put("bytes", q.bytes);
+                    o.put("enqueued", q.enqueued);
+                    o.put("sent", q.sent);
+                    o.put("dropped_stale", q.droppedStale);
+                    o.put("dropped_budget", q.droppedBudget);
+                    o.put("dropped_disconnect", q.droppedDisconnect);
+                    o.put("avg_wait_ms", Math.round(q.avgWaitMs));
+                    o.put("max_wait_ms", q.maxWaitMs);
+                    stats.put(c.name().toLowerCase(), o);
+                }
+            } catch (JSONException e) {
+                Log.e(TAG, "Failed to build stats", e);
+            }
+        }
+        return stats;
+    }
+
+    private boolean enqueue(Item item, SendClass sendClass) {
+        synchronized (lock) {
+            if (!running) return false;
+
+            ClassQueue q = queues[sendClass.ordinal()];
+            if (q.bytes + item.size > sendClass.budgetBytes) {
+                if (!sendClass.droppable()) {
+                    // reliable items are bounded by the mux receive window, not by this budget
+                    if (!item.reliable) {
+                        q.droppedBudget++;
+                        q.droppedBudgetTotal.inc();
+                        Log.w(TAG, name + ": " + sendClass + " queue full, rejecting " + item.size + " bytes");
+                        return false;
+                    }
+                } else {
+                    Iterator<Item> it = q.items.iterator();
+                    while (it.hasNext() && q.bytes + item.size > sendClass.budgetBytes) {
+                        Item old = it.next();
+                        if (old.reliable) continue;
+                        it.remove();
+                        q.bytes -= old.size;
+                        queuedBytes -= old.size;
+                        q.droppedBudget++;
+                        q.droppedBudgetTotal.inc();
+                        notifyDrop(sendClass, old);
+                    }
+                }
+            }
+
+            q.items.add(item);
+            q.bytes += item.size;
+            queuedBytes += item.size;
+            q.enqueued++;
+            lock.notifyAll();
+            return true;
+        }
+    }
+
+    private void pumpLoop() {
+        Thread self = Thread.currentThread();
+        while (true) {
+            Item item;
+            SendClass sendClass;
+            synchronized (lock) {
+                // stop() then start() replaces the pump; the old one must not keep sending
+                if (pump != self) return;
+                try {
+                    if (queuedBytes == 0) {
+                        sinkSampleNs = 0;
+                        lock.wait();
+                        continue;
+                    }
+                    long sinkBytes = sink.queueSize();
+                    if (sinkBytes >= SINK_WATERMARK) {
+                        lock.wait(sinkBackoffMs(sinkBytes, System.nanoTime()));
+                        continue;
+                    }
+                    sinkSampleNs = 0;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+
+                long nowNs = System.nanoTime();
+                dropStale(nowNs);
+                sendClass = nextClass();
+                if (sendClass == null) continue;
+
+                ClassQueue q = queues[sendClass.ordinal()];
+                item = q.items.poll();
+                q.bytes -= item.size;
+                q.deficit -= item.size;
+                if (q.items.isEmpty()) q.deficit = 0;
+                queuedBytes -= item.size;
+
+                long waitedNs = nowNs - item.enqueuedNs;
+                long waited = waitedNs / 1_000_000;
+                q.avgWaitMs += WAIT_EWMA_ALPHA * (waited - q.avgWaitMs);
+                if (waited > q.maxWaitMs) q.maxWaitMs = waited;
+                q.sent++;
+                q.sentTotal.inc();
+                q.sentBytesTotal.add(item.size);
+                q.queueWait.record(waitedNs / 1000);
+            }
+
+            // outside the lock: OkHttp's send() takes its own lock
+            if (item.text != null) {
+                sink.sendText(item.text);
+            } else if (item.stamp != null) {
+                sink.sendBytes(stamped(item, System.nanoTime()));
+            } else {
+                sink.sendBytes(item.bytes);
+            }
+        }
+    }
+
+    /** How long to wait for the socket queue to drain below the watermark. Must hold lock. */
+    private long sinkBackoffMs(long sinkBytes, long nowNs) {
+        long drained = sinkSampleBytes - sinkBytes;
+        long elapsedNs = nowNs - sinkSampleNs;
+        if (sinkSampleNs != 0 && elapsedNs < sinkWaitMs * 1_000_000) {
+            // woken early by an enqueue: finish the current wait, too short to judge the rate
+            return Math.max(1, sinkWaitMs - elapsedNs / 1_000_000);
+        }
+        if (sinkSampleNs == 0) {
+            sinkWaitMs = SINK_MIN_WAIT_MS;
+        } else if (drained > 0 && elapsedNs > 0) {
+            long excess = sinkBytes - SINK_WATERMARK + 1;
+            sinkWaitMs = excess * elapsedNs / drained / 1_000_000;
+        } else {
+            // nothing left the socket since the last look
+            sinkWaitMs *= 2;
+        }
+        sinkWaitMs = Math.max(SINK_MIN_WAIT_MS, Math.min(SINK_MAX_WAIT_MS, sinkWaitMs));
+        sinkSampleBytes = sinkBytes;
+        sinkSampleNs = nowNs;
+        return sinkWaitMs;
+    }
+
+    /** Deficit round robin over non-empty classes. Must hold lock. */
+    private SendClass nextClass() {
+        SendClass[] classes = SendClass.values();
+        // Every pass adds a quantum to each backlogged class, so a head item of
+        // any size is eventually served.
+        for (int pass = 0; pass < 1024; pass++) {
+            for (int i = 0; i < classes.length; i++) {
+                int idx = (rrIndex + i) % classes.length;
+                ClassQueue q = queues[idx];
+                Item head = q.items.peek();
+                if (head == null) continue;
+                if (q.deficit >= head.size) {
+                    rrIndex = idx;
+                    return classes[idx];
+                }
+            }
+            for (int i = 0; i < classes.length; i++) {
+                ClassQueue q = queues[i];
+                if (!q.items.isEmpty()) {
+                    q.deficit += (long) classes[i].weight * QUANTUM_BYTES;
+                }
+            }
+            rrIndex = (rrIndex + 1) % classes.length;
+        }
+        return null;
+    }
+
+    /** Drops items that sat longer than their class allows. Must hold lock. */
+    private void dropStale(long nowNs) {
+        for (SendClass c : SendClass.values()) {
+            if (!c.droppable()) continue;
+            ClassQueue q = queues[c.ordinal()];
+            // oldest first: stop at the first item still in time, step over reliable ones
+            Iterator<Item> it = q.items.iterator();
+            while (it.hasNext()) {
+                Item item = it.next();
+                if ((nowNs - item.enqueuedNs) / 1_000_000 <= c.maxAgeMs) break;
+                if (item.reliable) continue;
+                it.remove();
+                q.bytes -= item.size;
+                queuedBytes -= item.size;
+                q.droppedStale++;
+                q.droppedStaleTotal.inc();
+                notifyDrop(c, item);
+            }
+        }
+    }
+
+    /** Encoded length without encoding; unpaired surrogates count as the 1-byte '?' OkHttp writes. */
+    static int utf8Length(String s) {
+        int bytes = 0;
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                bytes += 1;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (!Character.isSurrogate(c)) {
+                bytes += 3;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 1;
+            }
+        }
+        return bytes;
+    }
+
+    private static ByteString stamped(Item item, long nowNs) {
+        byte[] message = item.bytes.toByteArray();
+        try {
+            item.stamp.onWrite(message, item.stampOffset, nowNs - item.enqueuedNs);
+        } catch (Exception e) {
+            Log.e(TAG, "Write stamp failed", e);
+            return item.bytes;
+        }
+        return ByteString.of(message);
+    }
+
+    private static void notifyDrop(SendClass sendClass, Item item) {
+        if (item.dropListener != null) {
+            try {
+                item.dropListener.onDropped(sendClass, item.size);
+            } catch (Exception e) {
+                Log.e(TAG, "Drop listener failed", e);
+            }
+        }
+    }
+}
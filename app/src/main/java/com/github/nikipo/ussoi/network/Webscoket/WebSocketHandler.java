@@ -1,5 +1,6 @@
 package com.github.nikipo.ussoi.network.Webscoket;
 
+import static com.github.nikipo.ussoi.storage.SaveInputFields.KEY_WS_MUX;
 import static com.github.nikipo.ussoi.storage.SaveInputFields.KEY_url;
 
 import android.content.Context;
@@ -16,7 +17,13 @@ import com.github.nikipo.ussoi.storage.SaveInputFields;
 
 import org.json.JSONObject;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
@@ -28,17 +35,53 @@ import okio.ByteString;
 public class WebSocketHandler {
     private static final String TAG = "WebSocketHandler";
 
+    // One client for every handler: shared dispatcher and connection pool
+    private static volatile OkHttpClient sharedClient;
+    private static final long DISPATCH_IDLE_KEEP_ALIVE_S = 30;
+
+    // Reconnect backoff: base * 2^(attempt-1) capped, half of it randomised
+    private static final long BACKOFF_BASE_MS = 500;
+    private static final long BACKOFF_MAX_MS = 60_000;
+
+    /** Thread on which MessageCallback methods are invoked. */
+    public enum DispatchMode {
+        /** Posted to the main Looper (default, UI-safe). */
+        MAIN_LOOPER,
+        /** Invoked directly on the socket reader thread; callbacks must not block. */
+        READER_THREAD,
+        /** Per-handler serial executor; callbacks may block without stalling the socket or UI. */
+        EXECUTOR
+    }
+
     // Use a Main Looper handler for UI thread callbacks
     private final Handler mainHandler = new Handler(Looper.getMainLooper());
     private final OkHttpClient client;
+    private final Context context;
+    // false for the mux link itself
+    private final boolean allowMux;
+    private MuxConnection.Channel muxChannel;
+    private final String name;
     private final MessageCallback callback;
     private final Logging logging;
 
+    private volatile DispatchMode dispatchMode = DispatchMode.MAIN_LOOPER;
+    private ThreadPoolExecutor dispatchExecutor;
+
+    // Outbound priority queue in front of OkHttp (direct mode only)
+    private final SendScheduler scheduler;
+    private volatile SendScheduler.SendClass binarySendClass = SendScheduler.SendClass.TUNNEL;
+    private volatile SendScheduler.DropListener dropListener;
+
     // Volatile state
-    private WebSocket webSocket;
+    private volatile WebSocket webSocket;
+    // bumped by every connect(); a listener only acts while its own generation is current
+    private final AtomicInteger connectGeneration = new AtomicInteger();
     private boolean isManualClose = false;
     private volatile boolean isConnected = false;
     private long reconnectAttempts = 0;
+    private final Runnable reconnectTask = this::connect;
+    private final NetworkWatcher.Listener networkListener =
+            switched -> mainHandler.post(() -> onNetworkChanged(switched));
 
     // Dependencies
     private SharedPreferences prefs;
@@ -53,19 +96,112 @@ public class WebSocketHandler {
         void onError(String error);
     }
 
-    public WebSocketHandler(Context context, MessageCallback callback) {
+    /**
+     * @param name short, stable socket name ("control", "stream_h264", "usb-telem1", ...);
+     *             names the send / dispatch threads and labels the send metrics
+     */
+    public WebSocketHandler(Context context, String name, MessageCallback callback) {
+        this(context, name, callback, true);
+    }
+
+    WebSocketHandler(Context context, String name, MessageCallback callback, boolean allowMux) {
         // Initialize SharedPrefs once here to avoid holding Context unnecessarily
-        SaveInputFields saveInputFields = SaveInputFields.getInstance(context.getApplicationContext());
+        this.context = context.getApplicationContext();
+        SaveInputFields saveInputFields = SaveInputFields.getInstance(this.context);
         this.prefs = saveInputFields.get_shared_pref();
+        this.name = name;
         this.callback = callback;
-
-        // Setup OkHttp with timeouts
-        this.client = new OkHttpClient.Builder()
-                .readTimeout(0, TimeUnit.MILLISECONDS) // WebSockets should generally have 0 read timeout (keep alive)
-                .pingInterval(0, TimeUnit.SECONDS)    // DISABLED
-                .build();
+        this.allowMux = allowMux;
+        this.client = sharedClient();
 
         this.logging = Logging.getIfInitialized();
+
+        this.scheduler = new SendScheduler(new SendScheduler.Sink() {
+            @Override
+            public boolean sendText(String text) {
+                WebSocket ws = webSocket;
+                return ws != null && ws.send(text);
+            }
+
+            @Override
+            public boolean sendBytes(ByteString bytes) {
+                WebSocket ws = webSocket;
+                return ws != null && ws.send(bytes);
+            }
+
+            @Override
+            public long queueSize() {
+                WebSocket ws = webSocket;
+                return ws == null ? 0 : ws.queueSize();
+            }
+        }, name);
+    }
+
+    /** Must be called before setupConnection(). */
+    public void setDispatchMode(DispatchMode mode) {
+        this.dispatchMode = mode;
+    }
+
+    /** Runs r on the thread selected by the dispatch mode, preserving order. */
+    void dispatch(Runnable r) {
+        switch (dispatchMode) {
+            case READER_THREAD:
+                r.run();
+                break;
+            case EXECUTOR:
+                dispatchExecutor().execute(r);
+                break;
+            case MAIN_LOOPER:
+            default:
+                mainHandler.post(r);
+                break;
+        }
+    }
+
+    private synchronized Executor dispatchExecutor() {
+        if (dispatchExecutor == null) {
+            String threadName = "WS-Dispatch-" + name;
+            // single worker keeps messages ordered; it exits when idle
+            dispatchExecutor = new ThreadPoolExecutor(0, 1,
+                    DISPATCH_IDLE_KEEP_ALIVE_S, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(),
+                    r -> new Thread(r, threadName));
+        }
+        return dispatchExecutor;
+    }
+
+    /** Priority class used by sendBytes(); TUNNEL unless changed (e.g. VIDEO for streams). */
+    public void setBinarySendClass(SendScheduler.SendClass sendClass) {
+        this.binarySendClass = sendClass;
+    }
+
+    /** Notified when a queued binary message is discarded as stale or over budget. */
+    public void setDropListener(SendScheduler.DropListener listener) {
+        this.dropListener = listener;
+    }
+
+    /** Per-class send queue metrics (the mux link's when multiplexed). */
+    public JSONObject getSendStats() {
+        MuxConnection.Channel channel = muxChannel;
+        if (channel != null) {
+            return channel.getSendStats();
+        }
+        return scheduler.getStats();
+    }
+
+    private static OkHttpClient sharedClient() {
+        if (sharedClient == null) {
+            synchronized (WebSocketHandler.class) {
+                if (sharedClient == null) {
+                    // Setup OkHttp with timeouts
+                    sharedClient = new OkHttpClient.Builder()
+                            .readTimeout(0, TimeUnit.MILLISECONDS) // WebSockets should generally have 0 read timeout (keep alive)
+                            .pingInterval(0, TimeUnit.SECONDS)    // DISABLED
+                            .build();
+                }
+            }
+        }
+        return sharedClient;
     }
 
     public void setupConnection(String urlPath, String sessionKey) {
@@ -74,56 +210,84 @@ public class WebSocketHandler {
         this.currentSessionKey = sessionKey;
         this.isManualClose = false;
 
+        if (allowMux && prefs.getBoolean(KEY_WS_MUX, false)) {
+            if (muxChannel != null) {
+                muxChannel.close();
+            }
+            muxChannel = MuxConnection.getInstance(context).openChannel(urlPath, sessionKey, callback, this::dispatch);
+            return;
+        }
+
+        NetworkWatcher.getInstance(context).addListener(networkListener);
         connect();
     }
     public long getPendingBytes() {
+        MuxConnection.Channel channel = muxChannel;
+        if (channel != null) {
+            return channel.getPendingBytes();
+        }
         if (webSocket == null) {
-            return 0;
+            return scheduler.getQueuedBytes();
         }
-        return webSocket.queueSize();
+        return scheduler.getQueuedBytes() + webSocket.queueSize();
     }
     private void connect() {
-        if (webSocket != null) {
-            // Cancel existing connection attempts if any
-            webSocket.cancel();
+        final int generation = connectGeneration.incrementAndGet();
+        WebSocket previous = webSocket;
+        if (previous != null) {
+            // Cancel existing connection attempts if any; its callbacks are now stale
+            webSocket = null;
+            previous.cancel();
         }
 
         String baseUrl = prefs.getString(KEY_url, "10.0.0.1");
         String wsUrl = normalizeUrl(baseUrl) + currentUrlPath.trim();
 
         Log.d(TAG, "Connecting to: " + wsUrl);
+        scheduler.start();
 
         Request request = new Request.Builder()
                 .url(wsUrl)
                 .addHeader("Authorization", "Bearer " + currentSessionKey)
                 .build();
 
+        // Callbacks from a socket that was already replaced (cancelled by a newer
+        // connect()) are ignored, so they cannot trigger a second reconnect. The
+        // check is by generation, not by socket: OkHttp may fail a call (e.g. DNS
+        // while offline) before newWebSocket() has returned and been stored.
         webSocket = client.newWebSocket(request, new WebSocketListener() {
+            private boolean stale() {
+                return generation != connectGeneration.get();
+            }
+
             @Override
             public void onOpen(@NonNull WebSocket webSocket, @NonNull Response response) {
+                if (stale()) return;
                 isConnected = true;
                 reconnectAttempts = 0; // Reset counter on success
                 Log.d(TAG, "WebSocket Opened");
 
-                // Switch to Main Thread for callback
-                mainHandler.post(callback::onOpen);
+                dispatch(callback::onOpen);
             }
 
             @Override
             public void onMessage(@NonNull WebSocket webSocket, @NonNull String text) {
-                // Switch to Main Thread for callback
-                mainHandler.post(() -> callback.onPayloadReceivedText(text));
+                if (stale()) return;
+                dispatch(() -> callback.onPayloadReceivedText(text));
             }
 
             @Override
             public void onMessage(@NonNull WebSocket webSocket, @NonNull ByteString bytes) {
+                if (stale()) return;
                 byte[] byteArray = bytes.toByteArray();
-                mainHandler.post(() -> callback.onPayloadReceivedByte(byteArray));
+                dispatch(() -> callback.onPayloadReceivedByte(byteArray));
             }
 
             @Override
             public void onFailure(@NonNull WebSocket webSocket, @NonNull Throwable t, @Nullable Response response) {
+                if (stale()) return;
                 isConnected = false;
+                scheduler.clear();
                 Log.e(TAG, "WebSocket Failure: " + t.getMessage());
 
                 if (logging != null) {
@@ -131,7 +295,7 @@ public class WebSocketHandler {
                 }
 
                 // Notify UI of error
-                mainHandler.post(() -> callback.onError(t.getMessage()));
+                dispatch(() -> callback.onError(t.getMessage()));
 
                 // Reconnect logic
                 if (!isManualClose) {
@@ -141,34 +305,57 @@ public class WebSocketHandler {
 
             @Override
             public void onClosed(@NonNull WebSocket webSocket, int code, @NonNull String reason) {
+                if (stale()) return;
                 isConnected = false;
+                scheduler.clear();
                 Log.d(TAG, "WebSocket closed: " + reason);
                 if (logging != null) {
                     logging.log("WS Closed: " + reason);
                 }
-                mainHandler.post(callback::onClosed);
+                dispatch(callback::onClosed);
             }
         });
     }
 
     private void initiateReconnect() {
         reconnectAttempts++;
-        long delay;
+        long delay = backoffDelayMs(reconnectAttempts);
 
-        if (reconnectAttempts <= 10) {
-            delay = 1000L;
+        Log.d(TAG, "Reconnecting attempt " + reconnectAttempts + " in " + delay + "ms");
+        if (logging != null) {
+            logging.log(TAG + "WS Reconnect: " +"Reconnecting attempt " + reconnectAttempts + " in " + delay + "ms");
         }
-        else if (reconnectAttempts <= 60){
-            long scaledAttempts = reconnectAttempts - 10;
-            delay = 2000L + (1000L * scaledAttempts);
+        mainHandler.removeCallbacks(reconnectTask);
+        mainHandler.postDelayed(reconnectTask, delay);
+    }
+
+    /** Exponential backoff with "equal jitter": [ceiling/2, ceiling). */
+    static long backoffDelayMs(long attempt) {
+        int shift = (int) Math.min(Math.max(attempt - 1, 0), 16);
+        long ceiling = Math.min(BACKOFF_MAX_MS, BACKOFF_BASE_MS << shift);
+        long half = ceiling / 2;
+        return half + ThreadLocalRandom.current().nextLong(half + 1);
+    }
+
+    /** Main looper. A new default network makes a waiting or dead socket reconnect now. */
+    private void onNetworkChanged(boolean switched) {
+        if (isManualClose || currentUrlPath == null || muxChannel != null) return;
+        // Same network came back while we are still up: nothing to do
+        if (!switched && isConnected) return;
+
+        Log.d(TAG, "Network changed, reconnecting now");
+        if (logging != null) {
+            logging.log(TAG + "WS Reconnect: network changed");
         }
-        else {
-            delay = 60000L;
+        mainHandler.removeCallbacks(reconnectTask);
+        reconnectAttempts = 0;
+        if (isConnected) {
+            // the old socket's own failure callback is suppressed once replaced
+            isConnected = false;
+            scheduler.clear();
+            dispatch(() -> callback.onError("Network changed"));
         }
-
-        Log.d(TAG, "Reconnecting attempt " + reconnectAttempts + " in " + delay + "ms");
-        logging.log(TAG + "WS Reconnect: " +"Reconnecting attempt " + reconnectAttempts + " in " + delay + "ms");
-        mainHandler.postDelayed(this::connect, delay);
+        connect();
     }
 
     private static String normalizeUrl(String inputUrl) {
@@ -195,9 +382,18 @@ public class WebSocketHandler {
     }
 
     public void connSendPayload(JSONObject payload) {
+        connSendPayload(payload, SendScheduler.SendClass.CONTROL);
+    }
+
+    public void connSendPayload(JSONObject payload, SendScheduler.SendClass sendClass) {
+        MuxConnection.Channel channel = muxChannel;
+        if (channel != null) {
+            channel.sendText(payload.toString(), sendClass);
+            return;
+        }
         if (webSocket != null && isConnected) {
             try {
-                webSocket.send(payload.toString());
+                scheduler.enqueueText(payload.toString(), sendClass);
             } catch (Exception e) {
                 Log.e(TAG, "Failed to send JSON: " + e.getMessage());
             }
@@ -207,9 +403,14 @@ public class WebSocketHandler {
     }
 
     public void sendBytes(byte[] serialBytesReceived) {
+        MuxConnection.Channel channel = muxChannel;
+        if (channel != null) {
+            channel.sendBytes(serialBytesReceived, binarySendClass, dropListener);
+            return;
+        }
         if (webSocket != null && isConnected) {
             try {
-                webSocket.send(ByteString.of(serialBytesReceived));
+                scheduler.enqueueBytes(ByteString.of(serialBytesReceived), binarySendClass, dropListener);
             } catch (Exception e) {
                 Log.e(TAG, "Failed to send BYTES: " + e.getMessage());
             }
@@ -218,14 +419,76 @@ public class WebSocketHandler {
         }
     }
 
+    /** Sends the remaining bytes of buffer; its position is left unchanged. */
+    public void sendBytes(ByteBuffer buffer) {
+        sendBytes(buffer, binarySendClass, dropListener);
+    }
+
+    /** Same as {@link #sendBytes(ByteBuffer)} with an explicit class and no drop listener. */
+    public void sendBytes(ByteBuffer buffer, SendScheduler.SendClass sendClass) {
+        sendBytes(buffer, sendClass, null, null);
+    }
+
+    /** Same as {@link #sendBytes(ByteBuffer)}; stamp patches the message as it goes to the socket. */
+    public void sendBytes(ByteBuffer buffer, SendScheduler.WriteStamp stamp) {
+        sendBytes(buffer, binarySendClass, dropListener, stamp);
+    }
+
+    private void sendBytes(ByteBuffer buffer, SendScheduler.SendClass sendClass,
+                           SendScheduler.DropListener listener) {
+        sendBytes(buffer, sendClass, listener, null);
+    }
+
+    private void sendBytes(ByteBuffer buffer, SendScheduler.SendClass sendClass,
+                           SendScheduler.DropListener listener, SendScheduler.WriteStamp stamp) {
+        MuxConnection.Channel channel = muxChannel;
+        if (channel != null) {
+            channel.sendBytes(buffer, sendClass, listener, stamp);
+            return;
+        }
+        if (webSocket != null && isConnected) {
+            try {
+                // The one copy on this path, and it has to stay: the scheduler and OkHttp keep the
+                // message after this returns (OkHttp gives no write-completion callback), while the
+                // caller recycles the buffer — H264 releases the pooled frame right afterwards.
+                scheduler.enqueueBytes(ByteString.of(buffer.duplicate()), sendClass, listener, stamp, 0);
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to send BYTES: " + e.getMessage());
+            }
+        } else {
+            Log.w(TAG, "Cannot send Bytes: WebSocket is not connected.");
+        }
+    }
+
+    /** Mux link only: queues an already framed message; reliable ones are never evicted by the scheduler. */
+    void sendRaw(ByteString frame, SendScheduler.SendClass sendClass, SendScheduler.DropListener listener,
+                 SendScheduler.WriteStamp stamp, int stampOffset, boolean reliable) {
+        if (webSocket != null && isConnected) {
+            scheduler.enqueueBytes(frame, sendClass, listener, stamp, stampOffset, reliable);
+        }
+    }
+
     public void close() {
         isManualClose = true;
+        MuxConnection.Channel channel = muxChannel;
+        if (channel != null) {
+            muxChannel = null;
+            channel.close();
+            return;
+        }
+        NetworkWatcher.getInstance(context).removeListener(networkListener);
+        mainHandler.removeCallbacks(reconnectTask);
+        scheduler.stop();
         if (webSocket != null) {
             webSocket.close(1000, "Closing manually");
         }
     }
 
     public boolean isConnected() {
+        MuxConnection.Channel channel = muxChannel;
+        if (channel != null) {
+            return channel.isOpen();
+        }
         return isConnected;
     }
 }
\ No newline at end of file
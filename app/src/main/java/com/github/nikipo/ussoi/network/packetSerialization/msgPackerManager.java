@@ -1,4 +1,448 @@
 package com.github.nikipo.ussoi.network.packetSerialization;
 
+import static com.github.nikipo.ussoi.ui.UssoiStrings.*;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * *****************************************************************************
+ *
+ * @author nikipo
+ * *****************************************************************************
+ * @file msgPackerManager
+ * @attention Copyright (c) 2026
+ * All rights reserved.
+ * <p>
+ * This software is licensed under the terms described in the LICENSE file
+ * located in the root directory of this project.
+ * If no LICENSE file is present, this software is provided "AS IS",
+ * without warranty of any kind, express or implied.
+ * <p>
+ * *****************************************************************************
+ */
+
+/**
+ * Binary MessagePack codec for the control protocol (JSON stays the fallback).
+ *
+ * A control message is a MessagePack map. Envelope fields use small integer
+ * keys and registered values use integer ids instead of strings:
+ *
+ *   key 0 type    → 0 request, 1 response, 2 error, 3 telem (string if unknown)
+ *   key 1 cmd     → id from {@link #COMMANDS} (index + 1), string if unknown
+ *   key 2 cmdId   key 3 status   key 4 data   key 5 error   key 6 param
+ *
+ * Any other key is written as a string; nested objects keep string keys.
+ * decode() maps everything back to the same JSONObject the JSON path produces,
+ * so Router/StreamRoute are unchanged.
+ *
+ * encode() writes into one growable buffer that is reused between calls;
+ * the returned view is only valid until the next encode(). Not thread-safe —
+ * one instance per connection, callers serialise access.
+ */
 public class msgPackerManager {
+
+    public static final String CODEC_JSON = "json";
+    public static final String CODEC_MSGPACK = "msgpack";
+
+    // Envelope keys, index = wire id. Append only.
+    private static final String[] ENVELOPE_KEYS = {
+            TYPE, CMD, CMD_ID, STATUS, DATA, ERROR_MSG, PARAM
+    };
+    private static final int KEY_TYPE = 0;
+    private static final int KEY_CMD = 1;
+
+    // Message types, index = wire id. Append only.
+    private static final String[] TYPES = { REQUEST, RESPONSE, ERROR, TELEMETRY };
+
+    // Registered commands, wire id = index + 1 (0 is reserved). Append only.
+    public static final String[] COMMANDS = {
+            START_STREAM, STOP_STREAM, START_RECORDING, STOP_RECORDING,
+            START_TUNNEL, STOP_TUNNEL, SWITCH, SET_PARAMS,
+            SET_STREAM_RES, SET_RECORD_RES, PLAY, PAUSE,
+            ROTATE, MUTE, FLIP, WEBRTC_SDP,
+            WEBRTC_ICE, GET_TUNNELS, GET_RES, GET_PARAMS,
+            GET_STREAM_STATS, TELEMETRY, DEVICE_IDENTITY, DEVICE_INFO,
+            STATS, ABR, SET_CODEC, GET_TELEMETRY_HISTORY,
+            GET_METRICS, TIME_SYNC, CANCEL, BATCH,
+            SET_LOG_LEVEL, SET_TUNNEL_POLICY
+    };
+
+    private static final Map<String, Integer> ENVELOPE_IDS = index(ENVELOPE_KEYS, 0);
+    private static final Map<String, Integer> TYPE_IDS = index(TYPES, 0);
+    private static final Map<String, Integer> COMMAND_IDS = index(COMMANDS, 1);
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private byte[] out = new byte[INITIAL_CAPACITY];
+    private int pos;
+
+    // decode cursor
+    private byte[] in;
+    private int rd;
+    private int end;
+
+    // ── Encode ──
+
+    /** Encodes msg; the returned buffer is reused by the next call. */
+    public ByteBuffer encode(JSONObject msg) throws IOException {
+        pos = 0;
+        writeMessage(msg);
+        return ByteBuffer.wrap(out, 0, pos).asReadOnlyBuffer();
+    }
+
+    private void writeMessage(JSONObject msg) throws IOException {
+        writeMapHeader(msg.length());
+        Iterator<String> keys = msg.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            Object value = msg.opt(key);
+            Integer keyId = ENVELOPE_IDS.get(key);
+            if (keyId == null) {
+                writeString(key);
+                writeValue(value);
+                continue;
+            }
+            writeInt(keyId);
+            if (keyId == KEY_TYPE) {
+                writeRegistered(value, TYPE_IDS);
+            } else if (keyId == KEY_CMD) {
+                writeRegistered(value, COMMAND_IDS);
+            } else {
+                writeValue(value);
+            }
+        }
+    }
+
+    private void writeRegistered(Object value, Map<String, Integer> ids) throws IOException {
+        Integer id = value instanceof String ? ids.get(value) : null;
+        if (id != null) {
+            writeInt(id);
+        } else {
+            writeValue(value);
+        }
+    }
+
+    private void writeValue(Object value) throws IOException {
+        if (value == null || value == JSONObject.NULL) {
+            ensure(1);
+            out[pos++] = (byte) 0xc0;
+        } else if (value instanceof String) {
+            writeString((String) value);
+        } else if (value instanceof Boolean) {
+            ensure(1);
+            out[pos++] = (byte) ((Boolean) value ? 0xc3 : 0xc2);
+        } else if (value instanceof Integer || value instanceof Long
+                || value instanceof Short || value instanceof Byte) {
+            writeInt(((Number) value).longValue());
+        } else if (value instanceof Float) {
+            ensure(5);
+            out[pos++] = (byte) 0xca;
+            putInt(Float.floatToIntBits((Float) value));
+        } else if (value instanceof Number) {
+            ensure(9);
+            out[pos++] = (byte) 0xcb;
+            putLong(Double.doubleToLongBits(((Number) value).doubleValue()));
+        } else if (value instanceof JSONObject) {
+            JSONObject obj = (JSONObject) value;
+            writeMapHeader(obj.length());
+            Iterator<String> keys = obj.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                writeString(key);
+                writeValue(obj.opt(key));
+            }
+        } else if (value instanceof JSONArray) {
+            JSONArray arr = (JSONArray) value;
+            writeArrayHeader(arr.length());
+            for (int i = 0; i < arr.length(); i++) {
+                writeValue(arr.opt(i));
+            }
+        } else {
+            writeString(value.toString());
+        }
+    }
+
+    private void writeInt(long v) {
+        ensure(9);
+        if (v >= 0 && v <= 0x7f) {
+            out[pos++] = (byte) v;
+        } else if (v < 0 && v >= -32) {
+            out[pos++] = (byte) v;
+        } else if (v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE) {
+            out[pos++] = (byte) 0xd2;
+            putInt((int) v);
+        } else {
+            out[pos++] = (byte) 0xd3;
+            putLong(v);
+        }
+    }
+
+    private void writeString(String s) {
+        // worst case 3 bytes per UTF-16 unit, encode straight into the buffer
+        ensure(5 + s.length() * 3);
+        int headerAt = pos;
+        pos += 5;
+        int start = pos;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                out[pos++] = (byte) (0xc0 | (c >> 6));
+                out[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                out[pos++] = (byte) (0xf0 | (cp >> 18));
+                out[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                out[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                out[pos++] = (byte) (0x80 | (cp & 0x3f));
+            } else {
+                out[pos++] = (byte) (0xe0 | (c >> 12));
+                out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                out[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        int len = pos - start;
+
+        // str32 header was reserved; shrink to the smallest form
+        int headerLen = len < 32 ? 1 : len < 256 ? 2 : len < 65536 ? 3 : 5;
+        if (headerLen != 5) {
+            System.arraycopy(out, start, out, headerAt + headerLen, len);
+        }
+        int h = headerAt;
+        if (headerLen == 1) {
+            out[h] = (byte) (0xa0 | len);
+        } else if (headerLen == 2) {
+            out[h] = (byte) 0xd9;
+            out[h + 1] = (byte) len;
+        } else if (headerLen == 3) {
+            out[h] = (byte) 0xda;
+            out[h + 1] = (byte) (len >> 8);
+            out[h + 2] = (byte) len;
+        } else {
+            out[h] = (byte) 0xdb;
+            out[h + 1] = (byte) (len >> 24);
+            out[h + 2] = (byte) (len >> 16);
+            out[h + 3] = (byte) (len >> 8);
+            out[h + 4] = (byte) len;
+        }
+        pos = headerAt + headerLen + len;
+    }
+
+    private void writeMapHeader(int n) {
+        ensure(5);
+        if (n < 16) {
+            out[pos++] = (byte) (0x80 | n);
+        } else if (n < 65536) {
+            out[pos++] = (byte) 0xde;
+            out[pos++] = (byte) (n >> 8);
+            out[pos++] = (byte) n;
+        } else {
+            out[pos++] = (byte) 0xdf;
+            putInt(n);
+        }
+    }
+
+    private void writeArrayHeader(int n) {
+        ensure(5);
+        if (n < 16) {
+            out[pos++] = (byte) (0x90 | n);
+        } else if (n < 65536) {
+            out[pos++] = (byte) 0xdc;
+            out[pos++] = (byte) (n >> 8);
+            out[pos++] = (byte) n;
+        } else {
+            out[pos++] = (byte) 0xdd;
+            putInt(n);
+        }
+    }
+
+    private void putInt(int v) {
+        out[pos++] = (byte) (v >> 24);
+        out[pos++] = (byte) (v >> 16);
+        out[pos++] = (byte) (v >> 8);
+        out[pos++] = (byte) v;
+    }
+
+    private void putLong(long v) {
+        putInt((int) (v >> 32));
+        putInt((int) v);
+    }
+
+    private void ensure(int extra) {
+        if (pos + extra > out.length) {
+            byte[] bigger = new byte[Math.max(out.length * 2, pos + extra)];
+            System.arraycopy(out, 0, bigger, 0, pos);
+            out = bigger;
+        }
+    }
+
+    // ── Decode ──
+
+    public JSONObject decode(byte[] data, int offset, int length) throws IOException {
+        in = data;
+        rd = offset;
+        end = offset + length;
+        try {
+            int n = readMapHeader();
+            JSONObject msg = new JSONObject();
+            for (int i = 0; i < n; i++) {
+                int b = peek();
+                if (isInt(b)) {
+                    int keyId = (int) readLong();
+                    if (keyId < 0 || keyId >= ENVELOPE_KEYS.length) {
+                        throw new IOException("Unknown envelope key " + keyId);
+                    }
+                    Object value = readValue();
+                    if (keyId == KEY_TYPE) {
+                        value = lookup(value, TYPES, 0);
+                    } else if (keyId == KEY_CMD) {
+                        value = lookup(value, COMMANDS, 1);
+                    }
+                    msg.put(ENVELOPE_KEYS[keyId], value);
+                } else {
+                    msg.put(readString(), readValue());
+                }
+            }
+            return msg;
+        } catch (JSONException | IndexOutOfBoundsException e) {
+            throw new IOException("Malformed msgpack control message", e);
+        } finally {
+            in = null;
+        }
+    }
+
+    private static Object lookup(Object value, String[] table, int base) throws IOException {
+        if (!(value instanceof Long)) return value;
+        int idx = (int) ((Long) value - base);
+        if (idx < 0 || idx >= table.length) {
+            throw new IOException("Unregistered id " + value);
+        }
+        return table[idx];
+    }
+
+    private Object readValue() throws IOException, JSONException {
+        int b = peek();
+        if (isInt(b)) return readLong();
+        if ((b & 0xe0) == 0xa0 || b == 0xd9 || b == 0xda || b == 0xdb) return readString();
+        if ((b & 0xf0) == 0x80 || b == 0xde || b == 0xdf) {
+            int n = readMapHeader();
+            JSONObject obj = new JSONObject();
+            for (int i = 0; i < n; i++) {
+                obj.put(readString(), readValue());
+            }
+            return obj;
+        }
+        if ((b & 0xf0) == 0x90 || b == 0xdc || b == 0xdd) {
+            int n = readArrayHeader();
+            JSONArray arr = new JSONArray();
+            for (int i = 0; i < n; i++) {
+                arr.put(readValue());
+            }
+            return arr;
+        }
+        rd++;
+        switch (b) {
+            case 0xc0: return JSONObject.NULL;
+            case 0xc2: return Boolean.FALSE;
+            case 0xc3: return Boolean.TRUE;
+            case 0xca: return (double) Float.intBitsToFloat(getInt());
+            case 0xcb: return Double.longBitsToDouble(getLong());
+            default:
+                throw new IOException("Unsupported msgpack type 0x" + Integer.toHexString(b));
+        }
+    }
+
+    private static boolean isInt(int b) {
+        return b <= 0x7f || b >= 0xe0 || (b >= 0xcc && b <= 0xd3);
+    }
+
+    private long readLong() throws IOException {
+        int b = in[rd++] & 0xff;
+        if (b <= 0x7f) return b;
+        if (b >= 0xe0) return (byte) b;
+        switch (b) {
+            case 0xcc: return in[rd++] & 0xff;
+            case 0xcd: return getShort() & 0xffff;
+            case 0xce: return getInt() & 0xffffffffL;
+            case 0xcf: return getLong();
+            case 0xd0: return in[rd++];
+            case 0xd1: return (short) getShort();
+            case 0xd2: return getInt();
+            case 0xd3: return getLong();
+            default: throw new IOException("Not an int: 0x" + Integer.toHexString(b));
+        }
+    }
+
+    private String readString() throws IOException {
+        int b = in[rd++] & 0xff;
+        int len;
+        if ((b & 0xe0) == 0xa0) len = b & 0x1f;
+        else if (b == 0xd9) len = in[rd++] & 0xff;
+        else if (b == 0xda) len = getShort() & 0xffff;
+        else if (b == 0xdb) len = getInt();
+        else throw new IOException("Not a string: 0x" + Integer.toHexString(b));
+        checkAvailable(len);
+        String s = new String(in, rd, len, StandardCharsets.UTF_8);
+        rd += len;
+        return s;
+    }
+
+    private int readMapHeader() throws IOException {
+        int b = in[rd++] & 0xff;
+        if ((b & 0xf0) == 0x80) return b & 0x0f;
+        if (b == 0xde) return getShort() & 0xffff;
+        if (b == 0xdf) return getInt();
+        throw new IOException("Not a map: 0x" + Integer.toHexString(b));
+    }
+
+    private int readArrayHeader() throws IOException {
+        int b = in[rd++] & 0xff;
+        if ((b & 0xf0) == 0x90) return b & 0x0f;
+        if (b == 0xdc) return getShort() & 0xffff;
+        if (b == 0xdd) return getInt();
+        throw new IOException("Not an array: 0x" + Integer.toHexString(b));
+    }
+
+    private int peek() throws IOException {
+        checkAvailable(1);
+        return in[rd] & 0xff;
+    }
+
+    private void checkAvailable(int n) throws IOException {
+        if (n < 0 || rd + n > end) throw new IOException("Truncated msgpack message");
+    }
+
+    private int getShort() throws IOException {
+        checkAvailable(2);
+        return ((in[rd++] & 0xff) << 8) | (in[rd++] & 0xff);
+    }
+
+    private int getInt() throws IOException {
+        checkAvailable(4);
+        return ((in[rd++] & 0xff) << 24) | ((in[rd++] & 0xff) << 16)
+                | ((in[rd++] & 0xff) << 8) | (in[rd++] & 0xff);
+    }
+
+    private long getLong() throws IOException {
+        return ((long) getInt() << 32) | (getInt() & 0xffffffffL);
+    }
+
+    private static Map<String, Integer> index(String[] table, int base) {
+        Map<String, Integer> map = new HashMap<>();
+        for (int i = 0; i < table.length; i++) {
+            map.put(table[i], i + base);
+        }
+        return map;
+    }
 }
@@ -1,6 +1,7 @@
 package com.github.nikipo.ussoi.service;
 
 import static com.github.nikipo.ussoi.storage.SaveInputFields.KEY_Device_Id;
+import static com.github.nikipo.ussoi.storage.SaveInputFields.KEY_Metrics_Port;
 import static com.github.nikipo.ussoi.storage.SaveInputFields.KEY_RoomID;
 import static com.github.nikipo.ussoi.storage.SaveInputFields.KEY_RoomPWD;
 import static com.github.nikipo.ussoi.storage.SaveInputFields.KEY_Session_KEY;
@@ -27,6 +28,7 @@ import androidx.media3.common.util.UnstableApi;
 import com.github.nikipo.ussoi.storage.logs.Logging;
 import com.github.nikipo.ussoi.storage.SaveInputFields;
 import com.github.nikipo.ussoi.service.control.ConnectionManager;
+import com.github.nikipo.ussoi.system.metrics.MetricsHttpServer;
 import com.github.nikipo.ussoi.system.notification.ServiceNotificationHelper;
 
 import org.jetbrains.annotations.Nullable;
@@ -41,6 +43,7 @@ public class ServiceManager extends Service implements LifecycleOwner {
     private Logging logger;
     public volatile static boolean isRunning = false;
     private ConnectionManager connectionManager;
+    private MetricsHttpServer metricsServer;
 
     @Override
     public void onCreate() {
@@ -80,6 +83,13 @@ public class ServiceManager extends Service implements LifecycleOwner {
         // Reset status flags in preferences
         prefs = saveInputFields.get_shared_pref();
 
+        // Optional local Prometheus endpoint
+        int metricsPort = prefs.getInt(KEY_Metrics_Port, 0);
+        if (metricsPort > 0 && metricsServer == null) {
+            metricsServer = new MetricsHttpServer(metricsPort);
+            metricsServer.start();
+        }
+
         // Login
         AuthLogin authLogin = new AuthLogin();
         String roomId = prefs.getString(KEY_RoomID, "blockMe");
@@ -139,6 +149,11 @@ public class ServiceManager extends Service implements LifecycleOwner {
             connectionManager = null;
         }
 
+        if (metricsServer != null) {
+            metricsServer.stop();
+            metricsServer = null;
+        }
+
         if (logger != null){
             logger.closeLogging();
         }
@@ -3,8 +3,9 @@ package com.github.nikipo.ussoi.service.control;
 import static com.github.nikipo.ussoi.storage.SaveInputFields.KEY_Session_KEY;
 import static com.github.nikipo.ussoi.ui.UssoiStrings.CMD;
 import static com.github.nikipo.ussoi.ui.UssoiStrings.HEX;
+import static com.github.nikipo.ussoi.ui.UssoiStrings.PROC;
+import static com.github.nikipo.ussoi.ui.UssoiStrings.STALE;
 import static com.github.nikipo.ussoi.ui.UssoiStrings.TELEMETRY;
-import static com.github.nikipo.ussoi.ui.UssoiStrings.TELEMETRY_SLEEP_INTERVAL;
 import static com.github.nikipo.ussoi.ui.UssoiStrings.TYPE;
 
 import android.content.Context;
@@ -16,25 +17,44 @@ import android.util.Log;
 import com.github.nikipo.ussoi.service.control.MessageRouter.Router;
 import com.github.nikipo.ussoi.storage.logs.Logging;
 import com.github.nikipo.ussoi.storage.SaveInputFields;
+import com.github.nikipo.ussoi.network.Webscoket.SendScheduler;
 import com.github.nikipo.ussoi.network.Webscoket.WebSocketHandler;
+import com.github.nikipo.ussoi.network.packetSerialization.msgPackerManager;
+import com.github.nikipo.ussoi.system.clock.ClockSync;
 import com.github.nikipo.ussoi.system.telemetry.SysTelemetry;
-import com.github.nikipo.ussoi.ui.UssoiStrings;
+import com.github.nikipo.ussoi.system.telemetry.ProcessStatsProvider;
+import com.github.nikipo.ussoi.system.telemetry.TelemetryPacketBuilder;
+import com.github.nikipo.ussoi.system.telemetry.TelemetryScheduler;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 public class ConnectionManager {
     private static final String TAG = "ControlConnectionManager";
     private final Context context;
     private final String wsUrl;
     private static volatile ConnectionManager instance;
-    private ImpClientInfoSender impClientInfoSender;
+    private volatile ImpClientInfoSender impClientInfoSender;
+    // Telemetry_Rate received before the first connect, applied when the sender starts
+    private final Object telemetryRateLock = new Object();
+    private TelemetryScheduler.Config pendingTelemetryRate;
     private WebSocketHandler webSocketHandler;
     private SysTelemetry sysTelemetry;
     private SharedPreferences prefs;
     private SaveInputFields saveInputFields;
     private Logging logger;
     private Router router;
+    private ClockSync clockSync;
+
+    // Control codec, negotiated per connection via set_codec; JSON until then
+    private volatile boolean binaryControl = false;
+    private final msgPackerManager msgEncoder = new msgPackerManager();
+    private final msgPackerManager msgDecoder = new msgPackerManager();
+    // Telemetry as binary frames instead of hex-in-JSON, also per connection
+    private volatile boolean binaryTelemetry = false;
 
     private ConnectionManager(Context ctx, String url) {
         this.context = ctx.getApplicationContext();
@@ -65,59 +85,171 @@ public class ConnectionManager {
             sysTelemetry.startMonitoring();
         });
 
-        webSocketHandler = new WebSocketHandler(context,new WebSocketHandler.MessageCallback() {
+        clockSync = new ClockSync(new ClockSync.Link() {
+            @Override
+            public boolean isReady() {
+                return isConnected();
+            }
+
+            @Override
+            public void send(JSONObject request) {
+                ConnectionManager.this.send(request, SendScheduler.SendClass.CONTROL);
+            }
+        });
+
+        webSocketHandler = new WebSocketHandler(context, "control", new WebSocketHandler.MessageCallback() {
             @Override
             public void onOpen() {
-                logger.log(TAG + ": WS Connected");
-                if (impClientInfoSender == null) {
-                    impClientInfoSender = new ImpClientInfoSender(webSocketHandler, sysTelemetry, ConnectionManager.this,logger);
+                logger.i(TAG, "WS Connected");
+                binaryControl = false;
+                binaryTelemetry = false;
+                synchronized (telemetryRateLock) {
+                    if (impClientInfoSender == null) {
+                        ImpClientInfoSender infoSender =
+                                new ImpClientInfoSender(webSocketHandler, sysTelemetry, ConnectionManager.this, logger);
+                        if (pendingTelemetryRate != null) {
+                            infoSender.scheduler.apply(pendingTelemetryRate);
+                            pendingTelemetryRate = null;
+                        }
+                        impClientInfoSender = infoSender;
+                    }
                 }
                 impClientInfoSender.startSending();
+                clockSync.start();
             }
 
             @Override
             public void onPayloadReceivedText(String payload) {
                 try {
                     JSONObject json = new JSONObject(payload);
+                    if (logger.isLoggable(Logging.Level.DEBUG, TAG)) logger.d(TAG, "INCOMING :" + json);
                     router.route(json);
-                    logger.log(TAG+" INCOMING :"+ json);
                 } catch (Exception e) {
-                    logger.log(TAG + ": Bad JSON");
+                    logger.w(TAG, "Bad JSON");
                     Log.e(TAG, "Bad JSON", e);
                 }
             }
 
             @Override
-            public void onPayloadReceivedByte(byte[] payload) {}
+            public void onPayloadReceivedByte(byte[] payload) {
+                try {
+                    JSONObject json = msgDecoder.decode(payload, 0, payload.length);
+                    if (logger.isLoggable(Logging.Level.DEBUG, TAG)) logger.d(TAG, "INCOMING :" + json);
+                    router.route(json);
+                } catch (Exception e) {
+                    logger.w(TAG, "Bad msgpack");
+                    Log.e(TAG, "Bad msgpack", e);
+                }
+            }
 
             @Override
             public void onClosed() {
-                logger.log(TAG + ": WS Closed");
-                if (impClientInfoSender != null) {
-                    impClientInfoSender.close();
-                }
+                logger.i(TAG, "WS Closed");
+                // telemetry keeps sampling into the on-device history until close()
             }
 
             @Override
             public void onError(String error) {
-                logger.log(TAG + ": WS Error" + error);
+                logger.w(TAG, "WS Error " + error);
             }
         });
+        // decode and route off the UI thread; Router then runs commands on its per-subsystem lanes
+        webSocketHandler.setDispatchMode(WebSocketHandler.DispatchMode.EXECUTOR);
         webSocketHandler.setupConnection(wsUrl, prefs.getString(KEY_Session_KEY, ""));
     }
 
     public void send(JSONObject obj) {
+        send(obj, SendScheduler.SendClass.CONTROL);
+    }
+
+    public void send(JSONObject obj, SendScheduler.SendClass sendClass) {
         if (webSocketHandler != null) {
-            logger.log(TAG+" OUTGOING :"+ obj);
-            webSocketHandler.connSendPayload(obj);
+            // telemetry only at VERBOSE: it would drown everything else at DEBUG
+            Logging.Level level = sendClass == SendScheduler.SendClass.TELEMETRY
+                    ? Logging.Level.VERBOSE : Logging.Level.DEBUG;
+            if (logger.isLoggable(level, TAG)) logger.log(level, TAG, "OUTGOING :" + obj);
+            if (binaryControl) {
+                // encoder buffer is reused; sendBytes copies it before returning
+                synchronized (msgEncoder) {
+                    try {
+                        webSocketHandler.sendBytes(msgEncoder.encode(obj), sendClass);
+                        return;
+                    } catch (IOException e) {
+                        Log.e(TAG, "msgpack encode failed, sending JSON", e);
+                    }
+                }
+            }
+            webSocketHandler.connSendPayload(obj, sendClass);
         }
     }
 
+    /** time_sync response from the server, see {@link ClockSync}. */
+    public void onTimeSync(JSONObject json) {
+        ClockSync sync = clockSync;
+        if (sync != null) sync.onResponse(json);
+    }
+
+    /** Switches outgoing control messages to MessagePack (true) or JSON (false). */
+    public void setBinaryControl(boolean enabled) {
+        binaryControl = enabled;
+        logger.i(TAG, "control codec " + (enabled ? msgPackerManager.CODEC_MSGPACK : msgPackerManager.CODEC_JSON));
+    }
+
+    /** Switches telemetry to binary frames (true) or hex in JSON (false). */
+    public void setBinaryTelemetry(boolean enabled) {
+        binaryTelemetry = enabled;
+        logger.i(TAG, "telemetry format " + (enabled ? "binary" : "hex"));
+    }
+
+    /**
+     * Applies a parsed Telemetry_Rate (see {@link TelemetryScheduler#parse}).
+     * Before telemetry has started the config is kept (merged with any earlier
+     * one) and applied when the sender starts.
+     */
+    public void setTelemetryRate(TelemetryScheduler.Config config) {
+        ImpClientInfoSender infoSender;
+        synchronized (telemetryRateLock) {
+            infoSender = impClientInfoSender;
+            if (infoSender == null) {
+                pendingTelemetryRate = pendingTelemetryRate == null ? config : pendingTelemetryRate.mergedWith(config);
+                logger.i(TAG, "telemetry rate kept until telemetry starts");
+                return;
+            }
+        }
+        infoSender.scheduler.apply(config);
+        logger.i(TAG, "telemetry rate " + infoSender.scheduler.getConfig());
+    }
+
+    public JSONObject getTelemetryConfig() {
+        ImpClientInfoSender infoSender = impClientInfoSender;
+        return infoSender != null ? infoSender.scheduler.getConfig() : null;
+    }
+
+    /** Control socket bytes queued but not yet on the wire. */
+    public long getPendingBytes() {
+        WebSocketHandler handler = webSocketHandler;
+        return handler != null ? handler.getPendingBytes() : 0;
+    }
+
+    public boolean isConnected() {
+        WebSocketHandler handler = webSocketHandler;
+        return handler != null && handler.isConnected();
+    }
+
+    public SysTelemetry getSysTelemetry() {
+        return sysTelemetry;
+    }
+
     private char getTunnelAndStreamStatus() {
         return router.getTunnelAndStreamStatus();
     }
 
     public void close() {
+        if (clockSync != null) {
+            clockSync.stop();
+            clockSync = null;
+        }
+
         if (impClientInfoSender != null) {
             impClientInfoSender.close();
             impClientInfoSender = null;
@@ -136,12 +268,11 @@ public class ConnectionManager {
     }
 
     // issue if
-    private static class ImpClientInfoSender {
+    private static class ImpClientInfoSender implements TelemetryScheduler.Link {
         private final WebSocketHandler webSocketHandler;
         private final SysTelemetry telemetry;
         private final ConnectionManager sender;
-        private volatile boolean running = false;
-        private Thread worker;
+        private final TelemetryScheduler scheduler;
         private Logging logger;
 
         ImpClientInfoSender(WebSocketHandler handler, SysTelemetry provider, ConnectionManager connManager, Logging logger) {
@@ -149,48 +280,54 @@ public class ConnectionManager {
             this.telemetry = provider;
             this.sender = connManager;
             this.logger = logger;
+            this.scheduler = new TelemetryScheduler(provider, this);
         }
 
-        public synchronized void startSending() {
-            if (running) return;
-            running = true;
-
-            worker = new Thread(() -> {
-                while (running) {
-                    try {
-                        // Safe reference capturing
-                        WebSocketHandler handler = webSocketHandler;
-
-                        if (handler == null || !handler.isConnected()) {
-                            Thread.sleep(UssoiStrings.TELEMETRY_SLEEP_INTERVAL);
-                            continue;
-                        }
-
-                        // Build combined status object
-                        JSONObject obj = new JSONObject();
-                        obj.put(TYPE, TELEMETRY);
-                        obj.put(CMD, TELEMETRY);
-                        obj.put(HEX, telemetry.getPacket() + sender.getTunnelAndStreamStatus());
+        public void startSending() {
+            scheduler.start();
+        }
 
-                        sender.send(obj);
-                        Thread.sleep(TELEMETRY_SLEEP_INTERVAL);
+        public void close() {
+            scheduler.stop();
+        }
 
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    } catch (JSONException e) {
-                        logger.log(TAG + ": Client stats send failed" + e);
-                    }
-                }
-            }, "ClientInfoSender");
+        @Override
+        public boolean isReady() {
+            WebSocketHandler handler = webSocketHandler;
+            return handler != null && handler.isConnected();
+        }
 
-            worker.start();
+        @Override
+        public long getPendingBytes() {
+            return webSocketHandler.getPendingBytes();
         }
 
-        public synchronized void close() {
-            running = false;
-            if (worker != null) {
-                worker.interrupt();
-                worker = null;
+        @Override
+        public void send(int groups) {
+            boolean withProcess = (groups & TelemetryPacketBuilder.GROUP_PROCESS) != 0;
+            if (sender.binaryTelemetry) {
+                // reused buffer; sendBytes copies it before returning
+                ByteBuffer frame = telemetry.getFrame(
+                        Character.digit(sender.getTunnelAndStreamStatus(), 16), withProcess);
+                if (frame != null) {
+                    webSocketHandler.sendBytes(frame, SendScheduler.SendClass.TELEMETRY);
+                }
+                return;
+            }
+            try {
+                // Build combined status object
+                JSONObject obj = new JSONObject();
+                obj.put(TYPE, TELEMETRY);
+                obj.put(CMD, TELEMETRY);
+                obj.put(HEX, telemetry.getPacket(withProcess) + sender.getTunnelAndStreamStatus());
+                int stale = telemetry.getStaleMask();
+                if (stale != 0) obj.put(STALE, stale);
+                ProcessStatsProvider.Snapshot proc = telemetry.getSentProcessStats();
+                if (proc != null) obj.put(PROC, proc.toJson());
+
+                sender.send(obj, SendScheduler.SendClass.TELEMETRY);
+            } catch (JSONException e) {
+                logger.e(TAG, "Client stats send failed " + e);
             }
         }
     }
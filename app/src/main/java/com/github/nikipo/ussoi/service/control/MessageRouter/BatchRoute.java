@@ -0,0 +1,173 @@
+package com.github.nikipo.ussoi.service.control.MessageRouter;
+
+import static com.github.nikipo.ussoi.ui.UssoiStrings.*;
+
+import android.util.Log;
+
+import com.github.nikipo.ussoi.service.control.ConnectionManager;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * *****************************************************************************
+ *
+ * @author nikipo
+ * *****************************************************************************
+ * @file BatchRoute
+ * @attention Copyright (c) 2026
+ * All rights reserved.
+ * <p>
+ * This software is licensed under the terms described in the LICENSE file
+ * located in the root directory of this project.
+ * If no LICENSE file is present, this software is provided "AS IS",
+ * without warranty of any kind, express or implied.
+ * <p>
+ * *****************************************************************************
+ */
+
+/**
+ * Runs the commands of one {@code batch} envelope in order and answers with a
+ * single combined response.
+ *
+ * Each entry goes through the normal Router path (lanes, timeouts, response
+ * cache); its reply is captured here instead of being sent, and the next
+ * entry is submitted once it arrives. No thread waits in between, so entries
+ * may share a lane with each other or with the batch's caller.
+ */
+public class BatchRoute {
+    private static final String TAG = "BatchRoute";
+
+    static final int MAX_COMMANDS = 32;
+    static final String COMMANDS = "cmds";
+    static final String STOP_ON_ERROR = "stop_on_error";
+    static final String RESULTS = "results";
+    static final String FAILED = "failed";
+
+    private final ConnectionManager connectionManager;
+    private final Router router;
+
+    // entry cmdId -> batch waiting for its reply
+    private final ConcurrentHashMap<String, Batch> waiting = new ConcurrentHashMap<>();
+
+    private final class Batch {
+        final String cmdId;
+        final JSONArray cmds;
+        final boolean stopOnError;
+        final JSONArray results = new JSONArray();
+        int next = 0;
+        int failed = 0;
+
+        Batch(String cmdId, JSONArray cmds, boolean stopOnError) {
+            this.cmdId = cmdId;
+            this.cmds = cmds;
+            this.stopOnError = stopOnError;
+        }
+    }
+
+    public BatchRoute(ConnectionManager connectionManager, Router router) {
+        this.connectionManager = connectionManager;
+        this.router = router;
+    }
+
+    public void route(JSONObject json) {
+        String cmdId = json.optString(CMD_ID, EMPTY);
+        JSONObject param = json.optJSONObject(PARAM);
+        JSONArray cmds = param != null ? param.optJSONArray(COMMANDS) : null;
+        if (cmds == null || cmds.length() == 0 || cmds.length() > MAX_COMMANDS) {
+            router.sendError(connectionManager, cmdId, BATCH, INVALID_PARAMS);
+            return;
+        }
+        advance(new Batch(cmdId, cmds, param.optBoolean(STOP_ON_ERROR, true)));
+    }
+
+    /**
+     * Router reply hook.
+     *
+     * @return true if the reply belongs to a batch entry and must not be sent
+     */
+    boolean capture(String cmdId, JSONObject reply) {
+        Batch batch = waiting.remove(cmdId);
+        if (batch == null) return false;
+        synchronized (batch) {
+            batch.results.put(reply);
+            if (ERROR.equals(reply.optString(TYPE))) batch.failed++;
+            batch.next++;
+        }
+        advance(batch);
+        return true;
+    }
+
+    /** Forgets running batches; their queued entries were dropped with the lanes. */
+    public void stop() {
+        waiting.clear();
+    }
+
+    /** Submits the next entry, or sends the combined response when done. */
+    private void advance(Batch batch) {
+        synchronized (batch) {
+            int total = batch.cmds.length();
+            while (batch.next < total) {
+                if (batch.stopOnError && batch.failed > 0) break;
+
+                int index = batch.next;
+                JSONObject entry = batch.cmds.optJSONObject(index);
+                String cmd = entry != null ? entry.optString(CMD, EMPTY) : EMPTY;
+                if (!router.isBatchable(cmd)) {
+                    skip(batch, cmd, entry != null ? entry.optString(CMD_ID, EMPTY) : EMPTY,
+                            cmd.isEmpty() ? INVALID_PARAMS : "Not allowed in batch");
+                    continue;
+                }
+                String entryId = entry.optString(CMD_ID, EMPTY);
+                if (entryId.isEmpty()) entryId = batch.cmdId + "." + index;
+                try {
+                    // a copy: the envelope stays untouched for the response cache
+                    JSONObject request = new JSONObject(entry.toString()).put(CMD_ID, entryId);
+                    waiting.put(entryId, batch);
+                    // may capture synchronously (cached reply, queue full); capture() then advances
+                    router.execute(request, cmd, entryId);
+                } catch (JSONException e) {
+                    waiting.remove(entryId);
+                    skip(batch, cmd, entryId, INVALID_PARAMS);
+                    continue;
+                }
+                return;
+            }
+            finish(batch);
+        }
+    }
+
+    private void skip(Batch batch, String cmd, String entryId, String error) {
+        try {
+            batch.results.put(new JSONObject()
+                    .put(TYPE, ERROR)
+                    .put(CMD, cmd)
+                    .put(CMD_ID, entryId)
+                    .put(ERROR_MSG, error));
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to build batch entry error", e);
+        }
+        batch.failed++;
+        batch.next++;
+    }
+
+    private void finish(Batch batch) {
+        // entries never submitted after a failure
+        for (int i = batch.next; i < batch.cmds.length(); i++) {
+            JSONObject entry = batch.cmds.optJSONObject(i);
+            skip(batch, entry != null ? entry.optString(CMD, EMPTY) : EMPTY,
+                    entry != null ? entry.optString(CMD_ID, EMPTY) : EMPTY, "Skipped");
+        }
+        try {
+            JSONObject data = new JSONObject();
+            data.put(RESULTS, batch.results);
+            data.put(FAILED, batch.failed);
+            router.sendResponse(connectionManager, batch.cmdId, BATCH, data);
+        } catch (JSONException e) {
+            router.sendError(connectionManager, batch.cmdId, BATCH, "Internal error building batch response");
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package com.github.nikipo.ussoi.service.control.MessageRouter;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.github.nikipo.ussoi.system.metrics.Counter;
+import com.github.nikipo.ussoi.system.metrics.Gauge;
+import com.github.nikipo.ussoi.system.metrics.Histogram;
+import com.github.nikipo.ussoi.system.metrics.Metrics;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * *****************************************************************************
+ *
+ * @author nikipo
+ * *****************************************************************************
+ * @file CommandExecutor
+ * @attention Copyright (c) 2026
+ * All rights reserved.
+ * <p>
+ * This software is licensed under the terms described in the LICENSE file
+ * located in the root directory of this project.
+ * If no LICENSE file is present, this software is provided "AS IS",
+ * without warranty of any kind, express or implied.
+ * <p>
+ * *****************************************************************************
+ */
+
+/**
+ * Runs control commands on one serial queue per subsystem.
+ *
+ * Commands of the same {@link Lane} run in arrival order on that lane's
+ * thread; lanes run independently, so a device_info is answered while a
+ * camera reconfiguration is still blocking the stream lane.
+ *
+ * Every command has a deadline counted from arrival. One still queued at its
+ * deadline is dropped; one still running is detached: the timeout error is
+ * sent, the lane's thread is left to finish (camera and USB calls cannot be
+ * pre-empted safely) and its late replies are suppressed through
+ * {@link #claimReply(String)}. Cancel works the same way, and so does a
+ * command that throws before replying ({@link #FAILED}).
+ *
+ * Detached state is kept per cmdId, not per thread, because replies also come
+ * from camera and WebRTC callback threads. Detaching and claiming a reply
+ * happen under one lock, so a command gets either its reply or the timeout /
+ * cancel error, never both.
+ */
+final class CommandExecutor {
+    private static final String TAG = "CommandExecutor";
+
+    enum Lane {
+        STREAM("stream", 15_000),
+        TUNNEL("tunnel", 10_000),
+        INFO("info", 5_000);
+
+        final String key;
+        final long defaultTimeoutMs;
+
+        Lane(String key, long defaultTimeoutMs) {
+            this.key = key;
+            this.defaultTimeoutMs = defaultTimeoutMs;
+        }
+    }
+
+    /** How a command ended without running to completion. */
+    interface Listener {
+        void onAbandoned(String cmdId, String cmd, String reason);
+    }
+
+    static final String TIMEOUT = "Command timeout";
+    static final String CANCELLED = "Cancelled";
+    static final String FAILED = "Command failed";
+
+    /** cancel() results */
+    static final String STATE_QUEUED = "queued";
+    static final String STATE_RUNNING = "running";
+
+    // how long late replies of a detached cmdId are suppressed, unless the cmdId is reused first
+    private static final long DETACHED_TTL_MS = 10 * 60 * 1000;
+    private static final int MAX_DETACHED = 256;
+
+    private static final class Task {
+        final String cmd;
+        final String cmdId;
+        final Runnable body;
+        final long enqueuedMs;
+        final long deadlineMs;
+        // guarded by lock: the reply slot was taken by a timeout / cancel, or by a reply
+        boolean detached = false;
+        boolean replied = false;
+
+        Task(String cmd, String cmdId, Runnable body, long timeoutMs) {
+            this.cmd = cmd;
+            this.cmdId = cmdId;
+            this.body = body;
+            this.enqueuedMs = SystemClock.elapsedRealtime();
+            this.deadlineMs = enqueuedMs + timeoutMs;
+        }
+    }
+
+    private final class Worker {
+        final Lane lane;
+        final ArrayDeque<Task> pending = new ArrayDeque<>();
+        Task running;
+        Thread thread;
+
+        final Gauge depth;
+        final Histogram queueWait;
+        final Counter timeouts;
+
+        Worker(Lane lane) {
+            this.lane = lane;
+            String labels = "lane=\"" + lane.key + "\"";
+            depth = Metrics.gauge("ussoi_router_queue_depth", labels, "Commands waiting per lane");
+            queueWait = Metrics.histogram("ussoi_router_queue_wait_us", labels,
+                    "Time a command waited for its lane, microseconds");
+            timeouts = Metrics.counter("ussoi_router_timeouts_total", labels, "Commands that hit their deadline");
+        }
+    }
+
+    private static final Counter cancelled = Metrics.counter(
+            "ussoi_router_cancelled_total", "Commands cancelled by the server");
+
+    private final Listener listener;
+    private final Object lock = new Object();
+    private final Worker[] workers = new Worker[Lane.values().length];
+    // detached cmdId -> detach time, oldest first; guarded by lock
+    private final LinkedHashMap<String, Long> detachedIds = new LinkedHashMap<>();
+    private Thread watchdog;
+    private boolean running = true;
+
+    CommandExecutor(Listener listener) {
+        this.listener = listener;
+        for (Lane lane : Lane.values()) {
+            Worker w = new Worker(lane);
+            workers[lane.ordinal()] = w;
+            w.thread = new Thread(() -> loop(w), "Cmd-" + lane.key);
+            w.thread.start();
+        }
+        watchdog = new Thread(this::watch, "Cmd-watchdog");
+        watchdog.start();
+    }
+
+    /**
+     * Queues a command on its lane.
+     *
+     * @return false if the executor is stopped
+     */
+    boolean submit(Lane lane, String cmd, String cmdId, long timeoutMs, Runnable body) {
+        synchronized (lock) {
+            if (!running) return false;
+            // a new command owns this cmdId now; its replies must go out
+            detachedIds.remove(cmdId);
+            Worker w = workers[lane.ordinal()];
+            w.pending.add(new Task(cmd, cmdId, body, timeoutMs));
+            w.depth.set(w.pending.size());
+            lock.notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * Cancels the queued or running command with this cmdId; the listener gets
+     * {@link #CANCELLED} for it.
+     *
+     * @return {@link #STATE_QUEUED}, {@link #STATE_RUNNING} or null if not found
+     */
+    String cancel(String cmdId) {
+        Task hit = null;
+        String state = null;
+        synchronized (lock) {
+            for (Worker w : workers) {
+                Iterator<Task> it = w.pending.iterator();
+                while (it.hasNext()) {
+                    Task t = it.next();
+                    if (t.cmdId.equals(cmdId)) {
+                        it.remove();
+                        w.depth.set(w.pending.size());
+                        hit = t;
+                        state = STATE_QUEUED;
+                        break;
+                    }
+                }
+                if (hit != null) break;
+                if (w.running != null && !w.running.detached && w.running.cmdId.equals(cmdId)) {
+                    hit = w.running;
+                    state = STATE_RUNNING;
+                    break;
+                }
+            }
+            if (hit == null) return null;
+            detach(hit);
+            lock.notifyAll();
+        }
+        cancelled.inc();
+        listener.onAbandoned(hit.cmdId, hit.cmd, CANCELLED);
+        return state;
+    }
+
+    /**
+     * Called for every reply, from any thread. False if cmdId already got its
+     * timeout or cancel error and the reply must be dropped; otherwise the
+     * running command is marked answered so the watchdog leaves it alone.
+     */
+    boolean claimReply(String cmdId) {
+        synchronized (lock) {
+            long now = SystemClock.elapsedRealtime();
+            Iterator<Long> it = detachedIds.values().iterator();
+            while (it.hasNext() && now - it.next() > DETACHED_TTL_MS) it.remove();
+            if (detachedIds.containsKey(cmdId)) return false;
+            for (Worker w : workers) {
+                if (w.running != null && w.running.cmdId.equals(cmdId)) w.running.replied = true;
+            }
+            return true;
+        }
+    }
+
+    /** Drops queued commands silently and lets the running ones finish; lane threads then exit. */
+    void stop() {
+        synchronized (lock) {
+            running = false;
+            for (Worker w : workers) {
+                w.pending.clear();
+                w.depth.set(0);
+            }
+            lock.notifyAll();
+        }
+        Thread t = watchdog;
+        if (t != null) t.interrupt();
+    }
+
+    // ── Threads ──
+
+    private void loop(Worker w) {
+        while (true) {
+            Task task;
+            List<Task> expired = new ArrayList<>();
+            synchronized (lock) {
+                try {
+                    while (running && w.pending.isEmpty()) lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if (!running) return;
+                long now = SystemClock.elapsedRealtime();
+                // anything that ran out of time in the queue is not started at all
+                while ((task = w.pending.poll()) != null && now >= task.deadlineMs) {
+                    detach(task);
+                    expired.add(task);
+                }
+                w.depth.set(w.pending.size());
+                w.running = task;
+                if (task != null) lock.notifyAll(); // watchdog: new deadline
+            }
+            for (Task t : expired) timedOut(w, t);
+            if (task == null) continue;
+
+            w.queueWait.record((SystemClock.elapsedRealtime() - task.enqueuedMs) * 1000);
+            try {
+                task.body.run();
+            } catch (Exception e) {
+                Log.e(TAG, task.cmd + " failed", e);
+                failed(task);
+            } finally {
+                synchronized (lock) {
+                    w.running = null;
+                }
+            }
+        }
+    }
+
+    /** Detaches running commands past their deadline. */
+    private void watch() {
+        while (true) {
+            List<Task> expired = new ArrayList<>();
+            List<Worker> owners = new ArrayList<>();
+            synchronized (lock) {
+                if (!running) return;
+                long now = SystemClock.elapsedRealtime();
+                long next = Long.MAX_VALUE;
+                for (Worker w : workers) {
+                    Task t = w.running;
+                    // an answered command keeps running but is no longer timed
+                    if (t == null || t.detached || t.replied) continue;
+                    if (now >= t.deadlineMs) {
+                        detach(t);
+                        expired.add(t);
+                        owners.add(w);
+                    } else {
+                        next = Math.min(next, t.deadlineMs);
+                    }
+                }
+                if (expired.isEmpty()) {
+                    try {
+                        lock.wait(next == Long.MAX_VALUE ? 0 : next - now);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+            }
+            for (int i = 0; i < expired.size(); i++) {
+                Log.w(TAG, expired.get(i).cmd + " still running on " + owners.get(i).lane.key + " lane at deadline");
+                timedOut(owners.get(i), expired.get(i));
+            }
+        }
+    }
+
+    /** Takes the reply slot of t; later replies to its cmdId are dropped. Must hold lock. */
+    private void detach(Task t) {
+        t.detached = true;
+        // re-insert so the map stays ordered by detach time
+        detachedIds.remove(t.cmdId);
+        detachedIds.put(t.cmdId, SystemClock.elapsedRealtime());
+        if (detachedIds.size() > MAX_DETACHED) {
+            Iterator<String> oldest = detachedIds.keySet().iterator();
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    /** Answers a command that threw without replying; otherwise its cmdId would wait for a reply forever. */
+    private void failed(Task t) {
+        synchronized (lock) {
+            if (t.detached || t.replied) return;
+            detach(t);
+        }
+        listener.onAbandoned(t.cmdId, t.cmd, FAILED);
+    }
+
+    private void timedOut(Worker w, Task t) {
+        w.timeouts.inc();
+        listener.onAbandoned(t.cmdId, t.cmd, TIMEOUT);
+    }
+}
@@ -0,0 +1,134 @@
+package com.github.nikipo.ussoi.service.control.MessageRouter;
+
+import static com.github.nikipo.ussoi.ui.UssoiStrings.*;
+
+import android.util.Log;
+
+import com.github.nikipo.ussoi.service.control.ConnectionManager;
+import com.github.nikipo.ussoi.system.telemetry.SysTelemetry;
+import com.github.nikipo.ussoi.system.telemetry.TelemetryHistory;
+import com.github.nikipo.ussoi.system.telemetry.TelemetryPacketBuilder;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * *****************************************************************************
+ *
+ * @author nikipo
+ * *****************************************************************************
+ * @file HistoryRoute
+ * @attention Copyright (c) 2026
+ * All rights reserved.
+ * <p>
+ * This software is licensed under the terms described in the LICENSE file
+ * located in the root directory of this project.
+ * If no LICENSE file is present, this software is provided "AS IS",
+ * without warranty of any kind, express or implied.
+ * <p>
+ * *****************************************************************************
+ */
+
+/**
+ * Streams a time range of the on-device telemetry history back in chunks.
+ *
+ * One stream at a time on its own thread; a new request cancels the running
+ * one. Chunks are paced on the control socket's backlog so a long replay never
+ * crowds out commands.
+ */
+public class HistoryRoute {
+    private static final String TAG = "HistoryRoute";
+
+    private static final int DEFAULT_CHUNK = 60;
+    private static final int MAX_CHUNK = 500;
+    private static final long PENDING_LIMIT_BYTES = 64 * 1024;
+    private static final long PACE_WAIT_MS = 20;
+
+    private final ConnectionManager connectionManager;
+    private final Router router;
+    private Thread worker;
+
+    public HistoryRoute(ConnectionManager connectionManager, Router router) {
+        this.connectionManager = connectionManager;
+        this.router = router;
+    }
+
+    public void route(JSONObject json) {
+        String cmdId = json.optString(CMD_ID, EMPTY);
+        JSONObject param = json.optJSONObject(PARAM);
+        long from = param != null ? param.optLong("from", 0) : 0;
+        long to = param != null ? param.optLong("to", Long.MAX_VALUE) : Long.MAX_VALUE;
+        int chunk = param != null ? param.optInt("chunk", DEFAULT_CHUNK) : DEFAULT_CHUNK;
+        chunk = Math.max(1, Math.min(MAX_CHUNK, chunk));
+
+        if (from > to) {
+            router.sendError(connectionManager, cmdId, GET_TELEMETRY_HISTORY, INVALID_PARAMS);
+            return;
+        }
+        SysTelemetry telemetry = connectionManager.getSysTelemetry();
+        TelemetryHistory history = telemetry != null ? telemetry.getHistory() : null;
+        if (history == null) {
+            router.sendError(connectionManager, cmdId, GET_TELEMETRY_HISTORY, "Telemetry history not available");
+            return;
+        }
+
+        final int chunkSize = chunk;
+        synchronized (this) {
+            stop();
+            worker = new Thread(() -> stream(history, cmdId, from, to, chunkSize), "TelemetryHistory");
+            worker.start();
+        }
+    }
+
+    public synchronized void stop() {
+        if (worker != null) {
+            worker.interrupt();
+            worker = null;
+        }
+    }
+
+    private void stream(TelemetryHistory history, String cmdId, long from, long to, int chunkSize) {
+        final JSONArray[] samples = {new JSONArray()};
+        final int[] seq = {0};
+
+        int total = history.read(from, to, (ts, packet) -> {
+            samples[0].put(new JSONArray().put(ts).put(TelemetryPacketBuilder.toHex(packet)));
+            if (samples[0].length() < chunkSize) return true;
+            if (!sendChunk(cmdId, seq[0]++, samples[0], false, 0)) return false;
+            samples[0] = new JSONArray();
+            return true;
+        });
+
+        if (!Thread.currentThread().isInterrupted()) {
+            sendChunk(cmdId, seq[0], samples[0], true, total);
+        }
+    }
+
+    /** Waits for the socket backlog to drain, then sends; false if cancelled or offline. */
+    private boolean sendChunk(String cmdId, int seq, JSONArray samples, boolean last, int total) {
+        try {
+            while (connectionManager.getPendingBytes() > PENDING_LIMIT_BYTES) {
+                if (!connectionManager.isConnected()) return false;
+                Thread.sleep(PACE_WAIT_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (Thread.currentThread().isInterrupted() || !connectionManager.isConnected()) return false;
+
+        try {
+            JSONObject data = new JSONObject();
+            data.put("seq", seq);
+            data.put("last", last);
+            data.put("samples", samples);
+            if (last) data.put("count", total);
+            router.sendResponse(connectionManager, cmdId, GET_TELEMETRY_HISTORY, data);
+            return true;
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to build history chunk", e);
+            return false;
+        }
+    }
+}
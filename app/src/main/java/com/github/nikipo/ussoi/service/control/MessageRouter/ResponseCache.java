@@ -0,0 +1,90 @@
+package com.github.nikipo.ussoi.service.control.MessageRouter;
+
+import android.os.SystemClock;
+
+import org.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * *****************************************************************************
+ *
+ * @author nikipo
+ * *****************************************************************************
+ * @file ResponseCache
+ * @attention Copyright (c) 2026
+ * All rights reserved.
+ * <p>
+ * This software is licensed under the terms described in the LICENSE file
+ * located in the root directory of this project.
+ * If no LICENSE file is present, this software is provided "AS IS",
+ * without warranty of any kind, express or implied.
+ * <p>
+ * *****************************************************************************
+ */
+
+/**
+ * Bounded cmdId → first reply cache, so a ground-station retry of a command
+ * gets the original result instead of running it again.
+ *
+ * An entry is claimed when the command is accepted and filled with its first
+ * response or error. A retry that arrives in between is dropped — the reply
+ * of the original, carrying the same cmdId, answers both. LRU with
+ * {@link #MAX_ENTRIES} entries, each valid for {@link #TTL_MS}.
+ */
+final class ResponseCache {
+    static final int MAX_ENTRIES = 256;
+    static final long TTL_MS = 10 * 60 * 1000;
+
+    /** claim() result: the original is still queued or running. */
+    static final JSONObject IN_FLIGHT = new JSONObject();
+
+    private static final class Entry {
+        final String cmd;
+        final long claimedMs;
+        JSONObject reply;
+
+        Entry(String cmd, long claimedMs) {
+            this.cmd = cmd;
+            this.claimedMs = claimedMs;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * @return null if the command is new (it is now claimed and must run),
+     *         {@link #IN_FLIGHT} or the cached reply otherwise
+     */
+    synchronized JSONObject claim(String cmdId, String cmd) {
+        long now = SystemClock.elapsedRealtime();
+        Entry e = entries.get(cmdId);
+        // a reused cmdId for another command, or an old one, runs again
+        if (e != null && e.cmd.equals(cmd) && now - e.claimedMs < TTL_MS) {
+            return e.reply != null ? e.reply : IN_FLIGHT;
+        }
+        entries.put(cmdId, new Entry(cmd, now));
+        return null;
+    }
+
+    /** Stores the first reply of a claimed command; later ones are ignored. */
+    synchronized void complete(String cmdId, String cmd, JSONObject reply) {
+        Entry e = entries.get(cmdId);
+        if (e != null && e.reply == null && e.cmd.equals(cmd)) e.reply = reply;
+    }
+
+    /** Drops the entry, e.g. after a timeout, so a retry runs the command again. */
+    synchronized void forget(String cmdId) {
+        entries.remove(cmdId);
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+}
@@ -7,16 +7,32 @@ import static com.github.nikipo.ussoi.ui.UssoiStrings.*;
 
 import android.content.Context;
 import android.hardware.camera2.CameraManager;
+import android.os.SystemClock;
 import android.util.Log;
 
+import com.github.nikipo.ussoi.network.packetSerialization.msgPackerManager;
 import com.github.nikipo.ussoi.service.control.ConnectionManager;
 import com.github.nikipo.ussoi.storage.SaveInputFields;
 import com.github.nikipo.ussoi.storage.logs.Logging;
 import com.github.nikipo.ussoi.system.deviceInfo.DeviceInfoDynamic;
 import com.github.nikipo.ussoi.system.deviceInfo.DeviceInfoStatic;
-
+import com.github.nikipo.ussoi.system.metrics.Counter;
+import com.github.nikipo.ussoi.system.metrics.Histogram;
+import com.github.nikipo.ussoi.system.metrics.Metrics;
+import com.github.nikipo.ussoi.system.telemetry.ProcessStatsProvider;
+import com.github.nikipo.ussoi.system.telemetry.SysTelemetry;
+import com.github.nikipo.ussoi.system.telemetry.TelemetryScheduler;
+
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
 /**
  * *****************************************************************************
  *
@@ -35,20 +51,65 @@ import org.json.JSONObject;
  */
 public class Router{
     private static final String TAG = "Router";
+
+    // one series per known command; anything else is counted as "unknown"
+    private static final Map<String, Counter> commandCounters = new HashMap<>();
+    private static final Counter unknownCommands = commandCounter("unknown");
+    private static final Histogram routeLatency = Metrics.histogram(
+            "ussoi_router_route_us", "Time spent dispatching one control command");
+    private static final Counter dedupReplayed = Metrics.counter("ussoi_router_dedup_total",
+            "result=\"replayed\"", "Retried commands answered from the response cache");
+    private static final Counter dedupInFlight = Metrics.counter("ussoi_router_dedup_total",
+            "result=\"in_flight\"", "Retried commands dropped while the original was running");
+    private static final Counter batches = Metrics.counter(
+            "ussoi_router_batches_total", "Batch envelopes received");
+
+    static {
+        for (String cmd : msgPackerManager.COMMANDS) {
+            commandCounters.put(cmd, commandCounter(cmd));
+        }
+    }
+
+    // Commands that are known to take longer than their lane's default
+    private static final Map<String, Long> commandTimeoutsMs = new HashMap<>();
+    private static final long MIN_TIMEOUT_MS = 100;
+    private static final long MAX_TIMEOUT_MS = 120_000;
+
+    // Commands with side effects: a retry with the same cmdId replays the first reply.
+    // Queries are not cached, a retry gets fresh data.
+    // Only commands that always send exactly one reply: the claim stays in flight until it
+    // arrives. WebRTC signalling answers only on error, so it is neither cached nor batched.
+    private static final Set<String> cachedCommands = new HashSet<>(Arrays.asList(
+            SET_PARAMS, START_STREAM, STOP_STREAM, START_RECORDING, STOP_RECORDING,
+            PLAY, PAUSE, MUTE, FLIP, ROTATE, SWITCH, SET_RECORD_RES, SET_STREAM_RES,
+            START_TUNNEL, STOP_TUNNEL, SET_TUNNEL_POLICY, SET_CODEC, SET_LOG_LEVEL, BATCH));
+
+    static {
+        commandTimeoutsMs.put(SET_PARAMS, 20_000L);
+        commandTimeoutsMs.put(START_STREAM, 20_000L);
+        commandTimeoutsMs.put(START_RECORDING, 20_000L);
+        commandTimeoutsMs.put(SWITCH, 20_000L);
+        commandTimeoutsMs.put(GET_TELEMETRY_HISTORY, 10_000L);
+    }
+
     private static Context context;
-    private StreamRoute streamRoute;
+    private volatile StreamRoute streamRoute;
     private TunnelRoute tunnelRoute;
+    private HistoryRoute historyRoute;
+    private BatchRoute batchRoute;
     private ConnectionManager connectionManager;
     private static Logging logger;
     private DeviceInfoDynamic deviceInfoDynamic;
     private DeviceInfoStatic deviceInfoStatic;
 
     // global state variables
-    private boolean is_params_set;
+    private volatile boolean is_params_set;
     private final boolean high_fps_support;
-    private StreamMode streamMode = StreamMode.None;
+    private volatile StreamMode streamMode = StreamMode.None;
     private String deviceId;
     private JSONObject camRes;
+    private final CommandExecutor executor;
+    private final ResponseCache responseCache = new ResponseCache();
 
     public Router(ConnectionManager sender, Context context) {
         Router.context = context;
@@ -74,17 +135,179 @@ public class Router{
 
         tunnelRoute = new TunnelRoute(sender, this, Router.context);
         streamRoute = new StreamRoute(connectionManager, this, Router.context, StreamMode.None);
+        historyRoute = new HistoryRoute(connectionManager, this);
+        batchRoute = new BatchRoute(connectionManager, this);
+
+        executor = new CommandExecutor((cmdId, cmd, reason) -> {
+            // a retry after a timeout, cancel or failure should run again, not replay the error
+            responseCache.forget(cmdId);
+            // the executor already holds the reply slot for this error, so skip claimReply()
+            try {
+                publish(connectionManager, cmdId, errorMessage(cmdId, cmd, reason));
+            } catch (JSONException e) {
+                Log.e(TAG, "Failed to build " + reason + " error", e);
+            }
+        });
     }
 
 
+    /**
+     * Queues the command on its lane (see {@link #laneOf}) and returns; the
+     * reply is sent from the lane thread. time_sync, cancel and batch are
+     * handled inline so they are never stuck behind a slow command.
+     */
     public void route(JSONObject json) {
         Log.d(TAG,json.toString());
         String cmd   = json.optString(CMD, EMPTY);
         String cmdId = json.optString(CMD_ID, EMPTY);
 
+        Counter counter = commandCounters.get(cmd);
+        (counter != null ? counter : unknownCommands).inc();
+
+        switch (cmd) {
+            case TIME_SYNC:
+                // answer to the device's own request, nothing to reply
+                connectionManager.onTimeSync(json);
+                return;
+
+            case CANCEL:
+                cancel(json, cmdId);
+                return;
+
+            case BATCH:
+                batches.inc();
+                if (answeredFromCache(cmd, cmdId)) return;
+                batchRoute.route(json);
+                return;
+        }
+        execute(json, cmd, cmdId);
+    }
+
+    /** Runs one command through the response cache and its lane; also used for batch entries. */
+    void execute(JSONObject json, String cmd, String cmdId) {
+        CommandExecutor.Lane lane = laneOf(cmd);
+        if (lane == null) {
+            sendError(connectionManager, cmdId, cmd, "Unknown command");
+            return;
+        }
+        if (answeredFromCache(cmd, cmdId)) return;
+        boolean queued = executor.submit(lane, cmd, cmdId, timeoutOf(json, cmd, lane), () -> {
+            long startNs = System.nanoTime();
+            try {
+                dispatch(json, cmd, cmdId);
+            } finally {
+                routeLatency.recordSinceNs(startNs);
+            }
+        });
+        if (!queued) sendError(connectionManager, cmdId, cmd, "Router stopped");
+    }
+
+    /**
+     * Claims cmdId in the response cache. True if this is a retry: the cached
+     * reply has been sent again, or the original is still running and will answer.
+     */
+    private boolean answeredFromCache(String cmd, String cmdId) {
+        if (cmdId.isEmpty() || !cachedCommands.contains(cmd)) return false;
+        JSONObject cached = responseCache.claim(cmdId, cmd);
+        if (cached == null) return false;
+        if (cached == ResponseCache.IN_FLIGHT) {
+            dedupInFlight.inc();
+        } else {
+            dedupReplayed.inc();
+            deliver(connectionManager, cmdId, cached);
+        }
+        return true;
+    }
+
+    /**
+     * Commands a batch may contain: anything queued on a lane except the streamed
+     * history and WebRTC signalling, which have no single reply to wait for.
+     */
+    boolean isBatchable(String cmd) {
+        return laneOf(cmd) != null && !GET_TELEMETRY_HISTORY.equals(cmd)
+                && !WEBRTC_SDP.equals(cmd) && !WEBRTC_ICE.equals(cmd);
+    }
+
+    /** Serial queue a command runs on; null for unknown commands. */
+    private static CommandExecutor.Lane laneOf(String cmd) {
+        switch (cmd) {
+            case SET_PARAMS:
+            case START_STREAM:
+            case STOP_STREAM:
+            case START_RECORDING:
+            case STOP_RECORDING:
+            case PLAY:
+            case PAUSE:
+            case MUTE:
+            case FLIP:
+            case ROTATE:
+            case SWITCH:
+            case SET_RECORD_RES:
+            case SET_STREAM_RES:
+            case WEBRTC_ICE:
+            case WEBRTC_SDP:
+                return CommandExecutor.Lane.STREAM;
+
+            case GET_TUNNELS:
+            case START_TUNNEL:
+            case STOP_TUNNEL:
+            case SET_TUNNEL_POLICY:
+                return CommandExecutor.Lane.TUNNEL;
+
+            case GET_PARAMS:
+            case GET_RES:
+            case GET_STREAM_STATS:
+            case GET_TELEMETRY_HISTORY:
+            case GET_METRICS:
+            case SET_CODEC:
+            case SET_LOG_LEVEL:
+            case DEVICE_INFO:
+            case DEVICE_IDENTITY:
+                return CommandExecutor.Lane.INFO;
+
+            default:
+                return null;
+        }
+    }
+
+    /** Optional top-level "timeout" (ms) overrides the per-command default. */
+    private static long timeoutOf(JSONObject json, String cmd, CommandExecutor.Lane lane) {
+        long requested = json.optLong(TIMEOUT, 0);
+        if (requested > 0) {
+            return Math.max(MIN_TIMEOUT_MS, Math.min(MAX_TIMEOUT_MS, requested));
+        }
+        Long known = commandTimeoutsMs.get(cmd);
+        return known != null ? known : lane.defaultTimeoutMs;
+    }
+
+    private void cancel(JSONObject json, String cmdId) {
+        JSONObject param = json.optJSONObject(PARAM);
+        String target = param != null ? param.optString(CMD_ID, EMPTY) : EMPTY;
+        if (target.isEmpty()) {
+            sendError(connectionManager, cmdId, CANCEL, INVALID_PARAMS);
+            return;
+        }
+        String state = executor.cancel(target);
+        if (state == null) {
+            sendError(connectionManager, cmdId, CANCEL, "Nothing to cancel");
+            return;
+        }
+        try {
+            sendResponse(connectionManager, cmdId, CANCEL, new JSONObject().put(STATE, state));
+        } catch (JSONException e) {
+            sendError(connectionManager, cmdId, CANCEL, "Internal error");
+        }
+    }
+
+    private static Counter commandCounter(String cmd) {
+        return Metrics.counter("ussoi_router_commands_total", "cmd=\"" + cmd + "\"",
+                "Control commands received");
+    }
+
+    private void dispatch(JSONObject json, String cmd, String cmdId) {
         switch (cmd) {
             case GET_PARAMS:
-                sendParams();
+                sendParams(cmdId);
                 break;
 
             case SET_PARAMS:
@@ -92,18 +315,35 @@ public class Router{
                 break;
 
             case GET_RES:
-                sendResponse(connectionManager,CMD_ID,GET_RES,camRes);
+                sendResponse(connectionManager,cmdId,GET_RES,camRes);
                 break;
 
             case GET_TUNNELS:
-                sendResponse(connectionManager,CMD_ID,GET_TUNNELS,tunnelRoute.getTunnels());
+                sendResponse(connectionManager,cmdId,GET_TUNNELS,tunnelRoute.getTunnels());
                 break;
 
             case START_TUNNEL:
             case STOP_TUNNEL:
+            case SET_TUNNEL_POLICY:
                 tunnelRoute.route(json);
                 break;
 
+            case SET_CODEC:
+                setCodec(json);
+                break;
+
+            case GET_TELEMETRY_HISTORY:
+                historyRoute.route(json);
+                break;
+
+            case GET_METRICS:
+                sendMetrics(json);
+                break;
+
+            case SET_LOG_LEVEL:
+                setLogLevel(json);
+                break;
+
             case DEVICE_INFO:
                 sendResponse(connectionManager,cmdId,cmd, deviceInfoDynamic.buildJsonPacket());
                 break;
@@ -115,6 +355,7 @@ public class Router{
             //Stop commands no paramsSet guard
             case STOP_STREAM:
             case STOP_RECORDING:
+            case GET_STREAM_STATS:
                 streamRoute.route(json);
                 break;
 
@@ -143,27 +384,112 @@ public class Router{
         }
     }
 
-    private void sendParams() {
+    private void sendParams(String cmdId) {
         try {
             JSONObject data = new JSONObject();
             data.put(HF_SUPPORT, high_fps_support);
             data.put(STREAM_MODE, streamMode.name());
             data.put(PARAMS_SET, is_params_set);
+            data.put(CODECS, new JSONArray()
+                    .put(msgPackerManager.CODEC_JSON)
+                    .put(msgPackerManager.CODEC_MSGPACK));
+            JSONObject telemConfig = connectionManager.getTelemetryConfig();
+            if (telemConfig != null) {
+                data.put(TELEMETRY_RATE, telemConfig);
+            }
 
-            sendResponse(connectionManager,CMD_ID,GET_PARAMS,data);
+            sendResponse(connectionManager,cmdId,GET_PARAMS,data);
 
         } catch (Exception e) {
             e.printStackTrace();
-            sendError(connectionManager, CMD_ID, GET_PARAMS, "Internal error building params");
+            sendError(connectionManager, cmdId, GET_PARAMS, "Internal error building params");
+        }
+    }
+
+    private void sendMetrics(JSONObject json) {
+        String cmdId = json.optString(CMD_ID, EMPTY);
+        JSONObject param = json.optJSONObject(PARAM);
+        String prefix = param != null ? param.optString(PREFIX, EMPTY) : EMPTY;
+
+        SysTelemetry telemetry = connectionManager.getSysTelemetry();
+        ProcessStatsProvider.Snapshot proc = telemetry != null ? telemetry.getProcessStats() : null;
+        try {
+            JSONObject data = new JSONObject();
+            if (proc != null) {
+                data.put(PROC, proc.toJson());
+                data.put("age_ms", SystemClock.elapsedRealtime() - proc.timeMs);
+            }
+            data.put(METRICS, Metrics.snapshot(prefix));
+            sendResponse(connectionManager, cmdId, GET_METRICS, data);
+        } catch (JSONException e) {
+            sendError(connectionManager, cmdId, GET_METRICS, "Internal error building metrics");
         }
     }
 
+    private void setLogLevel(JSONObject json) {
+        String cmdId = json.optString(CMD_ID, EMPTY);
+        JSONObject param = json.optJSONObject(PARAM);
+        if (param == null) {
+            sendError(connectionManager, cmdId, SET_LOG_LEVEL, INVALID_PARAMS);
+            return;
+        }
+
+        // validate everything first, apply nothing on error
+        Logging.Level level = null;
+        if (param.has(LEVEL)) {
+            level = Logging.Level.parse(param.optString(LEVEL));
+            if (level == null) {
+                sendError(connectionManager, cmdId, SET_LOG_LEVEL, "Invalid level");
+                return;
+            }
+        }
+        JSONObject tags = param.optJSONObject(TAGS);
+        Map<String, Logging.Level> tagLevels = new HashMap<>();
+        if (tags != null) {
+            JSONArray names = tags.names();
+            for (int i = 0; names != null && i < names.length(); i++) {
+                String tag = names.optString(i);
+                // null removes the override
+                if (tags.isNull(tag)) {
+                    tagLevels.put(tag, null);
+                    continue;
+                }
+                Logging.Level tagLevel = Logging.Level.parse(tags.optString(tag));
+                if (tagLevel == null) {
+                    sendError(connectionManager, cmdId, SET_LOG_LEVEL, "Invalid level for " + tag);
+                    return;
+                }
+                tagLevels.put(tag, tagLevel);
+            }
+        }
+
+        if (param.optBoolean(RESET, false)) logger.clearTagLevels();
+        if (level != null) logger.setLevel(level);
+        for (Map.Entry<String, Logging.Level> e : tagLevels.entrySet()) {
+            logger.setTagLevel(e.getKey(), e.getValue());
+        }
+        sendResponse(connectionManager, cmdId, SET_LOG_LEVEL, logger.getConfig());
+    }
+
     private void setParams(JSONObject json) {
         String cmdId = json.optString(CMD_ID, EMPTY);
-        // Todo Implement this
-        String telem_rate = json.optString(TELEMETRY_RATE, EMPTY);
 
         JSONObject param = json.optJSONObject("param");
+
+        // Telemetry_Rate: top level or inside param, optional
+        Object telemRate = json.opt(TELEMETRY_RATE);
+        if (telemRate == null && param != null) {
+            telemRate = param.opt(TELEMETRY_RATE);
+        }
+        TelemetryScheduler.Config telemConfig = null;
+        if (telemRate != null) {
+            telemConfig = TelemetryScheduler.parse(telemRate);
+            if (telemConfig == null) {
+                sendError(connectionManager, cmdId, SET_PARAMS, "Invalid " + TELEMETRY_RATE);
+                return;
+            }
+        }
+
         StreamMode mode = null;
 
         if (param != null) {
@@ -197,10 +523,44 @@ public class Router{
         streamRoute = new StreamRoute(connectionManager, this, context, streamMode);
         is_params_set = true;
 
+        if (telemConfig != null) {
+            connectionManager.setTelemetryRate(telemConfig);
+        }
+
         sendResponse(connectionManager,cmdId,SET_PARAMS ,null);
 
-        // make sure parameters are updated on user side
-        sendParams();
+        // make sure parameters are updated on user side (unsolicited, not tied to this request)
+        sendParams(CMD_ID);
+    }
+
+    private void setCodec(JSONObject json) {
+        String cmdId = json.optString(CMD_ID, EMPTY);
+        JSONObject param = json.optJSONObject(PARAM);
+        String codec = param != null ? param.optString(CODEC, EMPTY) : EMPTY;
+        String telemFormat = param != null ? param.optString(TELEM_FORMAT, EMPTY) : EMPTY;
+
+        if (codec.isEmpty() && telemFormat.isEmpty()) {
+            sendError(connectionManager, cmdId, SET_CODEC, INVALID_PARAMS);
+            return;
+        }
+        if (!codec.isEmpty() && !codec.equals(msgPackerManager.CODEC_JSON)
+                && !codec.equals(msgPackerManager.CODEC_MSGPACK)) {
+            sendError(connectionManager, cmdId, SET_CODEC, "Unsupported codec");
+            return;
+        }
+        if (!telemFormat.isEmpty() && !telemFormat.equals(HEX) && !telemFormat.equals(TELEM_BINARY)) {
+            sendError(connectionManager, cmdId, SET_CODEC, "Unsupported telemetry format");
+            return;
+        }
+
+        // ack still goes out in the old codec; everything after it uses the new one
+        sendResponse(connectionManager, cmdId, SET_CODEC, null);
+        if (!codec.isEmpty()) {
+            connectionManager.setBinaryControl(codec.equals(msgPackerManager.CODEC_MSGPACK));
+        }
+        if (!telemFormat.isEmpty()) {
+            connectionManager.setBinaryTelemetry(telemFormat.equals(TELEM_BINARY));
+        }
     }
 
     private static boolean hasHighFpsCamera() {
@@ -232,7 +592,7 @@ public class Router{
             if (data != null){
                 res.put(DATA, data);
             }
-            cm.send(res);
+            deliver(cm, cmdId, res);
         } catch (Exception e) {
             e.printStackTrace();
             // TODO LOG
@@ -241,22 +601,47 @@ public class Router{
 
     void sendError(ConnectionManager cm, String cmdId, String cmd, String error) {
         try {
-            JSONObject res = new JSONObject();
-            res.put(TYPE,  ERROR);
-            res.put(CMD,   cmd);
-            res.put(CMD_ID, cmdId);
-            res.put(ERROR, error);
-            cm.send(res);
+            deliver(cm, cmdId, errorMessage(cmdId, cmd, error));
         } catch (Exception e) {
             e.printStackTrace();
             // TODO LOG
         }
     }
 
+    private static JSONObject errorMessage(String cmdId, String cmd, String error) throws JSONException {
+        JSONObject res = new JSONObject();
+        res.put(TYPE,  ERROR);
+        res.put(CMD,   cmd);
+        res.put(CMD_ID, cmdId);
+        res.put(ERROR, error);
+        return res;
+    }
+
+
+    /**
+     * Every reply ends here, from lane and callback threads alike. Dropped if
+     * the command already got its timeout / cancel error.
+     */
+    private void deliver(ConnectionManager cm, String cmdId, JSONObject res) {
+        if (executor != null && !executor.claimReply(cmdId)) return;
+        publish(cm, cmdId, res);
+    }
+
+    /** Remembered for retries, captured by a batch or sent. */
+    private void publish(ConnectionManager cm, String cmdId, JSONObject res) {
+        String cmd = res.optString(CMD, EMPTY);
+        if (cachedCommands.contains(cmd)) responseCache.complete(cmdId, cmd, res);
+        if (batchRoute != null && batchRoute.capture(cmdId, res)) return;
+        cm.send(res);
+    }
 
     public void stop() {
+        executor.stop();
+        batchRoute.stop();
+        responseCache.clear();
         if (tunnelRoute != null) tunnelRoute.stopTunnel();
         if (streamRoute != null) streamRoute.closeStream();
+        if (historyRoute != null) historyRoute.stop();
     }
 
     public char getTunnelAndStreamStatus() {
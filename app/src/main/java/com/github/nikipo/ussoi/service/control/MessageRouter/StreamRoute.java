@@ -8,12 +8,20 @@ import android.util.Log;
 
 import com.github.nikipo.ussoi.media.hfh264.HFH264Media;
 import com.github.nikipo.ussoi.media.Media;
+import com.github.nikipo.ussoi.media.enocders.GopDropPolicy;
+import com.github.nikipo.ussoi.media.enocders.StreamingEncoder;
+import com.github.nikipo.ussoi.media.h264.AbrController;
 import com.github.nikipo.ussoi.media.h264.H264Media;
 import com.github.nikipo.ussoi.media.webrtc.WebRtcMedia;
+import com.github.nikipo.ussoi.network.Webscoket.WebSocketHandler;
 import com.github.nikipo.ussoi.service.control.ConnectionManager;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * *****************************************************************************
  *
@@ -55,7 +63,7 @@ public class StreamRoute  {
     private void setStreamMode() {
         switch (streamMode) {
             case H264:
-                media = new H264Media();
+                media = new H264Media(connectionManager);
                 break;
             case HFH264:
                 media = new HFH264Media();
@@ -226,6 +234,59 @@ public class StreamRoute  {
                         media.SetStreamBitrate(bitrate);
                         router.sendResponse(connectionManager, cmdId, cmd, null);
                     }
+                    else if (param.has(ABR)) {
+                        if (!(media instanceof H264Media)) {
+                            router.sendError(connectionManager, cmdId, cmd, "ABR only supported in H264 mode");
+                            break;
+                        }
+
+                        JSONObject abr = param.optJSONObject(ABR);
+
+                        if (abr == null) {
+                            router.sendError(connectionManager, cmdId, cmd, "Missing ABR Params");
+                            break;
+                        }
+
+                        List<AbrController.Rung> ladder = null;
+                        JSONArray rungs = abr.optJSONArray(LADDER);
+
+                        if (rungs != null) {
+                            ladder = new ArrayList<>();
+                            for (int i = 0; i < rungs.length(); i++) {
+                                JSONObject rung = rungs.optJSONObject(i);
+                                if (rung == null) continue;
+
+                                int width  = rung.optInt(WIDTH, -1);
+                                int height = rung.optInt(HEIGHT, -1);
+                                int fps    = rung.optInt(FPS, -1);
+                                int min    = rung.optInt(MIN_BITRATE, -1);
+                                int max    = rung.optInt(MAX_BITRATE, -1);
+
+                                if (width < 1 || height < 1 || fps < 1 || fps > 1000 || min < 1 || max < min) {
+                                    ladder = null;
+                                    break;
+                                }
+                                ladder.add(new AbrController.Rung(width, height, fps, min, max));
+                            }
+
+                            if (ladder == null) {
+                                router.sendError(connectionManager, cmdId, cmd, "Invalid ABR Ladder");
+                                break;
+                            }
+                        }
+
+                        ((H264Media) media).SetAbr(abr.optBoolean(ENABLED, true), ladder);
+                        router.sendResponse(connectionManager, cmdId, cmd, null);
+                    }
+                    else if (param.has(FRAME_TRACE)) {
+                        if (!(media instanceof H264Media)) {
+                            router.sendError(connectionManager, cmdId, cmd, "Frame trace only supported in H264 mode");
+                            break;
+                        }
+
+                        ((H264Media) media).SetFrameTrace(param.optBoolean(FRAME_TRACE, false));
+                        router.sendResponse(connectionManager, cmdId, cmd, null);
+                    }
                     else {
                         router.sendError(connectionManager, cmdId, cmd, "Invalid Request");
                     }
@@ -328,6 +389,40 @@ public class StreamRoute  {
                     break;
                 }
 
+                case GET_STREAM_STATS: {
+                    if (!(media instanceof H264Media)) {
+                        router.sendError(connectionManager, cmdId, cmd,
+                                "Stream stats only supported in H264 mode");
+                        break;
+                    }
+
+                    GopDropPolicy drop = ((H264Media) media).getDropPolicy();
+                    JSONObject data = new JSONObject();
+                    data.put("droppedFrames",   drop.getDroppedFrames());
+                    data.put("skippedGops",     drop.getSkippedGops());
+                    data.put("syncRequests",    drop.getSyncRequests());
+                    data.put("recoveries",      drop.getRecoveries());
+                    data.put("lastRecoveryMs",  drop.getLastRecoveryMs());
+                    data.put("avgRecoveryMs",   drop.getAvgRecoveryMs());
+                    data.put("maxRecoveryMs",   drop.getMaxRecoveryMs());
+                    data.put("skipping",        drop.isSkipping());
+
+                    StreamingEncoder encoder = ((H264Media) media).getStreamEncoder();
+                    if (encoder != null) {
+                        data.put("asyncEncoder",      encoder.isAsync());
+                        data.put("queueOverflowDrops", encoder.getOverflowPolicy().getDroppedFrames());
+                    }
+                    data.put("sendQueue", ((H264Media) media).getSendStats());
+                    data.put("latencyUs", ((H264Media) media).getFrameLatency());
+                    WebSocketHandler control = connectionManager.getWebSocketHandlerObject();
+                    if (control != null) {
+                        data.put("controlSendQueue", control.getSendStats());
+                    }
+
+                    router.sendResponse(connectionManager, cmdId, cmd, data);
+                    break;
+                }
+
                 case FLIP: {
                     media.FlipCamera();
                     router.sendResponse(connectionManager, cmdId, cmd, null);
@@ -11,14 +11,19 @@ import android.util.Log;
 
 import com.github.nikipo.ussoi.service.control.ConnectionManager;
 import com.github.nikipo.ussoi.storage.SaveInputFields;
+import com.github.nikipo.ussoi.tunnel.MavlinkFramer;
+import com.github.nikipo.ussoi.tunnel.MavlinkPolicy;
 import com.github.nikipo.ussoi.tunnel.bt.BluetoothHandler;
 import com.github.nikipo.ussoi.tunnel.Tunnel;
 import com.github.nikipo.ussoi.tunnel.usb.UsbHandler;
+import com.github.nikipo.ussoi.tunnel.usb.UsbTunnelConfig;
 
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -48,6 +53,7 @@ public class TunnelRoute  {
     private final boolean useBT;
     private final boolean useUSB;
     public final List<BluetoothDevice> selectedBtDevices;
+    private final List<UsbTunnelConfig> selectedUsbTunnels;
     private final List<Tunnel> tunnels = new ArrayList<>();
 
     public TunnelRoute(ConnectionManager connectionManager, Router router, Context ctx) {
@@ -56,6 +62,7 @@ public class TunnelRoute  {
         this.connectionManager = connectionManager;
         preferences = SaveInputFields.getInstance(ctx).get_shared_pref();
         selectedBtDevices = SaveInputFields.selectedBtDevices;
+        selectedUsbTunnels = SaveInputFields.selectedUsbTunnels;
         useBT  = preferences.getBoolean(KEY_BT_SWITCH, false);
         useUSB = preferences.getBoolean(KEY_USB_Switch, false);
 
@@ -63,8 +70,8 @@ public class TunnelRoute  {
             initBtTunnels(ctx);
             Log.d(TAG, "Tunnel created: BluetoothHandler");
         } else if (useUSB) {
-            tunnels.add(UsbHandler.getInstance(ctx));
-            Log.d(TAG, "Tunnel created: UsbHandler");
+            initUsbTunnels(ctx);
+            Log.d(TAG, "Tunnels created: UsbHandler x" + tunnels.size());
         } else {
             tunnels.add(new Tunnel() {
                 @Override public void init()               {}
@@ -76,45 +83,70 @@ public class TunnelRoute  {
         }
     }
 
+    /** One tunnel per selected module, named after it; same-named modules get their address appended. */
     private void initBtTunnels(Context ctx) {
         for (BluetoothDevice bt : selectedBtDevices) {
-            BluetoothHandler handler = new BluetoothHandler(ctx);
-            handler.setDevice(bt);
-            tunnels.add(handler);
+            if (tunnels.size() >= BluetoothHandler.MAX_TUNNELS) {
+                Log.w(TAG, "Only " + BluetoothHandler.MAX_TUNNELS + " Bluetooth tunnels are started");
+                break;
+            }
+            String name;
+            try {
+                name = bt.getName();
+            } catch (SecurityException e) {
+                name = null;
+            }
+            if (name == null || name.isEmpty()) name = bt.getAddress();
+            if (findTunnel(name) != null) name = name + "-" + bt.getAddress();
+            tunnels.add(new BluetoothHandler(ctx, bt, name));
         }
     }
 
-    // TODO implement this
+    /** One independent tunnel per selected port; names are unique (enforced at selection). */
     private void initUsbTunnels(Context ctx) {
-        for (BluetoothDevice bt : selectedBtDevices) {
-            BluetoothHandler handler = new BluetoothHandler(ctx);
-            handler.setDevice(bt);
-            tunnels.add(handler);
+        for (UsbTunnelConfig config : selectedUsbTunnels) {
+            tunnels.add(new UsbHandler(ctx, config));
         }
     }
 
     public void route(JSONObject json) {
         String cmd        = json.optString(CMD,        EMPTY);
         String cmdId      = json.optString(CMD_ID,      EMPTY);
-        String tunnelName = json.optString(TUNNEL_NAME, EMPTY);
+        JSONObject param  = json.optJSONObject(PARAM);
+        // documented under param; top-level kept for older clients
+        String tunnelName = param != null && param.has(TUNNEL_NAME)
+                ? param.optString(TUNNEL_NAME, EMPTY)
+                : json.optString(TUNNEL_NAME, EMPTY);
         try {
             switch (cmd) {
                 case START_TUNNEL: {
-                    if (startTunnel(tunnelName)) {
-                        router.sendResponse(connectionManager, cmd,cmdId,null );
-                    } else {
+                    int coalesceMs = param != null ? param.optInt(COALESCE_MS, -1) : -1;
+                    if (param != null && param.has(COALESCE_MS)
+                            && (coalesceMs < 0 || coalesceMs > MavlinkFramer.MAX_COALESCE_MS)) {
+                        router.sendError(connectionManager, cmdId, cmd, INVALID_PARAMS);
+                        break;
+                    }
+                    Tunnel t = findTunnel(tunnelName);
+                    if (t == null) {
                         router.sendError(connectionManager, cmdId, cmd,"Tunnel '" + tunnelName + "' not found");
+                    } else if (startTunnel(t, coalesceMs)) {
+                        router.sendResponse(connectionManager, cmdId, cmd, null);
+                    } else {
+                        router.sendError(connectionManager, cmdId, cmd,"Tunnel '" + tunnelName + "' failed to start");
                     }
                     break;
                 }
                 case STOP_TUNNEL: {
                     if (stopTunnel(tunnelName)) {
-                        router.sendResponse(connectionManager, cmd,cmdId, null);
+                        router.sendResponse(connectionManager, cmdId, cmd, null);
                     } else {
                         router.sendError(connectionManager, cmdId, cmd,"Tunnel '" + tunnelName + "' not found");
                     }
                     break;
                 }
+                case SET_TUNNEL_POLICY:
+                    setPolicy(json);
+                    break;
 
                 default:
                     router.sendError(connectionManager, cmdId, cmd, "Unknown tunnel command: " + cmd);
@@ -135,18 +167,19 @@ public class TunnelRoute  {
         return null;
     }
 
-    private boolean startTunnel(String tunnelName) {
-        Tunnel t = findTunnel(tunnelName);
-        if (t == null) return false;
+    /** @param coalesceMs framer window, -1 keeps the tunnel's current one */
+    private boolean startTunnel(Tunnel t, int coalesceMs) {
         try {
+            // also retunes a running tunnel
+            if (coalesceMs >= 0) t.setCoalesceMs(coalesceMs);
             // only init tunnel if not running
             if(!t.isTunnelRunning()){
                 t.init();
             }
-            return true;
+            return t.isTunnelRunning();
         } catch (Exception e) {
             e.printStackTrace();
-            Log.e(TAG, "startTunnel failed: " + tunnelName, e);
+            Log.e(TAG, "startTunnel failed: " + t.getTunnelName(), e);
             return false;
         }
     }
@@ -163,21 +196,82 @@ public class TunnelRoute  {
         }
     }
 
-    public JSONObject getTunnels() {
-        JSONObject root = new JSONObject();
-        JSONArray tunnelsArray = new JSONArray();
+    /**
+     * Changes the MAVLink policy of one tunnel ({@code param.tunnel_name}) or,
+     * without a name, of all of them. Validated as a whole before anything is
+     * applied; an empty param only reads the current policies.
+     */
+    private void setPolicy(JSONObject json) throws JSONException {
+        String cmdId = json.optString(CMD_ID, EMPTY);
+        JSONObject param = json.optJSONObject(PARAM);
+        if (param == null) param = new JSONObject();
 
-        for (Tunnel t : tunnels) {
-            if (t == null) continue;
+        MavlinkPolicy.Degrade degrade = null;
+        if (param.has(DEGRADE)) {
+            degrade = MavlinkPolicy.Degrade.parse(param.optString(DEGRADE, null));
+            if (degrade == null) {
+                router.sendError(connectionManager, cmdId, SET_TUNNEL_POLICY, "Invalid degrade mode");
+                return;
+            }
+        }
+        List<MavlinkPolicy.Rule> upserts = new ArrayList<>();
+        List<Integer> removes = new ArrayList<>();
+        if (param.has(RULES) && !MavlinkPolicy.parseRules(param.optJSONArray(RULES), upserts, removes)) {
+            router.sendError(connectionManager, cmdId, SET_TUNNEL_POLICY, INVALID_PARAMS);
+            return;
+        }
 
-            String name = t.getTunnelName();
-            if (name == null || name.isEmpty()) continue;
+        String name = param.optString(TUNNEL_NAME, EMPTY);
+        List<Tunnel> targets = new ArrayList<>();
+        if (name.isEmpty()) {
+            for (Tunnel t : tunnels) {
+                if (t == null || t.getPolicy() == null) continue;
+                String n = t.getTunnelName();
+                if (n != null && !n.isEmpty()) targets.add(t);
+            }
+        } else {
+            Tunnel t = findTunnel(name);
+            if (t == null || t.getPolicy() == null) {
+                router.sendError(connectionManager, cmdId, SET_TUNNEL_POLICY, "Tunnel '" + name + "' not found");
+                return;
+            }
+            targets = Collections.singletonList(t);
+        }
 
-            tunnelsArray.put(name);
+        boolean reset = param.optBoolean(RESET, false);
+        for (Tunnel t : targets) {
+            if (!t.getPolicy().fits(reset, upserts, removes)) {
+                router.sendError(connectionManager, cmdId, SET_TUNNEL_POLICY,
+                        "Too many rules for " + t.getTunnelName() + " (max " + MavlinkPolicy.MAX_RULES + ")");
+                return;
+            }
+        }
+        JSONObject policies = new JSONObject();
+        for (Tunnel t : targets) {
+            t.getPolicy().apply(reset, degrade, upserts, removes);
+            policies.put(t.getTunnelName(), t.getPolicy().toJson());
         }
+        router.sendResponse(connectionManager, cmdId, SET_TUNNEL_POLICY, new JSONObject().put(POLICIES, policies));
+    }
+
+    public JSONObject getTunnels() {
+        JSONObject root = new JSONObject();
+        JSONArray tunnelsArray = new JSONArray();
+        JSONObject stats = new JSONObject();
 
         try {
+            for (Tunnel t : tunnels) {
+                if (t == null) continue;
+
+                String name = t.getTunnelName();
+                if (name == null || name.isEmpty()) continue;
+
+                tunnelsArray.put(name);
+                JSONObject s = t.getStats();
+                if (s != null) stats.put(name, s);
+            }
             root.put("tunnels", tunnelsArray);
+            root.put(STATS, stats);
         }
         catch (Exception e){
             e.printStackTrace();
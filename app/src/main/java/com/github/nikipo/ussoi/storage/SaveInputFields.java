@@ -7,6 +7,8 @@ import android.content.SharedPreferences;
 import androidx.security.crypto.EncryptedSharedPreferences;
 import androidx.security.crypto.MasterKey;
 
+import com.github.nikipo.ussoi.tunnel.usb.UsbTunnelConfig;
+
 import org.json.JSONObject;
 
 import java.security.KeyStore;
@@ -17,6 +19,7 @@ public  class SaveInputFields {
     private static SaveInputFields instance;
     private SharedPreferences prefs;
     public static final List<BluetoothDevice> selectedBtDevices =  new ArrayList<>();
+    public static final List<UsbTunnelConfig> selectedUsbTunnels =  new ArrayList<>();
     public static final JSONObject btDevices = new JSONObject();
     // --- General Preferences ---
     static final String PREFS_NAME    = "UsbAppPrefs";
@@ -31,11 +34,16 @@ public  class SaveInputFields {
     public static final String KEY_auth_api_path = "api/device/authenticate";
     public static final String KEY_stream_api_path = "ws/device/stream";
     public static final String KEY_data_api_path = "ws/device/data";
+    public static final String KEY_mux_api_path = "ws/device/mux";
     public static final String KEY_turn_list = "turnArray";
 
     // --- Feature Toggles (Switches) ---
     public static final String KEY_BT_SWITCH  = "bt";
     public static final String KEY_USB_Switch  = "usb";
+    // carry all WebSocket channels over one multiplexed socket (needs server support)
+    public static final String KEY_WS_MUX  = "wsMux";
+    // loopback port for the Prometheus /metrics endpoint (int, 0 = off)
+    public static final String KEY_Metrics_Port  = "metricsPort";
 
     // --- Session & Authentication ---
     public static final String KEY_RoomID       = "roomId";
@@ -0,0 +1,76 @@
+package com.github.nikipo.ussoi.storage.logs;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * *****************************************************************************
+ *
+ * @author nikipo
+ * *****************************************************************************
+ * @file LogRing
+ * @attention Copyright (c) 2026
+ * All rights reserved.
+ * <p>
+ * This software is licensed under the terms described in the LICENSE file
+ * located in the root directory of this project.
+ * If no LICENSE file is present, this software is provided "AS IS",
+ * without warranty of any kind, express or implied.
+ * <p>
+ * *****************************************************************************
+ */
+
+/**
+ * Bounded lock-free multi-producer / single-consumer ring.
+ *
+ * Producers claim a sequence number with one CAS on {@code head} and publish
+ * into that slot; the consumer takes slots in sequence order and frees them
+ * before advancing {@code tail}. A slot that is claimed but not yet published
+ * reads as null and ends the current drain, so order is kept. offer() never
+ * blocks: when the ring is full it returns false and the caller counts the drop.
+ */
+final class LogRing<T> {
+    private final AtomicReferenceArray<T> slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    // written by the consumer only
+    private volatile long tail = 0;
+
+    /** @param capacity power of two */
+    LogRing(int capacity) {
+        if (Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("capacity must be a power of two");
+        slots = new AtomicReferenceArray<>(capacity);
+        mask = capacity - 1;
+    }
+
+    /** Any thread. False if the ring is full. */
+    boolean offer(T item) {
+        long h;
+        do {
+            h = head.get();
+            if (h - tail > mask) return false;
+        } while (!head.compareAndSet(h, h + 1));
+        slots.set((int) (h & mask), item);
+        return true;
+    }
+
+    /** Consumer thread only. Next item in order, or null if none is published yet. */
+    T poll() {
+        long t = tail;
+        int i = (int) (t & mask);
+        T item = slots.get(i);
+        if (item == null) return null;
+        slots.set(i, null);
+        tail = t + 1;
+        return item;
+    }
+
+    /** Claimed slots not yet consumed (approximate while producers are active). */
+    int size() {
+        return (int) Math.max(0, head.get() - tail);
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+}
@@ -3,42 +3,148 @@ package com.github.nikipo.ussoi.storage.logs;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.documentfile.provider.DocumentFile;
 
 import com.github.nikipo.ussoi.storage.SaveInputFields;
+import com.github.nikipo.ussoi.system.metrics.Counter;
+import com.github.nikipo.ussoi.system.metrics.Gauge;
+import com.github.nikipo.ussoi.system.metrics.Histogram;
+import com.github.nikipo.ussoi.system.metrics.Metrics;
 
-import java.io.BufferedWriter;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 
 // usage  private Logging logging;
 // logging = Logging.getInstance(this);
 // logging.log("Application Started / Main Activity Created");
+// logging.d(TAG, "only written when DEBUG is enabled for TAG");
+
+/**
+ * Session log written to the user-picked SAF folder ({@code <folder>/log}).
+ *
+ * log() only formats the message and offers a record to a lock-free ring
+ * ({@link LogRing}); one "LogWriter" thread drains it into a buffer and writes
+ * that through a single long-lived FileChannel — flushed every
+ * {@link #FLUSH_INTERVAL_MS} or once {@link #FLUSH_BYTES} are buffered.
+ * A file is rotated at {@link #MAX_FILE_BYTES}; only the newest
+ * {@link #MAX_FILES} log files are kept.
+ *
+ * Records below the global level (or the per-tag override) are dropped before
+ * any formatting; change both at runtime with {@link #setLevel} /
+ * {@link #setTagLevel}. When the ring is full the record is dropped and
+ * counted, and the writer notes the number of lost lines in the file.
+ */
 public class Logging {
     private static final String TAG = "Logging";
     private static volatile Logging instance; // volatile for double-checked locking safety
-    private DocumentFile logDir;
-    private DocumentFile logFile;
+
+    public enum Level {
+        VERBOSE('V'), DEBUG('D'), INFO('I'), WARN('W'), ERROR('E');
+
+        final char letter;
+
+        Level(char letter) {
+            this.letter = letter;
+        }
+
+        /** Case-insensitive name, or null. */
+        public static Level parse(String name) {
+            for (Level l : values()) {
+                if (l.name().equalsIgnoreCase(name)) return l;
+            }
+            return null;
+        }
+    }
+
+    static final int RING_CAPACITY = 4096;
+    static final int FLUSH_BYTES = 32 * 1024;
+    static final long FLUSH_INTERVAL_MS = 1000;
+    static final long MAX_FILE_BYTES = 2 * 1024 * 1024;
+    static final int MAX_FILES = 10;
+    // while the folder is not picked / not writable
+    private static final long REOPEN_INTERVAL_MS = 30_000;
+    private static final String FILE_PREFIX = "log__";
+
+    private static final Counter linesWritten = Metrics.counter("ussoi_log_lines_total", "Log lines written");
+    private static final Counter bytesWritten = Metrics.counter("ussoi_log_bytes_total", "Log bytes written");
+    private static final Counter droppedFull = Metrics.counter("ussoi_log_dropped_total", "reason=\"full\"",
+            "Log lines dropped");
+    private static final Counter droppedNoFile = Metrics.counter("ussoi_log_dropped_total", "reason=\"no_file\"",
+            "Log lines dropped");
+    private static final Counter rotations = Metrics.counter("ussoi_log_rotations_total", "Log file rotations");
+    private static final Histogram flushLatency = Metrics.histogram("ussoi_log_flush_us",
+            "Time to write one batch to the log file, microseconds");
+    private static final Gauge ringDepth = Metrics.gauge("ussoi_log_ring_depth", "Log records waiting for the writer");
+
+    private static final class Record {
+        final long timeMs;
+        final Level level;
+        final String tag;
+        final String message;
+
+        Record(Level level, String tag, String message) {
+            this.timeMs = System.currentTimeMillis();
+            this.level = level;
+            this.tag = tag;
+            this.message = message;
+        }
+    }
+
     private final Context context;
     private final String sessionLogFileName;
-    private final ExecutorService logExecutor;
+    private final LogRing<Record> ring = new LogRing<>(RING_CAPACITY);
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    private volatile Level level = Level.INFO;
+    private final Map<String, Level> tagLevels = new ConcurrentHashMap<>();
+    // drops since the writer last reported them
+    private final AtomicLong pendingDrops = new AtomicLong();
+
+    // writer thread only
+    private DocumentFile logDir;
+    private DocumentFile logFile;
+    private ParcelFileDescriptor fileDescriptor;
+    private FileChannel channel;
+    private long fileBytes;
+    private int part = 1;
+    private long nextOpenAttemptMs = 0;
+    private long lastFlushMs;
+    // an ERROR line is in the buffer
+    private boolean flushNow;
+    private final ByteBuffer buffer = ByteBuffer.allocate(2 * FLUSH_BYTES);
+    private final StringBuilder line = new StringBuilder(256);
 
 
     private Logging(Context context) {
         this.context = context.getApplicationContext();
-        this.logExecutor = Executors.newSingleThreadExecutor();
         this.sessionLogFileName = buildSessionLogFileName();
-        logExecutor.execute(this::initializeLogging);
+        this.writer = new Thread(this::writeLoop, "LogWriter");
+        writer.setPriority(Thread.MIN_PRIORITY);
+        writer.start();
     }
 
 
@@ -57,62 +163,284 @@ public class Logging {
         return instance;
     }
 
-    private void initializeLogging() {
+    // ── API ──
+
+    /** INFO line: tag followed by the values, comma separated. */
+    public void log(String tag, Object... values) {
+        if (!isLoggable(Level.INFO, tag)) return;
+        if (values.length == 0) {
+            enqueue(Level.INFO, tag, null);
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(values[i]);
+        }
+        enqueue(Level.INFO, tag, sb.toString());
+    }
+
+    public void log(Level level, String tag, String message) {
+        if (isLoggable(level, tag)) enqueue(level, tag, message);
+    }
+
+    public void d(String tag, String message) {
+        log(Level.DEBUG, tag, message);
+    }
+
+    public void i(String tag, String message) {
+        log(Level.INFO, tag, message);
+    }
+
+    public void w(String tag, String message) {
+        log(Level.WARN, tag, message);
+    }
+
+    public void e(String tag, String message) {
+        log(Level.ERROR, tag, message);
+    }
+
+    /** Check before building an expensive message. */
+    public boolean isLoggable(Level l, String tag) {
+        if (!running) return false;
+        Level min = tagLevels.isEmpty() ? null : tagLevels.get(tag);
+        return l.compareTo(min != null ? min : level) >= 0;
+    }
+
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    /** Per-tag minimum level; null removes the override. */
+    public void setTagLevel(String tag, Level level) {
+        if (level == null) tagLevels.remove(tag);
+        else tagLevels.put(tag, level);
+    }
+
+    public void clearTagLevels() {
+        tagLevels.clear();
+    }
+
+    /** {"level": "INFO", "tags": {tag: level}} */
+    public JSONObject getConfig() {
+        JSONObject tags = new JSONObject();
+        JSONObject cfg = new JSONObject();
+        try {
+            for (Map.Entry<String, Level> e : tagLevels.entrySet()) tags.put(e.getKey(), e.getValue().name());
+            cfg.put("level", level.name());
+            cfg.put("tags", tags);
+        } catch (JSONException e) {
+            Log.e(TAG, "getConfig failed", e);
+        }
+        return cfg;
+    }
+
+    private void enqueue(Level l, String tag, String message) {
+        if (!ring.offer(new Record(l, tag, message))) {
+            droppedFull.inc();
+            pendingDrops.incrementAndGet();
+            return;
+        }
+        // wake the writer early when errors need to hit the disk or the ring fills up
+        if (l == Level.ERROR || ring.size() >= RING_CAPACITY / 2) LockSupport.unpark(writer);
+    }
+
+    // ── Writer thread ──
+
+    private void writeLoop() {
+        lastFlushMs = SystemClock.elapsedRealtime();
+        while (true) {
+            boolean stopping = !running;
+            int drained = drain();
+            long now = SystemClock.elapsedRealtime();
+            if (buffer.position() >= FLUSH_BYTES
+                    || (buffer.position() > 0 && (stopping || flushNow || now - lastFlushMs >= FLUSH_INTERVAL_MS))) {
+                flush();
+            }
+            if (stopping) break;
+            if (drained == 0) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MS / 4));
+            }
+        }
+        closeFile();
+    }
+
+    /** Moves published records into the buffer; returns how many. */
+    private int drain() {
+        ensureOpen();
+        int n = 0;
+        long drops = pendingDrops.getAndSet(0);
+        if (drops > 0) append(new Record(Level.WARN, TAG, drops + " lines dropped (log buffer full)"));
+        Record r;
+        while ((r = ring.poll()) != null) {
+            n++;
+            append(r);
+        }
+        ringDepth.set(ring.size());
+        return n;
+    }
+
+    private void append(Record r) {
+        if (channel == null) {
+            droppedNoFile.inc();
+            return;
+        }
+        line.setLength(0);
+        appendTime(line, r.timeMs);
+        line.append(',').append(r.level.letter).append(',').append(r.tag);
+        if (r.message != null) line.append(',').append(r.message);
+        line.append('\n');
+        byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+
+        if (bytes.length > buffer.remaining()) flush();
+        if (bytes.length > buffer.remaining()) {
+            // longer than the whole buffer: written on its own
+            write(ByteBuffer.wrap(bytes));
+        } else {
+            buffer.put(bytes);
+        }
+        if (r.level == Level.ERROR) flushNow = true;
+        linesWritten.inc();
+    }
+
+    private void flush() {
+        if (buffer.position() == 0) return;
+        buffer.flip();
+        write(buffer);
+        buffer.clear();
+        lastFlushMs = SystemClock.elapsedRealtime();
+        flushNow = false;
+        if (fileBytes >= MAX_FILE_BYTES) rotate();
+    }
+
+    private void write(ByteBuffer src) {
+        if (channel == null) return;
+        long startNs = System.nanoTime();
+        int bytes = src.remaining();
+        try {
+            while (src.hasRemaining()) channel.write(src);
+            fileBytes += bytes;
+            bytesWritten.add(bytes);
+        } catch (SecurityException | IOException e) {
+            Log.e(TAG, "SAF permission revoked", e);
+            closeFile();
+            nextOpenAttemptMs = SystemClock.elapsedRealtime() + REOPEN_INTERVAL_MS;
+        }
+        flushLatency.recordSinceNs(startNs);
+    }
+
+    // ── Files ──
+
+    private void ensureOpen() {
+        if (channel != null) return;
+        long now = SystemClock.elapsedRealtime();
+        if (now < nextOpenAttemptMs) return;
+        nextOpenAttemptMs = now + REOPEN_INTERVAL_MS;
+        try {
+            if (logDir == null && !openDir()) return;
+            openFile(fileName(part));
+            if (part == 1) enforceRetention();
+        } catch (SecurityException | IOException | IllegalArgumentException e) {
+            Log.e(TAG, "Cannot open log file", e);
+            closeFile();
+            logDir = null;
+        }
+    }
+
+    private boolean openDir() {
         SharedPreferences pref =
                 SaveInputFields.getInstance(context).get_shared_pref();
 
         String uriStr = pref.getString(SaveInputFields.PREF_LOG_URI, null);
-        if (uriStr == null) return;
+        if (uriStr == null) return false;
 
         DocumentFile root = DocumentFile.fromTreeUri(context, Uri.parse(uriStr));
-        if (root == null) return;
+        if (root == null) return false;
 
         logDir = root.findFile("log");
         if (logDir == null) {
             logDir = root.createDirectory("log");
         }
+        return logDir != null;
+    }
 
-        assert logDir != null;
-        logFile = logDir.findFile(sessionLogFileName);
+    private void openFile(String name) throws IOException {
+        logFile = logDir.findFile(name);
         if (logFile == null) {
-            logFile = logDir.createFile("text/plain", sessionLogFileName);
+            logFile = logDir.createFile("text/plain", name);
         }
-    }
+        if (logFile == null) throw new IOException("createFile failed: " + name);
 
-    public void log(String tag, Object... values) {
-        if (logExecutor.isShutdown()) return;
-
-        final String ts =
-                new SimpleDateFormat("HH:mm:ss.SSS", Locale.US).format(new Date());
+        fileDescriptor = context.getContentResolver().openFileDescriptor(logFile.getUri(), "wa");
+        if (fileDescriptor == null) throw new IOException("openFileDescriptor failed: " + name);
+        channel = new FileOutputStream(fileDescriptor.getFileDescriptor()).getChannel();
+        fileBytes = logFile.length();
+    }
 
-        logExecutor.execute(() -> {
-            if (logFile == null) {
-                Log.e(TAG, "logFile not initialized yet");
-                return;
-            }
+    private void rotate() {
+        closeFile();
+        part++;
+        rotations.inc();
+        try {
+            openFile(fileName(part));
+            enforceRetention();
+        } catch (SecurityException | IOException | IllegalArgumentException e) {
+            Log.e(TAG, "Log rotation failed", e);
+            closeFile();
+            nextOpenAttemptMs = SystemClock.elapsedRealtime() + REOPEN_INTERVAL_MS;
+        }
+    }
 
-            try (OutputStream os =
-                         context.getContentResolver()
-                                 .openOutputStream(logFile.getUri(), "wa");
-                 BufferedWriter writer =
-                         new BufferedWriter(
-                                 new OutputStreamWriter(os, StandardCharsets.UTF_8))) {
+    /** Deletes the oldest log files beyond MAX_FILES (this session's included). */
+    private void enforceRetention() {
+        List<DocumentFile> logs = new ArrayList<>();
+        for (DocumentFile f : logDir.listFiles()) {
+            String name = f.getName();
+            if (name != null && name.startsWith(FILE_PREFIX) && f.isFile()) logs.add(f);
+        }
+        if (logs.size() <= MAX_FILES) return;
+        DocumentFile[] sorted = logs.toArray(new DocumentFile[0]);
+        Arrays.sort(sorted, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        int excess = sorted.length - MAX_FILES;
+        for (DocumentFile old : sorted) {
+            if (excess <= 0) break;
+            if (logFile != null && old.getUri().equals(logFile.getUri())) continue;
+            if (old.delete()) excess--;
+        }
+    }
 
-                StringBuilder sb = new StringBuilder();
-                sb.append(ts).append(",").append(tag);
+    private void closeFile() {
+        try {
+            if (channel != null) channel.close();
+            if (fileDescriptor != null) fileDescriptor.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Log close failed", e);
+        }
+        channel = null;
+        fileDescriptor = null;
+        logFile = null;
+    }
 
-                for (Object value : values) {
-                    sb.append(",").append(value);
-                }
+    /** Part 1 keeps the session name; later parts get a _pN suffix. */
+    private String fileName(int part) {
+        if (part == 1) return sessionLogFileName;
+        return sessionLogFileName.substring(0, sessionLogFileName.length() - 4) + "_p" + part + ".txt";
+    }
 
-                writer.write(sb.toString());
-                writer.newLine();
+    /** HH:mm:ss.SSS in local time, without a formatter per line. */
+    private static void appendTime(StringBuilder sb, long timeMs) {
+        long local = timeMs + TimeZone.getDefault().getOffset(timeMs);
+        long ms = Math.floorMod(local, 24L * 3600 * 1000);
+        pad(sb, ms / 3_600_000, 2).append(':');
+        pad(sb, ms / 60_000 % 60, 2).append(':');
+        pad(sb, ms / 1000 % 60, 2).append('.');
+        pad(sb, ms % 1000, 3);
+    }
 
-            } catch (SecurityException | IOException e) {
-                Log.e(TAG, "SAF permission revoked", e);
-                closeLogging();
-            }
-        });
+    private static StringBuilder pad(StringBuilder sb, long v, int width) {
+        String s = Long.toString(v);
+        for (int i = s.length(); i < width; i++) sb.append('0');
+        return sb.append(s);
     }
 
     private String buildSessionLogFileName() {
@@ -126,7 +454,7 @@ public class Logging {
 
         String precisionPart = new SimpleDateFormat("ss.SSS", Locale.US).format(now);
 
-        return "log__" + timePart + "__" + datePart + "__" + precisionPart +".txt";
+        return FILE_PREFIX + timePart + "__" + datePart + "__" + precisionPart +".txt";
     }
     private String getDaySuffix(int day) {
         if (day >= 11 && day <= 13) return "th";
@@ -139,9 +467,16 @@ public class Logging {
     }
 
 
+    /** Writes out what is queued, closes the file and stops the writer. */
     public void closeLogging() {
-        logExecutor.shutdown();
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
         instance = null;
     }
 
-}
\ No newline at end of file
+}
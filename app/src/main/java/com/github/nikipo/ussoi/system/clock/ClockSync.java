@@ -0,0 +1,289 @@
+package com.github.nikipo.ussoi.system.clock;
+
+import static com.github.nikipo.ussoi.ui.UssoiStrings.CMD;
+import static com.github.nikipo.ussoi.ui.UssoiStrings.CMD_ID;
+import static com.github.nikipo.ussoi.ui.UssoiStrings.DATA;
+import static com.github.nikipo.ussoi.ui.UssoiStrings.ERROR;
+import static com.github.nikipo.ussoi.ui.UssoiStrings.ERROR_MSG;
+import static com.github.nikipo.ussoi.ui.UssoiStrings.REQUEST;
+import static com.github.nikipo.ussoi.ui.UssoiStrings.TIME_SYNC;
+import static com.github.nikipo.ussoi.ui.UssoiStrings.TYPE;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.github.nikipo.ussoi.system.metrics.Counter;
+import com.github.nikipo.ussoi.system.metrics.Gauge;
+import com.github.nikipo.ussoi.system.metrics.Histogram;
+import com.github.nikipo.ussoi.system.metrics.Metrics;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * *****************************************************************************
+ *
+ * @author nikipo
+ * *****************************************************************************
+ * @file ClockSync
+ * @attention Copyright (c) 2026
+ * All rights reserved.
+ * <p>
+ * This software is licensed under the terms described in the LICENSE file
+ * located in the root directory of this project.
+ * If no LICENSE file is present, this software is provided "AS IS",
+ * without warranty of any kind, express or implied.
+ * <p>
+ * *****************************************************************************
+ */
+
+/**
+ * NTP-style offset estimation against the ground server over the control socket.
+ *
+ * The device sends {@code time_sync} requests carrying its send time t0; the
+ * server answers with t1 (request received) and t2 (response sent) in its own
+ * epoch ms, and the device takes t3 on arrival:
+ * <pre>
+ *   offset = ((t1 - t0) + (t2 - t3)) / 2      rtt = (t3 - t0) - (t2 - t1)
+ * </pre>
+ * Device times come from elapsedRealtime, so the estimate is "server time as a
+ * function of the monotonic clock" and phone wall-clock steps do not touch it.
+ *
+ * Filtering follows the NTP clock filter: of the last {@link #WINDOW} samples
+ * the one with the lowest rtt wins (queueing only ever adds delay, so it has
+ * the smallest error). The published offset slews towards it by
+ * {@link #SLEW_GAIN} per sample, and steps when the gap exceeds
+ * {@link #STEP_US} — server clock changed or first sample.
+ *
+ * {@link #nowMs()} is the time base for every outgoing media and telemetry
+ * timestamp. Until the first sample it is the phone's wall clock.
+ */
+public final class ClockSync {
+    private static final String TAG = "ClockSync";
+
+    public interface Link {
+        boolean isReady();
+
+        /** Sends a time_sync request on the control channel. */
+        void send(JSONObject request);
+    }
+
+    private static final String KEY_T0 = "t0";
+    private static final String KEY_T1 = "t1";
+    private static final String KEY_T2 = "t2";
+
+    static final int WINDOW = 8;
+    // burst right after connect so the window fills quickly, then steady polling
+    private static final long BURST_INTERVAL_MS = 250;
+    private static final long POLL_INTERVAL_MS = 10_000;
+    private static final long RESPONSE_TIMEOUT_MS = 2_000;
+    private static final double SLEW_GAIN = 0.25;
+    static final long STEP_US = 128_000;
+    // anything slower than this says nothing useful about the offset
+    private static final long MAX_RTT_US = 2_000_000;
+
+    private static final Gauge offsetGauge = Metrics.gauge(
+            "ussoi_clock_offset_us", "Estimated server time minus device monotonic time, microseconds");
+    private static final Gauge rttGauge = Metrics.gauge(
+            "ussoi_clock_rtt_us", "Round trip of the selected time_sync sample, microseconds");
+    private static final Gauge jitterGauge = Metrics.gauge(
+            "ussoi_clock_jitter_us", "RMS offset difference across the filter window, microseconds");
+    private static final Histogram rttSamples = Metrics.histogram(
+            "ussoi_clock_sample_rtt_us", "Round trip of every time_sync exchange, microseconds");
+    private static final Counter timeouts = Metrics.counter(
+            "ussoi_clock_timeouts_total", "time_sync requests without a response");
+
+    // Published estimate, read from any thread
+    private static volatile boolean synced = false;
+    private static volatile long offsetUs = 0;
+    private static volatile long rttUs = -1;
+
+    private final Link link;
+    private final Object lock = new Object();
+
+    // guarded by lock
+    private final long[] windowOffsetUs = new long[WINDOW];
+    private final long[] windowRttUs = new long[WINDOW];
+    private int windowCount = 0;
+    private int windowNext = 0;
+    private int burstLeft = 0;
+    private long nextDueMs = 0;
+    private int sequence = 0;
+    private String pendingId = null;
+    private long pendingT0Us = 0;
+    private boolean unsupported = false;
+
+    private volatile Thread worker;
+    private volatile boolean running = false;
+
+    public ClockSync(Link link) {
+        this.link = link;
+    }
+
+    // ── Time base ──
+
+    /** Server time, epoch ms; the phone's wall clock until the first sample. */
+    public static long nowMs() {
+        return synced ? (monotonicUs() + offsetUs) / 1000 : System.currentTimeMillis();
+    }
+
+    public static boolean isSynced() {
+        return synced;
+    }
+
+    /** Round trip of the selected sample, µs; -1 before the first sample. */
+    public static long getRttUs() {
+        return rttUs;
+    }
+
+    private static long monotonicUs() {
+        return SystemClock.elapsedRealtimeNanos() / 1000;
+    }
+
+    // ── Exchange ──
+
+    /**
+     * Starts a burst of exchanges; call when the control socket opens. The
+     * filter window restarts because the new path may have a different delay,
+     * the published offset stays until a new sample replaces it.
+     */
+    public void start() {
+        synchronized (lock) {
+            windowCount = 0;
+            windowNext = 0;
+            burstLeft = WINDOW;
+            // first exchange right away, the rest of the burst BURST_INTERVAL_MS apart
+            nextDueMs = 0;
+            pendingId = null;
+            unsupported = false;
+            if (running) {
+                lock.notifyAll();
+                return;
+            }
+            running = true;
+            worker = new Thread(this::loop, "ClockSync");
+            worker.start();
+        }
+    }
+
+    public void stop() {
+        Thread t;
+        synchronized (lock) {
+            running = false;
+            t = worker;
+            worker = null;
+            lock.notifyAll();
+        }
+        if (t != null) t.interrupt();
+    }
+
+    /** Router entry point for a time_sync response or error. */
+    public void onResponse(JSONObject json) {
+        long t3Us = monotonicUs();
+        String cmdId = json.optString(CMD_ID, "");
+        synchronized (lock) {
+            if (pendingId == null || !pendingId.equals(cmdId)) return; // late or foreign
+            long t0Us = pendingT0Us;
+            pendingId = null;
+            lock.notifyAll();
+
+            if (ERROR.equals(json.optString(TYPE))) {
+                // server predates time_sync: keep the wall clock, do not retry on this connection
+                unsupported = true;
+                Log.w(TAG, "time_sync not supported by server: " + json.optString(ERROR_MSG));
+                return;
+            }
+            JSONObject data = json.optJSONObject(DATA);
+            if (data == null || !data.has(KEY_T1) || !data.has(KEY_T2)) {
+                Log.w(TAG, "time_sync response without t1/t2");
+                return;
+            }
+            long t1Us = Math.round(data.optDouble(KEY_T1) * 1000);
+            long t2Us = Math.round(data.optDouble(KEY_T2) * 1000);
+            addSample(t0Us, t1Us, t2Us, t3Us);
+        }
+    }
+
+    private void addSample(long t0Us, long t1Us, long t2Us, long t3Us) {
+        long rtt = (t3Us - t0Us) - (t2Us - t1Us);
+        if (rtt < 0 || rtt > MAX_RTT_US) return;
+        long offset = ((t1Us - t0Us) + (t2Us - t3Us)) / 2;
+        rttSamples.record(rtt);
+
+        windowOffsetUs[windowNext] = offset;
+        windowRttUs[windowNext] = rtt;
+        windowNext = (windowNext + 1) % WINDOW;
+        if (windowCount < WINDOW) windowCount++;
+
+        int best = 0;
+        for (int i = 1; i < windowCount; i++) {
+            if (windowRttUs[i] < windowRttUs[best]) best = i;
+        }
+        long selected = windowOffsetUs[best];
+
+        long diff = selected - offsetUs;
+        if (!synced || Math.abs(diff) > STEP_US) {
+            offsetUs = selected;
+            if (synced) Log.w(TAG, "Clock step " + diff + " us");
+            synced = true;
+        } else {
+            offsetUs += Math.round(diff * SLEW_GAIN);
+        }
+        rttUs = windowRttUs[best];
+
+        double sq = 0;
+        for (int i = 0; i < windowCount; i++) {
+            double d = windowOffsetUs[i] - selected;
+            sq += d * d;
+        }
+        offsetGauge.set(offsetUs);
+        rttGauge.set(rttUs);
+        jitterGauge.set((long) Math.sqrt(sq / windowCount));
+    }
+
+    private void loop() {
+        while (running && worker == Thread.currentThread()) {
+            JSONObject request;
+            synchronized (lock) {
+                try {
+                    long now = SystemClock.elapsedRealtime();
+                    if (pendingId != null) {
+                        long waited = now - pendingT0Us / 1000;
+                        if (waited < RESPONSE_TIMEOUT_MS) {
+                            lock.wait(RESPONSE_TIMEOUT_MS - waited);
+                            continue;
+                        }
+                        timeouts.inc();
+                        pendingId = null;
+                    }
+                    if (unsupported || now < nextDueMs) {
+                        lock.wait(unsupported ? 0 : nextDueMs - now);
+                        continue;
+                    }
+                    if (!link.isReady()) {
+                        lock.wait(POLL_INTERVAL_MS);
+                        continue;
+                    }
+                    pendingId = TIME_SYNC + "-" + (++sequence);
+                    pendingT0Us = monotonicUs();
+                    request = new JSONObject()
+                            .put(TYPE, REQUEST)
+                            .put(CMD, TIME_SYNC)
+                            .put(CMD_ID, pendingId)
+                            .put(DATA, new JSONObject().put(KEY_T0, pendingT0Us));
+                    if (burstLeft > 0) burstLeft--;
+                    nextDueMs = now + (burstLeft > 0 ? BURST_INTERVAL_MS : POLL_INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (JSONException e) {
+                    Log.e(TAG, "Failed to build time_sync", e);
+                    pendingId = null;
+                    continue;
+                }
+            }
+            // outside the lock: the send may block on the socket queue
+            link.send(request);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.github.nikipo.ussoi.system.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * *****************************************************************************
+ *
+ * @author nikipo
+ * *****************************************************************************
+ * @file Gauge
+ * @attention Copyright (c) 2026
+ * All rights reserved.
+ * <p>
+ * This software is licensed under the terms described in the LICENSE file
+ * located in the root directory of this project.
+ * If no LICENSE file is present, this software is provided "AS IS",
+ * without warranty of any kind, express or implied.
+ * <p>
+ * *****************************************************************************
+ */
+
+/**
+ * Point-in-time value: either set by the owner or read from a supplier at
+ * export time (for values that already live elsewhere, e.g. a queue depth).
+ */
+public final class Gauge extends Metric {
+    private final AtomicLong value = new AtomicLong();
+    private volatile LongSupplier supplier;
+
+    Gauge(String name, String labels, String help) {
+        super(name, labels, help);
+    }
+
+    public void set(long v) {
+        value.set(v);
+    }
+
+    public void add(long delta) {
+        value.addAndGet(delta);
+    }
+
+    /** Reads the value from supplier from now on; null goes back to set(). */
+    public void bind(LongSupplier supplier) {
+        this.supplier = supplier;
+    }
+
+    public long get() {
+        LongSupplier s = supplier;
+        if (s == null) return value.get();
+        try {
+            return s.getAsLong();
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    String type() {
+        return "gauge";
+    }
+}
@@ -0,0 +1,136 @@
+package com.github.nikipo.ussoi.system.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * *****************************************************************************
+ *
+ * @author nikipo
+ * *****************************************************************************
+ * @file Histogram
+ * @attention Copyright (c) 2026
+ * All rights reserved.
+ * <p>
+ * This software is licensed under the terms described in the LICENSE file
+ * located in the root directory of this project.
+ * If no LICENSE file is present, this software is provided "AS IS",
+ * without warranty of any kind, express or implied.
+ * <p>
+ * *****************************************************************************
+ */
+
+/**
+ * Fixed-memory log-linear histogram (HdrHistogram layout) for latencies and sizes.
+ *
+ * Values below {@link #SUB_BUCKETS} get one bucket each; above that, every
+ * power of two is split into SUB_BUCKETS linear buckets, so any recorded value
+ * is reported within 1/16 (~6%) of itself. Values up to 2^{@link #MAX_EXPONENT}
+ * are covered (~13 days in µs); larger ones land in the top bucket.
+ *
+ * record() is lock-free: one atomic increment per bucket plus count/sum/max.
+ * Readers see a slightly torn view while writers are active, which is fine for
+ * monitoring.
+ */
+public final class Histogram extends Metric {
+    static final int SUB_BUCKET_BITS = 4;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int MAX_EXPONENT = 40;
+    static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    /** Quantiles exported as a Prometheus summary. */
+    static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    Histogram(String name, String labels, String help) {
+        super(name, labels, help);
+    }
+
+    /** Records one value; negatives are clamped to 0. */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        buckets.incrementAndGet(indexOf(value));
+        count.increment();
+        sum.add(value);
+        long m;
+        while (value > (m = max.get())) {
+            if (max.compareAndSet(m, value)) break;
+        }
+    }
+
+    /** Records the time since startNs (System.nanoTime()) in microseconds. */
+    public void recordSinceNs(long startNs) {
+        record((System.nanoTime() - startNs) / 1000);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Value at quantile q (0..1), reported as the upper edge of its bucket and
+     * never above the recorded max. 0 when empty.
+     */
+    public long quantile(double q) {
+        return quantiles(new double[]{q})[0];
+    }
+
+    /** Several quantiles from one pass over the buckets. */
+    public long[] quantiles(double[] qs) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+        long[] out = new long[qs.length];
+        for (int i = 0; i < qs.length; i++) out[i] = quantile(snapshot, total, qs[i]);
+        return out;
+    }
+
+    private long quantile(long[] snapshot, long total, double q) {
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return Math.min(upperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) return BUCKETS - 1;
+        int shift = exponent - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) - SUB_BUCKETS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + sub;
+    }
+
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        int sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        long lower = (long) (SUB_BUCKETS + sub) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    @Override
+    String type() {
+        return "summary";
+    }
+}
@@ -0,0 +1,46 @@
+package com.github.nikipo.ussoi.system.metrics;
+
+/**
+ * *****************************************************************************
+ *
+ * @author nikipo
+ * *****************************************************************************
+ * @file Metric
+ * @attention Copyright (c) 2026
+ * All rights reserved.
+ * <p>
+ * This software is licensed under the terms described in the LICENSE file
+ * located in the root directory of this project.
+ * If no LICENSE file is present, this software is provided "AS IS",
+ * without warranty of any kind, express or implied.
+ * <p>
+ * *****************************************************************************
+ */
+
+/**
+ * Common identity of a registered metric: a Prometheus-style name, an optional
+ * fixed label set (e.g. {@code class="video"}) and a help line.
+ */
+public abstract class Metric {
+    final String name;
+    final String labels;
+    final String help;
+
+    Metric(String name, String labels, String help) {
+        this.name = name;
+        this.labels = labels;
+        this.help = help;
+    }
+
+    /** name{labels}, or just name without labels. */
+    public String key() {
+        return key(name, labels);
+    }
+
+    static String key(String name, String labels) {
+        return labels == null || labels.isEmpty() ? name : name + "{" + labels + "}";
+    }
+
+    /** Prometheus TYPE of this metric. */
+    abstract String type();
+}
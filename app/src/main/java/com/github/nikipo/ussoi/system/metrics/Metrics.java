@@ -0,0 +1,176 @@
+package com.github.nikipo.ussoi.system.metrics;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * *****************************************************************************
+ *
+ * @author nikipo
+ * *****************************************************************************
+ * @file Metrics
+ * @attention Copyright (c) 2026
+ * All rights reserved.
+ * <p>
+ * This software is licensed under the terms described in the LICENSE file
+ * located in the root directory of this project.
+ * If no LICENSE file is present, this software is provided "AS IS",
+ * without warranty of any kind, express or implied.
+ * <p>
+ * *****************************************************************************
+ */
+
+/**
+ * Process-wide metrics registry.
+ *
+ * Components look their metrics up once (usually into a static or final
+ * field) and update them on the hot path without locks:
+ * <pre>
+ *   private static final Counter SENT = Metrics.counter("ussoi_stream_frames_sent_total", "Frames handed to the socket");
+ *   SENT.inc();
+ * </pre>
+ * Lookups are get-or-create, so a component that is rebuilt (new socket,
+ * new encoder) keeps adding to the same series. Label values must come from a
+ * fixed set — never from remote input — to keep the registry bounded.
+ *
+ * Exported as a compact JSON snapshot over the control channel (get_metrics)
+ * and as Prometheus text by {@link MetricsHttpServer}.
+ */
+public final class Metrics {
+    private static final String TAG = "Metrics";
+
+    private static final ConcurrentHashMap<String, Metric> registry = new ConcurrentHashMap<>();
+
+    private Metrics() {}
+
+    public static Counter counter(String name, String help) {
+        return counter(name, null, help);
+    }
+
+    public static Counter counter(String name, String labels, String help) {
+        return get(new Counter(name, labels, help), Counter.class);
+    }
+
+    public static Gauge gauge(String name, String help) {
+        return gauge(name, null, help);
+    }
+
+    public static Gauge gauge(String name, String labels, String help) {
+        return get(new Gauge(name, labels, help), Gauge.class);
+    }
+
+    public static Histogram histogram(String name, String help) {
+        return histogram(name, null, help);
+    }
+
+    public static Histogram histogram(String name, String labels, String help) {
+        return get(new Histogram(name, labels, help), Histogram.class);
+    }
+
+    private static <T extends Metric> T get(T candidate, Class<T> type) {
+        Metric existing = registry.putIfAbsent(candidate.key(), candidate);
+        if (existing == null) return candidate;
+        if (!type.isInstance(existing)) {
+            throw new IllegalArgumentException(candidate.key() + " is already a " + existing.type());
+        }
+        return type.cast(existing);
+    }
+
+    // ── Export ──
+
+    /**
+     * Compact snapshot: {"c":{key:n}, "g":{key:n}, "h":{key:[count, sum, p50, p90, p99, p999, max]}}.
+     *
+     * @param prefix only metrics whose name starts with it; null or empty for all
+     */
+    public static JSONObject snapshot(String prefix) {
+        JSONObject counters = new JSONObject();
+        JSONObject gauges = new JSONObject();
+        JSONObject histograms = new JSONObject();
+        JSONObject root = new JSONObject();
+        try {
+            for (Metric m : sorted()) {
+                if (prefix != null && !prefix.isEmpty() && !m.name.startsWith(prefix)) continue;
+                if (m instanceof Counter) {
+                    counters.put(m.key(), ((Counter) m).get());
+                } else if (m instanceof Gauge) {
+                    gauges.put(m.key(), ((Gauge) m).get());
+                } else if (m instanceof Histogram) {
+                    Histogram h = (Histogram) m;
+                    JSONArray a = new JSONArray().put(h.getCount()).put(h.getSum());
+                    for (long q : h.quantiles(Histogram.QUANTILES)) a.put(q);
+                    a.put(h.getMax());
+                    histograms.put(m.key(), a);
+                }
+            }
+            root.put("c", counters);
+            root.put("g", gauges);
+            root.put("h", histograms);
+        } catch (JSONException e) {
+            Log.e(TAG, "snapshot failed", e);
+        }
+        return root;
+    }
+
+    /** Prometheus text exposition format 0.0.4. Histograms are exported as summaries. */
+    public static String prometheus() {
+        StringBuilder sb = new StringBuilder(8 * 1024);
+        String family = null;
+        for (Metric m : sorted()) {
+            if (!m.name.equals(family)) {
+                family = m.name;
+                sb.append("# HELP ").append(m.name).append(' ').append(escapeHelp(m.help)).append('\n');
+                sb.append("# TYPE ").append(m.name).append(' ').append(m.type()).append('\n');
+            }
+            if (m instanceof Counter) {
+                sample(sb, m.name, m.labels, null, ((Counter) m).get());
+            } else if (m instanceof Gauge) {
+                sample(sb, m.name, m.labels, null, ((Gauge) m).get());
+            } else if (m instanceof Histogram) {
+                Histogram h = (Histogram) m;
+                long[] qs = h.quantiles(Histogram.QUANTILES);
+                for (int i = 0; i < qs.length; i++) {
+                    String q = "quantile=\"" + Histogram.QUANTILES[i] + "\"";
+                    sample(sb, m.name, m.labels, q, qs[i]);
+                }
+                sample(sb, m.name + "_sum", m.labels, null, h.getSum());
+                sample(sb, m.name + "_count", m.labels, null, h.getCount());
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, String extra, long value) {
+        sb.append(name);
+        boolean hasLabels = labels != null && !labels.isEmpty();
+        if (hasLabels || extra != null) {
+            sb.append('{');
+            if (hasLabels) sb.append(labels);
+            if (extra != null) sb.append(hasLabels ? "," : "").append(extra);
+            sb.append('}');
+        }
+        sb.append(' ').append(value).append('\n');
+    }
+
+    private static List<Metric> sorted() {
+        List<Metric> list = new ArrayList<>(registry.values());
+        // by name first so every family is contiguous
+        Collections.sort(list, (a, b) -> {
+            int c = a.name.compareTo(b.name);
+            return c != 0 ? c : String.valueOf(a.labels).compareTo(String.valueOf(b.labels));
+        });
+        return list;
+    }
+
+    private static String escapeHelp(String help) {
+        return help == null ? "" : help.replace("\\", "\\\\").replace("\n", "\\n");
+    }
+}
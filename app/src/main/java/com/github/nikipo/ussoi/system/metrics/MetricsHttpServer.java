@@ -0,0 +1,141 @@
+package com.github.nikipo.ussoi.system.metrics;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * *****************************************************************************
+ *
+ * @author nikipo
+ * *****************************************************************************
+ * @file MetricsHttpServer
+ * @attention Copyright (c) 2026
+ * All rights reserved.
+ * <p>
+ * This software is licensed under the terms described in the LICENSE file
+ * located in the root directory of this project.
+ * If no LICENSE file is present, this software is provided "AS IS",
+ * without warranty of any kind, express or implied.
+ * <p>
+ * *****************************************************************************
+ */
+
+/**
+ * Optional Prometheus scrape endpoint: {@code GET /metrics} on the loopback
+ * interface (reach it with {@code adb forward tcp:PORT tcp:PORT}).
+ *
+ * One accept thread, one request per connection, HTTP/1.0 with
+ * Connection: close — enough for a scraper, nothing else is served.
+ * Enabled by the KEY_Metrics_Port preference (0 = off).
+ */
+public final class MetricsHttpServer {
+    private static final String TAG = "MetricsHttpServer";
+
+    private static final int SO_TIMEOUT_MS = 2000;
+    private static final int MAX_REQUEST_BYTES = 2048;
+
+    private final int port;
+    private volatile ServerSocket server;
+    private Thread acceptThread;
+
+    public MetricsHttpServer(int port) {
+        this.port = port;
+    }
+
+    public synchronized void start() {
+        if (server != null) return;
+        try {
+            ServerSocket s = new ServerSocket();
+            s.setReuseAddress(true);
+            s.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            server = s;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot bind metrics port " + port, e);
+            return;
+        }
+        acceptThread = new Thread(this::acceptLoop, "MetricsHttp");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        Log.d(TAG, "Serving /metrics on 127.0.0.1:" + port);
+    }
+
+    public synchronized void stop() {
+        ServerSocket s = server;
+        server = null;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException ignored) {}
+        }
+        acceptThread = null;
+    }
+
+    private void acceptLoop() {
+        ServerSocket s;
+        while ((s = server) != null) {
+            try (Socket client = s.accept()) {
+                client.setSoTimeout(SO_TIMEOUT_MS);
+                handle(client);
+            } catch (IOException e) {
+                if (server != null) Log.w(TAG, "Request failed", e);
+            }
+        }
+    }
+
+    private void handle(Socket client) throws IOException {
+        String requestLine = readRequestLine(client.getInputStream());
+        OutputStream out = client.getOutputStream();
+        if (requestLine == null) return;
+
+        String[] parts = requestLine.split(" ");
+        String path = parts.length > 1 ? parts[1] : "";
+        int q = path.indexOf('?');
+        if (q >= 0) path = path.substring(0, q);
+
+        if (!"GET".equals(parts[0])) {
+            respond(out, "405 Method Not Allowed", "text/plain", "GET only\n");
+        } else if ("/metrics".equals(path)) {
+            respond(out, "200 OK", "text/plain; version=0.0.4; charset=utf-8", Metrics.prometheus());
+        } else {
+            respond(out, "404 Not Found", "text/plain", "try /metrics\n");
+        }
+    }
+
+    /** First line of the request; the rest of the headers are drained up to MAX_REQUEST_BYTES. */
+    private static String readRequestLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder(64);
+        boolean firstLineDone = false;
+        int last = -1;
+        for (int read = 0; read < MAX_REQUEST_BYTES; read++) {
+            int b = in.read();
+            if (b < 0) break;
+            if (!firstLineDone) {
+                if (b == '\n') firstLineDone = true;
+                else if (b != '\r') line.append((char) b);
+            } else if (b == '\n' && last == '\n') {
+                break; // blank line: end of headers
+            }
+            if (b != '\r') last = b;
+        }
+        return line.length() > 0 ? line.toString() : null;
+    }
+
+    private static void respond(OutputStream out, String status, String contentType, String body) throws IOException {
+        byte[] payload = body.getBytes(StandardCharsets.UTF_8);
+        String head = "HTTP/1.0 " + status + "\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Content-Length: " + payload.length + "\r\n"
+                + "Connection: close\r\n\r\n";
+        out.write(head.getBytes(StandardCharsets.US_ASCII));
+        out.write(payload);
+        out.flush();
+    }
+}
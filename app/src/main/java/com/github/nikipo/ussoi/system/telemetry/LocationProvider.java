@@ -26,6 +26,7 @@ import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -37,7 +38,9 @@ import androidx.core.app.ActivityCompat;
  *
  * Call startUpdates() once (e.g. from SysTelemetry.startMonitoring()).
  * Call stopUpdates() when monitoring is no longer needed.
- * Call getLastLocation() to read the most recent fix.
+ * Call getLastLocation() to read the most recent fix. Fixes are published by
+ * the location callback itself, so reads never block; use getFixAgeMs() to
+ * tell a live fix from a stale one.
  *
  * Requires: ACCESS_FINE_LOCATION permission.
  */
@@ -48,8 +51,8 @@ public class LocationProvider {
     private final Context context;
     private final LocationManager locationManager;
 
-    // Guarded by 'this' — written by the location callback (any thread),
-    // read by the packet builder thread.
+    // Written by the location callback (any thread), read by the packet builder
+    // thread. Location objects are never modified after they are published.
     private volatile Location lastKnownLocation;
 
     private boolean isUpdating = false;
@@ -150,4 +153,14 @@ public class LocationProvider {
     public Location getLastLocation() {
         return lastKnownLocation;
     }
+
+    /**
+     * Age of a fix in milliseconds, from its elapsed-realtime stamp.
+     * Returns Long.MAX_VALUE for null.
+     */
+    public static long getFixAgeMs(Location loc) {
+        if (loc == null) return Long.MAX_VALUE;
+        long fixMs = loc.getElapsedRealtimeNanos() / 1_000_000L;
+        return Math.max(0, SystemClock.elapsedRealtime() - fixMs);
+    }
 }
@@ -20,6 +20,7 @@ package com.github.nikipo.ussoi.system.telemetry;
 import android.content.Context;
 import android.net.TrafficStats;
 import android.os.Build;
+import android.os.SystemClock;
 import android.telephony.TelephonyManager;
 import android.util.Log;
 
@@ -27,14 +28,17 @@ import androidx.core.app.ActivityCompat;
 import android.Manifest;
 import android.content.pm.PackageManager;
 
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
  * Provides network throughput and data-consumption telemetry for this app's UID.
  * Compatible with Android 7.0+ (API 24+).
  *
  * Call init() once (e.g. from SysTelemetry.startMonitoring()) to reset counters.
- * Call snapshot() before reading throughput values — it recalculates rates.
+ * TelemetrySampler calls sample() at the network cadence; it recalculates rates
+ * and publishes them as an immutable Snapshot.
  *
- * All public getters are thread-safe.
+ * All public getters are thread-safe and read the latest snapshot without locking.
  */
 public class NetworkStatsProvider {
 
@@ -42,11 +46,29 @@ public class NetworkStatsProvider {
     private static final double KB = 1024.0;
     private static final double MB = 1024.0 * 1024.0;
 
+    /** One throughput reading; immutable, published by sample(). */
+    public static final class Snapshot {
+        public final float uploadKBps;
+        public final float downloadKBps;
+        public final float sessionMB;
+        /** SystemClock.elapsedRealtime() when sampled */
+        public final long timeMs;
+
+        Snapshot(float uploadKBps, float downloadKBps, float sessionMB, long timeMs) {
+            this.uploadKBps = uploadKBps;
+            this.downloadKBps = downloadKBps;
+            this.sessionMB = sessionMB;
+            this.timeMs = timeMs;
+        }
+    }
+
+    private static final Snapshot EMPTY = new Snapshot(0f, 0f, 0f, 0);
+
     private final Context context;
     private final int myUid;
     private final TelephonyManager telephonyManager;
 
-    // Written only inside synchronized snapshot(); read by getters (also synchronized)
+    // Written only inside synchronized init()/sample()
     private long lastTxBytes = 0;
     private long lastRxBytes = 0;
     private long lastTimestampMs = 0;
@@ -54,9 +76,8 @@ public class NetworkStatsProvider {
     private double sessionUploadBytes = 0;
     private double sessionDownloadBytes = 0;
 
-    // Latest computed rates — updated by snapshot()
-    private float uploadKbps = 0f;
-    private float downloadKbps = 0f;
+    // Latest computed rates — published by sample()
+    private final AtomicReference<Snapshot> latest = new AtomicReference<>(EMPTY);
 
     public NetworkStatsProvider(Context context) {
         this.context = context.getApplicationContext();
@@ -75,32 +96,31 @@ public class NetworkStatsProvider {
 
         lastTxBytes = (tx == TrafficStats.UNSUPPORTED) ? 0 : tx;
         lastRxBytes = (rx == TrafficStats.UNSUPPORTED) ? 0 : rx;
-        lastTimestampMs = System.currentTimeMillis();
+        lastTimestampMs = SystemClock.elapsedRealtime();
 
         sessionUploadBytes = 0;
         sessionDownloadBytes = 0;
-        uploadKbps = 0f;
-        downloadKbps = 0f;
+        latest.set(EMPTY);
     }
 
     /**
      * Reads current TrafficStats counters, computes instantaneous throughput,
-     * and accumulates session totals.
+     * accumulates session totals and publishes the result.
      *
-     * Call this once per telemetry cycle before reading upload/download values.
+     * Called by TelemetrySampler at the network cadence.
      */
-    public synchronized void snapshot() {
+    public synchronized Snapshot sample() {
         long currentTx = TrafficStats.getUidTxBytes(myUid);
         long currentRx = TrafficStats.getUidRxBytes(myUid);
-        long currentTs = System.currentTimeMillis();
+        long currentTs = SystemClock.elapsedRealtime();
 
         if (currentTx == TrafficStats.UNSUPPORTED || currentRx == TrafficStats.UNSUPPORTED) {
             // Platform doesn't support per-UID stats
-            return;
+            return latest.get();
         }
 
         long deltaMs = currentTs - lastTimestampMs;
-        if (deltaMs <= 0) return;
+        if (deltaMs <= 0) return latest.get();
 
         long txDiff = currentTx - lastTxBytes;
         long rxDiff = currentRx - lastRxBytes;
@@ -109,37 +129,47 @@ public class NetworkStatsProvider {
         if (txDiff < 0) txDiff = 0;
         if (rxDiff < 0) rxDiff = 0;
 
-        // Bytes/ms → KB/s
-        uploadKbps   = (float) ((txDiff * 1000.0) / deltaMs / KB);
-        downloadKbps = (float) ((rxDiff * 1000.0) / deltaMs / KB);
-
         sessionUploadBytes   += txDiff;
         sessionDownloadBytes += rxDiff;
 
         lastTxBytes = currentTx;
         lastRxBytes = currentRx;
         lastTimestampMs = currentTs;
+
+        // Bytes/ms → KB/s
+        Snapshot s = new Snapshot(
+                (float) ((txDiff * 1000.0) / deltaMs / KB),
+                (float) ((rxDiff * 1000.0) / deltaMs / KB),
+                (float) ((sessionUploadBytes + sessionDownloadBytes) / MB),
+                currentTs);
+        latest.set(s);
+        return s;
+    }
+
+    /** Latest published reading (zeros with timeMs 0 before the first sample()). Wait-free. */
+    public Snapshot getSnapshot() {
+        return latest.get();
     }
 
     /**
-     * Upload throughput in KB/s since the last snapshot() call.
+     * Upload throughput in KB/s over the last sample interval.
      */
-    public synchronized float getUploadKBps() {
-        return uploadKbps;
+    public float getUploadKBps() {
+        return latest.get().uploadKBps;
     }
 
     /**
-     * Download throughput in KB/s since the last snapshot() call.
+     * Download throughput in KB/s over the last sample interval.
      */
-    public synchronized float getDownloadKBps() {
-        return downloadKbps;
+    public float getDownloadKBps() {
+        return latest.get().downloadKBps;
     }
 
     /**
      * Total data consumed (upload + download) this session, in MB.
      */
-    public synchronized float getSessionConsumptionMB() {
-        return (float) ((sessionUploadBytes + sessionDownloadBytes) / MB);
+    public float getSessionConsumptionMB() {
+        return latest.get().sessionMB;
     }
 
     /**
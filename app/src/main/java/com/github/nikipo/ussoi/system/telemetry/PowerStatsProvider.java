@@ -23,8 +23,11 @@ import android.content.IntentFilter;
 import android.os.BatteryManager;
 import android.os.Build;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
  * Provides battery and thermal telemetry.
  * Compatible with Android 7.0+ (API 24+).
@@ -39,12 +42,33 @@ public class PowerStatsProvider {
 
     private static final String TAG = "PowerStatsProvider";
 
+    /** One power reading; immutable, published by sample(). */
+    public static final class Snapshot {
+        public final short currentMa;
+        public final byte level;
+        public final float temperatureC;
+        public final byte thermalStatus;
+        /** SystemClock.elapsedRealtime() when sampled */
+        public final long timeMs;
+
+        Snapshot(short currentMa, byte level, float temperatureC, byte thermalStatus, long timeMs) {
+            this.currentMa = currentMa;
+            this.level = level;
+            this.temperatureC = temperatureC;
+            this.thermalStatus = thermalStatus;
+            this.timeMs = timeMs;
+        }
+    }
+
+    private final AtomicReference<Snapshot> latest = new AtomicReference<>();
+
     private final Context context;
     private final BatteryManager batteryManager;
     private final PowerManager powerManager;
 
-    // Cached last charge counter for delta-based current estimation
+    // Cached last charge counter for delta-based current estimation (sampler thread only)
     private int lastCharge_uAh = Integer.MIN_VALUE;
+    private long lastChargeTimeMs = 0;
 
     // Cached last battery temperature to survive null intents
     private float lastBatteryTempC = 0.0f;
@@ -56,28 +80,63 @@ public class PowerStatsProvider {
     }
 
     /**
-     * Returns battery current in milliamps.
+     * Reads every power field once and publishes the result.
+     * Called by TelemetrySampler at the power cadence only: the current
+     * estimate is a delta against the previous call.
+     */
+    public Snapshot sample() {
+        // one sticky-broadcast read for charging status and temperature
+        Intent battery = batteryIntent();
+        Snapshot s = new Snapshot(
+                readCurrent(battery),
+                getBatteryLevel(),
+                readTemperature(battery),
+                getThermalStatus(),
+                SystemClock.elapsedRealtime());
+        latest.set(s);
+        return s;
+    }
+
+    /** Latest published reading, or null before the first sample(). Wait-free. */
+    public Snapshot getSnapshot() {
+        return latest.get();
+    }
+
+    /**
+     * Returns battery current in milliamps from the latest snapshot.
      * Positive  = charging, Negative = discharging.
-     * Clamped to short range [-32768, 32767].
-     * Returns 0 on failure.
+     * Returns 0 before the first sample.
      */
     public short getCurrent() {
+        Snapshot s = latest.get();
+        return s != null ? s.currentMa : 0;
+    }
+
+    /**
+     * Estimates battery current in milliamps, clamped to short range.
+     * Returns 0 on failure.
+     */
+    private short readCurrent(Intent battery) {
         if (batteryManager == null) return 0;
 
         try {
-            boolean isCharging = isCharging();
+            boolean isCharging = isCharging(battery);
 
             int milliAmps = 0;
             boolean usedFallback = true;
 
-            // --- Strategy 1: delta of CHARGE_COUNTER between calls ---
+            // --- Strategy 1: delta of CHARGE_COUNTER between calls, over elapsed time ---
             int charge_uAh = batteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CHARGE_COUNTER);
-            if (charge_uAh > 0 && lastCharge_uAh > 0 && charge_uAh != lastCharge_uAh) {
-                int delta_uAh = lastCharge_uAh - charge_uAh;
-                milliAmps = Math.abs(delta_uAh / 1000);
+            long nowMs = SystemClock.elapsedRealtime();
+            long elapsedMs = nowMs - lastChargeTimeMs;
+            if (charge_uAh > 0 && lastCharge_uAh > 0 && charge_uAh != lastCharge_uAh && elapsedMs > 0) {
+                long delta_uAh = (long) lastCharge_uAh - charge_uAh;
+                // µAh per ms → mA: × 3600 / 1000
+                milliAmps = (int) Math.min(Integer.MAX_VALUE, Math.abs(delta_uAh * 3600L / elapsedMs));
                 usedFallback = false;
             }
             lastCharge_uAh = charge_uAh;
+            lastChargeTimeMs = nowMs;
 
             // --- Strategy 2: CURRENT_NOW (instantaneous, signed on most devices) ---
             if (usedFallback) {
@@ -125,9 +184,11 @@ public class PowerStatsProvider {
      * Returns last known value on failure; 0.0f on first failure.
      */
     public float getBatteryTemperature() {
+        return readTemperature(batteryIntent());
+    }
+
+    private float readTemperature(Intent intent) {
         try {
-            Intent intent = context.registerReceiver(
-                    null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
             if (intent == null) return lastBatteryTempC;
 
             int temp = intent.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, Integer.MIN_VALUE);
@@ -173,13 +234,21 @@ public class PowerStatsProvider {
     // -------------------------------------------------------------------------
 
     /**
-     * Returns true if the device is currently charging or full.
-     * Uses sticky ACTION_BATTERY_CHANGED — no persistent receiver needed.
+     * Sticky ACTION_BATTERY_CHANGED — no persistent receiver needed.
+     * Returns null on failure.
      */
-    private boolean isCharging() {
+    private Intent batteryIntent() {
+        try {
+            return context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        } catch (Exception e) {
+            Log.e(TAG, "battery intent unavailable", e);
+            return null;
+        }
+    }
+
+    /** Returns true if the device is currently charging or full. */
+    private boolean isCharging(Intent intent) {
         try {
-            Intent intent = context.registerReceiver(
-                    null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
             if (intent == null) return false;
             int status = intent.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
             return status == BatteryManager.BATTERY_STATUS_CHARGING
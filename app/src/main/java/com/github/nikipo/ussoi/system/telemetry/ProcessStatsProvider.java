@@ -0,0 +1,418 @@
+package com.github.nikipo.ussoi.system.telemetry;
+
+import android.os.Debug;
+import android.os.SystemClock;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * *****************************************************************************
+ *
+ * @author nikipo
+ * *****************************************************************************
+ * @file ProcessStatsProvider
+ * @attention Copyright (c) 2026
+ * All rights reserved.
+ * <p>
+ * This software is licensed under the terms described in the LICENSE file
+ * located in the root directory of this project.
+ * If no LICENSE file is present, this software is provided "AS IS",
+ * without warranty of any kind, express or implied.
+ * <p>
+ * *****************************************************************************
+ */
+
+/**
+ * Resource usage of this process: CPU, memory, thread count, GC, and the CPU
+ * time of the pipeline threads that compete for the cores.
+ *
+ * Sources:
+ *   /proc/self/stat            utime + stime, num_threads
+ *   /proc/self/status          VmRSS, VmHWM
+ *   /proc/self/task/[tid]/stat per-thread utime + stime for {@link #TRACKED_THREADS}
+ *   Debug / Runtime            native heap, Java heap, ART GC counters
+ *
+ * CPU is reported in percent of one core over the last sample interval.
+ * Tracked threads are found by name; the kernel keeps only 15 characters of it,
+ * and a thread that is not running is reported as -1. Threads started once per
+ * instance ({@link #PER_INSTANCE_THREADS}, named "name-instance") are
+ * matched by that prefix and reported as the sum over all instances.
+ *
+ * sample() is called by TelemetrySampler; getSnapshot() is wait-free.
+ */
+public class ProcessStatsProvider {
+
+    private static final String TAG = "ProcessStatsProvider";
+
+    /** Pipeline threads whose CPU time is reported, by Thread name. */
+    public static final String[] TRACKED_THREADS = {
+            "H264-Drain", "UsbReadLoop", "GlRendererThread", "CameraThread"
+    };
+
+    /** TRACKED_THREADS entries that run one thread per instance, e.g. per USB port. */
+    private static final String[] PER_INSTANCE_THREADS = {"UsbReadLoop"};
+
+    private static final int COMM_MAX = 15;
+    private static final long RESCAN_INTERVAL_MS = 5000;
+
+    // field numbers (1-based, man 5 proc) counted from the state field after "(comm)"
+    private static final int STAT_UTIME = 14 - 3;
+    private static final int STAT_STIME = 15 - 3;
+    private static final int STAT_NUM_THREADS = 20 - 3;
+
+    /** One reading; immutable, published by sample(). */
+    public static final class Snapshot {
+        public final float cpuPct;
+        public final int threads;
+        public final long rssKb;
+        public final long rssPeakKb;
+        public final long javaHeapKb;
+        public final long javaHeapMaxKb;
+        public final long nativeHeapKb;
+        public final long gcCount;
+        public final long gcTimeMs;
+        public final long blockingGcCount;
+        /** indexed like TRACKED_THREADS, -1 if the thread is not running */
+        private final float[] threadCpuPct;
+        /** SystemClock.elapsedRealtime() when sampled */
+        public final long timeMs;
+
+        Snapshot(float cpuPct, int threads, long rssKb, long rssPeakKb,
+                 long javaHeapKb, long javaHeapMaxKb, long nativeHeapKb,
+                 long gcCount, long gcTimeMs, long blockingGcCount,
+                 float[] threadCpuPct, long timeMs) {
+            this.cpuPct = cpuPct;
+            this.threads = threads;
+            this.rssKb = rssKb;
+            this.rssPeakKb = rssPeakKb;
+            this.javaHeapKb = javaHeapKb;
+            this.javaHeapMaxKb = javaHeapMaxKb;
+            this.nativeHeapKb = nativeHeapKb;
+            this.gcCount = gcCount;
+            this.gcTimeMs = gcTimeMs;
+            this.blockingGcCount = blockingGcCount;
+            this.threadCpuPct = threadCpuPct;
+            this.timeMs = timeMs;
+        }
+
+        /** CPU of TRACKED_THREADS[i] in percent of one core, or -1 if not running. */
+        public float getThreadCpuPct(int i) {
+            return threadCpuPct[i];
+        }
+
+        public JSONObject toJson() {
+            JSONObject obj = new JSONObject();
+            try {
+                obj.put("cpu_pct", round1(cpuPct));
+                obj.put("cores", Runtime.getRuntime().availableProcessors());
+                obj.put("threads", threads);
+                obj.put("rss_kb", rssKb);
+                obj.put("rss_peak_kb", rssPeakKb);
+                obj.put("java_heap_kb", javaHeapKb);
+                obj.put("java_heap_max_kb", javaHeapMaxKb);
+                obj.put("native_heap_kb", nativeHeapKb);
+                obj.put("gc_count", gcCount);
+                obj.put("gc_time_ms", gcTimeMs);
+                obj.put("gc_blocking_count", blockingGcCount);
+                JSONObject perThread = new JSONObject();
+                for (int i = 0; i < TRACKED_THREADS.length; i++) {
+                    perThread.put(TRACKED_THREADS[i], round1(threadCpuPct[i]));
+                }
+                obj.put("thread_cpu_pct", perThread);
+            } catch (JSONException e) {
+                Log.e(TAG, "toJson failed", e);
+            }
+            return obj;
+        }
+
+        private static double round1(float v) {
+            return Math.round(v * 10) / 10.0;
+        }
+    }
+
+    /** Tids currently carrying one tracked name (a name may be reused by several threads). */
+    private static final class Tracked {
+        /** exact comm, or the "name-" prefix of a per-instance thread */
+        final String comm;
+        final boolean perInstance;
+        int[] tids = new int[0];
+        /** utime + stime of tids[i] at the previous sample, -1 if not read yet */
+        long[] lastTicks = new long[0];
+
+        Tracked(String name) {
+            perInstance = Arrays.asList(PER_INSTANCE_THREADS).contains(name);
+            // prefix stays short enough to survive the kernel's truncation of the full name
+            String n = perInstance ? name + "-" : name;
+            comm = n.length() > COMM_MAX ? n.substring(0, COMM_MAX) : n;
+        }
+
+        boolean matches(byte[] b, int from, int to) {
+            if (!perInstance) return equalsAscii(b, from, to, comm);
+            return to - from >= comm.length() && equalsAscii(b, from, from + comm.length(), comm);
+        }
+    }
+
+    private final AtomicReference<Snapshot> latest = new AtomicReference<>();
+    private final long clockTicksPerSec;
+
+    // sampler thread only (sample() is synchronized)
+    private final byte[] buf = new byte[4096];
+    private final long[] fields = new long[STAT_NUM_THREADS + 1];
+    private final Tracked[] tracked = new Tracked[TRACKED_THREADS.length];
+    private long lastProcTicks = -1;
+    private long lastSampleMs = 0;
+    private long nextRescanMs = 0;
+
+    public ProcessStatsProvider() {
+        long ticks = 100;
+        try {
+            ticks = Os.sysconf(OsConstants._SC_CLK_TCK);
+        } catch (Exception e) {
+            Log.w(TAG, "_SC_CLK_TCK unavailable, assuming 100", e);
+        }
+        clockTicksPerSec = ticks > 0 ? ticks : 100;
+        for (int i = 0; i < tracked.length; i++) tracked[i] = new Tracked(TRACKED_THREADS[i]);
+    }
+
+    /**
+     * Reads every source once and publishes the result. CPU figures are deltas
+     * against the previous call, so the first sample reports 0.
+     */
+    public synchronized Snapshot sample() {
+        long now = SystemClock.elapsedRealtime();
+        long elapsedMs = lastSampleMs > 0 ? now - lastSampleMs : 0;
+        lastSampleMs = now;
+
+        // ── Process CPU and threads
+        float cpuPct = 0f;
+        int threads = 0;
+        if (readStat("/proc/self/stat", null)) {
+            long ticks = fields[STAT_UTIME] + fields[STAT_STIME];
+            cpuPct = cpuPct(ticks - lastProcTicks, elapsedMs, lastProcTicks >= 0);
+            lastProcTicks = ticks;
+            threads = (int) fields[STAT_NUM_THREADS];
+        }
+
+        // ── Memory
+        long rssKb = 0;
+        long rssPeakKb = 0;
+        int len = readFile("/proc/self/status");
+        if (len > 0) {
+            rssKb = statusValue(len, "VmRSS:");
+            rssPeakKb = statusValue(len, "VmHWM:");
+        }
+        Runtime rt = Runtime.getRuntime();
+        long javaHeapKb = (rt.totalMemory() - rt.freeMemory()) / 1024;
+        long javaHeapMaxKb = rt.maxMemory() / 1024;
+        long nativeHeapKb = Debug.getNativeHeapAllocatedSize() / 1024;
+
+        // ── Per-thread CPU
+        float[] threadCpu = sampleThreads(now, elapsedMs);
+
+        Snapshot s = new Snapshot(cpuPct, threads, rssKb, rssPeakKb,
+                javaHeapKb, javaHeapMaxKb, nativeHeapKb,
+                runtimeStat("art.gc.gc-count"),
+                runtimeStat("art.gc.gc-time"),
+                runtimeStat("art.gc.blocking-gc-count"),
+                threadCpu, now);
+        latest.set(s);
+        return s;
+    }
+
+    /** Latest published reading, or null before the first sample(). Wait-free. */
+    public Snapshot getSnapshot() {
+        return latest.get();
+    }
+
+    // -------------------------------------------------------------------------
+
+    private float[] sampleThreads(long now, long elapsedMs) {
+        // empty groups are looked for again; per-instance groups also pick up new instances
+        boolean rescan = false;
+        for (Tracked t : tracked) {
+            if (t.tids.length == 0 || t.perInstance) rescan = true;
+        }
+        if (rescan && now >= nextRescanMs) {
+            nextRescanMs = now + RESCAN_INTERVAL_MS;
+            rescanThreads();
+        }
+
+        float[] out = new float[tracked.length];
+        for (int i = 0; i < tracked.length; i++) {
+            Tracked t = tracked[i];
+            long delta = 0;
+            boolean valid = false;
+            int alive = 0;
+            for (int k = 0; k < t.tids.length; k++) {
+                // exited or renamed: dropped, found again by the next rescan
+                if (!readStat("/proc/self/task/" + t.tids[k] + "/stat", t)) continue;
+                long ticks = fields[STAT_UTIME] + fields[STAT_STIME];
+                if (t.lastTicks[k] >= 0) {
+                    delta += ticks - t.lastTicks[k];
+                    valid = true;
+                }
+                t.tids[alive] = t.tids[k];
+                t.lastTicks[alive] = ticks;
+                alive++;
+            }
+            if (alive != t.tids.length) {
+                t.tids = Arrays.copyOf(t.tids, alive);
+                t.lastTicks = Arrays.copyOf(t.lastTicks, alive);
+            }
+            out[i] = alive == 0 ? -1f : cpuPct(delta, elapsedMs, valid);
+        }
+        return out;
+    }
+
+    /**
+     * Walks /proc/self/task and records the tids of every tracked name. Tids
+     * already known keep their previous reading.
+     */
+    private void rescanThreads() {
+        String[] tasks = new File("/proc/self/task").list();
+        if (tasks == null) return;
+
+        int[][] found = new int[tracked.length][];
+        int[] counts = new int[tracked.length];
+        for (int i = 0; i < tracked.length; i++) found[i] = new int[4];
+
+        for (String task : tasks) {
+            int len = readFile("/proc/self/task/" + task + "/comm");
+            if (len <= 0) continue;
+            while (len > 0 && buf[len - 1] == '\n') len--;
+            for (int i = 0; i < tracked.length; i++) {
+                if (!tracked[i].matches(buf, 0, len)) continue;
+                if (counts[i] == found[i].length) {
+                    int[] grown = new int[found[i].length * 2];
+                    System.arraycopy(found[i], 0, grown, 0, counts[i]);
+                    found[i] = grown;
+                }
+                try {
+                    found[i][counts[i]++] = Integer.parseInt(task);
+                } catch (NumberFormatException ignored) {}
+            }
+        }
+        for (int i = 0; i < tracked.length; i++) {
+            Tracked t = tracked[i];
+            int[] tids = Arrays.copyOf(found[i], counts[i]);
+            long[] lastTicks = new long[tids.length];
+            for (int k = 0; k < tids.length; k++) {
+                lastTicks[k] = -1;
+                for (int j = 0; j < t.tids.length; j++) {
+                    if (t.tids[j] == tids[k]) { lastTicks[k] = t.lastTicks[j]; break; }
+                }
+            }
+            t.tids = tids;
+            t.lastTicks = lastTicks;
+        }
+    }
+
+    private float cpuPct(long deltaTicks, long elapsedMs, boolean valid) {
+        if (!valid || elapsedMs <= 0 || deltaTicks < 0) return 0f;
+        return (float) (deltaTicks * 1000.0 / clockTicksPerSec / elapsedMs * 100.0);
+    }
+
+    /**
+     * Reads a stat file into {@link #fields}, indexed from the state field.
+     *
+     * @param thread expected thread, or null to skip the name check
+     * @return false if the file is gone or belongs to a different thread
+     */
+    private boolean readStat(String path, Tracked thread) {
+        int len = readFile(path);
+        if (len <= 0) return false;
+
+        // comm may contain spaces and ')' — the last ')' closes it
+        int close = -1;
+        for (int i = len - 1; i >= 0; i--) {
+            if (buf[i] == ')') { close = i; break; }
+        }
+        if (close < 0) return false;
+        if (thread != null) {
+            int open = indexOf(buf, (byte) '(', 0, close);
+            if (open < 0 || !thread.matches(buf, open + 1, close)) return false;
+        }
+
+        int field = 0;
+        int i = close + 2;
+        while (i < len && field < fields.length) {
+            while (i < len && buf[i] == ' ') i++;
+            long value = 0;
+            boolean numeric = true;
+            int start = i;
+            while (i < len && buf[i] != ' ' && buf[i] != '\n') {
+                byte b = buf[i++];
+                if (b >= '0' && b <= '9') value = value * 10 + (b - '0');
+                else numeric = false;
+            }
+            fields[field++] = numeric && i > start ? value : 0;
+        }
+        return field == fields.length;
+    }
+
+    /** Value in kB of a "Key:   123 kB" line of /proc/self/status (buf[0..len)), 0 if absent. */
+    private long statusValue(int len, String key) {
+        int k = key.length();
+        for (int line = 0; line < len; ) {
+            if (line + k <= len && equalsAscii(buf, line, line + k, key)) {
+                long value = 0;
+                for (int i = line + k; i < len && buf[i] != '\n'; i++) {
+                    if (buf[i] >= '0' && buf[i] <= '9') value = value * 10 + (buf[i] - '0');
+                }
+                return value;
+            }
+            int nl = indexOf(buf, (byte) '\n', line, len);
+            if (nl < 0) break;
+            line = nl + 1;
+        }
+        return 0;
+    }
+
+    /** Reads up to buf.length bytes of a /proc file; returns the length, or -1. */
+    private int readFile(String path) {
+        try (FileInputStream in = new FileInputStream(path)) {
+            int len = 0;
+            int n;
+            while (len < buf.length && (n = in.read(buf, len, buf.length - len)) > 0) {
+                len += n;
+            }
+            return len;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static long runtimeStat(String name) {
+        try {
+            String v = Debug.getRuntimeStat(name);
+            return v != null ? Long.parseLong(v) : 0;
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    private static int indexOf(byte[] b, byte c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (b[i] == c) return i;
+        }
+        return -1;
+    }
+
+    private static boolean equalsAscii(byte[] b, int from, int to, String s) {
+        if (to - from != s.length()) return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (b[from + i] != (byte) s.charAt(i)) return false;
+        }
+        return true;
+    }
+}
@@ -27,6 +27,7 @@ import android.net.NetworkCapabilities;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.os.Build;
+import android.os.SystemClock;
 import android.telephony.PhoneStateListener;
 import android.telephony.SignalStrength;
 import android.telephony.TelephonyCallback;
@@ -37,6 +38,8 @@ import androidx.annotation.NonNull;
 import androidx.annotation.RequiresApi;
 import androidx.core.app.ActivityCompat;
 
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
  * Provides cellular and Wi-Fi signal strength telemetry.
  * Compatible with Android 7.0+ (API 24+).
@@ -53,6 +56,26 @@ public class SignalStrengthProvider {
     private static final String TAG = "SignalStrengthProvider";
     private static final short DBM_UNKNOWN = -127;
 
+    /** One radio reading; immutable, published by sample(). */
+    public static final class Snapshot {
+        public final short cellularDbm;
+        public final short wifiDbm;
+        public final byte networkType;
+        public final byte dataNetworkType;
+        /** SystemClock.elapsedRealtime() when sampled */
+        public final long timeMs;
+
+        Snapshot(short cellularDbm, short wifiDbm, byte networkType, byte dataNetworkType, long timeMs) {
+            this.cellularDbm = cellularDbm;
+            this.wifiDbm = wifiDbm;
+            this.networkType = networkType;
+            this.dataNetworkType = dataNetworkType;
+            this.timeMs = timeMs;
+        }
+    }
+
+    private final AtomicReference<Snapshot> latest = new AtomicReference<>();
+
     private final Context context;
     private final TelephonyManager telephonyManager;
 
@@ -114,6 +137,27 @@ public class SignalStrengthProvider {
         }
     }
 
+    /**
+     * Reads cellular and Wi-Fi strength once and publishes them together with
+     * the network types (read by NetworkStatsProvider, which owns that API).
+     * Called by TelemetrySampler; the Wi-Fi read is a binder call.
+     */
+    public Snapshot sample(byte networkType, byte dataNetworkType) {
+        Snapshot s = new Snapshot(
+                getCellularSignalDbm(),
+                getWifiSignalDbm(),
+                networkType,
+                dataNetworkType,
+                SystemClock.elapsedRealtime());
+        latest.set(s);
+        return s;
+    }
+
+    /** Latest published reading, or null before the first sample(). Wait-free. */
+    public Snapshot getSnapshot() {
+        return latest.get();
+    }
+
     /**
      * Returns the strongest reported cellular signal in dBm.
      * Returns DBM_UNKNOWN (-127) if no reading is available.
@@ -2,8 +2,14 @@ package com.github.nikipo.ussoi.system.telemetry;
 
 
 import android.content.Context;
+import android.location.Location;
 import android.util.Log;
 
+import com.github.nikipo.ussoi.system.clock.ClockSync;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
 /**
  * *****************************************************************************
  *
@@ -29,8 +35,11 @@ import android.util.Log;
  * Usage:
  *   SysTelemetry telemetry = SysTelemetry.getInstance(context);
  *   telemetry.startMonitoring();           // once, e.g. in Service.onCreate()
- *   String packet = telemetry.getPacket(); // call periodically
- *   telemetry.stopMonitoring();            // once, e.g. in Service.onDestroy()
+ *   String packet = telemetry.getPacket(false); // latest snapshots as hex
+ *   telemetry.close();                     // once, e.g. in Service.onDestroy()
+ *
+ * Providers are polled by a TelemetrySampler thread while monitoring; packet
+ * builds and the accessors below only read their latest snapshots.
  *
  * Permissions required in AndroidManifest.xml:
  *   <uses-permission android:name="android.permission.ACCESS_FINE_LOCATION"/>
@@ -67,16 +76,25 @@ public class SysTelemetry {
     private final LocationProvider location;
     private final SignalStrengthProvider signalStrength;
     private final NetworkStatsProvider networkStats;
+    private final ProcessStatsProvider processStats;
+    private final TelemetrySampler sampler;
     private final TelemetryPacketBuilder packetBuilder;
+    private final Context context;
+    private volatile TelemetryHistory history;
+    private final byte[] historyPacket = new byte[TelemetryPacketBuilder.PACKET_BYTES];
 
     private volatile boolean monitoring = false;
 
     private SysTelemetry(Context context) {
+        this.context = context;
         powerStats     = new PowerStatsProvider(context);
         location       = new LocationProvider(context);
         signalStrength = new SignalStrengthProvider(context);
         networkStats   = new NetworkStatsProvider(context);
-        packetBuilder  = new TelemetryPacketBuilder(powerStats, signalStrength, networkStats, location);
+        processStats   = new ProcessStatsProvider();
+        sampler        = new TelemetrySampler(powerStats, signalStrength, networkStats, processStats);
+        packetBuilder  = new TelemetryPacketBuilder(powerStats, signalStrength, networkStats, location,
+                processStats, sampler);
     }
 
     // ── Lifecycle ─────────────────────────────────────────────────────────────
@@ -94,6 +112,11 @@ public class SysTelemetry {
         location.startUpdates();
         signalStrength.startListening();
         networkStats.init();
+        sampler.start();
+        if (history == null) {
+            history = new TelemetryHistory(new File(context.getFilesDir(), TelemetryHistory.FILE_NAME),
+                    TelemetryHistory.DEFAULT_BLOCKS);
+        }
         monitoring = true;
         Log.d(TAG, "Monitoring started");
     }
@@ -106,6 +129,11 @@ public class SysTelemetry {
         if (!monitoring) return;
         location.stopUpdates();
         signalStrength.stopListening();
+        sampler.stop();
+        if (history != null) {
+            history.close();
+            history = null;
+        }
         monitoring = false;
         Log.d(TAG, "Monitoring stopped");
     }
@@ -113,45 +141,103 @@ public class SysTelemetry {
     // ── Data access ───────────────────────────────────────────────────────────
 
     /**
-     * Returns a 116-character uppercase hex string representing the current
-     * telemetry snapshot (58 bytes, little-endian).
+     * Sets how often a field group (TelemetryPacketBuilder.GROUP_*) is sent;
+     * the sampler polls it at that rate, capped at TelemetrySampler.MAX_CADENCE_MS.
+     */
+    public void setSampleInterval(int group, long intervalMs) {
+        sampler.setInterval(group, intervalMs);
+    }
+
+    /**
+     * Stores the latest snapshots in the on-device history (at most ~1 Hz).
+     * Same thread as getPacket()/getFrame().
+     */
+    public void recordHistory() {
+        TelemetryHistory h = history;
+        if (h == null) return;
+        packetBuilder.copyPacket(historyPacket);
+        h.append(ClockSync.nowMs(), historyPacket);
+    }
+
+    /** On-device telemetry history, or null while not monitoring. */
+    public TelemetryHistory getHistory() {
+        return history;
+    }
+
+    /**
+     * Returns a 92-character uppercase hex string representing the latest
+     * telemetry snapshots (46 bytes, little-endian).
      *
      * See {@link TelemetryPacketBuilder} for the full protocol layout.
      * Never throws — returns a zero-filled fallback string on failure.
+     *
+     * @param withProcess also capture the process snapshot for getSentProcessStats()
+     */
+    public String getPacket(boolean withProcess) {
+        return packetBuilder.build(withProcess);
+    }
+
+    /**
+     * Returns the binary telemetry frame (version, sequence, timestamp, CRC32
+     * around the same packet). The buffer is reused: send or copy it before
+     * the next getPacket()/getFrame() call.
+     *
+     * @param status tunnel/stream/recording bits (see Router.getTunnelAndStreamStatus)
+     * @param withProcess append the process block
+     * @return the frame, or null if the snapshot failed
      */
-    public String getPacket() {
-        return packetBuilder.build();
+    public ByteBuffer getFrame(int status, boolean withProcess) {
+        return packetBuilder.buildFrame(status, withProcess);
+    }
+
+    /** TelemetryPacketBuilder.GROUP_* bits that were stale in the last getPacket()/getFrame(). */
+    public int getStaleMask() {
+        return packetBuilder.getStaleMask();
+    }
+
+    /** Process snapshot captured by the last getPacket(true), or null. */
+    public ProcessStatsProvider.Snapshot getSentProcessStats() {
+        return packetBuilder.getProcessSnapshot();
+    }
+
+    /** Latest process resource snapshot, or null before the first sample. Wait-free. */
+    public ProcessStatsProvider.Snapshot getProcessStats() {
+        return processStats.getSnapshot();
     }
 
     // ── Optional direct accessors (for debugging / display) ───────────────────
+    // Latest sampled values; 0 / -1 before the first sample.
 
     /** Current battery current in mA (signed). */
-    public short getBatteryCurrent()     { return powerStats.getCurrent(); }
+    public short getBatteryCurrent()     { PowerStatsProvider.Snapshot s = powerStats.getSnapshot(); return s != null ? s.currentMa : 0; }
 
-    /** Battery level 0–100. */
-    public byte  getBatteryLevel()       { return powerStats.getBatteryLevel(); }
+    /** Battery level 0–100, or -1 before the first sample. */
+    public int   getBatteryLevel()       { PowerStatsProvider.Snapshot s = powerStats.getSnapshot(); return s != null ? s.level : -1; }
 
     /** Battery temperature in °C. */
-    public float getBatteryTemperature() { return powerStats.getBatteryTemperature(); }
+    public float getBatteryTemperature() { PowerStatsProvider.Snapshot s = powerStats.getSnapshot(); return s != null ? s.temperatureC : 0f; }
 
     /** Thermal status byte (0–6 or 0xFF). */
-    public byte  getThermalStatus()      { return powerStats.getThermalStatus(); }
+    public byte  getThermalStatus()      { PowerStatsProvider.Snapshot s = powerStats.getSnapshot(); return s != null ? s.thermalStatus : (byte) 0xFF; }
 
     /** Cellular signal in dBm. */
-    public short getCellularSignalDbm()  { return signalStrength.getCellularSignalDbm(); }
+    public short getCellularSignalDbm()  { SignalStrengthProvider.Snapshot s = signalStrength.getSnapshot(); return s != null ? s.cellularDbm : -127; }
 
     /** Wi-Fi signal in dBm. */
-    public short getWifiSignalDbm()      { return signalStrength.getWifiSignalDbm(); }
+    public short getWifiSignalDbm()      { SignalStrengthProvider.Snapshot s = signalStrength.getSnapshot(); return s != null ? s.wifiDbm : -127; }
 
     /** Whether Wi-Fi is the active network transport. */
     public boolean isWifiConnected()     { return signalStrength.isWifiConnected(); }
 
-    /** Upload throughput in KB/s (from last packet build). */
+    /** Upload throughput in KB/s over the last sample interval. */
     public float getUploadKbps()         { return networkStats.getUploadKBps(); }
 
-    /** Download throughput in KB/s (from last packet build). */
+    /** Download throughput in KB/s over the last sample interval. */
     public float getDownloadKbps()       { return networkStats.getDownloadKBps(); }
 
+    /** Last GNSS fix, or null if none yet. */
+    public Location getLastLocation()    { return location.getLastLocation(); }
+
     /** Total session data usage in MB. */
     public float getSessionMb()          { return networkStats.getSessionConsumptionMB(); }
 }
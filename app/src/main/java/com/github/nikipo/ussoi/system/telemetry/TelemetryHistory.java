@@ -0,0 +1,395 @@
+package com.github.nikipo.ussoi.system.telemetry;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * *****************************************************************************
+ *
+ * @author nikipo
+ * *****************************************************************************
+ * @file TelemetryHistory
+ * @attention Copyright (c) 2026
+ * All rights reserved.
+ * <p>
+ * This software is licensed under the terms described in the LICENSE file
+ * located in the root directory of this project.
+ * If no LICENSE file is present, this software is provided "AS IS",
+ * without warranty of any kind, express or implied.
+ * <p>
+ * *****************************************************************************
+ */
+
+//Ring of fixed-size blocks, stored in a memory-mapped file (direct buffer if mapping fails).
+//
+//Block header (32B, big-endian):
+//Magic,0,4,'TLH1'
+//Sequence,4,4,uint32 (0 = empty block, newest = highest)
+//First ts,8,8,epoch ms
+//Last ts,16,8,epoch ms
+//Count,24,2,uint16 samples
+//Reserved,26,2,
+//Bit length,28,4,bits used in the data area
+//
+//Data area, bit stream (MSB first), Gorilla style:
+//First sample: 64-bit ts, then every packet field raw.
+//Next samples, timestamp delta-of-delta:
+//  '0' same delta | '10'+7b | '110'+9b | '1110'+12b (biased) | '1111'+64b
+//Then per packet field, value XOR previous value:
+//  '0' unchanged | '10' + bits inside previous window | '11' + 5b leading zeros + 5b (length - 1) + bits
+public final class TelemetryHistory {
+    private static final String TAG = "TelemetryHistory";
+
+    public static final int BLOCK_BYTES = 4096;
+    public static final int DEFAULT_BLOCKS = 128;             // 512 KB
+    public static final long MIN_INTERVAL_MS = 900;           // ~1 Hz, with slack for scheduler jitter
+    public static final String FILE_NAME = "telemetry_history.bin";
+
+    private static final int MAGIC = 0x544C4831;              // "TLH1"
+    private static final int HEADER_BYTES = 32;
+    private static final long DATA_BITS = (BLOCK_BYTES - HEADER_BYTES) * 8L;
+
+    // Packet layout from TelemetryPacketBuilder: one entry per field, in bytes
+    private static final int[] FIELD_BYTES = {2, 1, 4, 1, 2, 2, 1, 1, 4, 4, 4, 4, 4, 4, 4, 4};
+    private static final int MAX_SAMPLE_BITS = 4 + 64 + FIELD_BYTES.length * (2 + 5 + 5 + 32);
+
+    public interface Visitor {
+        /** @return false to stop reading */
+        boolean onSample(long timestampMs, byte[] packet);
+    }
+
+    private final ByteBuffer store;
+    private final int blocks;
+    private final RandomAccessFile file;
+
+    // Append state (guarded by this)
+    private int block = -1;
+    private int newestBlock = -1;
+    private long nextSeq = 1;
+    private long bitPos;
+    private int count;
+    private long prevTs;
+    private long prevDelta;
+    private final long[] prevValue = new long[FIELD_BYTES.length];
+    private final int[] prevLead = new int[FIELD_BYTES.length];
+    private final int[] prevTrail = new int[FIELD_BYTES.length];
+
+    /**
+     * Opens (or creates) the history file. Samples already in it stay
+     * readable; new samples start a fresh block.
+     */
+    public TelemetryHistory(File path, int blocks) {
+        this.blocks = blocks;
+        long size = (long) blocks * BLOCK_BYTES;
+        RandomAccessFile raf = null;
+        ByteBuffer buffer;
+        try {
+            raf = new RandomAccessFile(path, "rw");
+            if (raf.length() != size) {
+                raf.setLength(0);
+                raf.setLength(size);
+            }
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot map " + path + ", history kept in memory only", e);
+            if (raf != null) {
+                try { raf.close(); } catch (IOException ignored) {}
+                raf = null;
+            }
+            buffer = ByteBuffer.allocateDirect((int) size);
+        }
+        this.file = raf;
+        this.store = buffer;
+
+        long maxSeq = 0;
+        for (int i = 0; i < blocks; i++) {
+            if (store.getInt(i * BLOCK_BYTES) != MAGIC) continue;
+            long seq = store.getInt(i * BLOCK_BYTES + 4) & 0xFFFFFFFFL;
+            if (seq > maxSeq) {
+                maxSeq = seq;
+                newestBlock = i;
+            }
+        }
+        nextSeq = maxSeq + 1;
+    }
+
+    // ── Append ──
+
+    /**
+     * Adds one packet (PACKET_BYTES, little-endian).
+     * @return false if it came sooner than MIN_INTERVAL_MS after the previous one
+     */
+    public synchronized boolean append(long timestampMs, byte[] packet) {
+        if (block >= 0 && timestampMs >= prevTs && timestampMs - prevTs < MIN_INTERVAL_MS) return false;
+
+        // wall clock stepped back: start over in a new block rather than encode a negative delta
+        if (block < 0 || bitPos + MAX_SAMPLE_BITS > DATA_BITS || timestampMs < prevTs) {
+            startBlock(timestampMs, packet);
+        } else {
+            writeTimestamp(timestampMs);
+            int off = 0;
+            for (int i = 0; i < FIELD_BYTES.length; i++) {
+                writeField(i, readField(packet, off, FIELD_BYTES[i]));
+                off += FIELD_BYTES[i];
+            }
+            count++;
+        }
+
+        int base = block * BLOCK_BYTES;
+        store.putLong(base + 16, timestampMs);
+        store.putShort(base + 24, (short) count);
+        store.putInt(base + 28, (int) bitPos);
+        return true;
+    }
+
+    private void startBlock(long timestampMs, byte[] packet) {
+        block = (block < 0 ? newestBlock + 1 : block + 1) % blocks;
+        newestBlock = block;
+        int base = block * BLOCK_BYTES;
+        store.putInt(base, MAGIC);
+        store.putInt(base + 4, (int) nextSeq++);
+        store.putLong(base + 8, timestampMs);
+
+        bitPos = 0;
+        count = 1;
+        writeBits(timestampMs, 64);
+        int off = 0;
+        for (int i = 0; i < FIELD_BYTES.length; i++) {
+            long v = readField(packet, off, FIELD_BYTES[i]);
+            writeBits(v, FIELD_BYTES[i] * 8);
+            prevValue[i] = v;
+            prevLead[i] = -1;
+            prevTrail[i] = -1;
+            off += FIELD_BYTES[i];
+        }
+        prevTs = timestampMs;
+        prevDelta = 0;
+    }
+
+    private void writeTimestamp(long ts) {
+        long delta = ts - prevTs;
+        long dod = delta - prevDelta;
+        if (dod == 0) {
+            writeBits(0, 1);
+        } else if (dod >= -63 && dod <= 64) {
+            writeBits(0b10, 2);
+            writeBits(dod + 63, 7);
+        } else if (dod >= -255 && dod <= 256) {
+            writeBits(0b110, 3);
+            writeBits(dod + 255, 9);
+        } else if (dod >= -2047 && dod <= 2048) {
+            writeBits(0b1110, 4);
+            writeBits(dod + 2047, 12);
+        } else {
+            writeBits(0b1111, 4);
+            writeBits(dod, 64);
+        }
+        prevDelta = delta;
+        prevTs = ts;
+    }
+
+    private void writeField(int i, long value) {
+        int width = FIELD_BYTES[i] * 8;
+        long xor = value ^ prevValue[i];
+        prevValue[i] = value;
+        if (xor == 0) {
+            writeBits(0, 1);
+            return;
+        }
+        int lead = Long.numberOfLeadingZeros(xor) - (64 - width);
+        int trail = Long.numberOfTrailingZeros(xor);
+        if (prevLead[i] >= 0 && lead >= prevLead[i] && trail >= prevTrail[i]) {
+            writeBits(0b10, 2);
+            writeBits(xor >>> prevTrail[i], width - prevLead[i] - prevTrail[i]);
+            return;
+        }
+        int len = width - lead - trail;
+        writeBits(0b11, 2);
+        writeBits(lead, 5);
+        writeBits(len - 1, 5);
+        writeBits(xor >>> trail, len);
+        prevLead[i] = lead;
+        prevTrail[i] = trail;
+    }
+
+    private void writeBits(long value, int n) {
+        int base = block * BLOCK_BYTES + HEADER_BYTES;
+        for (int i = n - 1; i >= 0; i--) {
+            int idx = base + (int) (bitPos >>> 3);
+            int mask = 1 << (7 - (int) (bitPos & 7));
+            int b = store.get(idx);
+            b = ((value >>> i) & 1) != 0 ? (b | mask) : (b & ~mask);
+            store.put(idx, (byte) b);
+            bitPos++;
+        }
+    }
+
+    private static long readField(byte[] packet, int off, int size) {
+        long v = 0;
+        for (int k = 0; k < size; k++) {
+            v |= (long) (packet[off + k] & 0xFF) << (8 * k);
+        }
+        return v;
+    }
+
+    private static void writeField(byte[] packet, int off, int size, long v) {
+        for (int k = 0; k < size; k++) {
+            packet[off + k] = (byte) (v >>> (8 * k));
+        }
+    }
+
+    // ── Read ──
+
+    /**
+     * Visits every sample with fromMs <= ts <= toMs, oldest first.
+     * Blocks are decoded one at a time under the lock; the visitor runs
+     * outside it, so a slow consumer does not stall recording.
+     *
+     * @return number of samples visited
+     */
+    public int read(long fromMs, long toMs, Visitor visitor) {
+        long[][] order = blockOrder();
+        int visited = 0;
+        for (long[] entry : order) {
+            List<Object[]> samples = decodeBlock((int) entry[0], entry[1], fromMs, toMs);
+            for (Object[] s : samples) {
+                visited++;
+                if (!visitor.onSample((Long) s[0], (byte[]) s[1])) return visited;
+            }
+        }
+        return visited;
+    }
+
+    /** {blockIndex, seq} of non-empty blocks, oldest first. */
+    private synchronized long[][] blockOrder() {
+        List<long[]> list = new ArrayList<>();
+        for (int i = 0; i < blocks; i++) {
+            if (store.getInt(i * BLOCK_BYTES) != MAGIC) continue;
+            list.add(new long[]{i, store.getInt(i * BLOCK_BYTES + 4) & 0xFFFFFFFFL});
+        }
+        long[][] order = list.toArray(new long[0][]);
+        Arrays.sort(order, (a, b) -> Long.compare(a[1], b[1]));
+        return order;
+    }
+
+    private synchronized List<Object[]> decodeBlock(int idx, long seq, long fromMs, long toMs) {
+        List<Object[]> out = new ArrayList<>();
+        int base = idx * BLOCK_BYTES;
+        // overwritten since blockOrder(), or outside the range
+        if (store.getInt(base) != MAGIC || (store.getInt(base + 4) & 0xFFFFFFFFL) != seq) return out;
+        if (store.getLong(base + 8) > toMs || store.getLong(base + 16) < fromMs) return out;
+
+        int n = store.getShort(base + 24) & 0xFFFF;
+        long[] pos = {0};
+        int dataBase = base + HEADER_BYTES;
+        long[] value = new long[FIELD_BYTES.length];
+        int[] lead = new int[FIELD_BYTES.length];
+        int[] trail = new int[FIELD_BYTES.length];
+        long ts = 0;
+        long delta = 0;
+
+        for (int s = 0; s < n; s++) {
+            if (s == 0) {
+                ts = readBits(dataBase, pos, 64);
+                for (int i = 0; i < FIELD_BYTES.length; i++) {
+                    value[i] = readBits(dataBase, pos, FIELD_BYTES[i] * 8);
+                    lead[i] = -1;
+                }
+            } else {
+                long dod;
+                if (readBits(dataBase, pos, 1) == 0) dod = 0;
+                else if (readBits(dataBase, pos, 1) == 0) dod = readBits(dataBase, pos, 7) - 63;
+                else if (readBits(dataBase, pos, 1) == 0) dod = readBits(dataBase, pos, 9) - 255;
+                else if (readBits(dataBase, pos, 1) == 0) dod = readBits(dataBase, pos, 12) - 2047;
+                else dod = readBits(dataBase, pos, 64);
+                delta += dod;
+                ts += delta;
+
+                for (int i = 0; i < FIELD_BYTES.length; i++) {
+                    int width = FIELD_BYTES[i] * 8;
+                    if (readBits(dataBase, pos, 1) == 0) continue;
+                    if (readBits(dataBase, pos, 1) == 0) {
+                        int len = width - lead[i] - trail[i];
+                        value[i] ^= readBits(dataBase, pos, len) << trail[i];
+                    } else {
+                        lead[i] = (int) readBits(dataBase, pos, 5);
+                        int len = (int) readBits(dataBase, pos, 5) + 1;
+                        trail[i] = width - lead[i] - len;
+                        value[i] ^= readBits(dataBase, pos, len) << trail[i];
+                    }
+                }
+            }
+
+            if (ts < fromMs || ts > toMs) continue;
+            byte[] packet = new byte[TelemetryPacketBuilder.PACKET_BYTES];
+            int off = 0;
+            for (int i = 0; i < FIELD_BYTES.length; i++) {
+                writeField(packet, off, FIELD_BYTES[i], value[i]);
+                off += FIELD_BYTES[i];
+            }
+            out.add(new Object[]{ts, packet});
+        }
+        return out;
+    }
+
+    private long readBits(int base, long[] pos, int n) {
+        long v = 0;
+        for (int i = 0; i < n; i++) {
+            int b = store.get(base + (int) (pos[0] >>> 3));
+            v = (v << 1) | ((b >>> (7 - (int) (pos[0] & 7))) & 1);
+            pos[0]++;
+        }
+        return v;
+    }
+
+    // ── Info / lifecycle ──
+
+    /** {"samples":..,"blocks_used":..,"blocks":..,"bytes_used":..,"oldest_ms":..,"newest_ms":..} */
+    public synchronized JSONObject getStats() {
+        JSONObject o = new JSONObject();
+        long samples = 0, bytes = 0, oldest = Long.MAX_VALUE, newest = 0;
+        int used = 0;
+        for (int i = 0; i < blocks; i++) {
+            int base = i * BLOCK_BYTES;
+            if (store.getInt(base) != MAGIC) continue;
+            used++;
+            samples += store.getShort(base + 24) & 0xFFFF;
+            bytes += HEADER_BYTES + (store.getInt(base + 28) + 7) / 8;
+            oldest = Math.min(oldest, store.getLong(base + 8));
+            newest = Math.max(newest, store.getLong(base + 16));
+        }
+        try {
+            o.put("samples", samples);
+            o.put("blocks_used", used);
+            o.put("blocks", blocks);
+            o.put("bytes_used", bytes);
+            o.put("oldest_ms", used > 0 ? oldest : 0);
+            o.put("newest_ms", newest);
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to build stats", e);
+        }
+        return o;
+    }
+
+    public synchronized void close() {
+        if (file == null) return;
+        try {
+            ((MappedByteBuffer) store).force();
+            file.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close failed", e);
+        }
+    }
+}
@@ -18,10 +18,14 @@ package com.github.nikipo.ussoi.system.telemetry;
  */
 
 import android.location.Location;
+import android.os.SystemClock;
 import android.util.Log;
 
+import com.github.nikipo.ussoi.system.clock.ClockSync;
+
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.zip.CRC32;
 
 /**
  * *****************************************************************************
@@ -61,6 +65,28 @@ import java.nio.ByteOrder;
 //Accuracy,34,4,float32,raw,raw,meters
 //Speed,38,4,float32,raw,raw,m/s
 //Altitude,42,4,float32,raw,raw,meters
+//
+// Binary frame (buildFrame), little-endian, sent as one WebSocket binary message:
+//Magic,0,2,bytes,'U' 'T',,
+//Version,2,1,uint8,FRAME_VERSION,,
+//Flags,3,1,uint8,bit0 = location fix valid / bits1-5 power radio network gnss process stale / bit6 process block,,
+//Status,4,1,uint8,bit0 tunnel / bit1 stream / bit2 recording,,
+//Sequence,5,4,uint32,raw,wraps,
+//Timestamp,9,8,int64,raw,epoch,ms
+//Length,17,2,uint16,PACKET_BYTES (+ PROCESS_BLOCK_BYTES with bit6),,
+//Payload,19,46,bytes,packet above,,
+//Process block,65,32,bytes,only with flags bit6 (below),,
+//CRC32,65 or 97,4,uint32,over all preceding bytes,,
+//
+// Process block (ProcessStatsProvider), appended when the process group is due:
+//Process CPU,0,2,uint16,raw,raw / 10,% of one core
+//Threads,2,2,uint16,raw,raw,count
+//RSS,4,4,uint32,raw,raw,KB
+//Java Heap,8,4,uint32,raw,raw,KB
+//Native Heap,12,4,uint32,raw,raw,KB
+//GC Count,16,4,uint32,raw,raw,count since start
+//GC Time,20,4,uint32,raw,raw,ms since start
+//Thread CPU,24,8,int16[4],raw,raw / 10 (raw -1 = not running),% of one core per TRACKED_THREADS
 public class TelemetryPacketBuilder {
 
     private static final String TAG = "TelemetryPacketBuilder";
@@ -74,72 +100,120 @@ public class TelemetryPacketBuilder {
      */
     public static final String FALLBACK_PACKET = repeat('0', PACKET_HEX_LENGTH);
 
+    public static final byte FRAME_MAGIC_0 = 'U';
+    public static final byte FRAME_MAGIC_1 = 'T';
+    public static final byte FRAME_VERSION = 1;
+    public static final int FRAME_HEADER_BYTES = 19;
+    public static final int FRAME_BYTES = FRAME_HEADER_BYTES + PACKET_BYTES + 4;
+    public static final int FLAG_LOCATION_VALID = 1;
+    /** Stale mask (GROUP_* bits) sits in flags bits 1–5 */
+    public static final int FLAG_STALE_SHIFT = 1;
+    public static final int FLAG_PROCESS_BLOCK = 1 << 6;
+    public static final int PROCESS_BLOCK_BYTES = 32;
+    public static final int FRAME_MAX_BYTES = FRAME_BYTES + PROCESS_BLOCK_BYTES;
+
+    // Field groups, sampled independently (see TelemetrySampler / TelemetryScheduler)
+    public static final int GROUP_POWER   = 1;
+    public static final int GROUP_RADIO   = 1 << 1;
+    public static final int GROUP_NETWORK = 1 << 2;
+    public static final int GROUP_GNSS    = 1 << 3;
+    public static final int GROUP_ALL     = GROUP_POWER | GROUP_RADIO | GROUP_NETWORK | GROUP_GNSS;
+    /** Not part of the packet: sent as the optional process block / "proc" object */
+    public static final int GROUP_PROCESS = 1 << 4;
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    // Reused between builds: build()/buildFrame()/copyPacket() run on the telemetry scheduler thread only
+    private final ByteBuffer frame = ByteBuffer.allocate(FRAME_MAX_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    private final char[] hexChars = new char[PACKET_HEX_LENGTH];
+    private final CRC32 crc = new CRC32();
+    private int sequence = 0;
+
+    // Snapshots captured once per build, so every field of a packet comes from the same reads
+    private PowerStatsProvider.Snapshot power;
+    private SignalStrengthProvider.Snapshot radio;
+    private NetworkStatsProvider.Snapshot network;
+    private Location fix;
+    private ProcessStatsProvider.Snapshot process;
+    private int staleMask;
+
     private final PowerStatsProvider powerStats;
     private final SignalStrengthProvider signalStrength;
     private final NetworkStatsProvider networkStats;
     private final LocationProvider location;
+    private final ProcessStatsProvider processStats;
+    private final TelemetrySampler sampler;
 
     public TelemetryPacketBuilder(
             PowerStatsProvider powerStats,
             SignalStrengthProvider signalStrength,
             NetworkStatsProvider networkStats,
-            LocationProvider location) {
+            LocationProvider location,
+            ProcessStatsProvider processStats,
+            TelemetrySampler sampler) {
         this.powerStats = powerStats;
         this.signalStrength = signalStrength;
         this.networkStats = networkStats;
         this.location = location;
+        this.processStats = processStats;
+        this.sampler = sampler;
     }
 
     /**
-     * Assembles and returns the 116-character hex telemetry string.
-     * Never throws — returns FALLBACK_PACKET on catastrophic failure.
+     * Takes the latest published snapshot of every group and works out which
+     * are stale. Wait-free: only reads atomic references.
+     *
+     * @param withProcess also capture the process snapshot
      */
+    private void capture(boolean withProcess) {
+        power = powerStats.getSnapshot();
+        radio = signalStrength.getSnapshot();
+        network = networkStats.getSnapshot();
+        fix = location.getLastLocation();
+
+        long now = SystemClock.elapsedRealtime();
+        int mask = 0;
+        if (power == null || now - power.timeMs > sampler.staleAfterMs(GROUP_POWER)) mask |= GROUP_POWER;
+        if (radio == null || now - radio.timeMs > sampler.staleAfterMs(GROUP_RADIO)) mask |= GROUP_RADIO;
+        if (network.timeMs == 0 || now - network.timeMs > sampler.staleAfterMs(GROUP_NETWORK)) mask |= GROUP_NETWORK;
+        if (LocationProvider.getFixAgeMs(fix) > sampler.staleAfterMs(GROUP_GNSS)) mask |= GROUP_GNSS;
+        process = withProcess ? processStats.getSnapshot() : null;
+        if (withProcess && (process == null || now - process.timeMs > sampler.staleAfterMs(GROUP_PROCESS))) {
+            mask |= GROUP_PROCESS;
+        }
+        staleMask = mask;
+    }
+
+    /** GROUP_* bits of the fields that were stale in the last built packet. */
+    public int getStaleMask() {
+        return staleMask;
+    }
+
+    /** Process snapshot captured by the last build(true)/buildFrame(…, true), or null. */
+    public ProcessStatsProvider.Snapshot getProcessSnapshot() {
+        return process;
+    }
 
-    public String build() {
+    /**
+     * Returns the latest snapshots as a 92-character hex telemetry string.
+     * Never throws — returns FALLBACK_PACKET on catastrophic failure.
+     *
+     * @param withProcess also capture the process snapshot (see getProcessSnapshot())
+     */
+    public String build(boolean withProcess) {
         try {
-            networkStats.snapshot();
-
-            ByteBuffer buf = ByteBuffer.allocate(PACKET_BYTES);
-            buf.order(ByteOrder.LITTLE_ENDIAN);
-
-            // ── 1. Power (8B)
-            buf.putShort(powerStats.getCurrent());
-            buf.put(powerStats.getBatteryLevel());
-
-            float temp = powerStats.getBatteryTemperature();
-            buf.putFloat(Float.isNaN(temp) ? 0f : temp);
-
-            buf.put(powerStats.getThermalStatus());
-
-            // ── 2. Telecom (6B)
-            buf.putShort((short) signalStrength.getCellularSignalDbm());
-            buf.putShort((short) signalStrength.getWifiSignalDbm());
-            buf.put(networkStats.getNetworkType());
-            buf.put(networkStats.getDataNetworkType());
-
-            // ── 3. Network (12B) → scaled ints
-            buf.putInt((int)(networkStats.getUploadKBps() * 100));   // KB/s *100
-            buf.putInt((int)(networkStats.getDownloadKBps() * 100)); // KB/s *100
-            buf.putInt((int)(networkStats.getSessionConsumptionMB() * 100)); // MB *100
-
-            // ── 4. Location (20B)
-            Location loc = location.getLastLocation();
-
-            if (loc != null) {
-                buf.putFloat((float) loc.getLatitude());
-                buf.putFloat((float) loc.getLongitude());
-                buf.putFloat(loc.hasAccuracy() ? loc.getAccuracy() : 0f);
-                buf.putFloat(loc.hasSpeed()    ? loc.getSpeed()    : 0f);
-                buf.putFloat(loc.hasAltitude() ? (float) loc.getAltitude() : 0f);
-            } else {
-                buf.putFloat(0f); // lat
-                buf.putFloat(0f); // lon
-                buf.putFloat(0f); // acc
-                buf.putFloat(0f); // speed
-                buf.putFloat(0f); // alt
-            }
+            capture(withProcess);
+            frame.clear();
+            frame.position(FRAME_HEADER_BYTES);
+            writePayload(frame);
 
-            return bytesToHex(buf.array());
+            byte[] bytes = frame.array();
+            for (int i = 0; i < PACKET_BYTES; i++) {
+                int b = bytes[FRAME_HEADER_BYTES + i] & 0xFF;
+                hexChars[i * 2] = HEX_DIGITS[b >>> 4];
+                hexChars[i * 2 + 1] = HEX_DIGITS[b & 0x0F];
+            }
+            return new String(hexChars);
 
         } catch (Exception e) {
             Log.e(TAG, "build() failed", e);
@@ -147,16 +221,134 @@ public class TelemetryPacketBuilder {
         }
     }
 
-    // -------------------------------------------------------------------------
+    /**
+     * Writes the latest snapshots as a binary telemetry frame (layout above) into a reused buffer.
+     * The returned buffer is only valid until the next build()/buildFrame().
+     *
+     * @param status tunnel/stream/recording bits
+     * @param withProcess append the process block
+     * @return the frame, or null if the snapshot failed
+     */
+    public ByteBuffer buildFrame(int status, boolean withProcess) {
+        try {
+            capture(withProcess);
+            frame.clear();
+            frame.position(FRAME_HEADER_BYTES);
+            writePayload(frame);
+            if (withProcess) writeProcessBlock(frame);
+            int payloadBytes = frame.position() - FRAME_HEADER_BYTES;
+
+            int flags = (fix != null ? FLAG_LOCATION_VALID : 0) | (staleMask << FLAG_STALE_SHIFT);
+            if (withProcess) flags |= FLAG_PROCESS_BLOCK;
+            frame.put(0, FRAME_MAGIC_0);
+            frame.put(1, FRAME_MAGIC_1);
+            frame.put(2, FRAME_VERSION);
+            frame.put(3, (byte) flags);
+            frame.put(4, (byte) status);
+            frame.putInt(5, sequence++);
+            frame.putLong(9, ClockSync.nowMs());
+            frame.putShort(17, (short) payloadBytes);
 
-    private static String bytesToHex(byte[] bytes) {
-        StringBuilder sb = new StringBuilder(bytes.length * 2);
-        for (byte b : bytes) {
-            sb.append(String.format("%02X", b));
+            int crcOffset = FRAME_HEADER_BYTES + payloadBytes;
+            crc.reset();
+            crc.update(frame.array(), 0, crcOffset);
+            frame.putInt(crcOffset, (int) crc.getValue());
+
+            frame.position(0);
+            frame.limit(crcOffset + 4);
+            return frame;
+
+        } catch (Exception e) {
+            Log.e(TAG, "buildFrame() failed", e);
+            return null;
         }
-        return sb.toString();
     }
 
+    /** Copies the latest snapshots (PACKET_BYTES, little-endian) into dst. */
+    public void copyPacket(byte[] dst) {
+        capture(false);
+        ByteBuffer buf = ByteBuffer.wrap(dst).order(ByteOrder.LITTLE_ENDIAN);
+        writePayload(buf);
+    }
+
+    /** Uppercase hex of a packet, same format as build(). */
+    public static String toHex(byte[] packet) {
+        char[] chars = new char[packet.length * 2];
+        for (int i = 0; i < packet.length; i++) {
+            int b = packet[i] & 0xFF;
+            chars[i * 2] = HEX_DIGITS[b >>> 4];
+            chars[i * 2 + 1] = HEX_DIGITS[b & 0x0F];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Writes the 46-byte packet from the captured snapshots at buf's position.
+     * A group with no snapshot yet is written as zeros (flagged stale).
+     */
+    private void writePayload(ByteBuffer buf) {
+        // ── 1. Power (8B)
+        if (power != null) {
+            buf.putShort(power.currentMa);
+            buf.put(power.level);
+            buf.putFloat(Float.isNaN(power.temperatureC) ? 0f : power.temperatureC);
+            buf.put(power.thermalStatus);
+        } else {
+            buf.putShort((short) 0).put((byte) 0).putFloat(0f).put((byte) 0);
+        }
+
+        // ── 2. Telecom (6B)
+        if (radio != null) {
+            buf.putShort(radio.cellularDbm);
+            buf.putShort(radio.wifiDbm);
+            buf.put(radio.networkType);
+            buf.put(radio.dataNetworkType);
+        } else {
+            buf.putShort((short) 0).putShort((short) 0).put((byte) 0).put((byte) 0);
+        }
+
+        // ── 3. Network (12B) → scaled ints
+        buf.putInt((int) (network.uploadKBps * 100));     // KB/s *100
+        buf.putInt((int) (network.downloadKBps * 100));   // KB/s *100
+        buf.putInt((int) (network.sessionMB * 100));      // MB *100
+
+        // ── 4. Location (20B)
+        Location loc = fix;
+        if (loc != null) {
+            buf.putFloat((float) loc.getLatitude());
+            buf.putFloat((float) loc.getLongitude());
+            buf.putFloat(loc.hasAccuracy() ? loc.getAccuracy() : 0f);
+            buf.putFloat(loc.hasSpeed() ? loc.getSpeed() : 0f);
+            buf.putFloat(loc.hasAltitude() ? (float) loc.getAltitude() : 0f);
+        } else {
+            buf.putFloat(0f).putFloat(0f).putFloat(0f).putFloat(0f).putFloat(0f);
+        }
+    }
+
+    /** Writes the process block (layout above); zeros with every thread at -1 if never sampled. */
+    private void writeProcessBlock(ByteBuffer buf) {
+        ProcessStatsProvider.Snapshot p = process;
+        if (p == null) {
+            buf.putShort((short) 0).putShort((short) 0);
+            for (int i = 0; i < 5; i++) buf.putInt(0);
+            for (int i = 0; i < ProcessStatsProvider.TRACKED_THREADS.length; i++) buf.putShort((short) -1);
+            return;
+        }
+        buf.putShort((short) Math.min(0xFFFF, Math.round(p.cpuPct * 10)));
+        buf.putShort((short) Math.min(0xFFFF, p.threads));
+        buf.putInt((int) p.rssKb);
+        buf.putInt((int) p.javaHeapKb);
+        buf.putInt((int) p.nativeHeapKb);
+        buf.putInt((int) p.gcCount);
+        buf.putInt((int) p.gcTimeMs);
+        for (int i = 0; i < ProcessStatsProvider.TRACKED_THREADS.length; i++) {
+            float pct = p.getThreadCpuPct(i);
+            buf.putShort((short) (pct < 0 ? -1 : Math.min(Short.MAX_VALUE, Math.round(pct * 10))));
+        }
+    }
+
+    // -------------------------------------------------------------------------
+
     /** Simple repeat helper — avoids requiring API 26 String.repeat(). */
     private static String repeat(char c, int count) {
         StringBuilder sb = new StringBuilder(count);
@@ -0,0 +1,181 @@
+package com.github.nikipo.ussoi.system.telemetry;
+
+import android.util.Log;
+
+/**
+ * *****************************************************************************
+ *
+ * @author nikipo
+ * *****************************************************************************
+ * @file TelemetrySampler
+ * @attention Copyright (c) 2026
+ * All rights reserved.
+ * <p>
+ * This software is licensed under the terms described in the LICENSE file
+ * located in the root directory of this project.
+ * If no LICENSE file is present, this software is provided "AS IS",
+ * without warranty of any kind, express or implied.
+ * <p>
+ * *****************************************************************************
+ */
+
+/**
+ * Polls the telemetry providers on one background thread, each field group at
+ * its own cadence, so binder calls never run on the send path.
+ *
+ * Every provider publishes an immutable snapshot; TelemetryPacketBuilder only
+ * reads the latest ones. GNSS is not polled here — LocationProvider publishes
+ * from its listener.
+ *
+ * A group's cadence follows its send interval but is capped at
+ * {@link #MAX_CADENCE_MS}, so deadbands and local readers stay fresh even when
+ * sends are slow. A snapshot older than {@link #staleAfterMs} is flagged stale
+ * in the packet.
+ */
+public final class TelemetrySampler {
+    private static final String TAG = "TelemetrySampler";
+
+    public static final long MAX_CADENCE_MS = 1000;
+    private static final long MIN_STALE_MS = 1000;
+    private static final int STALE_FACTOR = 3;
+    /** Fixes arrive at the GNSS receiver's own rate; one older than this is stale */
+    public static final long GNSS_STALE_MS = 5000;
+
+    private static final int[] POLLED = {
+            TelemetryPacketBuilder.GROUP_POWER,
+            TelemetryPacketBuilder.GROUP_RADIO,
+            TelemetryPacketBuilder.GROUP_NETWORK,
+            TelemetryPacketBuilder.GROUP_PROCESS
+    };
+
+    private final PowerStatsProvider powerStats;
+    private final SignalStrengthProvider signalStrength;
+    private final NetworkStatsProvider networkStats;
+    private final ProcessStatsProvider processStats;
+    private final Object lock = new Object();
+
+    // indexed like POLLED
+    private final long[] cadenceMs = new long[POLLED.length];
+    private final long[] nextDueMs = new long[POLLED.length];
+
+    private volatile Thread worker;
+    private volatile boolean running = false;
+
+    public TelemetrySampler(
+            PowerStatsProvider powerStats,
+            SignalStrengthProvider signalStrength,
+            NetworkStatsProvider networkStats,
+            ProcessStatsProvider processStats) {
+        this.powerStats = powerStats;
+        this.signalStrength = signalStrength;
+        this.networkStats = networkStats;
+        this.processStats = processStats;
+        for (int i = 0; i < cadenceMs.length; i++) cadenceMs[i] = MAX_CADENCE_MS;
+    }
+
+    public void start() {
+        synchronized (lock) {
+            if (running) return;
+            running = true;
+            long now = now();
+            for (int i = 0; i < nextDueMs.length; i++) nextDueMs[i] = now;
+            worker = new Thread(this::loop, "TelemetrySampler");
+            worker.start();
+        }
+    }
+
+    public void stop() {
+        Thread t;
+        synchronized (lock) {
+            running = false;
+            t = worker;
+            worker = null;
+            lock.notifyAll();
+        }
+        if (t != null) t.interrupt();
+    }
+
+    /**
+     * Sets the send interval of a group; its sampling cadence becomes
+     * min(intervalMs, MAX_CADENCE_MS). Ignored for GNSS.
+     *
+     * @param group TelemetryPacketBuilder.GROUP_* (single bit)
+     */
+    public void setInterval(int group, long intervalMs) {
+        int i = indexOf(group);
+        if (i < 0) return;
+        synchronized (lock) {
+            long cadence = Math.max(1, Math.min(MAX_CADENCE_MS, intervalMs));
+            if (cadence == cadenceMs[i]) return;
+            cadenceMs[i] = cadence;
+            nextDueMs[i] = Math.min(nextDueMs[i], now() + cadence);
+            lock.notifyAll();
+        }
+    }
+
+    /** Age past which a snapshot of the group counts as stale. */
+    public long staleAfterMs(int group) {
+        int i = indexOf(group);
+        if (i < 0) return GNSS_STALE_MS;
+        synchronized (lock) {
+            return Math.max(MIN_STALE_MS, STALE_FACTOR * cadenceMs[i]);
+        }
+    }
+
+    // ── Loop ──
+
+    private void loop() {
+        while (running && worker == Thread.currentThread()) {
+            int due = 0;
+            synchronized (lock) {
+                try {
+                    long now = now();
+                    long next = Long.MAX_VALUE;
+                    for (int i = 0; i < POLLED.length; i++) {
+                        if (now >= nextDueMs[i]) {
+                            due |= POLLED[i];
+                            nextDueMs[i] = now + cadenceMs[i];
+                        }
+                        next = Math.min(next, nextDueMs[i]);
+                    }
+                    if (due == 0) {
+                        lock.wait(Math.max(1, next - now));
+                        continue;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+
+            // outside the lock: providers may block in binder calls
+            try {
+                if ((due & TelemetryPacketBuilder.GROUP_POWER) != 0) {
+                    powerStats.sample();
+                }
+                if ((due & TelemetryPacketBuilder.GROUP_RADIO) != 0) {
+                    signalStrength.sample(networkStats.getNetworkType(), networkStats.getDataNetworkType());
+                }
+                if ((due & TelemetryPacketBuilder.GROUP_NETWORK) != 0) {
+                    networkStats.sample();
+                }
+                if ((due & TelemetryPacketBuilder.GROUP_PROCESS) != 0) {
+                    processStats.sample();
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Sampling failed", e);
+            }
+        }
+    }
+
+    private static int indexOf(int group) {
+        for (int i = 0; i < POLLED.length; i++) {
+            if (POLLED[i] == group) return i;
+        }
+        return -1;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1_000_000;
+    }
+}
@@ -0,0 +1,374 @@
+package com.github.nikipo.ussoi.system.telemetry;
+
+import android.location.Location;
+import android.util.Log;
+
+import com.github.nikipo.ussoi.ui.UssoiStrings;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * *****************************************************************************
+ *
+ * @author nikipo
+ * *****************************************************************************
+ * @file TelemetryScheduler
+ * @attention Copyright (c) 2026
+ * All rights reserved.
+ * <p>
+ * This software is licensed under the terms described in the LICENSE file
+ * located in the root directory of this project.
+ * If no LICENSE file is present, this software is provided "AS IS",
+ * without warranty of any kind, express or implied.
+ * <p>
+ * *****************************************************************************
+ */
+
+/**
+ * Decides when telemetry is sent.
+ *
+ * Every field group (power, radio, network, GNSS, process) has its own interval; a
+ * packet goes out whenever at least one group is due. Values come from the
+ * TelemetrySampler snapshots, whose cadence follows these intervals. Position
+ * and battery level also have deadbands: their snapshots are checked between
+ * intervals and a packet is sent as soon as either moves past its threshold.
+ *
+ * While the link has more than {@link #SATURATED_BYTES} queued, all intervals
+ * are doubled step by step (up to 16×) and relaxed again once it drains.
+ * While the link is down packets are still built on schedule and recorded
+ * into the on-device history, just not sent.
+ *
+ * Building and sending run on the scheduler thread; config calls may come
+ * from any thread.
+ */
+public final class TelemetryScheduler {
+    private static final String TAG = "TelemetryScheduler";
+
+    public enum Group {
+        POWER   (TelemetryPacketBuilder.GROUP_POWER,   "power"),
+        RADIO   (TelemetryPacketBuilder.GROUP_RADIO,   "radio"),
+        NETWORK (TelemetryPacketBuilder.GROUP_NETWORK, "network"),
+        GNSS    (TelemetryPacketBuilder.GROUP_GNSS,    "gnss"),
+        PROCESS (TelemetryPacketBuilder.GROUP_PROCESS, "process");
+
+        final int bit;
+        final String key;
+
+        Group(int bit, String key) {
+            this.bit = bit;
+            this.key = key;
+        }
+    }
+
+    public interface Link {
+        boolean isReady();
+
+        /** Outbound bytes queued but not yet written to the network. */
+        long getPendingBytes();
+
+        /**
+         * Sends a packet built from the latest snapshots.
+         *
+         * @param groups Group bits due in this send
+         */
+        void send(int groups);
+    }
+
+    public static final long MIN_INTERVAL_MS = 50;
+    public static final long MAX_INTERVAL_MS = 10 * 60 * 1000;
+    public static final long DEFAULT_INTERVAL_MS = UssoiStrings.TELEMETRY_SLEEP_INTERVAL;
+    public static final float DEFAULT_POSITION_DEADBAND_M = 5f;
+    public static final int DEFAULT_BATTERY_DEADBAND_PCT = 1;
+
+    // Deadband checks only read snapshots; battery level changes slowly
+    private static final long GNSS_POLL_MS = 200;
+    private static final long POWER_POLL_MS = 1000;
+
+    // Link backoff
+    static final long SATURATED_BYTES = 64 * 1024;
+    private static final long DRAINED_BYTES = 8 * 1024;
+    private static final int MAX_BACKOFF_SHIFT = 4;
+    private static final long BACKOFF_STEP_MS = 1000;
+
+    // Config keys (Telemetry_Rate object)
+    public static final String KEY_DEADBAND = "deadband";
+    public static final String KEY_POSITION_M = "position_m";
+    public static final String KEY_BATTERY_PCT = "battery_pct";
+
+    /** Parsed Telemetry_Rate; unset fields leave the current value alone. */
+    public static final class Config {
+        private final long[] intervalMs = new long[Group.values().length];
+        private float positionDeadbandM = Float.NaN;
+        private int batteryDeadbandPct = -1;
+
+        private Config() {
+            for (int i = 0; i < intervalMs.length; i++) intervalMs[i] = -1;
+        }
+
+        /** This config with every field that newer sets replaced by newer's value. */
+        public Config mergedWith(Config newer) {
+            Config merged = new Config();
+            for (int i = 0; i < intervalMs.length; i++) {
+                merged.intervalMs[i] = newer.intervalMs[i] >= 0 ? newer.intervalMs[i] : intervalMs[i];
+            }
+            merged.positionDeadbandM = Float.isNaN(newer.positionDeadbandM) ? positionDeadbandM : newer.positionDeadbandM;
+            merged.batteryDeadbandPct = newer.batteryDeadbandPct >= 0 ? newer.batteryDeadbandPct : batteryDeadbandPct;
+            return merged;
+        }
+    }
+
+    private final SysTelemetry telemetry;
+    private final Link link;
+    private final Object lock = new Object();
+
+    private final long[] intervalMs = new long[Group.values().length];
+    private final long[] nextDueMs = new long[Group.values().length];
+    private float positionDeadbandM = DEFAULT_POSITION_DEADBAND_M;
+    private int batteryDeadbandPct = DEFAULT_BATTERY_DEADBAND_PCT;
+
+    // scheduler thread only
+    private int backoffShift = 0;
+    private long lastBackoffStepMs = 0;
+    private long lastSendMs = 0;
+    private long nextGnssPollMs = 0;
+    private long nextPowerPollMs = 0;
+    private Location lastSentLocation;
+    private int lastSentBattery = -1;
+
+    private volatile Thread worker;
+    private volatile boolean running = false;
+
+    public TelemetryScheduler(SysTelemetry telemetry, Link link) {
+        this.telemetry = telemetry;
+        this.link = link;
+        for (Group g : Group.values()) {
+            intervalMs[g.ordinal()] = DEFAULT_INTERVAL_MS;
+            telemetry.setSampleInterval(g.bit, DEFAULT_INTERVAL_MS);
+        }
+    }
+
+    public void start() {
+        synchronized (lock) {
+            if (running) return;
+            running = true;
+            long now = now();
+            for (int i = 0; i < nextDueMs.length; i++) nextDueMs[i] = now;
+            worker = new Thread(this::loop, "TelemetryScheduler");
+            worker.start();
+        }
+    }
+
+    public void stop() {
+        Thread t;
+        synchronized (lock) {
+            running = false;
+            t = worker;
+            worker = null;
+            lock.notifyAll();
+        }
+        if (t != null) t.interrupt();
+    }
+
+    // ── Config ──
+
+    /**
+     * Parses a Telemetry_Rate value:
+     * a number or numeric string (Hz for every group, as before per-group
+     * intervals existed: 1 = one packet per second, 0.2 = every 5 s), or
+     * {"power":ms,"radio":ms,"network":ms,"gnss":ms,"process":ms,"deadband":{"position_m":5,"battery_pct":1}}.
+     * Intervals are clamped to [MIN_INTERVAL_MS, MAX_INTERVAL_MS]; a deadband of 0 disables it.
+     *
+     * @return the config, or null if the value is malformed
+     */
+    public static Config parse(Object rate) {
+        Config config = new Config();
+        try {
+            if (rate instanceof String && ((String) rate).trim().startsWith("{")) {
+                rate = new JSONObject((String) rate);
+            }
+            if (rate instanceof Number || rate instanceof String) {
+                double hz = rate instanceof Number ? ((Number) rate).doubleValue() : Double.parseDouble(((String) rate).trim());
+                if (!(hz > 0) || Double.isInfinite(hz)) return null;
+                long ms = Math.round(1000 / hz);
+                for (int i = 0; i < config.intervalMs.length; i++) config.intervalMs[i] = clamp(ms);
+                return config;
+            }
+            if (!(rate instanceof JSONObject)) return null;
+
+            JSONObject obj = (JSONObject) rate;
+            for (Group g : Group.values()) {
+                if (obj.has(g.key)) {
+                    config.intervalMs[g.ordinal()] = clamp(obj.getLong(g.key));
+                }
+            }
+            JSONObject deadband = obj.optJSONObject(KEY_DEADBAND);
+            if (deadband != null) {
+                if (deadband.has(KEY_POSITION_M)) {
+                    config.positionDeadbandM = (float) Math.max(0, deadband.getDouble(KEY_POSITION_M));
+                }
+                if (deadband.has(KEY_BATTERY_PCT)) {
+                    config.batteryDeadbandPct = Math.max(0, deadband.getInt(KEY_BATTERY_PCT));
+                }
+            }
+            return config;
+        } catch (NumberFormatException | JSONException e) {
+            Log.w(TAG, "Invalid telemetry rate: " + rate);
+            return null;
+        }
+    }
+
+    public void apply(Config config) {
+        synchronized (lock) {
+            long now = now();
+            for (Group g : Group.values()) {
+                int i = g.ordinal();
+                if (config.intervalMs[i] < 0) continue;
+                intervalMs[i] = config.intervalMs[i];
+                // pull the next send in if the new interval is shorter
+                nextDueMs[i] = Math.min(nextDueMs[i], now + intervalMs[i]);
+                telemetry.setSampleInterval(g.bit, intervalMs[i]);
+            }
+            if (!Float.isNaN(config.positionDeadbandM)) positionDeadbandM = config.positionDeadbandM;
+            if (config.batteryDeadbandPct >= 0) batteryDeadbandPct = config.batteryDeadbandPct;
+            lock.notifyAll();
+        }
+    }
+
+    /** Current config in the Telemetry_Rate object form, plus the active backoff factor. */
+    public JSONObject getConfig() {
+        JSONObject obj = new JSONObject();
+        synchronized (lock) {
+            try {
+                for (Group g : Group.values()) {
+                    obj.put(g.key, intervalMs[g.ordinal()]);
+                }
+                JSONObject deadband = new JSONObject();
+                deadband.put(KEY_POSITION_M, positionDeadbandM);
+                deadband.put(KEY_BATTERY_PCT, batteryDeadbandPct);
+                obj.put(KEY_DEADBAND, deadband);
+                obj.put("backoff", 1 << backoffShift);
+            } catch (JSONException e) {
+                Log.e(TAG, "Failed to build config", e);
+            }
+        }
+        return obj;
+    }
+
+    // ── Loop ──
+
+    private void loop() {
+        // a restart replaces worker; an old thread still finishing a send must exit
+        while (running && worker == Thread.currentThread()) {
+            int due;
+            boolean ready;
+            synchronized (lock) {
+                try {
+                    ready = link.isReady();
+                    long now = now();
+                    if (ready) {
+                        updateBackoff(now, link.getPendingBytes());
+                    } else {
+                        backoffShift = 0;
+                    }
+
+                    due = 0;
+                    for (Group g : Group.values()) {
+                        if (now >= nextDueMs[g.ordinal()]) {
+                            due |= g.bit;
+                            nextDueMs[g.ordinal()] = now + scaled(intervalMs[g.ordinal()]);
+                        }
+                    }
+                    if (ready && now - lastSendMs >= scaled(MIN_INTERVAL_MS)) {
+                        due |= deadbandTriggers(now, due);
+                    }
+
+                    if (due == 0) {
+                        long wait = nextWakeup(ready) - now;
+                        if (wait > 0) lock.wait(wait);
+                        continue;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+
+            // outside the lock: the socket may block
+            try {
+                telemetry.recordHistory();
+                if (!ready) continue;
+
+                if ((due & Group.POWER.bit) != 0) lastSentBattery = telemetry.getBatteryLevel();
+                if ((due & Group.GNSS.bit) != 0) lastSentLocation = telemetry.getLastLocation();
+                link.send(due);
+                lastSendMs = now();
+            } catch (Exception e) {
+                Log.e(TAG, "Telemetry send failed", e);
+            }
+        }
+    }
+
+    /** Groups whose deadband was crossed since the last send. Must hold lock. */
+    private int deadbandTriggers(long now, int alreadyDue) {
+        int triggered = 0;
+        if (positionDeadbandM > 0 && (alreadyDue & Group.GNSS.bit) == 0 && now >= nextGnssPollMs) {
+            nextGnssPollMs = now + GNSS_POLL_MS;
+            Location loc = telemetry.getLastLocation();
+            if (loc != null && (lastSentLocation == null || loc.distanceTo(lastSentLocation) >= positionDeadbandM)) {
+                triggered |= Group.GNSS.bit;
+            }
+        }
+        if (batteryDeadbandPct > 0 && (alreadyDue & Group.POWER.bit) == 0 && now >= nextPowerPollMs) {
+            nextPowerPollMs = now + POWER_POLL_MS;
+            int level = telemetry.getBatteryLevel();
+            if (level >= 0 && lastSentBattery >= 0 && Math.abs(level - lastSentBattery) >= batteryDeadbandPct) {
+                triggered |= Group.POWER.bit;
+            }
+        }
+        return triggered;
+    }
+
+    /**
+     * Must hold lock. Deadband polls only count while the link is ready: they
+     * are not advanced otherwise, and an overdue one would busy-loop.
+     */
+    private long nextWakeup(boolean ready) {
+        long next = Long.MAX_VALUE;
+        for (long t : nextDueMs) next = Math.min(next, t);
+        if (!ready) return next;
+
+        long poll = Long.MAX_VALUE;
+        if (positionDeadbandM > 0) poll = Math.min(poll, nextGnssPollMs);
+        if (batteryDeadbandPct > 0) poll = Math.min(poll, nextPowerPollMs);
+        if (poll != Long.MAX_VALUE) {
+            // deadband sends are rate limited as well
+            next = Math.min(next, Math.max(poll, lastSendMs + scaled(MIN_INTERVAL_MS)));
+        }
+        return next;
+    }
+
+    private void updateBackoff(long now, long pendingBytes) {
+        if (now - lastBackoffStepMs < BACKOFF_STEP_MS) return;
+        if (pendingBytes > SATURATED_BYTES && backoffShift < MAX_BACKOFF_SHIFT) {
+            backoffShift++;
+            lastBackoffStepMs = now;
+            Log.d(TAG, "Link saturated (" + pendingBytes + " B queued), telemetry x" + (1 << backoffShift));
+        } else if (pendingBytes < DRAINED_BYTES && backoffShift > 0) {
+            backoffShift--;
+            lastBackoffStepMs = now;
+        }
+    }
+
+    private long scaled(long ms) {
+        return Math.min(MAX_INTERVAL_MS, ms << backoffShift);
+    }
+
+    private static long clamp(long ms) {
+        return Math.max(MIN_INTERVAL_MS, Math.min(MAX_INTERVAL_MS, ms));
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1_000_000;
+    }
+}
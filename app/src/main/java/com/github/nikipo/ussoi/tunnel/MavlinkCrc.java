@@ -0,0 +1,121 @@
+package com.github.nikipo.ussoi.tunnel;
+
+import java.util.Arrays;
+
+/**
+ * *****************************************************************************
+ *
+ * @author nikipo
+ * *****************************************************************************
+ * @file MavlinkCrc
+ * @attention Copyright (c) 2026
+ * All rights reserved.
+ * <p>
+ * This software is licensed under the terms described in the LICENSE file
+ * located in the root directory of this project.
+ * If no LICENSE file is present, this software is provided "AS IS",
+ * without warranty of any kind, express or implied.
+ * <p>
+ * *****************************************************************************
+ */
+
+/**
+ * MAVLink frame checksum: X.25 CRC-16 over the header (start byte excluded)
+ * and payload, followed by the message's CRC_EXTRA seed.
+ *
+ * CRC_EXTRA is derived from the message definition, so a frame can only be
+ * checked if its id is in the table below — the common.xml messages a
+ * flight controller usually sends or receives, policy defaults included.
+ */
+final class MavlinkCrc {
+    enum Result { VALID, INVALID, UNKNOWN_ID }
+
+    private static final int V1_HEADER = 6;
+    private static final int V2_HEADER = 10;
+
+    // {msgid, crc_extra}, common.xml
+    private static final int[][] CRC_EXTRA = {
+            {0, 50},    // HEARTBEAT
+            {1, 124},   // SYS_STATUS
+            {2, 137},   // SYSTEM_TIME
+            {4, 237},   // PING
+            {11, 89},   // SET_MODE
+            {20, 214},  // PARAM_REQUEST_READ
+            {21, 159},  // PARAM_REQUEST_LIST
+            {22, 220},  // PARAM_VALUE
+            {23, 168},  // PARAM_SET
+            {24, 24},   // GPS_RAW_INT
+            {26, 170},  // SCALED_IMU
+            {27, 144},  // RAW_IMU
+            {29, 115},  // SCALED_PRESSURE
+            {30, 39},   // ATTITUDE
+            {31, 246},  // ATTITUDE_QUATERNION
+            {32, 185},  // LOCAL_POSITION_NED
+            {33, 104},  // GLOBAL_POSITION_INT
+            {35, 244},  // RC_CHANNELS_RAW
+            {36, 222},  // SERVO_OUTPUT_RAW
+            {39, 254},  // MISSION_ITEM
+            {40, 230},  // MISSION_REQUEST
+            {41, 28},   // MISSION_SET_CURRENT
+            {42, 28},   // MISSION_CURRENT
+            {43, 132},  // MISSION_REQUEST_LIST
+            {44, 221},  // MISSION_COUNT
+            {45, 232},  // MISSION_CLEAR_ALL
+            {46, 11},   // MISSION_ITEM_REACHED
+            {47, 153},  // MISSION_ACK
+            {51, 196},  // MISSION_REQUEST_INT
+            {62, 183},  // NAV_CONTROLLER_OUTPUT
+            {65, 118},  // RC_CHANNELS
+            {66, 148},  // REQUEST_DATA_STREAM
+            {69, 243},  // MANUAL_CONTROL
+            {73, 38},   // MISSION_ITEM_INT
+            {74, 20},   // VFR_HUD
+            {75, 158},  // COMMAND_INT
+            {76, 152},  // COMMAND_LONG
+            {77, 143},  // COMMAND_ACK
+            {109, 185}, // RADIO_STATUS
+            {111, 34},  // TIMESYNC
+            {116, 76},  // SCALED_IMU2
+            {125, 203}, // POWER_STATUS
+            {129, 46},  // SCALED_IMU3
+            {241, 90},  // VIBRATION
+            {244, 95},  // MESSAGE_INTERVAL
+            {245, 130}, // EXTENDED_SYS_STATE
+            {253, 83},  // STATUSTEXT
+    };
+    // msgid -> crc_extra, -1 if unknown; the table only covers ids below 256
+    private static final short[] EXTRA_BY_ID = new short[256];
+
+    static {
+        Arrays.fill(EXTRA_BY_ID, (short) -1);
+        for (int[] e : CRC_EXTRA) EXTRA_BY_ID[e[0]] = (short) e[1];
+    }
+
+    private MavlinkCrc() {
+    }
+
+    static boolean isKnown(int msgId) {
+        return msgId >= 0 && msgId < EXTRA_BY_ID.length && EXTRA_BY_ID[msgId] >= 0;
+    }
+
+    /** @param frame a v1 or v2 frame starting at index 0, as delimited by its length field */
+    static Result check(byte[] frame) {
+        boolean v1 = (frame[0] & 0xFF) == 0xFE;
+        int msgId = v1 ? frame[5] & 0xFF
+                : (frame[7] & 0xFF) | (frame[8] & 0xFF) << 8 | (frame[9] & 0xFF) << 16;
+        if (!isKnown(msgId)) return Result.UNKNOWN_ID;
+
+        int end = (v1 ? V1_HEADER : V2_HEADER) + (frame[1] & 0xFF);
+        int crc = 0xFFFF;
+        for (int i = 1; i < end; i++) crc = accumulate(frame[i], crc);
+        crc = accumulate((byte) EXTRA_BY_ID[msgId], crc);
+        int sent = (frame[end] & 0xFF) | (frame[end + 1] & 0xFF) << 8;
+        return crc == sent ? Result.VALID : Result.INVALID;
+    }
+
+    private static int accumulate(byte b, int crc) {
+        int t = (b ^ crc) & 0xFF;
+        t = (t ^ (t << 4)) & 0xFF;
+        return ((crc >>> 8) ^ (t << 8) ^ (t << 3) ^ (t >>> 4)) & 0xFFFF;
+    }
+}
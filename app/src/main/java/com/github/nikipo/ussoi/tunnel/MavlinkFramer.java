@@ -0,0 +1,445 @@
+package com.github.nikipo.ussoi.tunnel;
+
+import android.util.Log;
+
+import com.github.nikipo.ussoi.system.metrics.Counter;
+import com.github.nikipo.ussoi.system.metrics.Histogram;
+import com.github.nikipo.ussoi.system.metrics.Metrics;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * *****************************************************************************
+ *
+ * @author nikipo
+ * *****************************************************************************
+ * @file MavlinkFramer
+ * @attention Copyright (c) 2026
+ * All rights reserved.
+ * <p>
+ * This software is licensed under the terms described in the LICENSE file
+ * located in the root directory of this project.
+ * If no LICENSE file is present, this software is provided "AS IS",
+ * without warranty of any kind, express or implied.
+ * <p>
+ * *****************************************************************************
+ */
+
+/**
+ * Cuts the serial byte stream of a tunnel at MAVLink v1/v2 frame boundaries
+ * and coalesces whole frames into WebSocket messages.
+ *
+ * The reader thread calls {@link #feed}; a frame is only ever added to a
+ * message once it is complete, so a message never ends in the middle of a
+ * frame. A message goes out when it is full ({@link #MAX_MESSAGE_BYTES}),
+ * or at the latest {@code coalesceMs} after its first byte arrived — sent by
+ * the feeding thread if the deadline has passed, otherwise by the
+ * "MavFramer" thread that waits for it. 0 sends what one read produced.
+ *
+ * A frame is delimited by its header length field and then CRC-checked
+ * ({@link MavlinkCrc}). One that fails was a stray start byte: that byte is
+ * passed through and the rest is searched again. Frames whose id has no
+ * known CRC_EXTRA cannot be checked and pass through as unframed bytes, as
+ * do bytes outside a frame (noise, another protocol) and a partial frame
+ * that does not complete within {@link #PARTIAL_TIMEOUT_MS}.
+ *
+ * Each checked frame is matched against the tunnel's {@link MavlinkPolicy}:
+ * rate-limited ids may be dropped, and critical ids skip coalescing — they
+ * are collected separately and sent at the end of the same feed() call,
+ * ahead of the pending message.
+ */
+public final class MavlinkFramer {
+    private static final String TAG = "MavlinkFramer";
+
+    /** Takes one message; the buffer is reused once send() returns. */
+    public interface Output {
+        /** @param critical carries only frames the policy marked critical */
+        void send(ByteBuffer message, boolean critical);
+    }
+
+    public static final int DEFAULT_COALESCE_MS = 5;
+    public static final int MAX_COALESCE_MS = 100;
+    static final int MAX_MESSAGE_BYTES = 4096;
+    static final long PARTIAL_TIMEOUT_MS = 250;
+
+    private static final int STX_V1 = 0xFE;
+    private static final int STX_V2 = 0xFD;
+    // header + checksum
+    private static final int V1_OVERHEAD = 6 + 2;
+    private static final int V2_OVERHEAD = 10 + 2;
+    private static final int V2_SIGNATURE = 13;
+    private static final int V2_INCOMPAT_SIGNED = 0x01;
+    private static final int MAX_FRAME = V2_OVERHEAD + 255 + V2_SIGNATURE;
+
+    private static final long RATE_WINDOW_NS = 1_000_000_000L;
+
+    private final String tunnelName;
+    private final Output output;
+    private final MavlinkPolicy policy;
+
+    private final Counter framesTotal;
+    private final Counter messagesTotal;
+    private final Counter unframedBytes;
+    private final Counter crcErrors;
+    private final Histogram framesPerMessage;
+    private final Histogram holdLatency;
+    private final Counter policyDropped;
+    private final Counter criticalSent;
+
+    private final Object lock = new Object();
+
+    // ── Parser, guarded by lock ──
+    private final byte[] frame = new byte[MAX_FRAME];
+    private int have = 0;
+    // full length of the frame in progress, 0 while the header is incomplete
+    private int need = 0;
+
+    // ── Pending message, guarded by lock ──
+    private final ByteBuffer message = ByteBuffer.allocate(MAX_MESSAGE_BYTES);
+    private final ByteBuffer critical = ByteBuffer.allocate(MAX_MESSAGE_BYTES);
+    private int messageFrames = 0;
+    private long messageStartNs = 0;
+    private long partialStartNs = 0;
+    private volatile int coalesceMs;
+
+    // ── Stats, guarded by lock ──
+    private long frames, dropped, badCrc, messages, bytes;
+    private long windowStartNs, windowFrames, windowDropped, windowMessages, windowBytes;
+    private double framesPerSec, bytesPerSec, coalesceRatio;
+
+    private Thread flusher;
+    private boolean running = false;
+
+    /**
+     * @param kind       metrics label, one of a fixed set ("usb", "bt")
+     * @param tunnelName for logs and thread names only
+     * @param policy     null forwards every frame unchanged
+     */
+    public MavlinkFramer(String kind, String tunnelName, int coalesceMs, MavlinkPolicy policy, Output output) {
+        this.tunnelName = tunnelName;
+        this.output = output;
+        this.policy = policy;
+        this.coalesceMs = clampCoalesceMs(coalesceMs);
+
+        String labels = "tunnel=\"" + kind + "\"";
+        framesTotal = Metrics.counter("ussoi_tunnel_frames_total", labels, "MAVLink frames read from the tunnel device");
+        messagesTotal = Metrics.counter("ussoi_tunnel_messages_total", labels, "WebSocket messages sent for the tunnel");
+        unframedBytes = Metrics.counter("ussoi_tunnel_unframed_bytes_total", labels,
+                "Bytes outside MAVLink frames, passed through unchanged");
+        crcErrors = Metrics.counter("ussoi_tunnel_crc_errors_total", labels,
+                "MAVLink frame candidates that failed the CRC check");
+        framesPerMessage = Metrics.histogram("ussoi_tunnel_frames_per_message", labels,
+                "MAVLink frames coalesced into one WebSocket message");
+        holdLatency = Metrics.histogram("ussoi_tunnel_coalesce_us", labels,
+                "Time the first byte of a message waited for coalescing, microseconds");
+        policyDropped = Metrics.counter("ussoi_tunnel_policy_dropped_total", labels,
+                "MAVLink frames dropped by the tunnel policy");
+        criticalSent = Metrics.counter("ussoi_tunnel_critical_frames_total", labels,
+                "MAVLink frames sent ahead of coalesced traffic");
+    }
+
+    public static int clampCoalesceMs(int ms) {
+        return Math.max(0, Math.min(MAX_COALESCE_MS, ms));
+    }
+
+    public void start() {
+        synchronized (lock) {
+            if (running) return;
+            running = true;
+            windowStartNs = System.nanoTime();
+            flusher = new Thread(this::flushLoop, "MavFramer-" + tunnelName);
+            flusher.start();
+        }
+    }
+
+    /** Sends what is pending, partial frame included, and stops the flusher. */
+    public void stop() {
+        Thread t;
+        synchronized (lock) {
+            if (!running) return;
+            running = false;
+            dropPartial();
+            sendCritical();
+            sendPending(System.nanoTime());
+            t = flusher;
+            flusher = null;
+            lock.notifyAll();
+        }
+        try {
+            t.join(500);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void setCoalesceMs(int ms) {
+        coalesceMs = clampCoalesceMs(ms);
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    public int getCoalesceMs() {
+        return coalesceMs;
+    }
+
+    // ── Reader side ──
+
+    /** Reader thread only. buf may be reused after the call. */
+    public void feed(byte[] buf, int off, int len) {
+        synchronized (lock) {
+            if (!running) return;
+            long deadlineBefore = nextDeadlineNs();
+            parse(buf, off, off + len);
+
+            sendCritical();
+            long now = System.nanoTime();
+            if (coalesceMs == 0 || now >= nextDeadlineNs()) {
+                sendPending(now);
+            } else if (nextDeadlineNs() < deadlineBefore) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void parse(byte[] buf, int off, int end) {
+        int i = off;
+        while (i < end) {
+            if (have == 0) {
+                // outside a frame: pass through everything up to the next start byte
+                int s = i;
+                while (s < end && !isStx(buf[s])) s++;
+                if (s > i) {
+                    appendRaw(buf, i, s - i);
+                    i = s;
+                    continue;
+                }
+                frame[have++] = buf[i++];
+                need = 0;
+                partialStartNs = System.nanoTime();
+                continue;
+            }
+            if (need == 0) {
+                int header = (frame[0] & 0xFF) == STX_V1 ? 2 : 3;
+                int n = Math.min(header - have, end - i);
+                System.arraycopy(buf, i, frame, have, n);
+                have += n;
+                i += n;
+                if (have == header && !parseLength()) {
+                    // not a frame header after all
+                    dropPartial();
+                }
+                continue;
+            }
+            int n = Math.min(need - have, end - i);
+            System.arraycopy(buf, i, frame, have, n);
+            have += n;
+            i += n;
+            if (have == need) completeFrame();
+        }
+    }
+
+    /** frame[0..need) is complete: append it if the CRC holds, otherwise resync after its start byte. */
+    private void completeFrame() {
+        int len = need;
+        have = 0;
+        need = 0;
+        switch (MavlinkCrc.check(frame)) {
+            case VALID:
+                appendFrame(frame, len);
+                break;
+            case UNKNOWN_ID:
+                // cannot be checked, so never matched against the policy
+                appendRaw(frame, 0, len);
+                break;
+            default:
+                crcErrors.inc();
+                badCrc++;
+                // rare (a start byte inside noise or another frame), so the copy is fine
+                byte[] rest = Arrays.copyOfRange(frame, 1, len);
+                appendRaw(frame, 0, 1);
+                parse(rest, 0, rest.length);
+                break;
+        }
+    }
+
+    private static boolean isStx(byte b) {
+        int v = b & 0xFF;
+        return v == STX_V1 || v == STX_V2;
+    }
+
+    /** Sets need from the header in frame[0..have); false if it is not a valid header. */
+    private boolean parseLength() {
+        int payload = frame[1] & 0xFF;
+        if ((frame[0] & 0xFF) == STX_V1) {
+            need = V1_OVERHEAD + payload;
+            return true;
+        }
+        int incompat = frame[2] & 0xFF;
+        if ((incompat & ~V2_INCOMPAT_SIGNED) != 0) return false;
+        need = V2_OVERHEAD + payload + ((incompat & V2_INCOMPAT_SIGNED) != 0 ? V2_SIGNATURE : 0);
+        return true;
+    }
+
+    private void appendFrame(byte[] src, int len) {
+        framesTotal.inc();
+        frames++;
+        windowFrames++;
+        MavlinkPolicy.Verdict verdict = policy != null
+                ? policy.check(src, partialStartNs) : MavlinkPolicy.Verdict.FORWARD;
+        if (verdict == MavlinkPolicy.Verdict.DROP) {
+            policyDropped.inc();
+            dropped++;
+            windowDropped++;
+            return;
+        }
+        if (verdict == MavlinkPolicy.Verdict.CRITICAL) {
+            if (len > critical.remaining()) sendCritical();
+            critical.put(src, 0, len);
+            criticalSent.inc();
+            return;
+        }
+        if (len > message.remaining()) sendPending(System.nanoTime());
+        if (message.position() == 0) messageStartNs = partialStartNs;
+        message.put(src, 0, len);
+        messageFrames++;
+    }
+
+    private void appendRaw(byte[] src, int off, int len) {
+        unframedBytes.add(len);
+        while (len > 0) {
+            if (message.remaining() == 0) sendPending(System.nanoTime());
+            if (message.position() == 0) messageStartNs = System.nanoTime();
+            int n = Math.min(len, message.remaining());
+            message.put(src, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /** Passes the bytes of the frame in progress through as unframed. */
+    private void dropPartial() {
+        int n = have;
+        have = 0;
+        need = 0;
+        if (n > 0) appendRaw(frame, 0, n);
+    }
+
+    // ── Sending, lock held ──
+
+    private long nextDeadlineNs() {
+        long deadline = Long.MAX_VALUE;
+        if (message.position() > 0) {
+            deadline = messageStartNs + coalesceMs * 1_000_000L;
+        }
+        if (have > 0) {
+            deadline = Math.min(deadline, partialStartNs + PARTIAL_TIMEOUT_MS * 1_000_000L);
+        }
+        return deadline;
+    }
+
+    private void sendCritical() {
+        if (critical.position() == 0) return;
+        critical.flip();
+        int len = critical.remaining();
+        try {
+            output.send(critical, true);
+        } catch (Exception e) {
+            Log.e(TAG, tunnelName + ": send failed", e);
+        }
+        critical.clear();
+        messagesTotal.inc();
+        messages++;
+        bytes += len;
+        windowMessages++;
+        windowBytes += len;
+    }
+
+    private void sendPending(long now) {
+        if (have > 0 && now - partialStartNs >= PARTIAL_TIMEOUT_MS * 1_000_000L) {
+            // a start byte that never became a frame
+            dropPartial();
+        }
+        if (message.position() == 0) return;
+
+        message.flip();
+        int len = message.remaining();
+        try {
+            output.send(message, false);
+        } catch (Exception e) {
+            Log.e(TAG, tunnelName + ": send failed", e);
+        }
+        message.clear();
+
+        holdLatency.record((now - messageStartNs) / 1000);
+        framesPerMessage.record(messageFrames);
+        messagesTotal.inc();
+        messageFrames = 0;
+        messages++;
+        bytes += len;
+        windowMessages++;
+        windowBytes += len;
+        rollWindow(now);
+    }
+
+    private void rollWindow(long now) {
+        long elapsed = now - windowStartNs;
+        if (elapsed < RATE_WINDOW_NS) return;
+        framesPerSec = windowFrames * 1e9 / elapsed;
+        bytesPerSec = windowBytes * 1e9 / elapsed;
+        coalesceRatio = windowMessages > 0 ? (double) (windowFrames - windowDropped) / windowMessages : 0;
+        windowStartNs = now;
+        windowFrames = windowDropped = windowMessages = windowBytes = 0;
+    }
+
+    private void flushLoop() {
+        synchronized (lock) {
+            while (running) {
+                long now = System.nanoTime();
+                long deadline = nextDeadlineNs();
+                if (now >= deadline) {
+                    sendPending(now);
+                    continue;
+                }
+                try {
+                    if (deadline == Long.MAX_VALUE) {
+                        lock.wait();
+                    } else {
+                        long waitNs = deadline - now;
+                        lock.wait(waitNs / 1_000_000, (int) (waitNs % 1_000_000));
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+    }
+
+    // ── Stats ──
+
+    /** Rates are over the last full second; frames counts every checked frame read, dropped ones included. */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        synchronized (lock) {
+            rollWindow(System.nanoTime());
+            try {
+                stats.put("coalesce_ms", coalesceMs);
+                stats.put("frames", frames);
+                stats.put("policy_dropped", dropped);
+                stats.put("crc_errors", badCrc);
+                stats.put("messages", messages);
+                stats.put("bytes", bytes);
+                stats.put("frames_per_s", Math.round(framesPerSec * 10) / 10.0);
+                stats.put("bytes_per_s", Math.round(bytesPerSec));
+                stats.put("coalesce_ratio", Math.round(coalesceRatio * 100) / 100.0);
+            } catch (JSONException e) {
+                Log.e(TAG, "getStats failed", e);
+            }
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,315 @@
+package com.github.nikipo.ussoi.tunnel;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * *****************************************************************************
+ *
+ * @author nikipo
+ * *****************************************************************************
+ * @file MavlinkPolicy
+ * @attention Copyright (c) 2026
+ * All rights reserved.
+ * <p>
+ * This software is licensed under the terms described in the LICENSE file
+ * located in the root directory of this project.
+ * If no LICENSE file is present, this software is provided "AS IS",
+ * without warranty of any kind, express or implied.
+ * <p>
+ * *****************************************************************************
+ */
+
+/**
+ * Per-message-id rules applied by {@link MavlinkFramer} to frames going from
+ * the device to the ground.
+ *
+ * A rule either marks an id critical — sent right away, ahead of coalesced
+ * traffic and in the socket's CONTROL class — or limits its rate: max_hz
+ * always, congested_hz while the uplink is congested (0 drops the id).
+ * Rates are kept per (msgid, sysid, compid), so two vehicles on one link do
+ * not share a budget. Ids without a rule pass unchanged, and so do ids the
+ * framer cannot CRC-check ({@link MavlinkCrc}): a rule for them never acts.
+ *
+ * Congestion is reported by the tunnel when the send scheduler discards its
+ * stale or over-budget messages, and lasts {@link #CONGESTION_HOLD_MS} after
+ * the last one; {@link Degrade} can force it on or off. Rules are changed at
+ * runtime with set_tunnel_policy and survive tunnel restarts.
+ */
+public final class MavlinkPolicy {
+    private static final String TAG = "MavlinkPolicy";
+
+    public enum Verdict { FORWARD, CRITICAL, DROP }
+
+    public enum Degrade {
+        AUTO, ON, OFF;
+
+        /** Case-insensitive; null if unknown. */
+        public static Degrade parse(String name) {
+            if (name == null) return null;
+            try {
+                return valueOf(name.trim().toUpperCase(Locale.US));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+
+    public static final int MAX_RULES = 64;
+    public static final int MAX_MSG_ID = 0xFFFFFF;
+    public static final double MAX_HZ = 1000;
+    static final long CONGESTION_HOLD_MS = 5_000;
+    // bound on tracked (msgid, sysid, compid) keys
+    private static final int MAX_RATE_KEYS = 4096;
+
+    // ── Defaults (common.xml ids) ──
+    private static final int[] DEFAULT_CRITICAL = {
+            0,   // HEARTBEAT
+            39,  // MISSION_ITEM
+            40,  // MISSION_REQUEST
+            41,  // MISSION_SET_CURRENT
+            43,  // MISSION_REQUEST_LIST
+            44,  // MISSION_COUNT
+            45,  // MISSION_CLEAR_ALL
+            46,  // MISSION_ITEM_REACHED
+            47,  // MISSION_ACK
+            51,  // MISSION_REQUEST_INT
+            73,  // MISSION_ITEM_INT
+            75,  // COMMAND_INT
+            76,  // COMMAND_LONG
+            77,  // COMMAND_ACK
+            253, // STATUSTEXT
+    };
+    // {id, congested_hz}
+    private static final int[][] DEFAULT_CONGESTED_HZ = {
+            {26, 1},  // SCALED_IMU
+            {27, 1},  // RAW_IMU
+            {29, 1},  // SCALED_PRESSURE
+            {30, 5},  // ATTITUDE
+            {31, 5},  // ATTITUDE_QUATERNION
+            {35, 1},  // RC_CHANNELS_RAW
+            {36, 1},  // SERVO_OUTPUT_RAW
+            {65, 1},  // RC_CHANNELS
+            {116, 1}, // SCALED_IMU2
+            {129, 1}, // SCALED_IMU3
+    };
+
+    /** Immutable; drop counters are kept by the policy. */
+    public static final class Rule {
+        static final double UNLIMITED = -1;
+
+        final int id;
+        final boolean critical;
+        final double maxHz;
+        final double congestedHz;
+
+        public Rule(int id, boolean critical, double maxHz, double congestedHz) {
+            this.id = id;
+            this.critical = critical;
+            this.maxHz = maxHz;
+            this.congestedHz = congestedHz;
+        }
+
+        /**
+         * {"id": n, "critical": bool, "max_hz": x, "congested_hz": x}; absent
+         * rates are unlimited.
+         *
+         * @return null if invalid
+         */
+        public static Rule fromJson(JSONObject o) {
+            if (o == null || !o.has("id")) return null;
+            int id = o.optInt("id", -1);
+            if (id < 0 || id > MAX_MSG_ID) return null;
+            double maxHz = o.has("max_hz") ? o.optDouble("max_hz", Double.NaN) : UNLIMITED;
+            double congestedHz = o.has("congested_hz") ? o.optDouble("congested_hz", Double.NaN) : UNLIMITED;
+            if (!validHz(maxHz) || !validHz(congestedHz)) return null;
+            return new Rule(id, o.optBoolean("critical", false), maxHz, congestedHz);
+        }
+
+        private static boolean validHz(double hz) {
+            return hz == UNLIMITED || (hz >= 0 && hz <= MAX_HZ);
+        }
+
+        JSONObject toJson(long dropped) throws JSONException {
+            JSONObject o = new JSONObject().put("id", id);
+            if (critical) o.put("critical", true);
+            if (maxHz != UNLIMITED) o.put("max_hz", maxHz);
+            if (congestedHz != UNLIMITED) o.put("congested_hz", congestedHz);
+            o.put("dropped", dropped);
+            return o;
+        }
+    }
+
+    private final HashMap<Integer, Rule> rules = new HashMap<>();
+    private final HashMap<Integer, Long> dropped = new HashMap<>();
+    // (msgid << 16 | sysid << 8 | compid) -> last forwarded, ns
+    private final HashMap<Long, Long> lastForwardNs = new HashMap<>();
+
+    private Degrade degrade = Degrade.AUTO;
+    private volatile long congestedUntilNs = 0;
+    private long criticalFrames = 0;
+    private long droppedFrames = 0;
+
+    public MavlinkPolicy() {
+        resetToDefaults();
+    }
+
+    // ── Hot path (framer lock held) ──
+
+    /** @param frame a complete v1 or v2 frame starting at index 0, CRC already checked */
+    public synchronized Verdict check(byte[] frame, long nowNs) {
+        boolean v1 = (frame[0] & 0xFF) == 0xFE;
+        int msgId = v1 ? frame[5] & 0xFF
+                : (frame[7] & 0xFF) | (frame[8] & 0xFF) << 8 | (frame[9] & 0xFF) << 16;
+        Rule rule = rules.get(msgId);
+        if (rule == null) return Verdict.FORWARD;
+        if (rule.critical) {
+            criticalFrames++;
+            return Verdict.CRITICAL;
+        }
+
+        double hz = rule.maxHz;
+        if (rule.congestedHz != Rule.UNLIMITED && isCongested(nowNs)) {
+            hz = hz == Rule.UNLIMITED ? rule.congestedHz : Math.min(hz, rule.congestedHz);
+        }
+        if (hz == Rule.UNLIMITED) return Verdict.FORWARD;
+        if (hz > 0) {
+            int sysId = frame[v1 ? 3 : 5] & 0xFF;
+            int compId = frame[v1 ? 4 : 6] & 0xFF;
+            long key = (long) msgId << 16 | sysId << 8 | compId;
+            long intervalNs = (long) (1e9 / hz);
+            Long last = lastForwardNs.get(key);
+            // 10% slack so a source at a multiple of the limit is not cut by jitter
+            if (last == null || nowNs - last >= intervalNs - intervalNs / 10) {
+                if (lastForwardNs.size() >= MAX_RATE_KEYS) lastForwardNs.clear();
+                lastForwardNs.put(key, nowNs);
+                return Verdict.FORWARD;
+            }
+        }
+        Long n = dropped.get(msgId);
+        dropped.put(msgId, n == null ? 1 : n + 1);
+        droppedFrames++;
+        return Verdict.DROP;
+    }
+
+    /** The tunnel's socket discarded a queued message. */
+    public void onCongestion() {
+        long now = System.nanoTime();
+        if (now - congestedUntilNs >= 0) Log.i(TAG, "Uplink congested, degraded rates active");
+        congestedUntilNs = now + CONGESTION_HOLD_MS * 1_000_000L;
+    }
+
+    private boolean isCongested(long nowNs) {
+        switch (degrade) {
+            case ON:  return true;
+            case OFF: return false;
+            default:  return nowNs - congestedUntilNs < 0;
+        }
+    }
+
+    // ── Configuration ──
+
+    public synchronized void resetToDefaults() {
+        apply(true, Degrade.AUTO, new ArrayList<>(), new ArrayList<>());
+    }
+
+    private Map<Integer, Rule> merge(boolean reset, List<Rule> upserts, List<Integer> removes) {
+        Map<Integer, Rule> next = new HashMap<>();
+        if (reset) putDefaults(next);
+        else next.putAll(rules);
+        for (Integer id : removes) next.remove(id);
+        for (Rule r : upserts) next.put(r.id, r);
+        return next;
+    }
+
+    private static void putDefaults(Map<Integer, Rule> into) {
+        for (int id : DEFAULT_CRITICAL) {
+            into.put(id, new Rule(id, true, Rule.UNLIMITED, Rule.UNLIMITED));
+        }
+        for (int[] r : DEFAULT_CONGESTED_HZ) {
+            into.put(r[0], new Rule(r[0], false, Rule.UNLIMITED, r[1]));
+        }
+    }
+
+    /** Whether apply() with these arguments stays within {@link #MAX_RULES}. */
+    public synchronized boolean fits(boolean reset, List<Rule> upserts, List<Integer> removes) {
+        return merge(reset, upserts, removes).size() <= MAX_RULES;
+    }
+
+    /**
+     * Applies one set_tunnel_policy change as a whole.
+     *
+     * @param reset   restore the defaults first
+     * @param degrade null keeps the current mode
+     * @param upserts rules replacing those with the same id
+     * @param removes ids whose rule is removed
+     * @return false (and nothing changed) if the rule limit would be exceeded
+     */
+    public synchronized boolean apply(boolean reset, Degrade degrade, List<Rule> upserts, List<Integer> removes) {
+        Map<Integer, Rule> next = merge(reset, upserts, removes);
+        if (next.size() > MAX_RULES) return false;
+
+        rules.clear();
+        rules.putAll(next);
+        if (reset) dropped.clear();
+        dropped.keySet().retainAll(rules.keySet());
+        lastForwardNs.clear();
+        if (degrade != null) this.degrade = degrade;
+        return true;
+    }
+
+    /** {"degrade": "AUTO", "congested": bool, "critical_frames": n, "dropped_frames": n, "rules": [...]} */
+    public synchronized JSONObject toJson() {
+        JSONObject o = new JSONObject();
+        try {
+            JSONArray list = new JSONArray();
+            for (Rule r : new TreeMap<>(rules).values()) {
+                Long n = dropped.get(r.id);
+                list.put(r.toJson(n != null ? n : 0));
+            }
+            o.put("degrade", degrade.name());
+            o.put("congested", isCongested(System.nanoTime()));
+            o.put("critical_frames", criticalFrames);
+            o.put("dropped_frames", droppedFrames);
+            o.put("rules", list);
+        } catch (JSONException e) {
+            Log.e(TAG, "toJson failed", e);
+        }
+        return o;
+    }
+
+    /**
+     * Parses the "rules" array of set_tunnel_policy: rule objects, or
+     * {"id": n, "remove": true}.
+     *
+     * @return false if any entry is invalid
+     */
+    public static boolean parseRules(JSONArray array, List<Rule> upserts, List<Integer> removes) {
+        if (array == null) return true;
+        if (array.length() > MAX_RULES) return false;
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject o = array.optJSONObject(i);
+            if (o == null) return false;
+            if (o.optBoolean("remove", false)) {
+                int id = o.optInt("id", -1);
+                if (id < 0 || id > MAX_MSG_ID) return false;
+                removes.add(id);
+                continue;
+            }
+            Rule r = Rule.fromJson(o);
+            if (r == null) return false;
+            upserts.add(r);
+        }
+        return true;
+    }
+}
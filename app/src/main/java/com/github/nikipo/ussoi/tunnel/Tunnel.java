@@ -1,5 +1,10 @@
 package com.github.nikipo.ussoi.tunnel;
 
+import org.json.JSONObject;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+
 /**
  * *****************************************************************************
  *
@@ -21,4 +26,47 @@ public interface Tunnel {
     void close();
     boolean isTunnelRunning();
     String getTunnelName();
+
+    /** Coalescing window of the tunnel's {@link MavlinkFramer}; applies immediately. */
+    default void setCoalesceMs(int ms) {}
+
+    /** Per-message-id rules of the tunnel, null if it does not frame MAVLink. */
+    default MavlinkPolicy getPolicy() {
+        return null;
+    }
+
+    /** Framer stats, null while the tunnel is not running. */
+    default JSONObject getStats() {
+        return null;
+    }
+
+    /**
+     * WebSocket path of one tunnel's data channel: the data api path with the
+     * tunnel name as a query parameter, so concurrent tunnels get separate
+     * channels.
+     */
+    static String dataPath(String apiPath, String tunnelName) {
+        try {
+            String sep = apiPath.contains("?") ? "&" : "?";
+            return apiPath.trim() + sep + "tunnel=" + URLEncoder.encode(tunnelName, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return apiPath;
+        }
+    }
+
+    /**
+     * Name of one tunnel's data socket ("usb-telem1"), used for its send
+     * thread and as the socket label of its send metrics. Restricted to
+     * [A-Za-z0-9_.-] and 32 characters so it is safe as a label value.
+     */
+    static String socketName(String kind, String tunnelName) {
+        StringBuilder sb = new StringBuilder(kind).append('-');
+        for (int i = 0; i < tunnelName.length() && i < 32; i++) {
+            char c = tunnelName.charAt(i);
+            boolean safe = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '_' || c == '.' || c == '-';
+            sb.append(safe ? c : '_');
+        }
+        return sb.toString();
+    }
 }
@@ -0,0 +1,249 @@
+package com.github.nikipo.ussoi.tunnel;
+
+import android.util.Log;
+
+import com.github.nikipo.ussoi.storage.logs.Logging;
+import com.github.nikipo.ussoi.system.metrics.Counter;
+import com.github.nikipo.ussoi.system.metrics.Gauge;
+import com.github.nikipo.ussoi.system.metrics.Histogram;
+import com.github.nikipo.ussoi.system.metrics.Metrics;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * *****************************************************************************
+ *
+ * @author nikipo
+ * *****************************************************************************
+ * @file TunnelWriter
+ * @attention Copyright (c) 2026
+ * All rights reserved.
+ * <p>
+ * This software is licensed under the terms described in the LICENSE file
+ * located in the root directory of this project.
+ * If no LICENSE file is present, this software is provided "AS IS",
+ * without warranty of any kind, express or implied.
+ * <p>
+ * *****************************************************************************
+ */
+
+/**
+ * Uplink side of a tunnel: WebSocket messages are queued here and written to
+ * the device by a dedicated writer thread, so a slow USB or RFCOMM write
+ * never holds up the socket.
+ *
+ * The queue is a lock-free linked queue bounded by {@link #MAX_QUEUED_BYTES};
+ * the single producer (the socket's dispatch thread) never blocks. When it is
+ * full the {@link Overflow} policy discards whole messages, so a partial
+ * MAVLink frame is never written. The writer packs consecutive queued
+ * messages into one write of up to {@link #MAX_WRITE_BYTES} from a reused
+ * buffer; a larger message is written on its own.
+ */
+public final class TunnelWriter {
+    private static final String TAG = "TunnelWriter";
+
+    public enum Overflow {
+        /** Discard queued messages, oldest first, to make room (fresh commands win). */
+        DROP_OLDEST,
+        /** Reject the new message. */
+        DROP_NEWEST
+    }
+
+    public static final int MAX_QUEUED_BYTES = 64 * 1024;
+    public static final int MAX_WRITE_BYTES = 1024;
+    private static final long IDLE_PARK_MS = 100;
+
+    /** The device side; called on the writer thread only. */
+    public interface Sink {
+        void write(byte[] buf, int len) throws IOException;
+    }
+
+    /** Counts and times a finished write; called on the writer thread. */
+    public interface Listener {
+        void onWritten(int bytes, long startNs);
+
+        void onWriteFailed(IOException e);
+    }
+
+    private static final class Chunk {
+        final byte[] data;
+        final long enqueuedNs;
+
+        Chunk(byte[] data, long enqueuedNs) {
+            this.data = data;
+            this.enqueuedNs = enqueuedNs;
+        }
+    }
+
+    private final String name;
+    private final String threadName;
+    private final ConcurrentLinkedQueue<Chunk> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queuedBytes = new AtomicInteger();
+    private final Sink sink;
+    private final Overflow overflow;
+    private final Listener listener;
+
+    // shared by the tunnels of one kind
+    private final Histogram queueLatency;
+    private final Histogram batchSize;
+    private final Counter droppedOverflow;
+    private final Gauge queuedGauge;
+
+    // writer thread only
+    private final byte[] batch = new byte[MAX_WRITE_BYTES];
+    private Chunk carry;
+
+    // producer only: log once per overflow episode
+    private boolean overflowing = false;
+
+    private volatile boolean running = false;
+    private volatile Thread thread;
+
+    /**
+     * @param kind       metric label, "usb" or "bt"
+     * @param name       tunnel name, for logs
+     * @param threadName e.g. "UsbWriter-" + name
+     */
+    public TunnelWriter(String kind, String name, String threadName, Sink sink, Overflow overflow, Listener listener) {
+        this.name = name;
+        this.threadName = threadName;
+        this.sink = sink;
+        this.overflow = overflow;
+        this.listener = listener;
+
+        String label = "tunnel=\"" + kind + "\"";
+        queueLatency = Metrics.histogram("ussoi_tunnel_write_queue_us",
+                label, "Time an uplink message waited for the tunnel writer, microseconds");
+        batchSize = Metrics.histogram("ussoi_tunnel_write_batch",
+                label, "Uplink messages packed into one tunnel write");
+        droppedOverflow = Metrics.counter("ussoi_tunnel_tx_dropped_total",
+                label + ",reason=\"overflow\"", "Uplink messages discarded before reaching the tunnel device");
+        queuedGauge = Metrics.gauge("ussoi_tunnel_write_queue_bytes",
+                label, "Uplink bytes waiting for the tunnel writer");
+    }
+
+    public void start() {
+        Thread t = new Thread(this::writeLoop, threadName);
+        thread = t;
+        running = true;
+        t.start();
+    }
+
+    /** Stops after writing what is already queued, waiting at most timeoutMs. */
+    public void stop(long timeoutMs) {
+        running = false;
+        Thread t = thread;
+        if (t == null) return;
+        LockSupport.unpark(t);
+        try {
+            t.join(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+        queue.clear();
+        queuedGauge.add(-queuedBytes.getAndSet(0));
+    }
+
+    /**
+     * Single producer. The array is kept, not copied.
+     *
+     * @return false if the message was discarded
+     */
+    public boolean offer(byte[] data) {
+        if (!running) return false;
+        int len = data.length;
+        if (len > MAX_QUEUED_BYTES) {
+            dropped(1);
+            return false;
+        }
+        while (queuedBytes.get() + len > MAX_QUEUED_BYTES) {
+            if (overflow == Overflow.DROP_NEWEST) {
+                dropped(1);
+                return false;
+            }
+            // the writer may take the head at the same time; either way it is gone
+            if (poll() == null) break;
+            dropped(1);
+        }
+        overflowing = false;
+        queuedBytes.addAndGet(len);
+        queuedGauge.add(len);
+        queue.offer(new Chunk(data, System.nanoTime()));
+        LockSupport.unpark(thread);
+        return true;
+    }
+
+    public int getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    private Chunk poll() {
+        Chunk c = queue.poll();
+        if (c != null) {
+            queuedBytes.addAndGet(-c.data.length);
+            queuedGauge.add(-c.data.length);
+        }
+        return c;
+    }
+
+    private void dropped(int n) {
+        droppedOverflow.add(n);
+        if (overflowing) return;
+        overflowing = true;
+        Logging logging = Logging.getIfInitialized();
+        if (logging != null) logging.w(TAG, name + ": uplink queue full, dropping (" + overflow + ")");
+    }
+
+    private void writeLoop() {
+        while (true) {
+            Chunk first = carry != null ? carry : poll();
+            carry = null;
+            if (first == null) {
+                if (!running) break;
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(IDLE_PARK_MS));
+                continue;
+            }
+
+            long now = System.nanoTime();
+            queueLatency.record((now - first.enqueuedNs) / 1000);
+            if (first.data.length > MAX_WRITE_BYTES) {
+                batchSize.record(1);
+                write(first.data, first.data.length);
+                continue;
+            }
+
+            System.arraycopy(first.data, 0, batch, 0, first.data.length);
+            int len = first.data.length;
+            int count = 1;
+            Chunk next;
+            while ((next = poll()) != null) {
+                if (len + next.data.length > MAX_WRITE_BYTES) {
+                    carry = next;
+                    break;
+                }
+                queueLatency.record((now - next.enqueuedNs) / 1000);
+                System.arraycopy(next.data, 0, batch, len, next.data.length);
+                len += next.data.length;
+                count++;
+            }
+            batchSize.record(count);
+            write(batch, len);
+        }
+    }
+
+    private void write(byte[] src, int len) {
+        long startNs = System.nanoTime();
+        try {
+            sink.write(src, len);
+            listener.onWritten(len, startNs);
+        } catch (IOException e) {
+            Log.e(TAG, name + ": tunnel write failed", e);
+            listener.onWriteFailed(e);
+        }
+    }
+}
@@ -19,34 +19,82 @@ import android.widget.Toast;
 
 import androidx.core.app.ActivityCompat;
 
+import com.github.nikipo.ussoi.network.Webscoket.SendScheduler;
 import com.github.nikipo.ussoi.network.Webscoket.WebSocketHandler;
 import com.github.nikipo.ussoi.storage.SaveInputFields;
+import com.github.nikipo.ussoi.storage.logs.Logging;
+import com.github.nikipo.ussoi.system.metrics.Counter;
+import com.github.nikipo.ussoi.system.metrics.Metrics;
+import com.github.nikipo.ussoi.tunnel.MavlinkFramer;
+import com.github.nikipo.ussoi.tunnel.MavlinkPolicy;
 import com.github.nikipo.ussoi.tunnel.Tunnel;
-import com.psp.bluetoothlibrary.BluetoothListener;
-import com.psp.bluetoothlibrary.Connection;
-import com.psp.bluetoothlibrary.SendReceive;
-
+import com.github.nikipo.ussoi.tunnel.TunnelWriter;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One Bluetooth serial module (SPP over RFCOMM) as a tunnel.
+ *
+ * Every handler owns its socket: a "BtReadLoop-name" thread connects and then
+ * reads into one reused buffer straight into the tunnel's {@link MavlinkFramer};
+ * a {@link TunnelWriter} writes the uplink. Nothing is shared between
+ * handlers, so up to {@link #MAX_TUNNELS} modules run side by side.
+ */
 public class BluetoothHandler implements Tunnel {
 
     public static final String ACTION_BT_FAILED = "com.example.ussoi.BT_CONNECTION_FAILED";
     private static final String TAG = "BtHandler";
+
+    /** Simultaneous modules; most phones' controllers handle about this many RFCOMM links well. */
+    public static final int MAX_TUNNELS = 3;
+
+    // Serial Port Profile
+    private static final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    private static final int READ_BUFFER_BYTES = 4096;
+    private static final long STOP_TIMEOUT_MS = 1000;
+
+    private static final Counter rxBytes = Metrics.counter(
+            "ussoi_tunnel_rx_bytes_total", "tunnel=\"bt\"", "Bytes read from the tunnel device");
+    private static final Counter txBytes = Metrics.counter(
+            "ussoi_tunnel_tx_bytes_total", "tunnel=\"bt\"", "Bytes written to the tunnel device");
+    private static final Counter txErrors = Metrics.counter(
+            "ussoi_tunnel_tx_errors_total", "tunnel=\"bt\"", "Failed writes to the tunnel device");
+
     private final Context         context;
-    private final Connection      connection;
     private final SaveInputFields saveInputFields;
+    private final BluetoothDevice device;
+    private final String          name;
 
-    private BluetoothDevice  device;
     private WebSocketHandler webSocketHandler;
-    private boolean          isRunning = false;
+    private volatile boolean isRunning = false;
 
-    public BluetoothHandler(Context context) {
+    // guarded by this; a read loop that is no longer readThread belongs to an earlier run
+    private Thread           readThread;
+    private BluetoothSocket  socket;
+
+    private volatile MavlinkFramer framer;
+    private volatile TunnelWriter  writer;
+    private int              coalesceMs = MavlinkFramer.DEFAULT_COALESCE_MS;
+    private final MavlinkPolicy policy  = new MavlinkPolicy();
+
+    // this tunnel only; the ussoi_tunnel_* metrics add up all Bluetooth tunnels
+    private final AtomicLong tunnelRxBytes  = new AtomicLong();
+    private final AtomicLong tunnelTxBytes  = new AtomicLong();
+    private final AtomicLong tunnelTxErrors = new AtomicLong();
+
+    /** @param name tunnel name, unique among the tunnels */
+    public BluetoothHandler(Context context, BluetoothDevice device, String name) {
         this.context         = context.getApplicationContext();
-        this.connection      = new Connection(this.context);
         this.saveInputFields = SaveInputFields.getInstance(context);
-    }
-
-    // Configuration
-    public void setDevice(BluetoothDevice device) {
-        this.device = device;
+        this.device          = device;
+        this.name            = name;
     }
 
     // Tunnel interface
@@ -54,24 +102,39 @@ public class BluetoothHandler implements Tunnel {
     public void init() {
         if (!checkPreconditions()) return;
 
-        connectToDevice(device);
-        setupWebSocket();
+        // the read loop ended on its own (link lost): release the rest first
+        if (readThread != null || framer != null) close();
+
         isRunning = true;
+        startFramer();
+        setupWebSocket();
+        Thread t = new Thread(this::connectAndRead, "BtReadLoop-" + name);
+        synchronized (this) {
+            readThread = t;
+        }
+        t.start();
     }
 
     @Override
     public void close() {
-        isRunning = false;
-        SendReceive.getInstance().setOnReceiveListener(null);
-
-        if (connection.isConnected()) {
-            connection.disconnect();
+        Thread t;
+        synchronized (this) {
+            isRunning = false;
+            t = readThread;
+            readThread = null;
         }
-
-        if (webSocketHandler != null) {
-            webSocketHandler.close();
-            webSocketHandler = null;
+        // writes what is queued while the link is still up
+        stopWriter();
+        // unblocks connect() and read()
+        closeSocket();
+        if (t != null && t != Thread.currentThread()) {
+            try {
+                t.join(STOP_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
+        release();
     }
 
     @Override
@@ -81,7 +144,37 @@ public class BluetoothHandler implements Tunnel {
 
     @Override
     public String getTunnelName() {
-        return device != null ? device.getName() : "null";
+        return name;
+    }
+
+    @Override
+    public void setCoalesceMs(int ms) {
+        coalesceMs = MavlinkFramer.clampCoalesceMs(ms);
+        MavlinkFramer f = framer;
+        if (f != null) f.setCoalesceMs(coalesceMs);
+    }
+
+    @Override
+    public MavlinkPolicy getPolicy() {
+        return policy;
+    }
+
+    @Override
+    public JSONObject getStats() {
+        MavlinkFramer f = framer;
+        if (f == null) return null;
+        JSONObject stats = f.getStats();
+        try {
+            stats.put("connected", writer != null);
+            stats.put("rx_bytes", tunnelRxBytes.get());
+            stats.put("tx_bytes", tunnelTxBytes.get());
+            stats.put("tx_errors", tunnelTxErrors.get());
+            TunnelWriter w = writer;
+            stats.put("tx_queued_bytes", w != null ? w.getQueuedBytes() : 0);
+        } catch (JSONException e) {
+            Log.e(TAG, "getStats failed", e);
+        }
+        return stats;
     }
 
     // Private helpers — init steps
@@ -103,7 +196,7 @@ public class BluetoothHandler implements Tunnel {
             return false;
         }
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S &&ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+        if (!hasConnectPermission()) {
             showToast("BLUETOOTH_CONNECT permission required");
             return false;
         }
@@ -111,61 +204,149 @@ public class BluetoothHandler implements Tunnel {
         return true;
     }
 
-    private void connectToDevice(BluetoothDevice device) {
-        connection.connect(device, true, new BluetoothListener.onConnectionListener() {
-            @Override
-            public void onConnectionStateChanged(BluetoothSocket socket, int state) {
-                switch (state) {
-                    case Connection.CONNECTING:
-                        Log.d(TAG, "Connecting…");
-                        showToast("Connecting…");
-                        break;
-
-                    case Connection.CONNECTED:
-                        Log.d(TAG, "Connected successfully");
-                        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S &&
-                                ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_CONNECT)
-                                        != PackageManager.PERMISSION_GRANTED) {
-                            return;
-                        }
-                        showToast("Connected to " + device.getName());
-                        setupBluetoothListener();
-                        break;
-
-                    case Connection.DISCONNECTED:
-                        Log.d(TAG, "Disconnected");
-                        close();
-                        break;
+    private boolean hasConnectPermission() {
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.S
+                || ActivityCompat.checkSelfPermission(context, Manifest.permission.BLUETOOTH_CONNECT)
+                        == PackageManager.PERMISSION_GRANTED;
+    }
+
+    // Private helpers — read loop
+    /** Runs on "BtReadLoop-name": connects, starts the writer, then reads until the link drops or close(). */
+    private void connectAndRead() {
+        BluetoothSocket s;
+        try {
+            s = device.createRfcommSocketToServiceRecord(SPP_UUID);
+            synchronized (this) {
+                if (!isCurrent()) {
+                    s.close();
+                    return;
                 }
+                socket = s;
             }
-
-            @Override
-            public void onConnectionFailed(int errorCode) {
-                Log.d(TAG, "Connection failed, code " + errorCode);
-                showToast("Connection failed");
+            Log.d(TAG, name + ": connecting…");
+            s.connect();
+        } catch (IOException | SecurityException e) {
+            if (isCurrent()) {
+                Log.d(TAG, name + ": connection failed: " + e.getMessage());
+                log(name + ": connection failed: " + e.getMessage());
+                showToast("Connection failed: " + name);
                 context.sendBroadcast(new Intent(ACTION_BT_FAILED));
-                connection.disconnect();
                 close();
             }
-        }, null);
+            return;
+        }
+
+        try {
+            InputStream in = s.getInputStream();
+            if (!startWriter(s.getOutputStream())) {
+                // close() ran while connect() was finishing and found no writer to stop
+                s.close();
+                return;
+            }
+            Log.d(TAG, name + ": connected");
+            showToast("Connected to " + name);
+
+            byte[] buffer = new byte[READ_BUFFER_BYTES];
+            while (isCurrent()) {
+                int len = in.read(buffer);
+                if (len < 0) break;
+                if (len == 0) continue;
+                rxBytes.add(len);
+                tunnelRxBytes.addAndGet(len);
+                MavlinkFramer f = framer;
+                if (f != null) f.feed(buffer, 0, len);
+            }
+        } catch (IOException e) {
+            if (isCurrent()) log(name + ": link lost: " + e.getMessage());
+        }
+
+        if (isCurrent()) {
+            Log.d(TAG, name + ": disconnected");
+            close();
+        }
+    }
+
+    private synchronized boolean isCurrent() {
+        return isRunning && readThread == Thread.currentThread();
     }
 
-    private void setupBluetoothListener() {
-        SendReceive.getInstance().setOnReceiveListener(new BluetoothListener.onReceiveListener() {
+    /**
+     * Uplink: WebSocket → bounded queue → "BtWriter" thread → RFCOMM socket.
+     * Published under the same lock close() clears isRunning with, so close()
+     * either stops this writer or it is never started.
+     *
+     * @return false if this read loop was already closed
+     */
+    private synchronized boolean startWriter(OutputStream out) {
+        if (!isCurrent()) return false;
+        TunnelWriter w = new TunnelWriter("bt", name, "BtWriter-" + name, (buf, len) -> out.write(buf, 0, len),
+                TunnelWriter.Overflow.DROP_OLDEST, new TunnelWriter.Listener() {
             @Override
-            public void onReceived(String data) {}
+            public void onWritten(int bytes, long startNs) {
+                txBytes.add(bytes);
+                tunnelTxBytes.addAndGet(bytes);
+            }
 
             @Override
-            public void onReceived(String data, byte[] byteData) {
-                webSocketHandler.sendBytes(byteData);
+            public void onWriteFailed(IOException e) {
+                txErrors.inc();
+                tunnelTxErrors.incrementAndGet();
+                log(name + ": error writing to Bluetooth socket from WebSocket: " + e);
             }
         });
+        w.start();
+        writer = w;
+        return true;
+    }
+
+    private void stopWriter() {
+        TunnelWriter w = writer;
+        writer = null;
+        if (w != null) w.stop(STOP_TIMEOUT_MS);
+    }
+
+    private synchronized void closeSocket() {
+        if (socket == null) return;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.w(TAG, name + ": socket close failed", e);
+        }
+        socket = null;
+    }
+
+    /** After the read loop: sends what the framer still holds, then closes the WebSocket. */
+    private synchronized void release() {
+        stopFramer();
+
+        if (webSocketHandler != null) {
+            webSocketHandler.close();
+            webSocketHandler = null;
+        }
+    }
+
+    /** Frames received bytes into whole-MAVLink-frame WebSocket messages. */
+    private void startFramer() {
+        framer = new MavlinkFramer("bt", name, coalesceMs, policy, (message, critical) -> {
+            WebSocketHandler ws = webSocketHandler;
+            if (ws == null) return;
+            // critical frames ride the control class, ahead of queued tunnel traffic
+            if (critical) ws.sendBytes(message, SendScheduler.SendClass.CONTROL);
+            else ws.sendBytes(message);
+        });
+        framer.start();
+    }
+
+    private void stopFramer() {
+        MavlinkFramer f = framer;
+        framer = null;
+        if (f != null) f.stop();
     }
 
     private void setupWebSocket() {
         SharedPreferences prefs = saveInputFields.get_shared_pref();
 
-        webSocketHandler = new WebSocketHandler(context, new WebSocketHandler.MessageCallback() {
+        webSocketHandler = new WebSocketHandler(context, Tunnel.socketName("bt", name), new WebSocketHandler.MessageCallback() {
             @Override
             public void onOpen() {
                 Log.d(TAG, "Connected to WS");
@@ -176,7 +357,9 @@ public class BluetoothHandler implements Tunnel {
 
             @Override
             public void onPayloadReceivedByte(byte[] byteData) {
-                SendReceive.getInstance().send(byteData);
+                // dropped until the RFCOMM link is up
+                TunnelWriter w = writer;
+                if (w != null) w.offer(byteData);
             }
 
             @Override
@@ -190,12 +373,23 @@ public class BluetoothHandler implements Tunnel {
             }
         });
 
-        webSocketHandler.setupConnection(KEY_data_api_path, prefs.getString(KEY_Session_KEY, "block"));
+        // uplink bytes are only queued for the writer thread
+        webSocketHandler.setDispatchMode(WebSocketHandler.DispatchMode.READER_THREAD);
+        // discarded tunnel messages mean the uplink is congested
+        webSocketHandler.setDropListener((sendClass, bytes) -> policy.onCongestion());
+        // one channel per tunnel, so the server can tell the modules apart
+        webSocketHandler.setupConnection(Tunnel.dataPath(KEY_data_api_path, name),
+                prefs.getString(KEY_Session_KEY, "block"));
     }
 
     // Utility
+    private static void log(String message) {
+        Logging logging = Logging.getIfInitialized();
+        if (logging != null) logging.w(TAG, message);
+    }
+
     private void showToast(String message) {
         new Handler(Looper.getMainLooper()).post(() ->
                 Toast.makeText(context, message, Toast.LENGTH_SHORT).show());
     }
-}
\ No newline at end of file
+}
@@ -15,45 +15,58 @@ import android.util.Log;
 import android.widget.Toast;
 
 import com.github.nikipo.ussoi.storage.logs.Logging;
+import com.github.nikipo.ussoi.network.Webscoket.SendScheduler;
 import com.github.nikipo.ussoi.network.Webscoket.WebSocketHandler;
 import com.github.nikipo.ussoi.storage.SaveInputFields;
+import com.github.nikipo.ussoi.system.metrics.Counter;
+import com.github.nikipo.ussoi.system.metrics.Histogram;
+import com.github.nikipo.ussoi.system.metrics.Metrics;
+import com.github.nikipo.ussoi.tunnel.MavlinkFramer;
+import com.github.nikipo.ussoi.tunnel.MavlinkPolicy;
 import com.github.nikipo.ussoi.tunnel.Tunnel;
+import com.github.nikipo.ussoi.tunnel.TunnelWriter;
 import com.hoho.android.usbserial.driver.UsbSerialDriver;
 import com.hoho.android.usbserial.driver.UsbSerialPort;
 
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.io.IOException;
-import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 
 
+/**
+ * One USB serial port as a tunnel. Every handler owns its port, read and
+ * write threads, WebSocket channel and stats, so any number of devices — and
+ * every port of a multi-port adapter — run side by side, addressed by name.
+ */
 public class UsbHandler implements Tunnel {
 
     private static final String TAG = "UsbHandler";
 
-    // -------------------------------------------------------------------------
-    // Singleton
-    // -------------------------------------------------------------------------
+    private static final Counter rxBytes = Metrics.counter(
+            "ussoi_tunnel_rx_bytes_total", "tunnel=\"usb\"", "Bytes read from the tunnel device");
+    private static final Counter txBytes = Metrics.counter(
+            "ussoi_tunnel_tx_bytes_total", "tunnel=\"usb\"", "Bytes written to the tunnel device");
+    private static final Counter txErrors = Metrics.counter(
+            "ussoi_tunnel_tx_errors_total", "tunnel=\"usb\"", "Failed writes to the tunnel device");
+    private static final Histogram writeLatency = Metrics.histogram(
+            "ussoi_tunnel_write_us", "tunnel=\"usb\"", "Blocking write to the tunnel device, microseconds");
 
-    private static UsbHandler instance;
-
-    private UsbHandler(Context context) {
+    public UsbHandler(Context context, UsbTunnelConfig config) {
         this.context    = context.getApplicationContext();
         this.usbManager = (UsbManager) this.context.getSystemService(Context.USB_SERVICE);
-        this.baudRate   = 115200;
-    }
-
-    public static synchronized UsbHandler getInstance(Context context) {
-        if (instance == null) {
-            instance = new UsbHandler(context);
-        }
-        return instance;
+        this.driver     = config.driver;
+        this.portIndex  = config.portIndex;
+        this.usbName    = config.name;
+        this.baudRate   = config.baudRate;
     }
 
     // -------------------------------------------------------------------------
     // Fields
     // -------------------------------------------------------------------------
 
-    private final Object      usbLock    = new Object();
     private final Context     context;
     private final UsbManager  usbManager;
 
@@ -62,15 +75,26 @@ public class UsbHandler implements Tunnel {
     private WebSocketHandler   webSocketHandler;
     private Logging            logging;
 
-    private UsbSerialDriver    driver;
+    private final UsbSerialDriver driver;
+    private final int          portIndex;
+    private final String       usbName;
+    private final int          baudRate;
     private UsbSerialPort      port;
-    private String             usbName;
-    private int                baudRate;
     private int                timeOut = 100;
 
     private Thread             readThread;
     private volatile boolean   reading = false;
 
+    private volatile MavlinkFramer framer;
+    private volatile TunnelWriter  writer;
+    private int                coalesceMs = MavlinkFramer.DEFAULT_COALESCE_MS;
+    private final MavlinkPolicy policy    = new MavlinkPolicy();
+
+    // this tunnel only; the ussoi_tunnel_* metrics add up all USB tunnels
+    private final AtomicLong tunnelRxBytes  = new AtomicLong();
+    private final AtomicLong tunnelTxBytes  = new AtomicLong();
+    private final AtomicLong tunnelTxErrors = new AtomicLong();
+
     // -------------------------------------------------------------------------
     // Tunnel interface
     // -------------------------------------------------------------------------
@@ -81,6 +105,9 @@ public class UsbHandler implements Tunnel {
         logging         = Logging.getIfInitialized();
         prefs           = saveInputFields.get_shared_pref();
 
+        // the read loop ended on its own (device unplugged): release the rest first
+        if (port != null) close();
+
         if (!checkDriver())                         return;
         UsbDevice device = driver.getDevice();
         if (!checkPermission(device))               return;
@@ -88,14 +115,17 @@ public class UsbHandler implements Tunnel {
         if (connection == null)                     return;
         if (!openPort(connection, device))          return;
 
+        startWriter();
         setupWebSocket();
+        startFramer();
         startReading(port);
     }
 
     @Override
     public void close() {
-        logging.log(TAG + " USB services stopped");
+        if (logging != null) logging.log(TAG + " " + usbName + " stopped");
         stopReading();
+        stopFramer();
 
         // Closing order matters: WebSocket before port
         if (webSocketHandler != null) {
@@ -103,6 +133,7 @@ public class UsbHandler implements Tunnel {
             webSocketHandler = null;
             Log.d(TAG, "Socket closed");
         }
+        stopWriter();
 
         if (port != null) {
             try {
@@ -115,7 +146,7 @@ public class UsbHandler implements Tunnel {
 
     @Override
     public boolean isTunnelRunning() {
-        return false;
+        return reading;
     }
 
     @Override
@@ -123,18 +154,35 @@ public class UsbHandler implements Tunnel {
         return usbName;
     }
 
-    // -------------------------------------------------------------------------
-    // Configuration
-    // -------------------------------------------------------------------------
+    @Override
+    public void setCoalesceMs(int ms) {
+        coalesceMs = MavlinkFramer.clampCoalesceMs(ms);
+        MavlinkFramer f = framer;
+        if (f != null) f.setCoalesceMs(coalesceMs);
+    }
 
-    public void setDeviceConfig(UsbSerialDriver driver, String name, int baudRate) {
-        this.driver   = driver;
-        this.usbName  = name;
-        this.baudRate = baudRate;
+    @Override
+    public MavlinkPolicy getPolicy() {
+        return policy;
     }
 
-    public void clearDriver() {
-        this.driver = null;
+    @Override
+    public JSONObject getStats() {
+        MavlinkFramer f = framer;
+        if (f == null) return null;
+        JSONObject stats = f.getStats();
+        try {
+            stats.put("port", portIndex);
+            stats.put("baud", baudRate);
+            stats.put("rx_bytes", tunnelRxBytes.get());
+            stats.put("tx_bytes", tunnelTxBytes.get());
+            stats.put("tx_errors", tunnelTxErrors.get());
+            TunnelWriter w = writer;
+            stats.put("tx_queued_bytes", w != null ? w.getQueuedBytes() : 0);
+        } catch (JSONException e) {
+            Log.e(TAG, "getStats failed", e);
+        }
+        return stats;
     }
 
     // -------------------------------------------------------------------------
@@ -168,14 +216,19 @@ public class UsbHandler implements Tunnel {
 
     /** Opens the serial port and configures baud/framing. Returns false on failure. */
     private boolean openPort(UsbDeviceConnection connection, UsbDevice device) {
-        port    = driver.getPorts().get(0);
+        if (portIndex >= driver.getPorts().size()) {
+            logging.e(TAG, usbName + ": device has no port " + portIndex);
+            connection.close();
+            return false;
+        }
+        port    = driver.getPorts().get(portIndex);
         timeOut = usbWriteTimeoutMs(baudRate);
 
         try {
             port.open(connection);
             port.setParameters(baudRate, 8, UsbSerialPort.STOPBITS_1, UsbSerialPort.PARITY_NONE);
 
-            String serialCfg = "USB SERIAL CONFIG | baud=" + baudRate + ", dataBits=8, stopBits=1, parity=NONE";
+            String serialCfg = "USB SERIAL CONFIG | " + usbName + " port=" + portIndex + ", baud=" + baudRate + ", dataBits=8, stopBits=1, parity=NONE";
             Log.i(TAG, serialCfg);
             logging.log(TAG + " " + serialCfg);
             logging.log(TAG + " VID=0x" + Integer.toHexString(device.getVendorId())
@@ -187,6 +240,7 @@ public class UsbHandler implements Tunnel {
             Log.e(TAG, "USB SERIAL CONFIG FAILED", e);
             logging.log(TAG + " USB SERIAL CONFIG FAILED: " + e.getMessage());
             tryClosePort();
+            port = null;
             return false;
         }
     }
@@ -202,7 +256,7 @@ public class UsbHandler implements Tunnel {
     }
 
     private void setupWebSocket() {
-        webSocketHandler = new WebSocketHandler(context, new WebSocketHandler.MessageCallback() {
+        webSocketHandler = new WebSocketHandler(context, Tunnel.socketName("usb", usbName), new WebSocketHandler.MessageCallback() {
             @Override
             public void onOpen() {
                 Log.d(TAG, "Connected to WS");
@@ -213,15 +267,8 @@ public class UsbHandler implements Tunnel {
 
             @Override
             public void onPayloadReceivedByte(byte[] byteData) {
-                synchronized (usbLock) {
-                    if (port == null) return;
-                    try {
-                        port.write(byteData, timeOut);
-                    } catch (IOException e) {
-                        Log.e(TAG, "Error writing to USB port from WebSocket", e);
-                        logging.log(TAG + " Error writing to USB port from WebSocket: " + e);
-                    }
-                }
+                TunnelWriter w = writer;
+                if (w != null) w.offer(byteData);
             }
 
             @Override
@@ -235,7 +282,13 @@ public class UsbHandler implements Tunnel {
             }
         });
 
-        webSocketHandler.setupConnection(KEY_data_api_path, prefs.getString(KEY_Session_KEY, "block"));
+        // uplink bytes are only queued for the writer thread
+        webSocketHandler.setDispatchMode(WebSocketHandler.DispatchMode.READER_THREAD);
+        // discarded tunnel messages mean the uplink is congested
+        webSocketHandler.setDropListener((sendClass, bytes) -> policy.onCongestion());
+        // one channel per tunnel, so the server can tell the devices apart
+        webSocketHandler.setupConnection(Tunnel.dataPath(KEY_data_api_path, usbName),
+                prefs.getString(KEY_Session_KEY, "block"));
     }
 
     // -------------------------------------------------------------------------
@@ -249,13 +302,16 @@ public class UsbHandler implements Tunnel {
         readThread = new Thread(() -> {
             byte[] buffer              = new byte[4096];
             final int READ_WAIT_MILLIS = 1000;
+            MavlinkFramer framer       = this.framer;
 
             while (reading) {
                 try {
                     if (port == null) break;
                     int len = port.read(buffer, READ_WAIT_MILLIS);
                     if (len > 0) {
-                        webSocketHandler.sendBytes(Arrays.copyOf(buffer, len));
+                        rxBytes.add(len);
+                        tunnelRxBytes.addAndGet(len);
+                        framer.feed(buffer, 0, len);
                     }
                 } catch (IOException e) {
                     logging.log(TAG + " Error reading from USB port: " + e);
@@ -263,11 +319,61 @@ public class UsbHandler implements Tunnel {
                 }
             }
             reading = false;
-        }, "UsbReadLoop");
+        }, "UsbReadLoop-" + usbName);
 
         readThread.start();
     }
 
+    /** Uplink: WebSocket → bounded queue → "UsbWriter" thread → port. */
+    private void startWriter() {
+        UsbSerialPort p = port;
+        // the base timeout plus the time the bytes take on the wire (10 bits each)
+        TunnelWriter.Sink sink = (buf, len) -> p.write(buf, len, timeOut + (int) (len * 10_000L / baudRate));
+        writer = new TunnelWriter("usb", usbName, "UsbWriter-" + usbName, sink,
+                TunnelWriter.Overflow.DROP_OLDEST, new TunnelWriter.Listener() {
+            @Override
+            public void onWritten(int bytes, long startNs) {
+                writeLatency.recordSinceNs(startNs);
+                txBytes.add(bytes);
+                tunnelTxBytes.addAndGet(bytes);
+            }
+
+            @Override
+            public void onWriteFailed(IOException e) {
+                txErrors.inc();
+                tunnelTxErrors.incrementAndGet();
+                logging.e(TAG, usbName + ": error writing to USB port from WebSocket: " + e);
+            }
+        });
+        writer.start();
+    }
+
+    /** After the socket is closed: writes what is queued, then stops. */
+    private void stopWriter() {
+        TunnelWriter w = writer;
+        writer = null;
+        if (w != null) w.stop(usbWriteTimeoutMs(baudRate) + 200);
+    }
+
+    /** Frames serial reads into whole-MAVLink-frame WebSocket messages. */
+    private void startFramer() {
+        framer = new MavlinkFramer("usb", usbName, coalesceMs, policy, (message, critical) -> {
+            WebSocketHandler ws = webSocketHandler;
+            if (ws == null) return;
+            // critical frames ride the control class, ahead of queued tunnel traffic
+            if (critical) ws.sendBytes(message, SendScheduler.SendClass.CONTROL);
+            else ws.sendBytes(message);
+        });
+        framer.start();
+    }
+
+    /** After the read loop: sends what is still pending. */
+    private void stopFramer() {
+        MavlinkFramer f = framer;
+        framer = null;
+        if (f != null) f.stop();
+    }
+
     private void stopReading() {
         reading = false;
         if (readThread != null) {
@@ -0,0 +1,46 @@
+package com.github.nikipo.ussoi.tunnel.usb;
+
+import com.hoho.android.usbserial.driver.UsbSerialDriver;
+
+/**
+ * *****************************************************************************
+ *
+ * @author nikipo
+ * *****************************************************************************
+ * @file UsbTunnelConfig
+ * @attention Copyright (c) 2026
+ * All rights reserved.
+ * <p>
+ * This software is licensed under the terms described in the LICENSE file
+ * located in the root directory of this project.
+ * If no LICENSE file is present, this software is provided "AS IS",
+ * without warranty of any kind, express or implied.
+ * <p>
+ * *****************************************************************************
+ */
+
+/**
+ * One USB serial tunnel picked in the setup dialog: a port of a driver (a
+ * multi-port adapter gives one driver several ports), the tunnel name used by
+ * start_tunnel / stop_tunnel, and the baud rate.
+ */
+public final class UsbTunnelConfig {
+    public final UsbSerialDriver driver;
+    public final int portIndex;
+    public final String name;
+    public final int baudRate;
+
+    public UsbTunnelConfig(UsbSerialDriver driver, int portIndex, String name, int baudRate) {
+        this.driver = driver;
+        this.portIndex = portIndex;
+        this.name = name;
+        this.baudRate = baudRate;
+    }
+
+    /** Same physical port, whatever the name. */
+    public boolean samePort(UsbTunnelConfig other) {
+        return other != null
+                && portIndex == other.portIndex
+                && driver.getDevice().getDeviceId() == other.driver.getDevice().getDeviceId();
+    }
+}
@@ -62,6 +62,7 @@ public class UssoiStrings {
     public static final String START_TUNNEL     = "start_tunnel";
     public static final String STOP_TUNNEL      = "stop_tunnel";
     public static final String TUNNEL_NAME      = "tunnel_name";
+    public static final String COALESCE_MS      = "coalesce_ms";
 
     public static final String SWITCH           = "switch";
 
@@ -84,9 +85,43 @@ public class UssoiStrings {
     public static final String GET_TUNNELS  = "get_tunnels";
     public static final String GET_RES      = "get_res";
     public static final String GET_PARAMS   = "get_params";
+    public static final String GET_STREAM_STATS = "get_stream_stats";
+    public static final String GET_TELEMETRY_HISTORY = "get_telemetry_history";
+    public static final String GET_METRICS  = "get_metrics";
+
+    // Device -> server clock offset exchange
+    public static final String TIME_SYNC = "time_sync";
+
+    // Command execution
+    public static final String CANCEL  = "cancel";
+    public static final String TIMEOUT = "timeout";
+    public static final String BATCH   = "batch";
+
+    // Runtime log filter
+    public static final String SET_LOG_LEVEL = "set_log_level";
+    public static final String LEVEL = "level";
+    public static final String TAGS  = "tags";
+    public static final String RESET = "reset";
+
+    // Tunnel MAVLink policy
+    public static final String SET_TUNNEL_POLICY = "set_tunnel_policy";
+    public static final String RULES    = "rules";
+    public static final String DEGRADE  = "degrade";
+    public static final String POLICIES = "policies";
+
+    // Control codec negotiation
+    public static final String SET_CODEC = "set_codec";
+    public static final String CODEC     = "codec";
+    public static final String CODECS    = "codecs";
+    public static final String TELEM_FORMAT = "telem_format";
+    public static final String TELEM_BINARY = "binary";
 
     public static final String TELEMETRY   = "telem";
     public static final String HEX   = "hex";
+    public static final String STALE = "stale";
+    public static final String PROC  = "proc";
+    public static final String METRICS = "metrics";
+    public static final String PREFIX  = "prefix";
     // Status Values
     public static final String STATUS_OK    = "ok";
     public static final String STATUS_FAIL  = "fail";
@@ -111,6 +146,12 @@ public class UssoiStrings {
     public static final String FPS = "fps";
     public static final String BITRATE = "bitrate";
     public static final String RES = "res";
+    public static final String ABR = "abr";
+    public static final String ENABLED = "enabled";
+    public static final String LADDER = "ladder";
+    public static final String MIN_BITRATE = "min_bitrate";
+    public static final String FRAME_TRACE = "trace";
+    public static final String MAX_BITRATE = "max_bitrate";
 
     public static final String STATE = "state";
 
@@ -0,0 +1,207 @@
+package com.github.nikipo.ussoi.media.h264;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * *****************************************************************************
+ *
+ * @author nikipo
+ * *****************************************************************************
+ * @file AbrControllerTest
+ * @attention Copyright (c) 2026
+ * All rights reserved.
+ * <p>
+ * This software is licensed under the terms described in the LICENSE file
+ * located in the root directory of this project.
+ * If no LICENSE file is present, this software is provided "AS IS",
+ * without warranty of any kind, express or implied.
+ * <p>
+ * *****************************************************************************
+ */
+
+/**
+ * Drives {@link AbrController} against a simulated link: the encoder hands
+ * bitrate/8 bytes per second to a socket queue that drains at the link
+ * capacity, ticked every 500 ms like H264Media does.
+ */
+public class AbrControllerTest {
+
+    private static final long TICK_MS = 500;
+
+    /** Socket queue in front of a link of fixed capacity. */
+    private static final class Link {
+        long capacityBytesPerSec;
+        long queueBytes;
+        long sentTotal;
+        long uploadBytesPerSec;
+        long maxQueueBytes;
+
+        Link(long capacityBytesPerSec) {
+            this.capacityBytesPerSec = capacityBytesPerSec;
+        }
+
+        void run(int bitrate, long dtMs) {
+            long produced = (long) bitrate / 8 * dtMs / 1000;
+            long drained = Math.min(queueBytes + produced, capacityBytesPerSec * dtMs / 1000);
+            sentTotal += produced;
+            queueBytes += produced - drained;
+            uploadBytesPerSec = drained * 1000 / dtMs;
+            maxQueueBytes = Math.max(maxQueueBytes, queueBytes);
+        }
+    }
+
+    private static final class Sim {
+        final AbrController abr;
+        final Link link;
+        final List<AbrController.Decision> decisions = new ArrayList<>();
+        long nowMs = 0;
+
+        Sim(AbrController abr, Link link) {
+            this.abr = abr;
+            this.link = link;
+            abr.update(nowMs, 0, 0, 0);
+        }
+
+        void runFor(long ms) {
+            for (long end = nowMs + ms; nowMs < end; ) {
+                link.run(abr.getBitrate(), TICK_MS);
+                nowMs += TICK_MS;
+                AbrController.Decision d = abr.update(nowMs, link.queueBytes, link.sentTotal, link.uploadBytesPerSec);
+                if (d != null) decisions.add(d);
+            }
+        }
+
+        long queueDelayMs() {
+            return link.queueBytes * 1000 / link.capacityBytesPerSec;
+        }
+    }
+
+    private static List<AbrController.Rung> singleRung(int min, int max) {
+        return Arrays.asList(new AbrController.Rung(1280, 720, 30, min, max));
+    }
+
+    private static List<AbrController.Rung> twoRungs() {
+        return Arrays.asList(
+                new AbrController.Rung(1280, 720, 30, 300_000, 2_000_000),
+                new AbrController.Rung(640, 480, 15, 50_000, 600_000));
+    }
+
+    @Test
+    public void congestedLinkBacksOffAndStaysAroundCapacity() {
+        // 800 kbps link, encoder starts at 2 Mbps
+        Sim sim = new Sim(new AbrController(new AbrController.Config(), singleRung(100_000, 4_000_000), 2_000_000),
+                new Link(100_000));
+
+        sim.runFor(5_000);
+        assertEquals(AbrController.REASON_CONGESTED, sim.decisions.get(0).reason);
+        assertTrue("bitrate " + sim.abr.getBitrate(), sim.abr.getBitrate() < 800_000);
+
+        // afterwards it probes up and backs off again around the capacity
+        long sum = 0;
+        int ticks = 0;
+        for (int i = 0; i < 110; i++) {
+            sim.runFor(TICK_MS);
+            int bitrate = sim.abr.getBitrate();
+            assertTrue("bitrate " + bitrate, bitrate < 800_000 * 1.2);
+            assertTrue("queue delay " + sim.queueDelayMs(), sim.queueDelayMs() < 1_000);
+            sum += bitrate;
+            ticks++;
+        }
+        long average = sum / ticks;
+        assertTrue("average " + average, average > 800_000 * 0.6 && average < 800_000 * 1.05);
+    }
+
+    @Test
+    public void idleLinkProbesUpToRungMaximum() {
+        Sim sim = new Sim(new AbrController(new AbrController.Config(), singleRung(100_000, 2_000_000), 500_000),
+                new Link(1_000_000));
+
+        sim.runFor(60_000);
+
+        assertEquals(2_000_000, sim.abr.getBitrate());
+        assertEquals(0, sim.link.queueBytes);
+        for (AbrController.Decision d : sim.decisions) {
+            assertEquals(AbrController.REASON_PROBE, d.reason);
+        }
+    }
+
+    @Test
+    public void convergesNearCapacityWithBoundedQueue() {
+        // 1.2 Mbps link, rung allows up to 4 Mbps
+        Sim sim = new Sim(new AbrController(new AbrController.Config(), singleRung(100_000, 4_000_000), 500_000),
+                new Link(150_000));
+
+        sim.runFor(120_000);
+
+        // settles within the decrease factor below capacity and never sits far above it
+        int bitrate = sim.abr.getBitrate();
+        assertTrue("bitrate " + bitrate, bitrate >= 600_000 && bitrate <= 1_400_000);
+        // at most a few seconds of backlog at any point
+        assertTrue("max queue " + sim.link.maxQueueBytes, sim.link.maxQueueBytes < 150_000 * 5);
+    }
+
+    @Test
+    public void stepsDownTheLadderWhenPinnedAtRungMinimum() {
+        // 160 kbps: below the 300 kbps floor of rung 0
+        Sim sim = new Sim(new AbrController(new AbrController.Config(), twoRungs(), 2_000_000),
+                new Link(20_000));
+
+        sim.runFor(30_000);
+
+        assertEquals(1, sim.abr.getRungIndex());
+        assertTrue(sim.abr.getBitrate() <= 160_000);
+        boolean rungDown = false;
+        for (AbrController.Decision d : sim.decisions) {
+            if (AbrController.REASON_RUNG_DOWN.equals(d.reason)) {
+                rungDown = true;
+                assertTrue(d.rungChanged);
+                assertEquals(640, d.rung.width);
+            }
+        }
+        assertTrue(rungDown);
+    }
+
+    @Test
+    public void stepsBackUpWhenTheLinkRecovers() {
+        Sim sim = new Sim(new AbrController(new AbrController.Config(), twoRungs(), 2_000_000),
+                new Link(20_000));
+        sim.runFor(30_000);
+        assertEquals(1, sim.abr.getRungIndex());
+
+        sim.link.capacityBytesPerSec = 1_000_000;
+        sim.runFor(120_000);
+
+        assertEquals(0, sim.abr.getRungIndex());
+        assertTrue(sim.abr.getBitrate() >= 300_000);
+    }
+
+    @Test
+    public void resetIsClampedToTheCurrentRung() {
+        AbrController abr = new AbrController(new AbrController.Config(), singleRung(100_000, 1_000_000), 500_000);
+
+        assertEquals(1_000_000, abr.reset(5_000_000, 0));
+        assertEquals(1_000_000, abr.getBitrate());
+        assertEquals(100_000, abr.reset(1_000, 0));
+    }
+
+    @Test
+    public void firstTickOnlyPrimesTheEstimate() {
+        AbrController abr = new AbrController(new AbrController.Config(), singleRung(100_000, 1_000_000), 500_000);
+
+        assertNull(abr.update(0, 1_000_000, 1_000_000, 0));
+        assertEquals(500_000, abr.getBitrate());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyLadderIsRejected() {
+        new AbrController(new AbrController.Config(), new ArrayList<>(), 500_000);
+    }
+}
@@ -0,0 +1,197 @@
+package com.github.nikipo.ussoi.network.packetSerialization;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/**
+ * *****************************************************************************
+ *
+ * @author nikipo
+ * *****************************************************************************
+ * @file MsgPackerManagerTest
+ * @attention Copyright (c) 2026
+ * All rights reserved.
+ * <p>
+ * This software is licensed under the terms described in the LICENSE file
+ * located in the root directory of this project.
+ * If no LICENSE file is present, this software is provided "AS IS",
+ * without warranty of any kind, express or implied.
+ * <p>
+ * *****************************************************************************
+ */
+
+/**
+ * MessagePack against the org.json text codec on representative control
+ * messages: both must carry the same message, MessagePack must be smaller,
+ * and {@link #encodeDecodeCost()} prints the per-message cost of both.
+ * Runs on the JVM with the real org.json (testImplementation), not the
+ * android.jar stub.
+ */
+public class MsgPackerManagerTest {
+
+    private static final String[] MESSAGES = {
+            // request with params
+            "{\"type\":\"request\",\"cmd\":\"set_stream_res\",\"cmdId\":42,"
+                    + "\"param\":{\"width\":1280,\"height\":720,\"fps\":30,\"bitrate\":2000000}}",
+            // plain ack
+            "{\"type\":\"response\",\"cmd\":\"start_stream\",\"cmdId\":7,\"status\":\"ok\"}",
+            // error
+            "{\"type\":\"error\",\"cmd\":\"start_tunnel\",\"cmdId\":9,\"error\":\"failed to start\"}",
+            // nested response
+            "{\"type\":\"response\",\"cmd\":\"get_stream_stats\",\"cmdId\":3,\"status\":\"ok\","
+                    + "\"data\":{\"droppedFrames\":12,\"skippedGops\":2,\"syncRequests\":3,\"recoveries\":2,"
+                    + "\"lastRecoveryMs\":310,\"avgRecoveryMs\":280,\"maxRecoveryMs\":310,\"skipping\":false,"
+                    + "\"latencyUs\":{\"encode\":[812,4095,9215,12031],\"drain\":[812,255,1023,2047]}}}",
+            // telemetry: doubles, negatives, null, unicode
+            "{\"type\":\"telem\",\"data\":{\"lat\":48.858370,\"lon\":2.294481,\"alt\":-12.5,"
+                    + "\"battery\":87,\"charging\":true,\"rssi\":-71,\"operator\":\"Orange Fé\","
+                    + "\"cell\":null,\"ts\":1792300000123}}",
+    };
+
+    @Test
+    public void roundTripsEveryMessage() throws Exception {
+        msgPackerManager codec = new msgPackerManager();
+        for (String text : MESSAGES) {
+            JSONObject msg = new JSONObject(text);
+            byte[] packed = toBytes(codec.encode(msg));
+            JSONObject decoded = codec.decode(packed, 0, packed.length);
+            assertSameMessage(text, msg, decoded);
+        }
+    }
+
+    @Test
+    public void smallerThanJsonText() throws Exception {
+        msgPackerManager codec = new msgPackerManager();
+        int jsonTotal = 0;
+        int packedTotal = 0;
+        for (String text : MESSAGES) {
+            JSONObject msg = new JSONObject(text);
+            int json = msg.toString().getBytes(StandardCharsets.UTF_8).length;
+            int packed = codec.encode(msg).remaining();
+            assertTrue(text + ": " + packed + " >= " + json, packed < json);
+            jsonTotal += json;
+            packedTotal += packed;
+        }
+        System.out.println("control messages: json " + jsonTotal + " B, msgpack " + packedTotal + " B");
+    }
+
+    @Test
+    public void unregisteredNamesStayStrings() throws Exception {
+        msgPackerManager codec = new msgPackerManager();
+        JSONObject msg = new JSONObject("{\"type\":\"event\",\"cmd\":\"not_a_command\",\"cmdId\":1,\"extra\":\"x\"}");
+        byte[] packed = toBytes(codec.encode(msg));
+        JSONObject decoded = codec.decode(packed, 0, packed.length);
+        assertEquals("event", decoded.getString("type"));
+        assertEquals("not_a_command", decoded.getString("cmd"));
+        assertEquals("x", decoded.getString("extra"));
+    }
+
+    @Test
+    public void truncatedInputIsRejected() throws Exception {
+        msgPackerManager codec = new msgPackerManager();
+        byte[] packed = toBytes(codec.encode(new JSONObject(MESSAGES[0])));
+        try {
+            codec.decode(packed, 0, packed.length - 3);
+            fail("expected IOException");
+        } catch (IOException expected) {
+            // ok
+        }
+    }
+
+    /**
+     * Encode + decode cost per message for both codecs. Printed, not asserted:
+     * wall-clock timings on a shared build machine are too noisy to gate on.
+     */
+    @Test
+    public void encodeDecodeCost() throws Exception {
+        msgPackerManager codec = new msgPackerManager();
+        JSONObject[] msgs = new JSONObject[MESSAGES.length];
+        for (int i = 0; i < msgs.length; i++) msgs[i] = new JSONObject(MESSAGES[i]);
+
+        int rounds = 5_000;
+        long sink = 0;
+        // warm-up so both paths are compiled before timing
+        sink += runJson(msgs, rounds);
+        sink += runMsgpack(codec, msgs, rounds);
+
+        long start = System.nanoTime();
+        sink += runJson(msgs, rounds);
+        long jsonNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        sink += runMsgpack(codec, msgs, rounds);
+        long packNs = System.nanoTime() - start;
+
+        long ops = (long) rounds * msgs.length;
+        System.out.println("encode+decode per message: json " + jsonNs / ops + " ns, msgpack "
+                + packNs / ops + " ns (" + sink + ")");
+    }
+
+    private static long runJson(JSONObject[] msgs, int rounds) throws Exception {
+        long bytes = 0;
+        for (int r = 0; r < rounds; r++) {
+            for (JSONObject msg : msgs) {
+                byte[] wire = msg.toString().getBytes(StandardCharsets.UTF_8);
+                bytes += new JSONObject(new String(wire, StandardCharsets.UTF_8)).length();
+            }
+        }
+        return bytes;
+    }
+
+    private static long runMsgpack(msgPackerManager codec, JSONObject[] msgs, int rounds) throws Exception {
+        long bytes = 0;
+        for (int r = 0; r < rounds; r++) {
+            for (JSONObject msg : msgs) {
+                // the socket path copies the reused encode buffer once as well
+                byte[] wire = toBytes(codec.encode(msg));
+                bytes += codec.decode(wire, 0, wire.length).length();
+            }
+        }
+        return bytes;
+    }
+
+    private static byte[] toBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /** Same keys and values; numbers compare by value since msgpack returns Long / Double. */
+    private static void assertSameMessage(String where, Object expected, Object actual) {
+        if (expected instanceof JSONObject) {
+            assertTrue(where + ": not an object", actual instanceof JSONObject);
+            JSONObject e = (JSONObject) expected;
+            JSONObject a = (JSONObject) actual;
+            assertEquals(where + ": key count", e.length(), a.length());
+            Iterator<String> keys = e.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                assertTrue(where + ": missing " + key, a.has(key));
+                assertSameMessage(where + "." + key, e.opt(key), a.opt(key));
+            }
+        } else if (expected instanceof JSONArray) {
+            assertTrue(where + ": not an array", actual instanceof JSONArray);
+            JSONArray e = (JSONArray) expected;
+            JSONArray a = (JSONArray) actual;
+            assertEquals(where + ": length", e.length(), a.length());
+            for (int i = 0; i < e.length(); i++) {
+                assertSameMessage(where + "[" + i + "]", e.opt(i), a.opt(i));
+            }
+        } else if (expected instanceof Number) {
+            assertTrue(where + ": not a number", actual instanceof Number);
+            assertEquals(where, ((Number) expected).doubleValue(), ((Number) actual).doubleValue(), 0);
+        } else {
+            assertEquals(where, expected, actual);
+        }
+    }
+}